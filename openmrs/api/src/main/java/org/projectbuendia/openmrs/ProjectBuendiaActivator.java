@@ -13,12 +13,31 @@ package org.projectbuendia.openmrs;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.module.ModuleActivator;
 
+import javax.annotation.Nullable;
+
 /** Logic that is run every time this module is either started or stopped. */
-public class ProjectBuendiaActivator implements ModuleActivator {
+public class ProjectBuendiaActivator implements ModuleActivator, DaemonTokenAware {
     protected Log log = LogFactory.getLog(getClass());
 
+    private static volatile DaemonToken daemonToken;
+
+    /**
+     * Returns the token that lets this module run background work as the OpenMRS daemon user
+     * (see {@link org.openmrs.api.context.Daemon#runInDaemonThread}), or null if OpenMRS hasn't
+     * issued one yet.
+     */
+    public static @Nullable DaemonToken getDaemonToken() {
+        return daemonToken;
+    }
+
+    @Override public void setDaemonToken(DaemonToken token) {
+        daemonToken = token;
+    }
+
     public void willRefreshContext() {
         log.info("Refreshing Project Buendia module");
     }
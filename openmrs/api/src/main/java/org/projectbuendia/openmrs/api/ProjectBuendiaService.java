@@ -11,15 +11,30 @@
 
 package org.projectbuendia.openmrs.api;
 
+import org.openmrs.Encounter;
 import org.openmrs.Obs;
 import org.openmrs.Order;
+import org.openmrs.OpenmrsObject;
 import org.openmrs.Patient;
 import org.openmrs.api.OpenmrsService;
+import org.projectbuendia.openmrs.api.db.ExportRowHandler;
+import org.projectbuendia.openmrs.api.db.ObsExportRow;
 import org.projectbuendia.openmrs.api.db.ProjectBuendiaDAO;
+import org.projectbuendia.openmrs.api.db.ProviderUserRow;
 import org.projectbuendia.openmrs.api.db.SyncPage;
+import org.projectbuendia.openmrs.api.db.SyncRowHandler;
+import org.projectbuendia.openmrs.api.db.SyncSnapshotTask;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
+import org.projectbuendia.openmrs.sync.SyncType;
+import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This service exposes module's core functionality. It is a Spring managed bean which is
@@ -47,6 +62,14 @@ public interface ProjectBuendiaService extends OpenmrsService {
     SyncPage<Obs> getObservationsModifiedAtOrAfter(
             @Nullable SyncToken syncToken, boolean includeVoided, int maxResults);
 
+    /**
+     * Identical to {@link #getObservationsModifiedAtOrAfter(SyncToken, boolean, int)}, but returns
+     * lightweight {@link ObsSyncRow}s fetched in a single query instead of Hibernate entities.
+     * Prefer this method when the results are only going to be serialized for sync.
+     */
+    SyncPage<ObsSyncRow> getObservationRowsModifiedAtOrAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults);
+
     /**
      * Returns all patients modified on or after the given {@code date}.
      * @param syncToken a token representing the first record to be excluded from the result set.
@@ -69,4 +92,125 @@ public interface ProjectBuendiaService extends OpenmrsService {
     SyncPage<Order> getOrdersModifiedAtOrAfter(
             @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
             @Nullable Order.Action[] allowedOrderTypes);
+
+    /**
+     * Streaming equivalent of {@link #getObservationRowsModifiedAtOrAfter}. Rows are fetched in
+     * bounded chunks and passed to {@code handler} one at a time, so memory use does not grow with
+     * {@code maxResults}.
+     */
+    void streamObservationRowsModifiedAtOrAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
+            SyncRowHandler<ObsSyncRow> handler) throws IOException;
+
+    /** Streaming equivalent of {@link #getPatientsModifiedAtOrAfter}. */
+    void streamPatientsModifiedAtOrAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
+            SyncRowHandler<Patient> handler) throws IOException;
+
+    /** Streaming equivalent of {@link #getOrdersModifiedAtOrAfter}. */
+    void streamOrdersModifiedAtOrAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
+            @Nullable Order.Action[] allowedOrderTypes,
+            SyncRowHandler<Order> handler) throws IOException;
+
+    /**
+     * Returns a token positioned at the most recently modified record of the given type, i.e.
+     * the position after which there are currently no records, or null if there are no records.
+     * This is cheap to call: it reads a single row from the end of the sync map's index.
+     */
+    @Nullable SyncToken getHighWaterMark(SyncType type);
+
+    /**
+     * Returns the ID of the order that revises the given order, i.e. whose previous order is the
+     * given order, voided or not, or null if there is none. This is a single indexed lookup.
+     */
+    @Transactional(readOnly = true)
+    @Nullable Integer getRevisingOrderId(int orderId);
+
+    /**
+     * Returns the objects of the given type (e.g. {@link Patient}, {@link org.openmrs.Concept} or
+     * {@link Order}) that have the given UUIDs, voided or not, keyed by UUID. UUIDs with no
+     * matching object are absent from the result. This takes one query per thousand UUIDs,
+     * instead of one query per UUID.
+     */
+    @Transactional(readOnly = true)
+    <T extends OpenmrsObject> Map<String, T> getObjectsByUuid(
+            Class<T> type, Collection<String> uuids);
+
+    /**
+     * Saves new encounters, with the observations added to them, in a single transaction. The
+     * session is flushed once after all of them have been saved, instead of before every query
+     * that saving them makes, and the saved objects are then evicted from the session. If any
+     * encounter fails to save, none of them are saved.
+     */
+    void saveEncounters(List<Encounter> encounters);
+
+    /**
+     * Returns the IDs of the concepts that are the coded values of unvoided observations of the
+     * given question concepts.
+     */
+    @Transactional(readOnly = true)
+    List<Integer> getCodedValueIds(Collection<Integer> conceptIds);
+
+    /**
+     * Streams every unvoided encounter of every unvoided patient, with its unvoided observations
+     * of the given concepts, as {@link ObsExportRow}s ordered by patient identifier, patient ID,
+     * encounter time and encounter ID. The rows are read from a single forward-only query and
+     * passed to {@code handler} as they arrive, so memory use does not grow with the amount of
+     * data.
+     * @param identifierTypeId the ID of the patient identifier type to include in the rows.
+     * @param patientIds       if not null, only these patients are included.
+     */
+    @Transactional(readOnly = true)
+    void streamObsForExport(int identifierTypeId, Collection<Integer> conceptIds,
+            @Nullable Collection<Integer> patientIds, ExportRowHandler handler)
+            throws IOException;
+
+    /**
+     * Returns the identifier of the given type for every unvoided patient, keyed by patient ID,
+     * with null values for patients who have no such identifier.  If a patient has several, the
+     * least is returned, as in {@link #streamObsForExport}.
+     */
+    @Transactional(readOnly = true)
+    Map<Integer, String> getPatientIdentifiers(int identifierTypeId);
+
+    /**
+     * Returns the IDs of the patients that have observations in the obs sync map after
+     * {@code obsToken} or an entry in the patient sync map after {@code patientToken}, i.e. the
+     * patients whose data may have changed since those positions.
+     */
+    @Transactional(readOnly = true)
+    Set<Integer> getPatientIdsChangedAfter(SyncToken obsToken, SyncToken patientToken);
+
+    /**
+     * Returns the IDs of the patients that have orders in the order sync map after
+     * {@code orderToken}, i.e. the patients whose orders may have changed since that position.
+     */
+    @Transactional(readOnly = true)
+    Set<Integer> getPatientIdsWithOrdersChangedAfter(SyncToken orderToken);
+
+    /**
+     * Returns all the orders of the given patients, voided or not (like
+     * {@link org.openmrs.api.OrderService#getAllOrdersByPatient}), ordered by patient ID and
+     * order ID. This takes one query per thousand patients, instead of one query per patient.
+     */
+    @Transactional(readOnly = true)
+    List<Order> getOrdersByPatientIds(Collection<Integer> patientIds);
+
+    /**
+     * Returns every pairing of a provider, retired or not, with an unretired user of the same
+     * person, ordered by provider ID and user ID, in one query.
+     */
+    @Transactional(readOnly = true)
+    List<ProviderUserRow> getProviderUsers();
+
+    /**
+     * Runs {@code task} in a single read-only, repeatable-read transaction, so that all the sync
+     * queries it makes see the same database snapshot. With InnoDB this means that records
+     * committed while the task is running are not visible to any of its queries, so the results
+     * for different types are mutually consistent (e.g. no observation refers to an order that
+     * was created after the orders were read).
+     */
+    @Transactional(readOnly = true, isolation = Isolation.REPEATABLE_READ)
+    void runInSnapshot(SyncSnapshotTask task) throws IOException;
 }
\ No newline at end of file
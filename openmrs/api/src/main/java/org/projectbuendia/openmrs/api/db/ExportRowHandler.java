@@ -0,0 +1,28 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.openmrs.api.db;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows of a streamed data export one at a time.  The rows come straight from an
+ * open database cursor, so the handler must not use the database.
+ */
+public interface ExportRowHandler {
+    /**
+     * Handles a single row.
+     * @throws IOException if the handler fails to write the row; this aborts the stream.
+     */
+    void handle(ObsExportRow row) throws IOException;
+}
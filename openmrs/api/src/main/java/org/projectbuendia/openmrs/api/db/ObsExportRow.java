@@ -0,0 +1,55 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.api.db;
+
+import javax.annotation.Nullable;
+import java.util.Date;
+
+/**
+ * One observation of an encounter, flattened together with its encounter and patient, for the
+ * CSV data export.  An encounter that has none of the requested observations is represented by
+ * a single row whose {@link #conceptId} is null, so that every encounter appears in the stream.
+ */
+public class ObsExportRow {
+    public final int patientId;
+    public final String patientUuid;
+    @Nullable public final String patientIdentifier;
+    @Nullable public final Date birthdate;
+    public final int encounterId;
+    public final String encounterUuid;
+    public final Date encounterDatetime;
+    @Nullable public final Integer conceptId;
+    @Nullable public final Integer valueCodedId;
+    @Nullable public final Double valueNumeric;
+    @Nullable public final String valueText;
+    @Nullable public final Date valueDatetime;
+
+    public ObsExportRow(
+            int patientId, String patientUuid, @Nullable String patientIdentifier,
+            @Nullable Date birthdate, int encounterId, String encounterUuid,
+            Date encounterDatetime, @Nullable Integer conceptId, @Nullable Integer valueCodedId,
+            @Nullable Double valueNumeric, @Nullable String valueText,
+            @Nullable Date valueDatetime) {
+        this.patientId = patientId;
+        this.patientUuid = patientUuid;
+        this.patientIdentifier = patientIdentifier;
+        this.birthdate = birthdate;
+        this.encounterId = encounterId;
+        this.encounterUuid = encounterUuid;
+        this.encounterDatetime = encounterDatetime;
+        this.conceptId = conceptId;
+        this.valueCodedId = valueCodedId;
+        this.valueNumeric = valueNumeric;
+        this.valueText = valueText;
+        this.valueDatetime = valueDatetime;
+    }
+}
@@ -13,11 +13,19 @@ package org.projectbuendia.openmrs.api.db;
 
 import org.openmrs.Obs;
 import org.openmrs.Order;
+import org.openmrs.OpenmrsObject;
 import org.openmrs.Patient;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 import org.projectbuendia.openmrs.api.SyncToken;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
+import org.projectbuendia.openmrs.sync.SyncType;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /** Database methods for {@link ProjectBuendiaService}. */
 public interface ProjectBuendiaDAO {
@@ -25,10 +33,54 @@ public interface ProjectBuendiaDAO {
     SyncPage<Obs> getObservationsModifiedAfter(
             @Nullable SyncToken syncToken, boolean includeVoided, int maxResults);
 
+    SyncPage<ObsSyncRow> getObservationRowsModifiedAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults);
+
     SyncPage<Patient> getPatientsModifiedAfter(
             @Nullable SyncToken syncToken, boolean includeVoided, int maxResults);
 
     SyncPage<Order> getOrdersModifiedAtOrAfter(
             @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
             @Nullable Order.Action[] allowedOrderTypes);
+
+    void streamObservationRowsModifiedAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
+            SyncRowHandler<ObsSyncRow> handler) throws IOException;
+
+    void streamPatientsModifiedAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
+            SyncRowHandler<Patient> handler) throws IOException;
+
+    void streamOrdersModifiedAtOrAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
+            @Nullable Order.Action[] allowedOrderTypes,
+            SyncRowHandler<Order> handler) throws IOException;
+
+    @Nullable SyncToken getHighWaterMark(SyncType type);
+
+    @Nullable Integer getRevisingOrderId(int orderId);
+
+    <T extends OpenmrsObject> List<T> getObjectsByUuid(Class<T> type, Collection<String> uuids);
+
+    /**
+     * Runs {@code task} without flushing the session before queries, then flushes the session
+     * once and evicts {@code objects} from it.
+     */
+    void runWithSingleFlush(Runnable task, Collection<?> objects);
+
+    List<Integer> getCodedValueIds(Collection<Integer> conceptIds);
+
+    void streamObsForExport(int identifierTypeId, Collection<Integer> conceptIds,
+            @Nullable Collection<Integer> patientIds, ExportRowHandler handler)
+            throws IOException;
+
+    Map<Integer, String> getPatientIdentifiers(int identifierTypeId);
+
+    Set<Integer> getPatientIdsChangedAfter(SyncToken obsToken, SyncToken patientToken);
+
+    Set<Integer> getPatientIdsWithOrdersChangedAfter(SyncToken orderToken);
+
+    List<Order> getOrdersByPatientIds(Collection<Integer> patientIds);
+
+    List<ProviderUserRow> getProviderUsers();
 }
\ No newline at end of file
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.openmrs.api.db;
+
+import org.projectbuendia.openmrs.api.SyncToken;
+
+import java.io.IOException;
+
+/**
+ * Receives the records of a streamed sync page one at a time, in sync order. This is the
+ * streaming counterpart of {@link SyncPage}; records are not retained after they are handled.
+ */
+public interface SyncRowHandler<T> {
+    /**
+     * Handles a single record.
+     * @param item     the record.
+     * @param position a sync token that, if used for a subsequent request, resumes immediately
+     *                 after this record.
+     * @return {@code true} to continue, or {@code false} to end the stream after this record.
+     * @throws IOException if the handler fails to write the record; this aborts the stream.
+     */
+    boolean handle(T item, SyncToken position) throws IOException;
+}
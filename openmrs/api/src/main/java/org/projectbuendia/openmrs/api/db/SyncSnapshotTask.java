@@ -0,0 +1,29 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+package org.projectbuendia.openmrs.api.db;
+
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+
+import java.io.IOException;
+
+/**
+ * A group of sync queries to be run against a single database snapshot.
+ * @see ProjectBuendiaService#runInSnapshot(SyncSnapshotTask)
+ */
+public interface SyncSnapshotTask {
+    /**
+     * Runs the queries. Every call made on {@code service} joins the same read-only transaction.
+     * @throws IOException if writing the results fails; this aborts the task.
+     */
+    void run(ProjectBuendiaService service) throws IOException;
+}
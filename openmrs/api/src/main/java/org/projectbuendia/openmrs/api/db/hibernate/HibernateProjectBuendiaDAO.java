@@ -14,30 +14,53 @@ package org.projectbuendia.openmrs.api.db.hibernate;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
+import org.hibernate.FlushMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SQLQuery;
 import org.hibernate.SessionFactory;
 import org.hibernate.classic.Session;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.engine.SessionFactoryImplementor;
 import org.hibernate.type.StandardBasicTypes;
 import org.hibernate.type.Type;
 import org.openmrs.BaseOpenmrsData;
 import org.openmrs.Obs;
+import org.openmrs.OpenmrsObject;
 import org.openmrs.Order;
 import org.openmrs.Patient;
 import org.projectbuendia.openmrs.api.SyncToken;
+import org.projectbuendia.openmrs.api.db.ExportRowHandler;
+import org.projectbuendia.openmrs.api.db.ObsExportRow;
 import org.projectbuendia.openmrs.api.db.ProjectBuendiaDAO;
+import org.projectbuendia.openmrs.api.db.ProviderUserRow;
 import org.projectbuendia.openmrs.api.db.SyncPage;
+import org.projectbuendia.openmrs.api.db.SyncRowHandler;
 import org.projectbuendia.openmrs.sync.ObsSyncParameters;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
 import org.projectbuendia.openmrs.sync.OrderSyncParameters;
 import org.projectbuendia.openmrs.sync.PatientSyncParameters;
 import org.projectbuendia.openmrs.sync.SyncParameters;
+import org.projectbuendia.openmrs.sync.SyncType;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.Null;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.hibernate.criterion.Order.asc;
+import static org.hibernate.criterion.Order.desc;
 import static org.hibernate.criterion.Restrictions.eq;
 import static org.hibernate.criterion.Restrictions.in;
 import static org.hibernate.criterion.Restrictions.ne;
@@ -47,6 +70,60 @@ import static org.hibernate.criterion.Restrictions.sqlRestriction;
 public class HibernateProjectBuendiaDAO implements ProjectBuendiaDAO {
     protected final Log log = LogFactory.getLog(this.getClass());
 
+    /**
+     * Fetches everything that the sync wire format needs for a page of observations in one
+     * statement. The columns must be kept in sync with {@link #rowToObsSyncRow(Object[])}.
+     * <p>
+     * The enterer is resolved with a correlated subquery rather than a join, because a person can
+     * have more than one provider record and we only want one row per observation.
+     */
+    private static final String OBS_SYNC_ROW_SELECT =
+            "SELECT m.date_updated, m.uuid, o.obs_id, o.voided, "
+            + "p.uuid AS patient_uuid, e.uuid AS encounter_uuid, "
+            + "c.uuid AS concept_uuid, dt.hl7_abbreviation, o.obs_datetime, "
+            + "(SELECT pr.uuid FROM users u JOIN provider pr ON pr.person_id = u.person_id "
+            + "    WHERE u.user_id = o.creator ORDER BY pr.provider_id LIMIT 1) AS enterer_uuid, "
+            + "vc.uuid AS value_coded_uuid, o.value_numeric, o.value_text, o.value_datetime, "
+            + "ord.order_id, ord.uuid AS order_uuid, ord.previous_order_id "
+            + "FROM buendia_obs_sync_map m "
+            + "JOIN obs o ON o.obs_id = m.obs_id "
+            + "LEFT JOIN person p ON p.person_id = o.person_id "
+            + "LEFT JOIN encounter e ON e.encounter_id = o.encounter_id "
+            + "LEFT JOIN concept c ON c.concept_id = o.concept_id "
+            + "LEFT JOIN concept_datatype dt ON dt.concept_datatype_id = c.datatype_id "
+            + "LEFT JOIN concept vc ON vc.concept_id = o.value_coded "
+            + "LEFT JOIN orders ord ON ord.order_id = o.order_id "
+            + "WHERE (m.date_updated, m.uuid) > (?, ?) ";
+
+    /**
+     * Fetches the data export, one row per observation or, for encounters with no matching
+     * observations, one row per encounter. The columns must be kept in sync with
+     * {@link #rowToObsExportRow(Object[])}.
+     * <p>
+     * The identifiers are grouped in a derived table, which MySQL materializes once, so that a
+     * patient with more than one identifier of the type doesn't get duplicate rows.
+     */
+    private static final String OBS_EXPORT_ROW_SELECT =
+            "SELECT e.patient_id, p.uuid AS patient_uuid, pi.identifier, p.birthdate, "
+            + "e.encounter_id, e.uuid AS encounter_uuid, e.encounter_datetime, "
+            + "o.concept_id, o.value_coded, o.value_numeric, o.value_text, o.value_datetime "
+            + "FROM encounter e "
+            + "JOIN patient pt ON pt.patient_id = e.patient_id AND pt.voided = FALSE "
+            + "JOIN person p ON p.person_id = e.patient_id "
+            + "LEFT JOIN (SELECT patient_id, MIN(identifier) AS identifier "
+            + "    FROM patient_identifier "
+            + "    WHERE identifier_type = :identifierTypeId AND voided = FALSE "
+            + "    GROUP BY patient_id) pi ON pi.patient_id = e.patient_id "
+            + "LEFT JOIN obs o ON o.encounter_id = e.encounter_id AND o.voided = FALSE "
+            + "    AND o.concept_id IN (:conceptIds) "
+            + "WHERE e.voided = FALSE ";
+
+    /** The number of records fetched per query when streaming sync results. */
+    private static final int STREAM_CHUNK_SIZE = 500;
+
+    /** The number of values in each IN clause when looking up objects by UUID or ID. */
+    private static final int IN_CHUNK_SIZE = 1000;
+
     private SessionFactory sessionFactory;
 
     /** @return the sessionFactory */
@@ -68,6 +145,81 @@ public class HibernateProjectBuendiaDAO implements ProjectBuendiaDAO {
                 syncToken, null, includeVoided, maxResults);
     }
 
+    @Override
+    public SyncPage<ObsSyncRow> getObservationRowsModifiedAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults) {
+        List<ObsSyncRow> rows = fetchObservationRows(syncToken, includeVoided, maxResults);
+        SyncToken token = null;
+        if (rows.size() > 0) {
+            ObsSyncRow lastRow = rows.get(rows.size() - 1);
+            token = new SyncToken(lastRow.dateUpdated, lastRow.uuid);
+        }
+        return new SyncPage<>(rows, token);
+    }
+
+    private List<ObsSyncRow> fetchObservationRows(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults) {
+        Session session = sessionFactory.getCurrentSession();
+        String sql = OBS_SYNC_ROW_SELECT
+                // Filtering on the sync map's copy of voided lets MySQL skip voided rows while
+                // scanning sync_index, before joining anything.
+                + (includeVoided ? "" : "AND m.voided = FALSE ")
+                + "ORDER BY m.date_updated, m.uuid";
+        SQLQuery query = session.createSQLQuery(sql);
+        // A null token means "from the beginning"; the epoch and the empty string sort before
+        // every real (date_updated, uuid) pair.
+        query.setParameter(0, syncToken == null
+                ? new Date(0) : syncToken.greaterThanOrEqualToTimestamp,
+                StandardBasicTypes.TIMESTAMP);
+        query.setParameter(1, syncToken == null || syncToken.greaterThanUuid == null
+                ? "" : syncToken.greaterThanUuid,
+                StandardBasicTypes.STRING);
+        if (maxResults > 0) {
+            query.setMaxResults(maxResults);
+        }
+
+        //noinspection unchecked
+        List<Object[]> dbResults = query.list();
+        List<ObsSyncRow> rows = new ArrayList<>(dbResults.size());
+        for (Object[] dbRow : dbResults) {
+            rows.add(rowToObsSyncRow(dbRow));
+        }
+        return rows;
+    }
+
+    /** Converts a result row from {@link #OBS_SYNC_ROW_SELECT} into an {@link ObsSyncRow}. */
+    private static ObsSyncRow rowToObsSyncRow(Object[] row) {
+        return new ObsSyncRow(
+                (Date) row[0],
+                (String) row[1],
+                ((Number) row[2]).intValue(),
+                toBoolean(row[3]),
+                (String) row[4],
+                (String) row[5],
+                (String) row[6],
+                (String) row[7],
+                (Date) row[8],
+                (String) row[9],
+                (String) row[10],
+                row[11] == null ? null : ((Number) row[11]).doubleValue(),
+                (String) row[12],
+                (Date) row[13],
+                row[14] == null ? null : ((Number) row[14]).intValue(),
+                (String) row[15],
+                row[16] == null ? null : ((Number) row[16]).intValue());
+    }
+
+    /**
+     * MySQL reports BOOLEAN columns as TINYINT(1), so depending on the driver we may get either a
+     * {@link Boolean} or a {@link Number} back from a native query.
+     */
+    private static boolean toBoolean(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return value != null && ((Number) value).intValue() != 0;
+    }
+
     @Override
     public SyncPage<Patient> getPatientsModifiedAfter(
             @Nullable SyncToken syncToken, boolean includeVoided, int maxResults) {
@@ -81,17 +233,345 @@ public class HibernateProjectBuendiaDAO implements ProjectBuendiaDAO {
     public SyncPage<Order> getOrdersModifiedAtOrAfter(
             @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
             @Nullable Order.Action[] allowedOrderTypes) {
-
-        final Criterion itemFilter = allowedOrderTypes != null
-                ? in("action", allowedOrderTypes)
-                : null;
-
         //noinspection unchecked
         return fetchSyncPage(
                 (Class<SyncParameters<Order>>)(Class<?>) OrderSyncParameters.class,
-                syncToken, itemFilter, includeVoided, maxResults);
+                syncToken, orderActionFilter(allowedOrderTypes), includeVoided, maxResults);
+    }
+
+
+    @Override
+    public void streamObservationRowsModifiedAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
+            SyncRowHandler<ObsSyncRow> handler) throws IOException {
+        Session session = sessionFactory.getCurrentSession();
+        SyncToken position = syncToken;
+        int remaining = maxResults;
+        while (true) {
+            int chunkSize = nextChunkSize(maxResults, remaining);
+            List<ObsSyncRow> chunk = fetchObservationRows(position, includeVoided, chunkSize);
+            for (ObsSyncRow row : chunk) {
+                position = new SyncToken(row.dateUpdated, row.uuid);
+                if (!handler.handle(row, position)) {
+                    session.clear();
+                    return;
+                }
+            }
+            // Drop anything the handler caused to be loaded, so that memory use stays flat.
+            session.clear();
+            remaining -= chunk.size();
+            if (chunk.size() < chunkSize || (maxResults > 0 && remaining <= 0)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void streamPatientsModifiedAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
+            SyncRowHandler<Patient> handler) throws IOException {
+        //noinspection unchecked
+        streamSyncPages(
+                (Class<SyncParameters<Patient>>) (Class<?>) PatientSyncParameters.class,
+                syncToken, null, includeVoided, maxResults, handler);
+    }
+
+    @Override
+    public void streamOrdersModifiedAtOrAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
+            @Nullable Order.Action[] allowedOrderTypes,
+            SyncRowHandler<Order> handler) throws IOException {
+        //noinspection unchecked
+        streamSyncPages(
+                (Class<SyncParameters<Order>>) (Class<?>) OrderSyncParameters.class,
+                syncToken, orderActionFilter(allowedOrderTypes), includeVoided, maxResults,
+                handler);
+    }
+
+    /**
+     * Restricts {@link OrderSyncParameters} to the given actions, using the sync map's copy of
+     * each order's action (stored by name, like {@code orders.order_action}).
+     */
+    private static @Nullable Criterion orderActionFilter(
+            @Nullable Order.Action[] allowedOrderTypes) {
+        if (allowedOrderTypes == null) {
+            return null;
+        }
+        String[] names = new String[allowedOrderTypes.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = allowedOrderTypes[i].name();
+        }
+        return in("action", names);
+    }
+
+    @Override
+    public @Nullable SyncToken getHighWaterMark(SyncType type) {
+        SyncParameters last = (SyncParameters) sessionFactory.getCurrentSession()
+                .createCriteria(type.parametersClass)
+                .addOrder(desc("dateUpdated"))
+                .addOrder(desc("uuid"))
+                .setMaxResults(1)
+                .uniqueResult();
+        return last == null ? null : new SyncToken(last.getDateUpdated(), last.getUuid());
+    }
+
+    @Override
+    public @Nullable Integer getRevisingOrderId(int orderId) {
+        // Revision chains shouldn't branch, but if one does, follow the newest branch.
+        return (Integer) sessionFactory.getCurrentSession()
+                .createQuery("select max(o.orderId) from Order o "
+                        + "where o.previousOrder.orderId = :orderId")
+                .setInteger("orderId", orderId)
+                .uniqueResult();
+    }
+
+    @Override
+    public <T extends OpenmrsObject> List<T> getObjectsByUuid(
+            Class<T> type, Collection<String> uuids) {
+        Session session = sessionFactory.getCurrentSession();
+        List<String> uuidList = new ArrayList<>(uuids);
+        List<T> results = new ArrayList<>();
+        for (int start = 0; start < uuidList.size(); start += IN_CHUNK_SIZE) {
+            List<String> chunk = uuidList.subList(
+                    start, Math.min(start + IN_CHUNK_SIZE, uuidList.size()));
+            //noinspection unchecked
+            results.addAll(session.createCriteria(type).add(in("uuid", chunk)).list());
+        }
+        return results;
     }
 
+    @Override
+    public void runWithSingleFlush(Runnable task, Collection<?> objects) {
+        Session session = sessionFactory.getCurrentSession();
+        FlushMode previousMode = session.getFlushMode();
+        // Queries made while saving (by validators, for instance) don't depend on the objects
+        // being saved, so there's no need to flush them first.
+        session.setFlushMode(FlushMode.MANUAL);
+        try {
+            task.run();
+            session.flush();
+        } finally {
+            session.setFlushMode(previousMode);
+        }
+        for (Object object : objects) {
+            session.evict(object);
+        }
+    }
+
+    @Override
+    public List<Integer> getCodedValueIds(Collection<Integer> conceptIds) {
+        if (conceptIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //noinspection unchecked
+        List<Number> ids = sessionFactory.getCurrentSession()
+                .createSQLQuery("SELECT DISTINCT value_coded FROM obs "
+                        + "WHERE concept_id IN (:conceptIds) AND value_coded IS NOT NULL "
+                        + "AND voided = FALSE")
+                .setParameterList("conceptIds", conceptIds)
+                .list();
+        List<Integer> results = new ArrayList<>(ids.size());
+        for (Number id : ids) {
+            results.add(id.intValue());
+        }
+        return results;
+    }
+
+    /**
+     * Unlike the sync streams (see {@link #streamSyncPages}), this holds one cursor open for the
+     * whole export: the handler needs no further queries, and re-running the sort for every
+     * chunk would cost far more than it saves.
+     */
+    @Override
+    public void streamObsForExport(int identifierTypeId, Collection<Integer> conceptIds,
+            @Nullable Collection<Integer> patientIds, ExportRowHandler handler)
+            throws IOException {
+        if (patientIds != null && patientIds.isEmpty()) {
+            return;
+        }
+        String sql = OBS_EXPORT_ROW_SELECT
+                + (patientIds != null ? "AND e.patient_id IN (:patientIds) " : "")
+                + "ORDER BY pi.identifier, e.patient_id, e.encounter_datetime, e.encounter_id, "
+                + "o.obs_id";
+        Query query = sessionFactory.getCurrentSession().createSQLQuery(sql);
+        if (patientIds != null) {
+            query.setParameterList("patientIds", patientIds);
+        }
+        query.setInteger("identifierTypeId", identifierTypeId)
+                // An empty IN list is a syntax error; no concept has the ID -1.
+                .setParameterList("conceptIds", conceptIds.isEmpty()
+                        ? Collections.singletonList(-1) : conceptIds)
+                .setReadOnly(true);
+        if (isMySql()) {
+            // Tells MySQL Connector/J to stream rows from the server one at a time, instead of
+            // reading the whole result set into memory first.  Other drivers (such as H2's, in
+            // the tests) reject a negative fetch size.
+            query.setFetchSize(Integer.MIN_VALUE);
+        }
+        ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while (results.next()) {
+                handler.handle(rowToObsExportRow(results.get()));
+            }
+        } finally {
+            results.close();
+        }
+    }
+
+    @Override
+    public Map<Integer, String> getPatientIdentifiers(int identifierTypeId) {
+        //noinspection unchecked
+        List<Object[]> rows = sessionFactory.getCurrentSession()
+                .createSQLQuery("SELECT pt.patient_id, MIN(pi.identifier) FROM patient pt "
+                        + "LEFT JOIN patient_identifier pi ON pi.patient_id = pt.patient_id "
+                        + "    AND pi.identifier_type = :identifierTypeId AND pi.voided = FALSE "
+                        + "WHERE pt.voided = FALSE "
+                        + "GROUP BY pt.patient_id")
+                .setInteger("identifierTypeId", identifierTypeId)
+                .list();
+        Map<Integer, String> results = new HashMap<>();
+        for (Object[] row : rows) {
+            results.put(((Number) row[0]).intValue(), (String) row[1]);
+        }
+        return results;
+    }
+
+    @Override
+    public Set<Integer> getPatientIdsChangedAfter(SyncToken obsToken, SyncToken patientToken) {
+        //noinspection unchecked
+        List<Number> ids = sessionFactory.getCurrentSession()
+                .createSQLQuery("SELECT o.person_id FROM buendia_obs_sync_map m "
+                        + "JOIN obs o ON o.obs_id = m.obs_id "
+                        + "WHERE (m.date_updated, m.uuid) > (:obsTimestamp, :obsUuid) "
+                        + "UNION "
+                        + "SELECT m.patient_id FROM buendia_patient_sync_map m "
+                        + "WHERE (m.date_updated, m.uuid) > (:patientTimestamp, :patientUuid)")
+                .setTimestamp("obsTimestamp", obsToken.greaterThanOrEqualToTimestamp)
+                .setString("obsUuid", obsToken.greaterThanUuid == null
+                        ? "" : obsToken.greaterThanUuid)
+                .setTimestamp("patientTimestamp", patientToken.greaterThanOrEqualToTimestamp)
+                .setString("patientUuid", patientToken.greaterThanUuid == null
+                        ? "" : patientToken.greaterThanUuid)
+                .list();
+        Set<Integer> results = new HashSet<>();
+        for (Number id : ids) {
+            results.add(id.intValue());
+        }
+        return results;
+    }
+
+    @Override
+    public Set<Integer> getPatientIdsWithOrdersChangedAfter(SyncToken orderToken) {
+        //noinspection unchecked
+        List<Number> ids = sessionFactory.getCurrentSession()
+                .createSQLQuery("SELECT DISTINCT o.patient_id FROM buendia_order_sync_map m "
+                        + "JOIN orders o ON o.order_id = m.order_id "
+                        + "WHERE (m.date_updated, m.uuid) > (:orderTimestamp, :orderUuid)")
+                .setTimestamp("orderTimestamp", orderToken.greaterThanOrEqualToTimestamp)
+                .setString("orderUuid", orderToken.greaterThanUuid == null
+                        ? "" : orderToken.greaterThanUuid)
+                .list();
+        Set<Integer> results = new HashSet<>();
+        for (Number id : ids) {
+            results.add(id.intValue());
+        }
+        return results;
+    }
+
+    @Override
+    public List<Order> getOrdersByPatientIds(Collection<Integer> patientIds) {
+        Session session = sessionFactory.getCurrentSession();
+        List<Integer> idList = new ArrayList<>(patientIds);
+        Collections.sort(idList);
+        List<Order> results = new ArrayList<>();
+        for (int start = 0; start < idList.size(); start += IN_CHUNK_SIZE) {
+            List<Integer> chunk = idList.subList(
+                    start, Math.min(start + IN_CHUNK_SIZE, idList.size()));
+            //noinspection unchecked
+            results.addAll(session.createCriteria(Order.class)
+                    .add(in("patient.patientId", chunk))
+                    .addOrder(asc("patient.patientId"))
+                    .addOrder(asc("orderId"))
+                    .list());
+        }
+        return results;
+    }
+
+    @Override
+    public List<ProviderUserRow> getProviderUsers() {
+        //noinspection unchecked
+        List<Object[]> rows = sessionFactory.getCurrentSession().createQuery(
+                "select p.providerId, p.uuid, u.userId from Provider p, User u"
+                        + " where u.person = p.person and u.retired = false"
+                        + " order by p.providerId, u.userId")
+                .list();
+        List<ProviderUserRow> results = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            results.add(new ProviderUserRow(
+                    ((Number) row[0]).intValue(), (String) row[1], ((Number) row[2]).intValue()));
+        }
+        return results;
+    }
+
+    private boolean isMySql() {
+        return ((SessionFactoryImplementor) sessionFactory).getDialect() instanceof MySQLDialect;
+    }
+
+    /** Converts a result row from {@link #OBS_EXPORT_ROW_SELECT} into an {@link ObsExportRow}. */
+    private static ObsExportRow rowToObsExportRow(Object[] row) {
+        return new ObsExportRow(
+                ((Number) row[0]).intValue(),
+                (String) row[1],
+                (String) row[2],
+                (Date) row[3],
+                ((Number) row[4]).intValue(),
+                (String) row[5],
+                (Date) row[6],
+                row[7] == null ? null : ((Number) row[7]).intValue(),
+                row[8] == null ? null : ((Number) row[8]).intValue(),
+                row[9] == null ? null : ((Number) row[9]).doubleValue(),
+                (String) row[10],
+                (Date) row[11]);
+    }
+
+    /**
+     * Walks the sync map in chunks of {@link #STREAM_CHUNK_SIZE} records, using the position of
+     * the last record in each chunk as the keyset for the next. We deliberately don't hold one
+     * scrollable cursor open for the whole stream: MySQL Connector/J either buffers the entire
+     * result set client-side or, in streaming mode, forbids any other query on the connection
+     * until the cursor is closed, and serializing a record usually needs further queries.
+     */
+    private <T extends BaseOpenmrsData> void streamSyncPages(
+            Class<SyncParameters<T>> clazz, @Nullable SyncToken syncToken,
+            @Nullable Criterion restriction, boolean includeVoided, int maxResults,
+            SyncRowHandler<T> handler) throws IOException {
+        Session session = sessionFactory.getCurrentSession();
+        SyncToken position = syncToken;
+        int remaining = maxResults;
+        while (true) {
+            int chunkSize = nextChunkSize(maxResults, remaining);
+            List<SyncParameters<T>> chunk =
+                    fetchResults(clazz, position, restriction, includeVoided, chunkSize);
+            for (SyncParameters<T> params : chunk) {
+                position = new SyncToken(params.getDateUpdated(), params.getUuid());
+                if (!handler.handle(params.getItem(), position)) {
+                    session.clear();
+                    return;
+                }
+            }
+            // Evict the chunk's entities (and anything loaded while serializing them) from the
+            // session; otherwise the first-level cache grows with the size of the stream.
+            session.clear();
+            remaining -= chunk.size();
+            if (chunk.size() < chunkSize || (maxResults > 0 && remaining <= 0)) {
+                return;
+            }
+        }
+    }
+
+    private static int nextChunkSize(int maxResults, int remaining) {
+        return maxResults > 0 ? Math.min(STREAM_CHUNK_SIZE, remaining) : STREAM_CHUNK_SIZE;
+    }
 
     private <T extends BaseOpenmrsData> SyncPage<T> fetchSyncPage(
             Class<SyncParameters<T>> clazz, @Nullable SyncToken syncToken, Criterion restriction,
@@ -124,14 +604,14 @@ public class HibernateProjectBuendiaDAO implements ProjectBuendiaDAO {
                     new Type[] {StandardBasicTypes.TIMESTAMP, StandardBasicTypes.STRING}));
         }
 
-        Criteria subCriteria = criteria.createCriteria("item");
-
+        // The restrictions apply to the sync map's own copies of the item's fields, which are
+        // part of sync_index, so MySQL can filter without reading the items themselves.
         if (restriction != null) {
-            subCriteria.add(restriction);
+            criteria.add(restriction);
         }
 
         if (!includeVoided) {
-            subCriteria.add(eq("voided", false));
+            criteria.add(eq("voided", false));
         }
 
         criteria.addOrder(asc("dateUpdated"))
@@ -13,16 +13,34 @@ package org.projectbuendia.openmrs.api.impl;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Encounter;
 import org.openmrs.Obs;
 import org.openmrs.Order;
+import org.openmrs.OpenmrsObject;
 import org.openmrs.Patient;
+import org.openmrs.api.EncounterService;
+import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 import org.projectbuendia.openmrs.api.SyncToken;
+import org.projectbuendia.openmrs.api.db.ExportRowHandler;
 import org.projectbuendia.openmrs.api.db.ProjectBuendiaDAO;
+import org.projectbuendia.openmrs.api.db.ProviderUserRow;
 import org.projectbuendia.openmrs.api.db.SyncPage;
+import org.projectbuendia.openmrs.api.db.SyncRowHandler;
+import org.projectbuendia.openmrs.api.db.SyncSnapshotTask;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
+import org.projectbuendia.openmrs.sync.SyncType;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /** It is a default implementation of {@link ProjectBuendiaService}. */
 public class ProjectBuendiaServiceImpl extends BaseOpenmrsService implements ProjectBuendiaService {
@@ -41,6 +59,12 @@ public class ProjectBuendiaServiceImpl extends BaseOpenmrsService implements Pro
         return dao.getObservationsModifiedAfter(syncToken, includeVoided, maxResults);
     }
 
+    @Override
+    public SyncPage<ObsSyncRow> getObservationRowsModifiedAtOrAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults) {
+        return dao.getObservationRowsModifiedAfter(syncToken, includeVoided, maxResults);
+    }
+
     @Override
     public SyncPage<Patient> getPatientsModifiedAtOrAfter(
             @Nullable SyncToken syncToken, boolean includeVoided, int maxResults) {
@@ -54,4 +78,113 @@ public class ProjectBuendiaServiceImpl extends BaseOpenmrsService implements Pro
         return dao.getOrdersModifiedAtOrAfter(
                 syncToken, includeVoided, maxResults, allowedOrderTypes);
     }
-}
\ No newline at end of file
+
+    @Override
+    public void streamObservationRowsModifiedAtOrAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
+            SyncRowHandler<ObsSyncRow> handler) throws IOException {
+        dao.streamObservationRowsModifiedAfter(syncToken, includeVoided, maxResults, handler);
+    }
+
+    @Override
+    public void streamPatientsModifiedAtOrAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
+            SyncRowHandler<Patient> handler) throws IOException {
+        dao.streamPatientsModifiedAfter(syncToken, includeVoided, maxResults, handler);
+    }
+
+    @Override
+    public void streamOrdersModifiedAtOrAfter(
+            @Nullable SyncToken syncToken, boolean includeVoided, int maxResults,
+            @Nullable Order.Action[] allowedOrderTypes,
+            SyncRowHandler<Order> handler) throws IOException {
+        dao.streamOrdersModifiedAtOrAfter(
+                syncToken, includeVoided, maxResults, allowedOrderTypes, handler);
+    }
+
+    @Override
+    public @Nullable SyncToken getHighWaterMark(SyncType type) {
+        return dao.getHighWaterMark(type);
+    }
+
+    @Override
+    public @Nullable Integer getRevisingOrderId(int orderId) {
+        return dao.getRevisingOrderId(orderId);
+    }
+
+    @Override
+    public <T extends OpenmrsObject> Map<String, T> getObjectsByUuid(
+            Class<T> type, Collection<String> uuids) {
+        Map<String, T> objects = new HashMap<>();
+        if (!uuids.isEmpty()) {
+            for (T object : dao.getObjectsByUuid(type, uuids)) {
+                objects.put(object.getUuid(), object);
+            }
+        }
+        return objects;
+    }
+
+    @Override
+    public void saveEncounters(final List<Encounter> encounters) {
+        final EncounterService encounterService = Context.getEncounterService();
+        List<Object> saved = new ArrayList<>();
+        for (Encounter encounter : encounters) {
+            saved.add(encounter);
+            saved.addAll(encounter.getAllObs(true));
+        }
+        dao.runWithSingleFlush(new Runnable() {
+            @Override public void run() {
+                for (Encounter encounter : encounters) {
+                    encounterService.saveEncounter(encounter);
+                }
+            }
+        }, saved);
+    }
+
+    @Override
+    public List<Integer> getCodedValueIds(Collection<Integer> conceptIds) {
+        return dao.getCodedValueIds(conceptIds);
+    }
+
+    @Override
+    public void streamObsForExport(int identifierTypeId, Collection<Integer> conceptIds,
+            @Nullable Collection<Integer> patientIds, ExportRowHandler handler)
+            throws IOException {
+        dao.streamObsForExport(identifierTypeId, conceptIds, patientIds, handler);
+    }
+
+    @Override
+    public Map<Integer, String> getPatientIdentifiers(int identifierTypeId) {
+        return dao.getPatientIdentifiers(identifierTypeId);
+    }
+
+    @Override
+    public Set<Integer> getPatientIdsChangedAfter(SyncToken obsToken, SyncToken patientToken) {
+        return dao.getPatientIdsChangedAfter(obsToken, patientToken);
+    }
+
+    @Override
+    public Set<Integer> getPatientIdsWithOrdersChangedAfter(SyncToken orderToken) {
+        return dao.getPatientIdsWithOrdersChangedAfter(orderToken);
+    }
+
+    @Override
+    public List<Order> getOrdersByPatientIds(Collection<Integer> patientIds) {
+        if (patientIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return dao.getOrdersByPatientIds(patientIds);
+    }
+
+    @Override
+    public List<ProviderUserRow> getProviderUsers() {
+        return dao.getProviderUsers();
+    }
+
+    @Override
+    public void runInSnapshot(SyncSnapshotTask task) throws IOException {
+        // The transaction is already open; calls made through this (unproxied) instance
+        // share its Hibernate session and JDBC connection.
+        task.run(this);
+    }
+}
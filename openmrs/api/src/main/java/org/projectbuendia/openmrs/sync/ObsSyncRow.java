@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.openmrs.sync;
+
+import javax.annotation.Nullable;
+import java.util.Date;
+
+/**
+ * A flattened, read-only view of an {@link org.openmrs.Obs} that contains only the columns needed
+ * to serialize the observation for incremental sync.
+ * <p>
+ * Loading full {@link org.openmrs.Obs} entities for a sync page causes Hibernate to lazily fetch
+ * the person, encounter, concept and creator of every row in separate queries. An
+ * {@code ObsSyncRow} is instead populated from a single SQL statement that joins all of that
+ * information up front; see {@code HibernateProjectBuendiaDAO#getObservationRowsModifiedAfter}.
+ * <p>
+ * For voided observations, only {@link #uuid}, {@link #voided} and the sync fields are guaranteed
+ * to be meaningful.
+ */
+public class ObsSyncRow {
+    /** The timestamp from {@code buendia_obs_sync_map}, used to build the next sync token. */
+    public final Date dateUpdated;
+    public final String uuid;
+    public final int obsId;
+    public final boolean voided;
+    public final String patientUuid;
+    @Nullable public final String encounterUuid;
+    public final String conceptUuid;
+    /** The HL7 abbreviation of the question concept's datatype, e.g. "NM" or "CWE". */
+    public final String conceptHl7Type;
+    public final Date obsDatetime;
+    /** The UUID of the first provider associated with the user who created the obs. */
+    @Nullable public final String entererUuid;
+    @Nullable public final String valueCodedUuid;
+    @Nullable public final Double valueNumeric;
+    @Nullable public final String valueText;
+    @Nullable public final Date valueDatetime;
+    @Nullable public final Integer orderId;
+    @Nullable public final String orderUuid;
+    /**
+     * The ID of the order that the obs's order revises, if any. If this is null, {@link #orderUuid}
+     * is already the UUID of the root of its revision chain.
+     */
+    @Nullable public final Integer previousOrderId;
+
+    public ObsSyncRow(
+            Date dateUpdated, String uuid, int obsId, boolean voided, String patientUuid,
+            @Nullable String encounterUuid, String conceptUuid, String conceptHl7Type,
+            Date obsDatetime, @Nullable String entererUuid, @Nullable String valueCodedUuid,
+            @Nullable Double valueNumeric, @Nullable String valueText,
+            @Nullable Date valueDatetime, @Nullable Integer orderId, @Nullable String orderUuid,
+            @Nullable Integer previousOrderId) {
+        this.dateUpdated = dateUpdated;
+        this.uuid = uuid;
+        this.obsId = obsId;
+        this.voided = voided;
+        this.patientUuid = patientUuid;
+        this.encounterUuid = encounterUuid;
+        this.conceptUuid = conceptUuid;
+        this.conceptHl7Type = conceptHl7Type;
+        this.obsDatetime = obsDatetime;
+        this.entererUuid = entererUuid;
+        this.valueCodedUuid = valueCodedUuid;
+        this.valueNumeric = valueNumeric;
+        this.valueText = valueText;
+        this.valueDatetime = valueDatetime;
+        this.orderId = orderId;
+        this.orderUuid = orderUuid;
+        this.previousOrderId = previousOrderId;
+    }
+}
@@ -16,4 +16,15 @@ package org.projectbuendia.openmrs.sync;
 import org.openmrs.Order;
 
 /** Sync parameters for {@link Order Orders}. */
-public class OrderSyncParameters extends SyncParameters<Order> {}
+public class OrderSyncParameters extends SyncParameters<Order> {
+    /** A copy of the order's {@link Order.Action}, as its name. */
+    private String action;
+
+    public String getAction() {
+        return action;
+    }
+
+    protected void setAction(String action) {
+        this.action = action;
+    }
+}
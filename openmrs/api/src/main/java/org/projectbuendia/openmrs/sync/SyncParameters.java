@@ -37,6 +37,8 @@ public abstract class SyncParameters<T extends BaseOpenmrsData> {
     private Date dateUpdated;
     private T item;
     private String uuid;
+    /** A copy of the item's voided flag, so that voided items can be skipped using the index. */
+    private boolean voided;
 
     public int getItemId() {
         return itemId;
@@ -54,6 +56,10 @@ public abstract class SyncParameters<T extends BaseOpenmrsData> {
         return uuid;
     }
 
+    public boolean isVoided() {
+        return voided;
+    }
+
     protected void setItemId(int itemId) {
         this.itemId = itemId;
     }
@@ -69,4 +75,8 @@ public abstract class SyncParameters<T extends BaseOpenmrsData> {
     protected void setUuid(String uuid) {
         this.uuid = uuid;
     }
+
+    protected void setVoided(boolean voided) {
+        this.voided = voided;
+    }
 }
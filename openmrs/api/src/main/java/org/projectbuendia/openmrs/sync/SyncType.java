@@ -0,0 +1,28 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.openmrs.sync;
+
+/** The kinds of record that can be incrementally synced, each with its own sync map table. */
+public enum SyncType {
+    OBSERVATIONS(ObsSyncParameters.class),
+    PATIENTS(PatientSyncParameters.class),
+    ORDERS(OrderSyncParameters.class);
+
+    /** The Hibernate-mapped class for this type's {@code buendia_[type]_sync_map} table. */
+    public final Class<? extends SyncParameters> parametersClass;
+
+    SyncType(Class<? extends SyncParameters> parametersClass) {
+        this.parametersClass = parametersClass;
+    }
+}
@@ -14,8 +14,11 @@ package org.projectbuendia.openmrs.api;
 import org.junit.Test;
 import org.openmrs.api.context.Context;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.projectbuendia.openmrs.api.db.SyncSnapshotTask;
+import org.projectbuendia.openmrs.sync.SyncType;
 
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 /** Tests {@link ProjectBuendiaService}. */
 public class ProjectBuendiaServiceTest extends BaseModuleContextSensitiveTest {
@@ -23,4 +26,17 @@ public class ProjectBuendiaServiceTest extends BaseModuleContextSensitiveTest {
     public void shouldSetupContext() {
         assertNotNull(Context.getService(ProjectBuendiaService.class));
     }
+
+    @Test
+    public void testRunInSnapshotRunsTaskWithService() throws Exception {
+        final boolean[] ran = {false};
+        Context.getService(ProjectBuendiaService.class).runInSnapshot(new SyncSnapshotTask() {
+            @Override public void run(ProjectBuendiaService service) {
+                assertNotNull(service);
+                service.getHighWaterMark(SyncType.OBSERVATIONS);
+                ran[0] = true;
+            }
+        });
+        assertTrue(ran[0]);
+    }
 }
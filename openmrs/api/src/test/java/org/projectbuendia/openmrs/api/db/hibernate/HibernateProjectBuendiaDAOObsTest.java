@@ -20,11 +20,24 @@ import org.openmrs.Obs;
 import org.openmrs.api.context.Context;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 import org.projectbuendia.openmrs.api.SyncToken;
+import org.projectbuendia.openmrs.api.db.ExportRowHandler;
+import org.projectbuendia.openmrs.api.db.ObsExportRow;
 import org.projectbuendia.openmrs.api.db.SyncPage;
+import org.projectbuendia.openmrs.api.db.SyncRowHandler;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
+import org.projectbuendia.openmrs.sync.SyncType;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test the observation-handling logic in {@link HibernateProjectBuendiaDAO}. Tests in this class
@@ -79,6 +92,9 @@ public class HibernateProjectBuendiaDAOObsTest extends HibernateProjectBuendiaDA
             };
 
 
+    private static final String IDENTIFIER_DATA_SET =
+            "org/projectbuendia/openmrs/include/patientIdentifierDataSet.xml";
+
     private ProjectBuendiaService buendiaService;
 
     @Before
@@ -134,6 +150,114 @@ public class HibernateProjectBuendiaDAOObsTest extends HibernateProjectBuendiaDA
                 extractListOfUuids(actual.results));
     }
 
+    @Test
+    public void testRowsPaginateLikeEntities() throws Exception {
+        executeDataSet(DATASET_NO_DUPLICATE_TIMESTAMPS);
+        SyncPage<ObsSyncRow> results =
+                buendiaService.getObservationRowsModifiedAtOrAfter(null, true, 3);
+        assertArrayEquals(
+                Arrays.copyOfRange(EXPECTED_ORDER_NO_DUPLICATES_INCLUDE_VOIDED, 0, 3),
+                extractRowUuids(results.results));
+        SyncToken token = results.syncToken;
+        results = buendiaService.getObservationRowsModifiedAtOrAfter(token, true, 3);
+        assertArrayEquals(
+                Arrays.copyOfRange(EXPECTED_ORDER_NO_DUPLICATES_INCLUDE_VOIDED, 3, 6),
+                extractRowUuids(results.results));
+        token = results.syncToken;
+        results = buendiaService.getObservationRowsModifiedAtOrAfter(token, true, 3);
+        assertArrayEquals(
+                Arrays.copyOfRange(EXPECTED_ORDER_NO_DUPLICATES_INCLUDE_VOIDED, 6, 7),
+                extractRowUuids(results.results));
+    }
+
+    @Test
+    public void testRowsIncludeVoidedFalseExcludesVoided() throws Exception {
+        executeDataSet(DATASET_NO_DUPLICATE_TIMESTAMPS);
+        SyncPage<ObsSyncRow> actual =
+                buendiaService.getObservationRowsModifiedAtOrAfter(CATCH_ALL_SYNCTOKEN, false, 0);
+        assertArrayEquals(
+                EXPECTED_ORDER_NO_DUPLICATES_EXCLUDE_VOIDED,
+                extractRowUuids(actual.results));
+    }
+
+    @Test
+    public void testStreamedRowsMatchPagedRows() throws Exception {
+        executeDataSet(DATASET_NO_DUPLICATE_TIMESTAMPS);
+        final List<String> uuids = new ArrayList<>();
+        final List<SyncToken> positions = new ArrayList<>();
+        buendiaService.streamObservationRowsModifiedAtOrAfter(
+                null, true, 0, new SyncRowHandler<ObsSyncRow>() {
+                    @Override public boolean handle(ObsSyncRow row, SyncToken position) {
+                        uuids.add(row.uuid);
+                        positions.add(position);
+                        return true;
+                    }
+                });
+        assertArrayEquals(
+                EXPECTED_ORDER_NO_DUPLICATES_INCLUDE_VOIDED,
+                uuids.toArray(new String[uuids.size()]));
+
+        // Resuming from the position of the third row should continue with the fourth.
+        uuids.clear();
+        buendiaService.streamObservationRowsModifiedAtOrAfter(
+                positions.get(2), true, 3, new SyncRowHandler<ObsSyncRow>() {
+                    @Override public boolean handle(ObsSyncRow row, SyncToken position) {
+                        uuids.add(row.uuid);
+                        return true;
+                    }
+                });
+        assertArrayEquals(
+                Arrays.copyOfRange(EXPECTED_ORDER_NO_DUPLICATES_INCLUDE_VOIDED, 3, 6),
+                uuids.toArray(new String[uuids.size()]));
+    }
+
+    @Test
+    public void testStreamStopsWhenHandlerReturnsFalse() throws Exception {
+        executeDataSet(DATASET_NO_DUPLICATE_TIMESTAMPS);
+        final List<String> uuids = new ArrayList<>();
+        buendiaService.streamObservationRowsModifiedAtOrAfter(
+                null, true, 0, new SyncRowHandler<ObsSyncRow>() {
+                    @Override public boolean handle(ObsSyncRow row, SyncToken position) {
+                        uuids.add(row.uuid);
+                        return uuids.size() < 2;
+                    }
+                });
+        assertArrayEquals(
+                Arrays.copyOfRange(EXPECTED_ORDER_NO_DUPLICATES_INCLUDE_VOIDED, 0, 2),
+                uuids.toArray(new String[uuids.size()]));
+    }
+
+    @Test
+    public void testHighWaterMarkIsPositionOfLastRecord() throws Exception {
+        executeDataSet(DATASET_NO_DUPLICATE_TIMESTAMPS);
+        SyncPage<Obs> all = buendiaService.getObservationsModifiedAtOrAfter(null, true, 0);
+        Assert.assertEquals(
+                all.syncToken, buendiaService.getHighWaterMark(SyncType.OBSERVATIONS));
+    }
+
+    @Test
+    public void testRowsMatchEntityFields() throws Exception {
+        executeDataSet(DATASET_NO_DUPLICATE_TIMESTAMPS);
+        List<Obs> entities =
+                buendiaService.getObservationsModifiedAtOrAfter(CATCH_ALL_SYNCTOKEN, false, 0)
+                        .results;
+        List<ObsSyncRow> rows =
+                buendiaService.getObservationRowsModifiedAtOrAfter(CATCH_ALL_SYNCTOKEN, false, 0)
+                        .results;
+        Assert.assertEquals(entities.size(), rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            Obs obs = entities.get(i);
+            ObsSyncRow row = rows.get(i);
+            Assert.assertEquals(obs.getUuid(), row.uuid);
+            Assert.assertEquals(obs.getPerson().getUuid(), row.patientUuid);
+            Assert.assertEquals(obs.getConcept().getUuid(), row.conceptUuid);
+            Assert.assertEquals(
+                    obs.getConcept().getDatatype().getHl7Abbreviation(), row.conceptHl7Type);
+            Assert.assertEquals(obs.getObsDatetime().getTime(), row.obsDatetime.getTime());
+            Assert.assertEquals(obs.getValueNumeric(), row.valueNumeric);
+        }
+    }
+
     // End Dataset 1
 
     // Dataset 2
@@ -181,6 +305,83 @@ public class HibernateProjectBuendiaDAOObsTest extends HibernateProjectBuendiaDA
 
     // End Dataset 2
 
+    @Test
+    public void testGetPatientIdsChangedAfterFollowsObsSyncMap() throws Exception {
+        executeDataSet(DATASET_NO_DUPLICATE_TIMESTAMPS);
+        SyncToken afterEverything =
+                new SyncToken(DB_DATE_FORMAT.parse("2100-01-01 00:00:00.0"), null);
+        Set<Integer> changed = buendiaService.getPatientIdsChangedAfter(
+                new SyncToken(DB_DATE_FORMAT.parse("2015-09-19 14:09:35.0"), "tttttt"),
+                afterEverything);
+        assertEquals(Collections.singleton(7), changed);
+        changed = buendiaService.getPatientIdsChangedAfter(
+                new SyncToken(DB_DATE_FORMAT.parse("2015-09-19 14:09:36.0"), "yyyyyy"),
+                afterEverything);
+        assertTrue(changed.isEmpty());
+    }
+
+    @Test
+    public void testStreamObsForExportOrdersByIdentifier() throws Exception {
+        executeDataSet(DATASET_NO_DUPLICATE_TIMESTAMPS);
+        executeDataSet(IDENTIFIER_DATA_SET);
+        final List<ObsExportRow> rows = new ArrayList<>();
+        buendiaService.streamObsForExport(1, Arrays.asList(5089, 5497), null,
+                new ExportRowHandler() {
+                    @Override public void handle(ObsExportRow row) {
+                        rows.add(row);
+                    }
+                });
+
+        // Patient 7 ("A2") comes before patient 2 ("B1").  Voided obs 11 and the obs of other
+        // concepts are left out, but encounters 5 and 6 still get a row without a concept.
+        assertEquals(5, rows.size());
+        assertExportRow(rows.get(0), 7, "A2", 3, 5089);
+        assertEquals(50.0, rows.get(0).valueNumeric, 0);
+        assertExportRow(rows.get(1), 7, "A2", 3, 5497);
+        assertExportRow(rows.get(2), 7, "A2", 4, 5089);
+        assertExportRow(rows.get(3), 7, "A2", 5, null);
+        assertExportRow(rows.get(4), 2, "B1", 6, null);
+    }
+
+    @Test
+    public void testStreamObsForExportLimitsPatients() throws Exception {
+        executeDataSet(DATASET_NO_DUPLICATE_TIMESTAMPS);
+        final List<ObsExportRow> rows = new ArrayList<>();
+        buendiaService.streamObsForExport(1, Collections.<Integer>emptyList(),
+                Collections.singleton(2), new ExportRowHandler() {
+                    @Override public void handle(ObsExportRow row) {
+                        rows.add(row);
+                    }
+                });
+        assertEquals(1, rows.size());
+        assertExportRow(rows.get(0), 2, null, 6, null);
+    }
+
+    @Test
+    public void testGetPatientIdentifiersSkipsVoidedIdentifiers() throws Exception {
+        executeDataSet(IDENTIFIER_DATA_SET);
+        Map<Integer, String> identifiers = buendiaService.getPatientIdentifiers(1);
+        assertEquals(2, identifiers.size());
+        assertEquals("A2", identifiers.get(7));
+        assertEquals("B1", identifiers.get(2));
+    }
+
+    private static void assertExportRow(ObsExportRow row, int patientId,
+            @Nullable String identifier, int encounterId, @Nullable Integer conceptId) {
+        assertEquals(patientId, row.patientId);
+        assertEquals(identifier, row.patientIdentifier);
+        assertEquals(encounterId, row.encounterId);
+        assertEquals(conceptId, row.conceptId);
+    }
+
+    private static String[] extractRowUuids(List<ObsSyncRow> rows) {
+        String[] uuids = new String[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            uuids[i] = rows.get(i).uuid;
+        }
+        return uuids;
+    }
+
     // Dataset consistency tests
 
     @Test
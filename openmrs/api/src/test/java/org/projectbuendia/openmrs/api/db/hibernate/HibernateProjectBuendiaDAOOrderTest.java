@@ -20,10 +20,17 @@ import org.openmrs.api.context.Context;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 import org.projectbuendia.openmrs.api.SyncToken;
 import org.projectbuendia.openmrs.api.db.SyncPage;
+import org.projectbuendia.openmrs.sync.SyncType;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test the order-handling logic in {@link HibernateProjectBuendiaDAO}. Tests in this class test
@@ -122,6 +129,48 @@ public class HibernateProjectBuendiaDAOOrderTest extends HibernateProjectBuendia
                 extractListOfUuids(results.results));
     }
 
+    @Test
+    public void testGetObjectsByUuidOmitsUnknownUuids() throws Exception {
+        Map<String, Order> orders = buendiaService.getObjectsByUuid(
+                Order.class, Arrays.asList("aaaaa", "kkkkk", "no-such-order"));
+        assertEquals(2, orders.size());
+        assertEquals("aaaaa", orders.get("aaaaa").getUuid());
+        assertEquals("kkkkk", orders.get("kkkkk").getUuid());
+    }
+
+    @Test
+    public void testGetOrdersByPatientIdsReturnsOnlyThosePatientsInOrder() throws Exception {
+        List<Order> orders = buendiaService.getOrdersByPatientIds(Arrays.asList(7, 2));
+        List<String> uuids = Arrays.asList(extractListOfUuids(orders));
+        // Voided orders are included, as with OrderService.getAllOrdersByPatient.
+        for (String uuid : EXPECTED_ORDER_INCLUDES_VOIDED) {
+            assertTrue(uuids.contains(uuid));
+        }
+        Order previous = null;
+        for (Order order : orders) {
+            int patientId = order.getPatient().getPatientId();
+            assertTrue(patientId == 2 || patientId == 7);
+            if (previous != null) {
+                int previousPatientId = previous.getPatient().getPatientId();
+                assertTrue(previousPatientId < patientId || (previousPatientId == patientId
+                        && previous.getOrderId() < order.getOrderId()));
+            }
+            previous = order;
+        }
+    }
+
+    @Test
+    public void testGetPatientIdsWithOrdersChangedAfterFollowsOrderSyncMap() throws Exception {
+        Set<Integer> patientIds =
+                buendiaService.getPatientIdsWithOrdersChangedAfter(CATCH_ALL_SYNCTOKEN);
+        assertTrue(patientIds.contains(2));
+        assertTrue(patientIds.contains(7));
+
+        SyncToken last = buendiaService.getHighWaterMark(SyncType.ORDERS);
+        assertEquals(Collections.<Integer>emptySet(),
+                buendiaService.getPatientIdsWithOrdersChangedAfter(last));
+    }
+
     @Test
     public void testDatasetIsConsistent() throws Exception {
         testDataSetIsConsistent(
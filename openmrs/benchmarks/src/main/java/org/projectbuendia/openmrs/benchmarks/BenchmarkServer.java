@@ -0,0 +1,50 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.benchmarks;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.test.context.TestContextManager;
+
+/**
+ * An in-process OpenMRS with the Buendia module, backed by an in-memory H2 database. This
+ * borrows the module test harness, which knows how to build the Spring context and the schema,
+ * but drives it by hand instead of through JUnit.
+ * <p>
+ * OpenMRS keeps the user context and the Hibernate session in thread-locals, so the server
+ * must be used from the thread that started it.
+ */
+public class BenchmarkServer extends BaseModuleContextSensitiveTest {
+    private static final Log log = LogFactory.getLog(BenchmarkServer.class);
+
+    /** Starts OpenMRS, loads the standard test dataset and the ward, and logs in as admin. */
+    public static BenchmarkServer start(SyntheticWard ward) throws Exception {
+        BenchmarkServer server = new BenchmarkServer();
+        // Builds the Spring application context and injects this object's dependencies.
+        new TestContextManager(BenchmarkServer.class).prepareTestInstance(server);
+        server.baseSetupWithStandardDataAndAuthentication();
+
+        log.info("Inserting " + ward.patientCount + " patients and "
+                + ward.getObsCount() + " observations");
+        long start = System.currentTimeMillis();
+        ward.insertInto(server.getConnection());
+        log.info("Ward inserted in " + (System.currentTimeMillis() - start) + " ms");
+        Context.clearSession();
+        return server;
+    }
+
+    public void stop() {
+        Context.closeSession();
+    }
+}
@@ -0,0 +1,180 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.projectbuendia.webservices.rest.ObservationResource;
+import org.openmrs.projectbuendia.webservices.rest.ObservationsHandler;
+import org.openmrs.projectbuendia.webservices.rest.SyncPageBudget;
+import org.openmrs.projectbuendia.webservices.rest.SyncTokenUtils;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.SyncToken;
+import org.projectbuendia.openmrs.api.db.SyncPage;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import javax.annotation.Nullable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the stages of an observation sync request against a synthetic ward: fetching a page
+ * (as Hibernate entities and as flattened rows), converting a page to JSON, and the whole
+ * request as {@link ObservationResource} handles it. The page starts at the beginning, middle
+ * or end of the sync map, since keyset pagination should cost the same wherever it starts.
+ * <p>
+ * Setup inserts the whole ward into H2, which takes a few minutes at the default size; the
+ * database lives in the heap, hence the generous -Xmx.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Threads(1)  // OpenMRS sessions are thread-local; see BenchmarkServer.
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g", "-Duser.timezone=UTC"})
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+public class SyncReadBenchmark {
+    private static final int VOIDED_PERCENT = 5;
+
+    @Param({"2000"})
+    public int patients;
+
+    /** 2000 patients x 500 observations is a million observations. */
+    @Param({"500"})
+    public int obsPerPatient;
+
+    @Param({"500"})
+    public int pageSize;
+
+    @Param({"start", "middle", "end"})
+    public String position;
+
+    private BenchmarkServer server;
+    private ProjectBuendiaService service;
+    @Nullable private SyncToken syncFrom;
+    private List<Obs> obsPage;
+    private List<ObsSyncRow> rowPage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SyntheticWard ward = new SyntheticWard(patients, obsPerPatient, VOIDED_PERCENT);
+        server = BenchmarkServer.start(ward);
+        service = Context.getService(ProjectBuendiaService.class);
+        switch (position) {
+            case "start":
+                syncFrom = null;
+                break;
+            case "middle":
+                syncFrom = getTokenAtOffset(ward.getObsCount() / 2);
+                break;
+            case "end":
+                syncFrom = getTokenAtOffset(ward.getObsCount() - pageSize);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown position: " + position);
+        }
+
+        // Pages for the JSON conversion benchmarks. Converting the entities once loads their
+        // lazy associations, so that the benchmark measures only the conversion.
+        obsPage = service.getObservationsModifiedAtOrAfter(
+                syncFrom, syncFrom != null, pageSize).results;
+        for (Obs obs : obsPage) {
+            ObservationsHandler.obsToJson(obs);
+        }
+        rowPage = service.getObservationRowsModifiedAtOrAfter(
+                syncFrom, syncFrom != null, pageSize).results;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * Stops the Hibernate session from accumulating every entity fetched during an iteration,
+     * which would make each fetch slower than the last.
+     */
+    @TearDown(Level.Invocation)
+    public void clearSession() {
+        Context.clearSession();
+    }
+
+    @Benchmark
+    public SyncPage<Obs> fetchObsEntities() {
+        return service.getObservationsModifiedAtOrAfter(syncFrom, syncFrom != null, pageSize);
+    }
+
+    @Benchmark
+    public SyncPage<ObsSyncRow> fetchObsRows() {
+        return service.getObservationRowsModifiedAtOrAfter(syncFrom, syncFrom != null, pageSize);
+    }
+
+    @Benchmark
+    public void convertObsEntitiesToJson(Blackhole blackhole) {
+        for (Obs obs : obsPage) {
+            blackhole.consume(ObservationsHandler.obsToJson(obs));
+        }
+    }
+
+    @Benchmark
+    public void convertObsRowsToJson(Blackhole blackhole) {
+        for (ObsSyncRow row : rowPage) {
+            blackhole.consume(ObservationsHandler.obsRowToJson(row));
+        }
+    }
+
+    @Benchmark
+    public SimpleObject handleSync() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/obs");
+        if (syncFrom != null) {
+            request.addParameter("since", SyncTokenUtils.syncTokenToJson(syncFrom));
+        }
+        request.addParameter(SyncPageBudget.LIMIT_PARAM, String.valueOf(pageSize));
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        return new ObservationResource().getAll(context);
+    }
+
+    /** Returns a token that syncs from just after the observation at the given sync offset. */
+    private SyncToken getTokenAtOffset(int offset) throws SQLException {
+        try (PreparedStatement statement = server.getConnection().prepareStatement(
+                "SELECT date_updated, uuid FROM buendia_obs_sync_map "
+                        + "ORDER BY date_updated, uuid LIMIT 1 OFFSET ?")) {
+            statement.setInt(1, offset);
+            try (ResultSet results = statement.executeQuery()) {
+                results.next();
+                return new SyncToken(results.getTimestamp(1), results.getString(2));
+            }
+        }
+    }
+}
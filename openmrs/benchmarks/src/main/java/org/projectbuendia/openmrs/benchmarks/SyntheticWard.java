@@ -0,0 +1,191 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.benchmarks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Fills a database that already contains the OpenMRS standard test dataset with the patients,
+ * encounters and observations of a busy ward, plus the matching sync map rows (which, on a real
+ * server, triggers would maintain).
+ * <p>
+ * The data has the shape that matters for sync: observations arrive in encounters of
+ * {@link #OBS_PER_ENCOUNTER}, all of which share a timestamp, and the encounters of different
+ * patients are interleaved in time. Rows are inserted with batched JDBC statements, since going
+ * through the OpenMRS services would take hours for millions of observations.
+ */
+public class SyntheticWard {
+    /** IDs start here, well clear of the IDs used by the standard test dataset. */
+    static final int FIRST_ID = 1000000;
+    static final int OBS_PER_ENCOUNTER = 10;
+    static final int BATCH_SIZE = 5000;
+    /** Numeric concepts in the standard test dataset (weight and CD4 count). */
+    static final int[] CONCEPT_IDS = {5089, 5497};
+    static final int LOCATION_ID = 1;
+    static final int ENCOUNTER_TYPE_ID = 1;
+    static final int CREATOR_ID = 1;
+    /** The time of the first encounter; later ones follow at one-second intervals. */
+    static final long START_MILLIS = Timestamp.valueOf("2015-01-01 00:00:00").getTime();
+
+    final int patientCount;
+    final int obsPerPatient;
+    final int voidedPercent;
+    private final Random random = new Random(0);  // fixed seed, so every run gets the same ward
+
+    /**
+     * @param patientCount  the number of patients to create.
+     * @param obsPerPatient the number of observations per patient, rounded up to a whole number
+     *                      of encounters.
+     * @param voidedPercent the percentage of observations that are voided.
+     */
+    public SyntheticWard(int patientCount, int obsPerPatient, int voidedPercent) {
+        this.patientCount = patientCount;
+        this.obsPerPatient = obsPerPatient;
+        this.voidedPercent = voidedPercent;
+    }
+
+    public int getEncountersPerPatient() {
+        return (obsPerPatient + OBS_PER_ENCOUNTER - 1) / OBS_PER_ENCOUNTER;
+    }
+
+    public int getObsCount() {
+        return patientCount * getEncountersPerPatient() * OBS_PER_ENCOUNTER;
+    }
+
+    /** Inserts the ward and commits. */
+    public void insertInto(Connection connection) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            insertPatients(connection);
+            insertEncountersAndObs(connection);
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private void insertPatients(Connection connection) throws SQLException {
+        Timestamp created = new Timestamp(START_MILLIS);
+        try (PreparedStatement person = connection.prepareStatement(
+                "INSERT INTO person (person_id, gender, birthdate, birthdate_estimated, dead, "
+                        + "creator, date_created, voided, uuid) "
+                        + "VALUES (?, ?, ?, false, false, ?, ?, false, ?)");
+             PreparedStatement patient = connection.prepareStatement(
+                     "INSERT INTO patient (patient_id, creator, date_created, voided) "
+                             + "VALUES (?, ?, ?, false)");
+             PreparedStatement syncMap = connection.prepareStatement(
+                     "INSERT INTO buendia_patient_sync_map (patient_id, date_updated, uuid, "
+                             + "voided) VALUES (?, ?, ?, false)")) {
+            for (int p = 0; p < patientCount; p++) {
+                int id = FIRST_ID + p;
+                String uuid = newUuid();
+                person.setInt(1, id);
+                person.setString(2, p % 2 == 0 ? "F" : "M");
+                person.setTimestamp(3, new Timestamp(
+                        START_MILLIS - (long) (random.nextInt(60 * 365) + 365) * 86400000L));
+                person.setInt(4, CREATOR_ID);
+                person.setTimestamp(5, created);
+                person.setString(6, uuid);
+                person.addBatch();
+                patient.setInt(1, id);
+                patient.setInt(2, CREATOR_ID);
+                patient.setTimestamp(3, created);
+                patient.addBatch();
+                syncMap.setInt(1, id);
+                syncMap.setTimestamp(2, created);
+                syncMap.setString(3, uuid);
+                syncMap.addBatch();
+                if ((p + 1) % BATCH_SIZE == 0) {
+                    executeBatches(person, patient, syncMap);
+                }
+            }
+            executeBatches(person, patient, syncMap);
+        }
+    }
+
+    private void insertEncountersAndObs(Connection connection) throws SQLException {
+        try (PreparedStatement encounter = connection.prepareStatement(
+                "INSERT INTO encounter (encounter_id, encounter_type, patient_id, location_id, "
+                        + "encounter_datetime, creator, date_created, voided, uuid) "
+                        + "VALUES (?, ?, ?, ?, ?, ?, ?, false, ?)");
+             PreparedStatement obs = connection.prepareStatement(
+                     "INSERT INTO obs (obs_id, person_id, concept_id, encounter_id, obs_datetime, "
+                             + "location_id, value_numeric, creator, date_created, voided, uuid) "
+                             + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+             PreparedStatement syncMap = connection.prepareStatement(
+                     "INSERT INTO buendia_obs_sync_map (obs_id, date_updated, uuid, voided) "
+                             + "VALUES (?, ?, ?, ?)")) {
+            int encounterId = FIRST_ID;
+            int obsId = FIRST_ID;
+            int encountersPerPatient = getEncountersPerPatient();
+            // Round-robin through the patients, as a ward round would.
+            for (int e = 0; e < encountersPerPatient; e++) {
+                for (int p = 0; p < patientCount; p++) {
+                    Timestamp time = new Timestamp(START_MILLIS + (encounterId - FIRST_ID) * 1000L);
+                    encounter.setInt(1, encounterId);
+                    encounter.setInt(2, ENCOUNTER_TYPE_ID);
+                    encounter.setInt(3, FIRST_ID + p);
+                    encounter.setInt(4, LOCATION_ID);
+                    encounter.setTimestamp(5, time);
+                    encounter.setInt(6, CREATOR_ID);
+                    encounter.setTimestamp(7, time);
+                    encounter.setString(8, newUuid());
+                    encounter.addBatch();
+                    for (int i = 0; i < OBS_PER_ENCOUNTER; i++) {
+                        String uuid = newUuid();
+                        boolean voided = random.nextInt(100) < voidedPercent;
+                        obs.setInt(1, obsId);
+                        obs.setInt(2, FIRST_ID + p);
+                        obs.setInt(3, CONCEPT_IDS[i % CONCEPT_IDS.length]);
+                        obs.setInt(4, encounterId);
+                        obs.setTimestamp(5, time);
+                        obs.setInt(6, LOCATION_ID);
+                        obs.setDouble(7, random.nextInt(10000) / 10.0);
+                        obs.setInt(8, CREATOR_ID);
+                        obs.setTimestamp(9, time);
+                        obs.setBoolean(10, voided);
+                        obs.setString(11, uuid);
+                        obs.addBatch();
+                        syncMap.setInt(1, obsId);
+                        syncMap.setTimestamp(2, time);
+                        syncMap.setString(3, uuid);
+                        syncMap.setBoolean(4, voided);
+                        syncMap.addBatch();
+                        obsId++;
+                    }
+                    encounterId++;
+                    if ((obsId - FIRST_ID) % BATCH_SIZE == 0) {
+                        executeBatches(encounter, obs, syncMap);
+                    }
+                }
+            }
+            executeBatches(encounter, obs, syncMap);
+        }
+    }
+
+    private String newUuid() {
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+
+    /** Executes the batches in order, so that foreign keys are satisfied. */
+    private static void executeBatches(PreparedStatement... statements) throws SQLException {
+        for (PreparedStatement statement : statements) {
+            statement.executeBatch();
+        }
+    }
+}
@@ -17,12 +17,20 @@ import org.openmrs.Concept;
 import org.openmrs.ConceptName;
 import org.springframework.util.ObjectUtils;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * A class to get a String representing a concept in the client. See the wiki
  * page explaining why this is hard and why we made these design decisions:
  * http://github.com/projectbuendia/buendia/wiki/... TODO: Fill in URL.
+ * <p/>
+ * Resolved names are cached process-wide by concept ID and locale, since exports and charts
+ * ask for the same few hundred concepts over and over. {@link ConceptChangeAdvice} clears
+ * the cache whenever a concept is saved; see also {@link #invalidateCache()}.
  */
 public class ClientConceptNamer {
     public static final String VARIANT = "client";
@@ -35,11 +43,32 @@ public class ClientConceptNamer {
     public static final Locale DEFAULT = new Locale.Builder()
         .setLanguage("en")
         .build();
+    /** Enough for every concept in a large profile, in a couple of locales. */
+    static final int MAX_CACHED_NAMES = 20000;
     private static Log log = LogFactory.getLog(ClientConceptNamer.class);
+
+    /** Keyed by concept ID and locale. Least recently used first. Guarded by itself. */
+    private static final Map<String, String> cachedNames =
+        new LinkedHashMap<String, String>(256, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MAX_CACHED_NAMES;
+            }
+        };
+
     private final Locale locale;
+    /** The locales to look for a preferred name in, in order; see {@link #getClientName}. */
+    private final List<Locale> fallbackLocales;
 
     public ClientConceptNamer(Locale locale) {
         this.locale = locale;
+        this.fallbackLocales = getFallbackLocales(locale);
+    }
+
+    /** Discards all cached names, e.g. after concepts have been changed behind our back. */
+    public static void invalidateCache() {
+        synchronized (cachedNames) {
+            cachedNames.clear();
+        }
     }
 
     /**
@@ -68,6 +97,26 @@ public class ClientConceptNamer {
      * @return a String for the client with the best match we can get for that locale
      */
     public String getClientName(Concept concept) {
+        Integer id = concept.getId();
+        if (id == null) {
+            return resolveClientName(concept);  // unsaved, so there's nothing to key it on
+        }
+        String key = id + ":" + locale;
+        String name;
+        synchronized (cachedNames) {
+            name = cachedNames.get(key);
+        }
+        if (name == null) {
+            name = resolveClientName(concept);
+            synchronized (cachedNames) {
+                cachedNames.put(key, name);
+            }
+        }
+        return name;
+    }
+
+    private static List<Locale> getFallbackLocales(Locale locale) {
+        List<Locale> locales = new ArrayList<>();
         String variant = locale.getVariant();
         Locale.Builder builder = new Locale.Builder().setLocale(locale);
         if (!VARIANT.equals(variant)) {
@@ -79,24 +128,33 @@ public class ClientConceptNamer {
         }
         // If we already have a client extension, try it, before falling back to English.
         // Don't use the client fallback logic.
-        String name = getPreferredStringInLocaleOrNull(concept, builder.build());
-        if (name != null) return name;
+        addIfAbsent(locales, builder.build());
 
-        // try specifically what was requested. This might try the client variant again, never mind.
-        name = getPreferredStringInLocaleOrNull(concept, locale);
-        if (name != null) return name;
+        // try specifically what was requested.
+        addIfAbsent(locales, locale);
 
         // If the requested had a country/region, try it without the region
         if ("".equals(locale.getCountry())) {
-            name = getPreferredStringInLocaleOrNull(concept, new Locale(locale.getLanguage()));
-            if (name != null) return name;
+            addIfAbsent(locales, new Locale(locale.getLanguage()));
         }
 
         // By the time we reach here the locale asked for has failed. Try our two defaults.
-        name = getPreferredStringInLocaleOrNull(concept, DEFAULT_CLIENT);
-        if (name != null) return name;
-        name = getPreferredStringInLocaleOrNull(concept, DEFAULT);
-        if (name != null) return name;
+        addIfAbsent(locales, DEFAULT_CLIENT);
+        addIfAbsent(locales, DEFAULT);
+        return locales;
+    }
+
+    private static void addIfAbsent(List<Locale> locales, Locale locale) {
+        if (!locales.contains(locale)) {
+            locales.add(locale);
+        }
+    }
+
+    private String resolveClientName(Concept concept) {
+        for (Locale fallback : fallbackLocales) {
+            String name = getPreferredStringInLocaleOrNull(concept, fallback);
+            if (name != null) return name;
+        }
         // fail over to anything we can get
         ConceptName defaultName = concept.getName();
         if (defaultName == null) {
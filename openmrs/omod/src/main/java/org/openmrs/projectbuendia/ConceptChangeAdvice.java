@@ -0,0 +1,42 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia;
+
+import org.openmrs.projectbuendia.webservices.rest.ContentVersion;
+import org.openmrs.projectbuendia.webservices.rest.MetadataCache;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Clears the {@link ClientConceptNamer} and {@link MetadataCache} caches and bumps the
+ * {@link ContentVersion} after any ConceptService method that may change a concept. Registered
+ * as advice on ConceptService in config.xml. Concepts are only edited when a profile is applied
+ * or an administrator uses the web interface, so clearing everything is cheap enough.
+ */
+public class ConceptChangeAdvice implements AfterReturningAdvice {
+    @Override public void afterReturning(
+        Object returnValue, Method method, Object[] args, Object target) {
+        if (isModifying(method)) {
+            ClientConceptNamer.invalidateCache();
+            MetadataCache.INSTANCE.invalidate();
+            ContentVersion.INSTANCE.bump();
+        }
+    }
+
+    /** Whether a service method, by the OpenMRS naming conventions, can modify data. */
+    static boolean isModifying(Method method) {
+        String name = method.getName();
+        return name.startsWith("save") || name.startsWith("purge")
+            || name.startsWith("retire") || name.startsWith("unretire");
+    }
+}
@@ -0,0 +1,56 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia;
+
+import org.openmrs.GlobalProperty;
+import org.openmrs.projectbuendia.webservices.rest.ContentVersion;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+
+/**
+ * Bumps the {@link ContentVersion} after any AdministrationService method that may change one of
+ * the Buendia global properties (e.g. the list of charts), so that the responses cached under
+ * the content version are rebuilt. Registered as advice on AdministrationService in config.xml.
+ */
+public class GlobalPropertyChangeAdvice implements AfterReturningAdvice {
+    static final String BUENDIA_PREFIX = "projectbuendia.";
+
+    @Override public void afterReturning(
+        Object returnValue, Method method, Object[] args, Object target) {
+        // setGlobalProperty(String, String) doesn't follow the naming conventions.
+        boolean modifying = ConceptChangeAdvice.isModifying(method)
+            || method.getName().startsWith("set");
+        if (modifying && args != null && args.length > 0 && isBuendiaProperty(args[0])) {
+            ContentVersion.INSTANCE.bump();
+        }
+    }
+
+    /** Whether an argument is, names or contains a Buendia global property. */
+    private static boolean isBuendiaProperty(Object arg) {
+        if (arg instanceof GlobalProperty) {
+            return isBuendiaProperty(((GlobalProperty) arg).getProperty());
+        }
+        if (arg instanceof String) {
+            return ((String) arg).startsWith(BUENDIA_PREFIX);
+        }
+        if (arg instanceof Collection) {
+            for (Object item : (Collection<?>) arg) {
+                if (isBuendiaProperty(item)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,32 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia;
+
+import org.openmrs.projectbuendia.webservices.rest.MetadataCache;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Invalidates the {@link MetadataCache} after any method that may change one of the metadata
+ * types it holds (identifier, order and attribute types).  Registered as advice on
+ * PatientService, OrderService and PersonService in config.xml; only the methods for types
+ * count, so that saving a patient or an order leaves the cache alone.
+ */
+public class MetadataChangeAdvice implements AfterReturningAdvice {
+    @Override public void afterReturning(
+        Object returnValue, Method method, Object[] args, Object target) {
+        if (ConceptChangeAdvice.isModifying(method) && method.getName().endsWith("Type")) {
+            MetadataCache.INSTANCE.invalidate();
+        }
+    }
+}
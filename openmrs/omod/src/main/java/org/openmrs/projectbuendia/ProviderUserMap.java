@@ -0,0 +1,193 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia;
+
+import org.openmrs.Person;
+import org.openmrs.Provider;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.db.ProviderUserRow;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps between users and the providers that represent them to clients (a user and its provider
+ * share a person).  Every observation and order that is read or written needs this mapping, and
+ * resolving it through the services takes a person lookup and a query each time, so the whole
+ * mapping is loaded at once, in a single query, and then served from memory.  {@link Utils}
+ * resolves users and providers through this class.
+ * <p>
+ * Pairs created by the module's API are added as they are created; anything else (e.g. an edit
+ * in the web interface) is picked up when a lookup misses, or when the mapping is reloaded,
+ * which happens every MAX_AGE_MILLIS.
+ */
+public class ProviderUserMap {
+    public static final ProviderUserMap INSTANCE = new ProviderUserMap();
+
+    static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+    /** The ID and UUID of a provider. */
+    private static class ProviderRef {
+        final int id;
+        final String uuid;
+
+        ProviderRef(int id, String uuid) {
+            this.id = id;
+            this.uuid = uuid;
+        }
+    }
+
+    /**
+     * The mapping in both directions.  A reload builds a new one and swaps it in, so that
+     * lookups never see a partly loaded mapping.
+     */
+    private static class Mapping {
+        final ConcurrentMap<Integer, ProviderRef> providersByUserId = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, Integer> userIdsByProviderUuid = new ConcurrentHashMap<>();
+
+        /**
+         * Records a pair, unless the user or the provider already has one (first wins).
+         * Returns true if anything was added.
+         */
+        boolean add(int userId, ProviderRef ref) {
+            boolean added = providersByUserId.putIfAbsent(userId, ref) == null;
+            return userIdsByProviderUuid.putIfAbsent(ref.uuid, userId) == null || added;
+        }
+    }
+
+    private volatile Mapping mapping = new Mapping();
+    private volatile long loadedMillis = 0;
+    /** Incremented whenever a pair is added or the mapping is invalidated. */
+    private final AtomicLong version = new AtomicLong();
+
+    /** The UUID of the provider for a user, or null if the user has no provider. */
+    public @Nullable String getProviderUuid(@Nullable User user) {
+        ProviderRef ref = getProviderRef(user);
+        return ref != null ? ref.uuid : null;
+    }
+
+    /** The provider for a user, or null if the user has no provider. */
+    public @Nullable Provider getProvider(@Nullable User user) {
+        ProviderRef ref = getProviderRef(user);
+        return ref != null ? Context.getProviderService().getProvider(ref.id) : null;
+    }
+
+    /**
+     * The user for the provider with the given UUID, or null if there is no such provider.
+     * @throws IllegalStateException if the provider has no user.
+     */
+    public @Nullable User getUser(@Nullable String providerUuid) {
+        if (providerUuid == null) {
+            return null;
+        }
+        ensureLoaded();
+        Integer userId = mapping.userIdsByProviderUuid.get(providerUuid);
+        if (userId != null) {
+            return Context.getUserService().getUser(userId);
+        }
+        Provider provider = Context.getProviderService().getProviderByUuid(providerUuid);
+        if (provider == null) {
+            return null;
+        }
+        User user = loadUser(provider);
+        add(user, provider);
+        return user;
+    }
+
+    /** Records a newly created user and provider for the same person. */
+    public void add(User user, Provider provider) {
+        if (user.getUserId() == null || provider.getProviderId() == null) {
+            return;  // not saved
+        }
+        if (mapping.add(user.getUserId(),
+                new ProviderRef(provider.getProviderId(), provider.getUuid()))) {
+            version.incrementAndGet();
+        }
+    }
+
+    /** Discards the mapping, so that it is reloaded on the next lookup. */
+    public void invalidate() {
+        loadedMillis = 0;
+        version.incrementAndGet();
+    }
+
+    /** A number that changes whenever a user or provider may have been added or changed. */
+    public long getVersion() {
+        return version.get();
+    }
+
+    private @Nullable ProviderRef getProviderRef(@Nullable User user) {
+        if (user == null || user.getUserId() == null) {
+            return null;
+        }
+        ensureLoaded();
+        ProviderRef ref = mapping.providersByUserId.get(user.getUserId());
+        if (ref == null) {
+            // Users without providers aren't remembered, as one may be added at any time.
+            Provider provider = loadProvider(user);
+            if (provider != null) {
+                add(user, provider);
+                ref = mapping.providersByUserId.get(user.getUserId());
+            }
+        }
+        return ref;
+    }
+
+    private void ensureLoaded() {
+        if (System.currentTimeMillis() - loadedMillis < MAX_AGE_MILLIS) {
+            return;
+        }
+        synchronized (this) {
+            if (System.currentTimeMillis() - loadedMillis < MAX_AGE_MILLIS) {
+                return;
+            }
+            // The rows come in order of provider ID and then user ID, so that, as in loadUser
+            // and loadProvider, each user gets its person's first provider (retired or not)
+            // and each provider gets its person's first unretired user.
+            Mapping loaded = new Mapping();
+            for (ProviderUserRow row :
+                    Context.getService(ProjectBuendiaService.class).getProviderUsers()) {
+                loaded.add(row.userId, new ProviderRef(row.providerId, row.providerUuid));
+            }
+            mapping = loaded;
+            loadedMillis = System.currentTimeMillis();
+        }
+    }
+
+    /** Finds the first user of a provider's person, as Buendia has always done. */
+    private static User loadUser(Provider provider) {
+        Person person = provider.getPerson();
+        if (person == null) {
+            throw new IllegalStateException(
+                    "Should not be possible to get null person from provider.");
+        }
+        List<User> users = Context.getUserService().getUsersByPerson(person, false);
+        if (users.size() < 1) {
+            // This is a server error.
+            throw new IllegalStateException("There is no user for the associated provider");
+        }
+        return users.get(0);
+    }
+
+    /** Finds the first provider of a user's person, as Buendia has always done. */
+    private static @Nullable Provider loadProvider(User user) {
+        Iterator<Provider> providers =
+                Context.getProviderService().getProvidersByPerson(user.getPerson()).iterator();
+        return providers.hasNext() ? providers.next() : null;
+    }
+}
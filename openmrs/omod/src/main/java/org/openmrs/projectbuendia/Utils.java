@@ -12,10 +12,8 @@
 package org.openmrs.projectbuendia;
 
 import org.openmrs.Order;
-import org.openmrs.Person;
 import org.openmrs.Provider;
 import org.openmrs.User;
-import org.openmrs.api.context.Context;
 import org.openmrs.projectbuendia.webservices.rest.InvalidObjectDataException;
 
 import javax.annotation.Nullable;
@@ -26,7 +24,6 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.TimeZone;
 import java.util.regex.Matcher;
@@ -190,42 +187,18 @@ public class Utils {
         return order;
     }
 
+    /** Looked up in the {@link ProviderUserMap}. */
     public static @Nullable User getUserFromProvider(@Nullable Provider provider) {
-        if (provider == null) {
-            return null;
-        }
-        Person person = provider.getPerson();
-        if (person == null) {
-            throw new IllegalStateException(
-                    "Should not be possible to get null person from provider.");
-        }
-        List<User> users = Context.getUserService().getUsersByPerson(person, false);
-        if (users.size() < 1) {
-            // This is a server error.
-            throw new IllegalStateException("There is no user for the associated provider");
-        }
-        return users.get(0);
+        return provider == null ? null : ProviderUserMap.INSTANCE.getUser(provider.getUuid());
     }
 
+    /** Looked up in the {@link ProviderUserMap}. */
     public static @Nullable User getUserFromProviderUuid(@Nullable String providerUuid) {
-        if (providerUuid == null) {
-            return null;
-        }
-        Provider provider = Context.getProviderService().getProviderByUuid(providerUuid);
-        return getUserFromProvider(provider);
+        return ProviderUserMap.INSTANCE.getUser(providerUuid);
     }
 
+    /** Looked up in the {@link ProviderUserMap}. */
     public static @Nullable Provider getProviderFromUser(@Nullable User user) {
-        if (user == null) {
-            return null;
-        }
-        Person person = user.getPerson();
-        Iterator<Provider> providers =
-                Context.getProviderService().getProvidersByPerson(person).iterator();
-        if (providers.hasNext()) {
-            return providers.next();
-        } else {
-            return null;
-        }
+        return ProviderUserMap.INSTANCE.getProvider(user);
     }
 }
@@ -0,0 +1,99 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia;
+
+import org.openmrs.Obs;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.context.Context;
+import org.openmrs.hl7.HL7Constants;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
+
+import javax.annotation.Nullable;
+import java.util.Date;
+
+/**
+ * Like {@link VisitObsValue}, but for observation values read as plain columns (e.g. an
+ * {@link ObsSyncRow}) rather than as an {@link Obs}, so that the sync and export paths interpret
+ * them the same way.
+ */
+public class VisitObsRowValue {
+    /**
+     * Visitor design pattern interface for observation row values.  Any value may be null.
+     * @param <T>
+     */
+    public interface ObsRowValueVisitor<T> {
+        /** Visits a coded value, given as the UUID of its concept. */
+        public T visitCoded(@Nullable String valueUuid);
+
+        /** Visits a numeric value. */
+        public T visitNumeric(@Nullable Double value);
+
+        /** Visits a boolean value. */
+        public T visitBoolean(@Nullable Boolean value);
+
+        /** Visits a text value. */
+        public T visitText(@Nullable String value);
+
+        /** Visits a date value. */
+        public T visitDate(@Nullable Date value);
+
+        /** Visits a datetime value. */
+        public T visitDateTime(@Nullable Date value);
+    }
+
+    /** Applies a visitor to the value of an {@link ObsSyncRow}. */
+    public static <T> T visit(ObsSyncRow row, ObsRowValueVisitor<T> visitor) {
+        return visit(row.conceptHl7Type, row.valueCodedUuid, row.valueNumeric,
+            row.valueText, row.valueDatetime, visitor);
+    }
+
+    /** Applies a visitor to the value columns of an observation whose concept has hl7Type. */
+    public static <T> T visit(String hl7Type, @Nullable String valueCodedUuid,
+                              @Nullable Double valueNumeric, @Nullable String valueText,
+                              @Nullable Date valueDatetime, ObsRowValueVisitor<T> visitor) {
+        switch (hl7Type) {
+            case HL7Constants.HL7_BOOLEAN:
+                return visitor.visitBoolean(getValueAsBoolean(valueCodedUuid, valueNumeric));
+            case HL7Constants.HL7_CODED: // deliberate fall through
+            case HL7Constants.HL7_CODED_WITH_EXCEPTIONS:
+                return visitor.visitCoded(valueCodedUuid);
+            case HL7Constants.HL7_NUMERIC:
+                return visitor.visitNumeric(valueNumeric);
+            case HL7Constants.HL7_TEXT:
+                return visitor.visitText(valueText);
+            case HL7Constants.HL7_DATE:
+                return visitor.visitDate(valueDatetime);
+            case HL7Constants.HL7_DATETIME:
+                return visitor.visitDateTime(valueDatetime);
+            default:
+                throw new IllegalArgumentException("Unexpected HL7 type: " + hl7Type);
+        }
+    }
+
+    /** Mirrors {@link Obs#getValueAsBoolean()} for the value columns of an observation. */
+    public static @Nullable Boolean getValueAsBoolean(
+        @Nullable String valueCodedUuid, @Nullable Double valueNumeric) {
+        if (valueCodedUuid != null) {
+            ConceptService conceptService = Context.getConceptService();
+            if (valueCodedUuid.equals(conceptService.getTrueConcept().getUuid())) {
+                return Boolean.TRUE;
+            }
+            if (valueCodedUuid.equals(conceptService.getFalseConcept().getUuid())) {
+                return Boolean.FALSE;
+            }
+        } else if (valueNumeric != null) {
+            if (valueNumeric == 1) return Boolean.TRUE;
+            if (valueNumeric == 0) return Boolean.FALSE;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,217 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.servlet;
+
+import javax.annotation.Nullable;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses whatever the application writes to the response body. The body is compressed
+ * either straight into the underlying response or, if a capture buffer is given, into that
+ * buffer so that the caller can keep a copy before sending it.
+ * <p>
+ * If the application sets its own Content-Encoding (e.g. because it is sending a file that is
+ * already gzipped), the wrapper stays out of the way and passes everything through unchanged.
+ */
+class CompressingResponseWrapper extends HttpServletResponseWrapper {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String encoding;
+    @Nullable private final OutputStream capture;
+    private int status = SC_OK;
+    private boolean passThrough = false;
+    @Nullable private OutputStream compressedStream;
+    @Nullable private ServletOutputStream servletStream;
+    @Nullable private PrintWriter writer;
+    private long compressedLength = 0;
+
+    /**
+     * @param encoding "gzip" or "deflate".
+     * @param capture  if not null, compressed bytes go here instead of to the response.
+     */
+    CompressingResponseWrapper(
+            HttpServletResponse response, String encoding, @Nullable OutputStream capture) {
+        super(response);
+        this.encoding = encoding;
+        this.capture = capture;
+    }
+
+    /** The HTTP status set by the application. */
+    int getStatusCode() {
+        return status;
+    }
+
+    /** The number of compressed bytes produced so far; complete once {@link #finish} returns. */
+    long getCompressedLength() {
+        return compressedLength;
+    }
+
+    /** Whether any compressed output has been produced. */
+    boolean isCompressing() {
+        return compressedStream != null;
+    }
+
+    @Override public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+        if (passThrough) {
+            return super.getOutputStream();
+        }
+        if (servletStream == null) {
+            super.setHeader("Content-Encoding", encoding);
+            final OutputStream destination = capture != null ? capture : super.getOutputStream();
+            OutputStream target = new FilterOutputStream(destination) {
+                @Override public void write(int b) throws IOException {
+                    destination.write(b);
+                    compressedLength++;
+                }
+
+                @Override public void write(byte[] bytes, int offset, int length)
+                        throws IOException {
+                    destination.write(bytes, offset, length);
+                    compressedLength += length;
+                }
+            };
+            compressedStream = GZIP.equals(encoding)
+                    ? new GZIPOutputStream(target, BUFFER_SIZE)
+                    : new DeflaterOutputStream(target);
+            final OutputStream out = compressedStream;
+            servletStream = new ServletOutputStream() {
+                @Override public void write(int b) throws IOException {
+                    out.write(b);
+                }
+
+                @Override public void write(byte[] bytes, int offset, int length)
+                        throws IOException {
+                    out.write(bytes, offset, length);
+                }
+
+                @Override public void flush() throws IOException {
+                    out.flush();
+                }
+            };
+        }
+        return servletStream;
+    }
+
+    @Override public PrintWriter getWriter() throws IOException {
+        if (passThrough) {
+            return super.getWriter();
+        }
+        if (writer == null) {
+            if (servletStream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called");
+            }
+            writer = new PrintWriter(
+                    new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        } else if (servletStream != null) {
+            servletStream.flush();
+        }
+        if (capture == null) {
+            super.flushBuffer();
+        }
+    }
+
+    /** Writes out the end of the compressed stream. Call this after the filter chain returns. */
+    void finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (compressedStream instanceof DeflaterOutputStream) {
+            ((DeflaterOutputStream) compressedStream).finish();
+            compressedStream.flush();
+        }
+    }
+
+    // The length of the compressed body isn't known until it has all been written.
+
+    @Override public void setContentLength(int length) {
+        if (passThrough) {
+            super.setContentLength(length);
+        }
+    }
+
+    @Override public void setHeader(String name, String value) {
+        if (!interceptHeader(name)) {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override public void addHeader(String name, String value) {
+        if (!interceptHeader(name)) {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override public void setIntHeader(String name, int value) {
+        if (!interceptHeader(name)) {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    /** Returns true if the header should be dropped because we are compressing the body. */
+    private boolean interceptHeader(String name) {
+        if ("Content-Encoding".equalsIgnoreCase(name)) {
+            if (servletStream != null) {
+                return true;  // too late: the body is already being compressed
+            }
+            passThrough = true;
+            return false;
+        }
+        return "Content-Length".equalsIgnoreCase(name) && !passThrough;
+    }
+
+    @Override public void setStatus(int status) {
+        this.status = status;
+        super.setStatus(status);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override public void setStatus(int status, String message) {
+        this.status = status;
+        super.setStatus(status, message);
+    }
+
+    @Override public void sendError(int status) throws IOException {
+        this.status = status;
+        super.sendError(status);
+    }
+
+    @Override public void sendError(int status, String message) throws IOException {
+        this.status = status;
+        super.sendError(status, message);
+    }
+
+    @Override public void sendRedirect(String location) throws IOException {
+        this.status = SC_FOUND;
+        super.sendRedirect(location);
+    }
+}
@@ -0,0 +1,215 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.servlet;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.webservices.rest.ContentVersion;
+import org.openmrs.projectbuendia.webservices.rest.Metrics;
+import org.openmrs.projectbuendia.webservices.rest.XformCache;
+
+import javax.annotation.Nullable;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compresses Buendia REST responses with gzip or deflate, whichever the client prefers, and
+ * serves the responses of the profile-defined resources (see {@link PrecompressedCache}) from
+ * memory. Concepts and charts also get ETags derived from the {@link ContentVersion}, so that a
+ * client that already has them gets a 304 without a body. The size of each compressed response
+ * is recorded in {@link Metrics}. Mapped to the projectbuendia REST namespace in config.xml.
+ */
+public class CompressionFilter implements Filter {
+    /** GET requests for these resources, with any query, are served through the cache. */
+    private static final Pattern CACHEABLE_PATH = Pattern.compile(
+            ".*/projectbuendia/(concepts|charts|xforms)(/[^/]*)?");
+    /**
+     * Cacheable resources that depend only on the {@link ContentVersion}. Forms also include
+     * the list of providers, which can change at any time, so they don't get ETags; their
+     * cached responses are keyed by the {@link XformCache} provider version as well.
+     */
+    private static final Pattern VERSIONED_PATH = Pattern.compile(
+            ".*/projectbuendia/(concepts|charts)(/[^/]*)?");
+    /** Picks out the resource name, under which response sizes are recorded in {@link Metrics}. */
+    private static final Pattern RESOURCE_PATH = Pattern.compile(".*/projectbuendia/([^/]+).*");
+
+    @Override public void init(FilterConfig config) throws ServletException { }
+
+    @Override public void destroy() { }
+
+    @Override public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain)
+            throws IOException, ServletException {
+        if (!(req instanceof HttpServletRequest) || !(resp instanceof HttpServletResponse)) {
+            chain.doFilter(req, resp);
+            return;
+        }
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) resp;
+        String encoding = chooseEncoding(request.getHeader("Accept-Encoding"));
+
+        // Cached responses and 304s are only served to authenticated users. If this filter
+        // happens to run before the REST module has checked the credentials, we simply don't
+        // use the cache.
+        boolean cacheable = "GET".equals(request.getMethod())
+                && CACHEABLE_PATH.matcher(request.getRequestURI()).matches()
+                && Context.isAuthenticated();
+        String key = cacheable ? getCacheKey(request) : null;
+        if (key != null && VERSIONED_PATH.matcher(request.getRequestURI()).matches()) {
+            String version = ContentVersion.INSTANCE.get();
+            String etag = getETag(version, key);
+            key += "|" + version;
+            response.setHeader("ETag", etag);
+            if (etagMatches(request.getHeader("If-None-Match"), etag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        } else if (key != null) {
+            key += "|" + getFormVersion();
+        }
+
+        if (encoding == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        response.addHeader("Vary", "Accept-Encoding");
+        if (key != null && CompressingResponseWrapper.GZIP.equals(encoding)) {
+            doFilterCached(request, response, chain, key);
+            return;
+        }
+
+        CompressingResponseWrapper wrapper =
+                new CompressingResponseWrapper(response, encoding, null);
+        chain.doFilter(request, wrapper);
+        wrapper.finish();
+        if (wrapper.isCompressing()) {
+            recordResponseSize(request, wrapper.getCompressedLength());
+        }
+    }
+
+    private void doFilterCached(HttpServletRequest request, HttpServletResponse response,
+                                FilterChain chain, String key)
+            throws IOException, ServletException {
+        PrecompressedCache.Entry entry = PrecompressedCache.INSTANCE.get(key);
+        if (entry == null) {
+            ByteArrayOutputStream capture = new ByteArrayOutputStream();
+            CompressingResponseWrapper wrapper = new CompressingResponseWrapper(
+                    response, CompressingResponseWrapper.GZIP, capture);
+            chain.doFilter(request, wrapper);
+            wrapper.finish();
+            if (!wrapper.isCompressing()) {
+                return;  // nothing was written, or the application sent its own encoding
+            }
+            entry = new PrecompressedCache.Entry(capture.toByteArray(), response.getContentType());
+            if (wrapper.getStatusCode() == HttpServletResponse.SC_OK) {
+                PrecompressedCache.INSTANCE.put(key, entry);
+            }
+        } else {
+            if (entry.contentType != null) {
+                response.setContentType(entry.contentType);
+            }
+            response.setHeader("Content-Encoding", CompressingResponseWrapper.GZIP);
+        }
+        response.setContentLength(entry.gzippedBody.length);
+        response.getOutputStream().write(entry.gzippedBody);
+        recordResponseSize(request, entry.gzippedBody.length);
+    }
+
+    private static void recordResponseSize(HttpServletRequest request, long bytes) {
+        Matcher matcher = RESOURCE_PATH.matcher(request.getRequestURI());
+        if (matcher.matches()) {
+            Metrics.INSTANCE.recordResponseSize(matcher.group(1), bytes);
+        }
+    }
+
+    /**
+     * The cache key: the URL (whose query includes the representation), the user's locale,
+     * which determines concept names, and the Accept header, which selects JSON or XML.
+     */
+    static String getCacheKey(HttpServletRequest request) {
+        return request.getRequestURI() + "?" + request.getQueryString()
+                + "|" + Context.getLocale() + "|" + request.getHeader("Accept");
+    }
+
+    /** Everything besides the request that a form depends on: forms, concepts and providers. */
+    static String getFormVersion() {
+        return ContentVersion.INSTANCE.get() + "|" + XformCache.getInstance().getProviderVersion();
+    }
+
+    /**
+     * A weak ETag for a cache key at a given content version. It is weak because the same
+     * content may be sent with different encodings.
+     */
+    static String getETag(String version, String key) {
+        return "W/\"" + version + "-" + Integer.toHexString(key.hashCode()) + "\"";
+    }
+
+    /** Whether an If-None-Match header lists the given ETag, or is "*". */
+    static boolean etagMatches(@Nullable String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaqueTag = etag.substring(2);  // weak comparison ignores the W/ prefix
+        for (String item : ifNoneMatch.split(",")) {
+            String tag = item.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks "gzip" or "deflate" from an Accept-Encoding header, preferring gzip, or returns null
+     * if the client accepts neither (including when it gives them a q-value of zero).
+     */
+    static @Nullable String chooseEncoding(@Nullable String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.trim().split(";");
+            String coding = parts[0].trim().toLowerCase();
+            if (isRejected(parts)) {
+                continue;
+            }
+            if (coding.equals(CompressingResponseWrapper.GZIP) || coding.equals("x-gzip")) {
+                return CompressingResponseWrapper.GZIP;
+            }
+            deflate |= coding.equals(CompressingResponseWrapper.DEFLATE);
+        }
+        return deflate ? CompressingResponseWrapper.DEFLATE : null;
+    }
+
+    private static boolean isRejected(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2)) <= 0;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,342 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.servlet;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.projectbuendia.ClientConceptNamer;
+import org.openmrs.projectbuendia.Utils;
+import org.openmrs.projectbuendia.VisitObsRowValue;
+import org.projectbuendia.openmrs.api.db.ExportRowHandler;
+import org.projectbuendia.openmrs.api.db.ObsExportRow;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the CSV data export from a stream of {@link ObsExportRow}s ordered by patient and
+ * encounter time, one line per encounter, or per group of encounters that are merged because
+ * they happened within the merge interval of each other and don't disagree on any value.
+ * <p>
+ * Only the current encounter's rows and the line being merged into are held in memory, and
+ * lines are written as soon as they are complete, to a separate {@link CSVPrinter} for each
+ * patient if the {@link Output} wants.
+ */
+class CsvExportWriter implements ExportRowHandler {
+    static final CSVFormat FORMAT = CSVFormat.EXCEL.withDelimiter(',');
+    static final String[] FIXED_HEADERS = new String[] {
+        "Patient UUID",
+        "MSF patient ID",
+        "Approximate date of birth",
+        "Encounter UUID",
+        "Time in epoch milliseconds",
+        "Time in ISO8601 UTC",
+        "Time in yyyy-MM-dd HH:mm:ss UTC",
+    };
+    static final int COLUMNS_PER_OBS = 3;
+
+    private static final Log log = LogFactory.getLog(CsvExportWriter.class);
+
+    /** Where the lines for each patient are written. */
+    interface Output {
+        CSVPrinter startPatient(int patientId) throws IOException;
+
+        void finishPatient(int patientId) throws IOException;
+    }
+
+    private final Output output;
+    private final ClientConceptNamer namer;
+    private final List<Concept> concepts;
+    /** Column indexes (before multiplying by COLUMNS_PER_OBS) by concept ID. */
+    private final Map<Integer, Integer> indexesByConceptId = new HashMap<>();
+    private final Map<Integer, String> hl7TypesByConceptId = new HashMap<>();
+    private final Map<Integer, Concept> codedValuesById;
+    private final boolean idsAndUuids;
+    private final boolean merge;
+    private final int intervalMins;
+    private final int lineLength;
+    private final Calendar calendar = Calendar.getInstance();
+
+    // The state of the patient currently being written.
+    private @Nullable Integer patientId;
+    private CSVPrinter printer;
+    private Object[] previousCSVLine;
+    private Date deadLine;
+    // The rows of the encounter currently being read.
+    private final List<ObsExportRow> encounterRows = new ArrayList<>();
+
+    /**
+     * @param concepts       the question concepts, in column order
+     * @param codedValues    all the concepts that may be coded values of the observations
+     * @param idsAndUuids    whether to write the IDs and UUIDs of coded values in extra columns
+     * @param intervalMins   encounters this close together are merged if possible; 0 to never
+     *                       merge encounters
+     */
+    CsvExportWriter(Output output, ClientConceptNamer namer, List<Concept> concepts,
+                    Map<Integer, Concept> codedValues, boolean idsAndUuids, int intervalMins) {
+        this.output = output;
+        this.namer = namer;
+        this.concepts = concepts;
+        for (int i = 0; i < concepts.size(); i++) {
+            Concept concept = concepts.get(i);
+            indexesByConceptId.put(concept.getId(), i);
+            hl7TypesByConceptId.put(concept.getId(), concept.getDatatype().getHl7Abbreviation());
+        }
+        this.codedValuesById = codedValues;
+        this.idsAndUuids = idsAndUuids;
+        this.merge = intervalMins > 0;
+        this.intervalMins = intervalMins;
+        this.lineLength = FIXED_HEADERS.length
+            + concepts.size() * (idsAndUuids ? COLUMNS_PER_OBS : 1);
+    }
+
+    void writeHeaders(CSVPrinter printer) throws IOException {
+        for (String fixedHeader : FIXED_HEADERS) {
+            printer.print(fixedHeader);
+        }
+        for (Concept concept : concepts) {
+            // For each observation there are three columns: one for the English
+            // name, one for the OpenMRS ID, and one for the UUID of the concept.
+            // (only if idsAndUuids == true)
+            printer.print(namer.getClientName(concept));
+            if (idsAndUuids) {
+                printer.print(concept.getId());
+                printer.print(concept.getUuid());
+            }
+        }
+        printer.println();
+    }
+
+    @Override public void handle(ObsExportRow row) throws IOException {
+        if (!encounterRows.isEmpty() && encounterRows.get(0).encounterId != row.encounterId) {
+            finishEncounter();
+        }
+        if (patientId == null || patientId != row.patientId) {
+            finishPatient();
+            patientId = row.patientId;
+            printer = output.startPatient(patientId);
+            // Define an array that will represent the line that will be inserted in the CSV.
+            previousCSVLine = new Object[lineLength];
+            deadLine = new Date(0);
+        }
+        encounterRows.add(row);
+    }
+
+    /** Writes out whatever is left; call this after the last row. */
+    void finish() throws IOException {
+        finishEncounter();
+        finishPatient();
+    }
+
+    private void finishPatient() throws IOException {
+        if (patientId != null) {
+            // For the last encounter we print the remaining line.
+            printer.printRecord(previousCSVLine);
+            output.finishPatient(patientId);
+            patientId = null;
+        }
+    }
+
+    private void finishEncounter() throws IOException {
+        if (encounterRows.isEmpty()) return;
+        try {
+            addEncounter(encounterRows);
+        } catch (RuntimeException e) {
+            log.error("Error exporting encounter", e);
+        }
+        encounterRows.clear();
+    }
+
+    /** Merges an encounter into the previous line, or writes the previous line and starts anew. */
+    private void addEncounter(List<ObsExportRow> rows) throws IOException {
+        ObsExportRow encounter = rows.get(0);
+
+        // Flag to whether we will use the merged version of the encounter
+        // or the single version.
+        boolean useMerged = merge;
+
+        // Array that will be used to merge in previous encounter with the current one.
+        Object[] mergedCSVLine = new Object[previousCSVLine.length];
+
+        // Duplicate previous encounter into the (future to be) merged one.
+        System.arraycopy(previousCSVLine, 0, mergedCSVLine, 0, previousCSVLine.length);
+
+        // Define the array to be used to store the current encounter.
+        Object[] currentCSVLine = new Object[lineLength];
+
+        // If the current encounter is more then "interval" minutes from the previous
+        // print the previous and reset it.
+        Date encounterTime = encounter.encounterDatetime;
+        if (encounterTime.after(deadLine)) {
+            printer.printRecord(previousCSVLine);
+            previousCSVLine = new Object[lineLength];
+            useMerged = false;
+        }
+        // Set the next deadline as the current encounter time plus "interval" minutes.
+        calendar.setTime(encounterTime);
+        calendar.add(Calendar.MINUTE, intervalMins);
+        deadLine = calendar.getTime();
+
+        // Fill the fixed columns values.
+        currentCSVLine[0] = encounter.patientUuid;
+        currentCSVLine[1] = encounter.patientIdentifier;
+        if (encounter.birthdate != null) {
+            currentCSVLine[2] = Utils.YYYYMMDD_UTC_FORMAT.format(encounter.birthdate);
+        }
+        currentCSVLine[3] = encounter.encounterUuid;
+        currentCSVLine[4] = encounterTime.getTime();
+        currentCSVLine[5] = Utils.toIso8601(encounterTime);
+        currentCSVLine[6] = Utils.SPREADSHEET_FORMAT.format(encounterTime);
+
+        // Loop through all the observations for this encounter
+        for (ObsExportRow obs : rows) {
+            Integer index = obs.conceptId == null ? null : indexesByConceptId.get(obs.conceptId);
+            if (index == null) continue;
+            // For each observation there are three columns: if the value of the
+            // observation is a concept, then the three columns contain the English
+            // name, the OpenMRS ID, and the UUID of the concept; otherwise all
+            // three columns contain the formatted value (this only applies if the
+            // idsAndUuids parameter is true.
+            if (idsAndUuids) {
+                index *= COLUMNS_PER_OBS;
+            }
+            int valueColumn = FIXED_HEADERS.length + index;
+
+            // Coded values are treated differently
+            Concept value = obs.valueCodedId == null ? null : codedValuesById.get(obs.valueCodedId);
+            if (value != null) {
+                currentCSVLine[valueColumn] = namer.getClientName(value);
+                if (idsAndUuids) {
+                    currentCSVLine[valueColumn + 1] = value.getId();
+                    currentCSVLine[valueColumn + 2] = value.getUuid();
+                }
+                if (useMerged) {
+                    // If we are still merging the current encounter values into
+                    // the previous one get the previous value and see if it had
+                    // something in it.
+                    String previousValue = (String) mergedCSVLine[valueColumn];
+                    if ((previousValue == null) || (previousValue.isEmpty())
+                        || (previousValue.equals(currentCSVLine[valueColumn].toString()))) {
+                        // If the previous value was empty or equal to the current one
+                        // copy the current value into it.
+                        mergedCSVLine[valueColumn] = currentCSVLine[valueColumn];
+                        if (idsAndUuids) {
+                            mergedCSVLine[valueColumn + 1] = currentCSVLine[valueColumn + 1];
+                            mergedCSVLine[valueColumn + 2] = currentCSVLine[valueColumn + 2];
+                        }
+                    } else {
+                        // If the previous encounter have values stored for this
+                        // observation and the value is different from the previous one
+                        // we cannot merge them anymore.
+                        useMerged = false;
+                    }
+                }
+            }
+            // All values except the coded ones will be treated equally.
+            else {
+                String formatted = formatValue(obs, hl7TypesByConceptId.get(obs.conceptId));
+                // Check if we have values stored for this observation
+                if ((formatted != null) && (!formatted.isEmpty())) {
+                    // Save the value of the observation on the current encounter line.
+                    currentCSVLine[valueColumn] = formatted;
+                    if (idsAndUuids) {
+                        currentCSVLine[valueColumn + 1] = formatted;
+                        currentCSVLine[valueColumn + 2] = formatted;
+                    }
+                    if (useMerged) {
+                        // Since we are still merging this encounter with the previous
+                        // one let's get the previous value to see if it had something
+                        // stored on it.
+                        String previousValue = (String) mergedCSVLine[valueColumn];
+                        if ((previousValue != null) && (!previousValue.isEmpty())) {
+                            // Yes, we had information stored for this observation on
+                            // the previous encounter
+                            if (obs.valueText != null) {
+                                // We continue merging if the observation is of
+                                // type text, so we concatenate it.
+                                // TODO: add timestamps to the merged values that are of type text
+                                previousValue += "\n" + formatted;
+                                formatted = previousValue;
+                            } else if (!previousValue.equals(currentCSVLine[valueColumn].toString())) {
+                                // If the previous value is different from the current
+                                // one we stop merging.
+                                useMerged = false;
+                            }
+                        }
+                        mergedCSVLine[valueColumn] = formatted;
+                        if (idsAndUuids) {
+                            mergedCSVLine[valueColumn + 1] = formatted;
+                            mergedCSVLine[valueColumn + 2] = formatted;
+                        }
+                    }
+                }
+            }
+        }
+        if (useMerged) {
+            // If after looping through all the observations we didn't had any
+            // overlapped values we keep the merged line.
+            previousCSVLine = mergedCSVLine;
+        } else {
+            // We had overlapped values so let's print the previous line and make the
+            // current encounter the previous one. Only if the previous line is not empty.
+            if (previousCSVLine[0] != null) {
+                printer.printRecord(previousCSVLine);
+            }
+            previousCSVLine = currentCSVLine;
+        }
+    }
+
+    /**
+     * Formats a non-coded value, or returns null if there is no value.  Coded values, including
+     * coded booleans, are handled by the caller, so no coded UUID is passed here.
+     */
+    private static @Nullable String formatValue(ObsExportRow obs, String hl7Type) {
+        return VisitObsRowValue.visit(hl7Type, null, obs.valueNumeric, obs.valueText,
+            obs.valueDatetime, FORMAT_VALUE);
+    }
+
+    private static final VisitObsRowValue.ObsRowValueVisitor<String> FORMAT_VALUE =
+        new VisitObsRowValue.ObsRowValueVisitor<String>() {
+            @Override public String visitCoded(String valueUuid) {
+                return null;  // a coded value that isn't among the known values
+            }
+
+            @Override public String visitNumeric(Double value) {
+                return value == null ? null : Double.toString(value);
+            }
+
+            @Override public String visitBoolean(Boolean value) {
+                return value == null ? null : value.toString();
+            }
+
+            @Override public String visitText(String value) {
+                return value;
+            }
+
+            @Override public String visitDate(Date value) {
+                return value == null ? null : Utils.YYYYMMDD_UTC_FORMAT.format(value);
+            }
+
+            @Override public String visitDateTime(Date value) {
+                return value == null ? null : Utils.SPREADSHEET_FORMAT.format(value);
+            }
+        };
+}
@@ -0,0 +1,367 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.servlet;
+
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.ClientConceptNamer;
+import org.openmrs.projectbuendia.Utils;
+import org.openmrs.projectbuendia.webservices.rest.ContentVersion;
+import org.openmrs.projectbuendia.webservices.rest.DbUtil;
+import org.openmrs.projectbuendia.webservices.rest.SyncTokenUtils;
+import org.openmrs.util.OpenmrsUtil;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.SyncToken;
+import org.projectbuendia.openmrs.sync.SyncType;
+
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the lines of the CSV data export for each patient in a file on disk, so that a download
+ * only recomputes the patients whose observations or patient records have changed since the
+ * previous download, according to the obs and patient sync maps.  This also makes it cheap to
+ * export only the patients changed since a given time.
+ * <p>
+ * There is a separate set of files for each combination of export options and content version
+ * (the chart determines the columns); the least recently used sets are deleted once there are
+ * more than MAX_VARIANTS.  A set is rebuilt from scratch once it is MAX_AGE_MILLIS old, as a
+ * backstop for changes that the sync maps don't record, such as a new identifier for a patient.
+ * <p>
+ * Only one download at a time updates the files, but any number can read them together.  A
+ * download that finds its files up to date only takes the read lock, so a slow client holds up
+ * nothing but the next update.
+ */
+class ExportCache {
+    static final ExportCache INSTANCE = new ExportCache(
+        new File(OpenmrsUtil.getApplicationDataDirectory(), "buendia/export"));
+
+    static final long MAX_AGE_MILLIS = 24 * 60 * 60 * 1000;
+    static final int MAX_VARIANTS = 4;
+
+    private static final Log log = LogFactory.getLog(ExportCache.class);
+    private static final String PATIENT_FILE_SUFFIX = ".csv";
+    private static final String STATE_FILE = "state.properties";
+    private static final String UTF_8 = "UTF-8";
+
+    private final File root;
+    /** Held for writing while the files are updated, and for reading while they are sent. */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    ExportCache(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Brings the cached lines for the given options up to date and writes the export to
+     * {@code out}: the headers, then the lines for every patient, or only for the patients
+     * changed at or after {@code since}, in order of MSF patient ID.
+     * @param concepts     the question concepts, in column order
+     * @param intervalMins see {@link CsvExportWriter#CsvExportWriter}
+     */
+    void write(Writer out, ClientConceptNamer namer, List<Concept> concepts,
+               boolean idsAndUuids, int intervalMins, @Nullable Date since) throws IOException {
+        ProjectBuendiaService service = Context.getService(ProjectBuendiaService.class);
+        String key = getKey(concepts, idsAndUuids, intervalMins);
+        File dir = new File(root, Integer.toHexString(key.hashCode()));
+        lock.readLock().lock();
+        try {
+            if (needsUpdate(service, dir, key)) {
+                // A read lock can't be upgraded; update() checks again for what has changed.
+                lock.readLock().unlock();
+                lock.writeLock().lock();
+                try {
+                    update(service, dir, key, namer, concepts, idsAndUuids, intervalMins);
+                    deleteOldVariants(dir);
+                } finally {
+                    // Downgrade, so that no other update can start until the files are sent.
+                    lock.readLock().lock();
+                    lock.writeLock().unlock();
+                }
+            } else {
+                // Marks the set as recently used, for deleteOldVariants.
+                new File(dir, STATE_FILE).setLastModified(System.currentTimeMillis());
+            }
+            send(service, out, dir, namer, concepts, idsAndUuids, intervalMins, since);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Whether a set of files is missing, too old, or behind the sync maps. */
+    private static boolean needsUpdate(ProjectBuendiaService service, File dir, String key) {
+        State state = State.load(dir, key);
+        return state == null || System.currentTimeMillis() - state.builtMillis > MAX_AGE_MILLIS
+            || !service.getPatientIdsChangedAfter(state.obsToken, state.patientToken).isEmpty();
+    }
+
+    /** Writes the headers, then the files of all patients or of those changed since then. */
+    private void send(ProjectBuendiaService service, Writer out, File dir,
+                      ClientConceptNamer namer, List<Concept> concepts, boolean idsAndUuids,
+                      int intervalMins, @Nullable Date since) throws IOException {
+        CSVPrinter printer = new CSVPrinter(out, CsvExportWriter.FORMAT);
+        new CsvExportWriter(null, namer, concepts, Collections.<Integer, Concept>emptyMap(),
+            idsAndUuids, intervalMins).writeHeaders(printer);
+        printer.flush();
+
+        List<Integer> patientIds;
+        if (since == null) {
+            patientIds = listPatientIds(dir);
+        } else {
+            SyncToken token = new SyncToken(since, null);
+            patientIds = new ArrayList<>(service.getPatientIdsChangedAfter(token, token));
+        }
+        sortByIdentifier(patientIds, service.getPatientIdentifiers(
+            DbUtil.getMsfIdentifierType().getId()));
+        char[] buffer = new char[8192];
+        for (int patientId : patientIds) {
+            File file = getPatientFile(dir, patientId);
+            if (!file.exists()) continue;  // the patient has no encounters
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8)) {
+                int count;
+                while ((count = reader.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /** Recomputes the files of all patients, or of those changed since the last update. */
+    private void update(ProjectBuendiaService service, File dir, String key,
+                        ClientConceptNamer namer, List<Concept> concepts, boolean idsAndUuids,
+                        int intervalMins) throws IOException {
+        // Read the positions first, so that anything that changes while we work is caught by
+        // the next update.  Clamping makes up for transactions that commit out of order.
+        Date now = new Date();
+        SyncToken obsToken = SyncTokenUtils.clampSyncTokenToBufferedRequestTime(
+            service.getHighWaterMark(SyncType.OBSERVATIONS), now);
+        SyncToken patientToken = SyncTokenUtils.clampSyncTokenToBufferedRequestTime(
+            service.getHighWaterMark(SyncType.PATIENTS), now);
+
+        State state = State.load(dir, key);
+        long builtMillis;
+        Set<Integer> patientIds;
+        if (state == null || now.getTime() - state.builtMillis > MAX_AGE_MILLIS) {
+            deleteRecursively(dir);
+            if (!dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+            builtMillis = now.getTime();
+            patientIds = null;
+        } else {
+            builtMillis = state.builtMillis;
+            patientIds = service.getPatientIdsChangedAfter(state.obsToken, state.patientToken);
+            for (int patientId : patientIds) {
+                // A patient who no longer has any encounters gets no new file.
+                getPatientFile(dir, patientId).delete();
+            }
+        }
+
+        if (patientIds == null || !patientIds.isEmpty()) {
+            List<Integer> conceptIds = new ArrayList<>();
+            for (Concept concept : concepts) {
+                conceptIds.add(concept.getId());
+            }
+            // Rows are read from an open cursor, which can't be interrupted by other queries,
+            // so load all the concepts that can appear as coded values first.
+            ConceptService conceptService = Context.getConceptService();
+            Map<Integer, Concept> codedValues = new HashMap<>();
+            for (Integer id : service.getCodedValueIds(conceptIds)) {
+                Concept concept = conceptService.getConcept(id);
+                if (concept != null) {
+                    namer.getClientName(concept);  // caches the name
+                    codedValues.put(id, concept);
+                }
+            }
+            CsvExportWriter writer = new CsvExportWriter(new FileOutput(dir), namer, concepts,
+                codedValues, idsAndUuids, intervalMins);
+            service.streamObsForExport(
+                DbUtil.getMsfIdentifierType().getId(), conceptIds, patientIds, writer);
+            writer.finish();
+            log.info("Updated the data export for " + (patientIds == null
+                ? "all patients" : patientIds.size() + " changed patients") + " in " + dir);
+        }
+        new State(key, obsToken, patientToken, builtMillis).save(dir);
+    }
+
+    /** Identifies everything that the lines in a set of files depend on. */
+    private static String getKey(List<Concept> concepts, boolean idsAndUuids, int intervalMins) {
+        StringBuilder key = new StringBuilder();
+        key.append(ContentVersion.INSTANCE.get())
+            .append(";interval=").append(intervalMins)
+            .append(";idsAndUuids=").append(idsAndUuids)
+            .append(";concepts=");
+        for (Concept concept : concepts) {
+            key.append(concept.getId()).append(',');
+        }
+        return key.toString();
+    }
+
+    private static File getPatientFile(File dir, int patientId) {
+        return new File(dir, patientId + PATIENT_FILE_SUFFIX);
+    }
+
+    private static List<Integer> listPatientIds(File dir) {
+        List<Integer> patientIds = new ArrayList<>();
+        String[] names = dir.list();
+        for (String name : names != null ? names : new String[0]) {
+            if (name.endsWith(PATIENT_FILE_SUFFIX)) {
+                try {
+                    patientIds.add(Integer.valueOf(
+                        name.substring(0, name.length() - PATIENT_FILE_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return patientIds;
+    }
+
+    /** Sorts patient IDs by MSF patient ID, then by patient ID. */
+    static void sortByIdentifier(List<Integer> patientIds, final Map<Integer, String> identifiers) {
+        Collections.sort(patientIds, new Comparator<Integer>() {
+            @Override public int compare(Integer a, Integer b) {
+                int result = Utils.alphanumericComparator.compare(
+                    identifiers.get(a), identifiers.get(b));
+                return result != 0 ? result : a.compareTo(b);
+            }
+        });
+    }
+
+    /** Deletes all but the MAX_VARIANTS most recently used sets of files. */
+    private void deleteOldVariants(File current) {
+        File[] dirs = root.listFiles();
+        if (dirs == null || dirs.length <= MAX_VARIANTS) return;
+        Arrays.sort(dirs, new Comparator<File>() {
+            @Override public int compare(File a, File b) {
+                return Long.compare(new File(b, STATE_FILE).lastModified(),
+                    new File(a, STATE_FILE).lastModified());
+            }
+        });
+        for (int i = MAX_VARIANTS; i < dirs.length; i++) {
+            if (!dirs[i].equals(current)) {
+                deleteRecursively(dirs[i]);
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** Writes each patient's lines to a temporary file, then renames it into place. */
+    private static class FileOutput implements CsvExportWriter.Output {
+        private final File dir;
+        private CSVPrinter printer;
+
+        FileOutput(File dir) {
+            this.dir = dir;
+        }
+
+        @Override public CSVPrinter startPatient(int patientId) throws IOException {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(getTempFile(patientId)), UTF_8));
+            printer = new CSVPrinter(writer, CsvExportWriter.FORMAT);
+            return printer;
+        }
+
+        @Override public void finishPatient(int patientId) throws IOException {
+            printer.close();
+            File file = getPatientFile(dir, patientId);
+            if (!getTempFile(patientId).renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+
+        private File getTempFile(int patientId) {
+            return new File(dir, patientId + PATIENT_FILE_SUFFIX + ".tmp");
+        }
+    }
+
+    /** The positions in the sync maps up to which a set of files is up to date. */
+    private static class State {
+        final String key;
+        final SyncToken obsToken;
+        final SyncToken patientToken;
+        final long builtMillis;
+
+        State(String key, SyncToken obsToken, SyncToken patientToken, long builtMillis) {
+            this.key = key;
+            this.obsToken = obsToken;
+            this.patientToken = patientToken;
+            this.builtMillis = builtMillis;
+        }
+
+        /** Loads the state of a set of files, or returns null if it is missing or unusable. */
+        static @Nullable State load(File dir, String key) {
+            File file = new File(dir, STATE_FILE);
+            if (!file.exists()) return null;
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+                State state = new State(
+                    properties.getProperty("key"),
+                    SyncTokenUtils.jsonToSyncToken(properties.getProperty("obsToken")),
+                    SyncTokenUtils.jsonToSyncToken(properties.getProperty("patientToken")),
+                    Long.parseLong(properties.getProperty("builtMillis")));
+                // A different key means a hash collision; start over.
+                return key.equals(state.key) ? state : null;
+            } catch (Exception e) {
+                log.warn("Ignoring unreadable " + file, e);
+                return null;
+            }
+        }
+
+        void save(File dir) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("key", key);
+            properties.setProperty("obsToken", SyncTokenUtils.syncTokenToJson(obsToken));
+            properties.setProperty("patientToken", SyncTokenUtils.syncTokenToJson(patientToken));
+            properties.setProperty("builtMillis", Long.toString(builtMillis));
+            try (OutputStream out = new FileOutputStream(new File(dir, STATE_FILE))) {
+                properties.store(out, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.servlet;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Gzipped response bodies for the REST resources whose content only changes when a profile is
+ * applied (concepts, charts and forms), so that each device that downloads them costs a memory
+ * copy instead of a series of database queries, serialization and compression.
+ * <p>
+ * {@link #invalidate()} must be called whenever the underlying data may have changed. Entries
+ * also expire after {@link #MAX_AGE_MILLIS}, as a backstop for edits made through the OpenMRS
+ * web interface, which doesn't call {@link #invalidate()}.
+ */
+public class PrecompressedCache {
+    public static final PrecompressedCache INSTANCE = new PrecompressedCache();
+
+    static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+    /** Keys vary by locale and representation, so this leaves plenty of room. */
+    static final int MAX_ENTRIES = 64;
+
+    /** Least recently used first. Guarded by {@code this}. */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /** Returns the cached response for a key, or null if there is none or it is too old. */
+    public synchronized @Nullable Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.createdMillis > MAX_AGE_MILLIS) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized void put(String key, Entry entry) {
+        entries.put(key, entry);
+    }
+
+    /** Discards all cached responses. */
+    public synchronized void invalidate() {
+        entries.clear();
+    }
+
+    /** A complete gzipped response body and its content type. */
+    public static class Entry {
+        public final byte[] gzippedBody;
+        @Nullable public final String contentType;
+        final long createdMillis;
+
+        public Entry(byte[] gzippedBody, @Nullable String contentType) {
+            this.gzippedBody = gzippedBody;
+            this.contentType = contentType;
+            this.createdMillis = System.currentTimeMillis();
+        }
+    }
+}
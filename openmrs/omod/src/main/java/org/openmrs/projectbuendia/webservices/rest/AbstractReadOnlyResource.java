@@ -12,6 +12,7 @@
 package org.openmrs.projectbuendia.webservices.rest;
 
 import org.openmrs.OpenmrsObject;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.RestConstants;
@@ -24,10 +25,14 @@ import org.openmrs.module.webservices.rest.web.response.ObjectNotFoundException;
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
 import org.openmrs.projectbuendia.Utils;
 
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Abstract superclass for resources whose REST API only supports read
@@ -54,10 +59,25 @@ import java.util.List;
  * }
  * </pre>
  * <p>For more details about each operation, see the method-level comments.
+ * <p>Resources whose content only changes with the profile can override
+ * {@link #getContentVersion()}, and their responses will be cached until the
+ * version changes.  Each caller gets its own copy of a cached response, so
+ * callers are free to modify it.
  */
 public abstract class AbstractReadOnlyResource<T extends OpenmrsObject>
     implements Listable, Retrievable, Searchable {
     static final RequestLogger logger = RequestLogger.LOGGER;
+    /** Responses are small, and keys vary only by resource, item, query and locale. */
+    static final int MAX_CACHED_RESPONSES = 64;
+
+    /** Cached responses of versioned resources. Least recently used first. Guarded by itself. */
+    private static final Map<String, CachedResponse> cachedResponses =
+        new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> e) {
+                return size() > MAX_CACHED_RESPONSES;
+            }
+        };
+
     private final String resourceAlias;
     private final List<Representation> availableRepresentations;
 
@@ -85,7 +105,13 @@ public abstract class AbstractReadOnlyResource<T extends OpenmrsObject>
     @Override public Object retrieve(String uuid, RequestContext context) throws ResponseException {
         try {
             logger.request(context, this, "retrieve", uuid);
-            Object result = retrieveInner(uuid, context, System.currentTimeMillis());
+            String version = getContentVersion();
+            String key = getResponseCacheKey(context, uuid);
+            Object result = getCachedResponse(key, version);
+            if (result == null) {
+                result = retrieveInner(uuid, context, System.currentTimeMillis());
+                putCachedResponse(key, version, result);
+            }
             logger.reply(context, this, "retrieve", result);
             return result;
         } catch (Exception e) {
@@ -161,8 +187,14 @@ public abstract class AbstractReadOnlyResource<T extends OpenmrsObject>
     @Override public SimpleObject search(RequestContext context) throws ResponseException {
         try {
             logger.request(context, this, "search");
-            long snapshotTime = System.currentTimeMillis();
-            SimpleObject result = searchInner(context, snapshotTime);
+            String version = getContentVersion();
+            String key = getResponseCacheKey(context, "");
+            SimpleObject result = (SimpleObject) getCachedResponse(key, version);
+            if (result == null) {
+                long snapshotTime = System.currentTimeMillis();
+                result = searchInner(context, snapshotTime);
+                putCachedResponse(key, version, result);
+            }
             logger.reply(context, this, "search", result);
             return result;
         } catch (Exception e) {
@@ -198,6 +230,87 @@ public abstract class AbstractReadOnlyResource<T extends OpenmrsObject>
      */
     protected abstract Iterable<T> searchImpl(RequestContext context, long snapshotTime);
 
+    /**
+     * Returns the version of the content served by this resource, or null if the resource is
+     * not versioned (the default). A versioned resource's responses are cached, with
+     * "snapshotTime" as of when they were built, and reused for as long as the version stays
+     * the same.
+     */
+    protected @Nullable String getContentVersion() {
+        return null;
+    }
+
+    /** Identifies a response by resource, item (for retrieve), query and locale. */
+    private @Nullable String getResponseCacheKey(RequestContext context, String uuid) {
+        HttpServletRequest request = context.getRequest();
+        if (request == null) {
+            return null;
+        }
+        return getClass().getName() + "/" + uuid + "?" + request.getQueryString()
+            + "|" + Context.getLocale();
+    }
+
+    private static @Nullable Object getCachedResponse(
+        @Nullable String key, @Nullable String version) {
+        if (key == null || version == null) {
+            return null;
+        }
+        CachedResponse cached;
+        synchronized (cachedResponses) {
+            cached = cachedResponses.get(key);
+        }
+        return cached != null && cached.version.equals(version)
+            ? copyResponse(cached.response) : null;
+    }
+
+    private static void putCachedResponse(
+        @Nullable String key, @Nullable String version, Object response) {
+        if (key != null && version != null) {
+            synchronized (cachedResponses) {
+                cachedResponses.put(key, new CachedResponse(version, copyResponse(response)));
+            }
+        }
+    }
+
+    /**
+     * Copies the maps and lists that make up a response.  Everything else in a response is an
+     * immutable value (a string, number or boolean), which can be shared.
+     */
+    static Object copyResponse(Object value) {
+        if (value instanceof SimpleObject) {
+            SimpleObject copy = new SimpleObject();
+            for (Map.Entry<String, Object> entry : ((SimpleObject) value).entrySet()) {
+                copy.put(entry.getKey(), copyResponse(entry.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), copyResponse(entry.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            for (Object item : (List<?>) value) {
+                copy.add(copyResponse(item));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    private static class CachedResponse {
+        final String version;
+        final Object response;
+
+        CachedResponse(String version, Object response) {
+            this.version = version;
+            this.response = response;
+        }
+    }
+
     protected AbstractReadOnlyResource(String resourceAlias, Representation... representations) {
         availableRepresentations = Arrays.asList(representations);
         this.resourceAlias = resourceAlias;
@@ -0,0 +1,237 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends timestamped lines to log files on a single background thread, so that logging never
+ * makes a request wait for the disk.  Lines go into a bounded queue; if the writer falls so far
+ * behind that the queue is full, further lines are dropped and counted rather than blocking.
+ * The writer keeps a buffered stream open for each recently used file, flushes whenever the
+ * queue runs dry, and rotates a file to "name.1", "name.2", etc. when it grows too large.
+ * The thread exits after a while with nothing to write, and restarts on the next line.
+ */
+class AsyncLogWriter {
+    public static final AsyncLogWriter INSTANCE =
+        new AsyncLogWriter(10000, 10 * 1024 * 1024, 5);
+
+    private static final Log log = LogFactory.getLog(AsyncLogWriter.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BATCH_SIZE = 256;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_OPEN_FILES = 32;
+    private static final long IDLE_EXIT_SECONDS = 60;
+
+    /** A line waiting to be written. */
+    static class Line {
+        final String filename;
+        final long time;
+        final String message;
+
+        Line(String filename, long time, String message) {
+            this.filename = filename;
+            this.time = time;
+            this.message = message;
+        }
+    }
+
+    /** An open log file and the number of characters in it so far. */
+    private static class Output {
+        final Writer writer;
+        long size;
+
+        Output(Writer writer, long size) {
+            this.writer = writer;
+            this.size = size;
+        }
+    }
+
+    private final BlockingQueue<Line> queue;
+    private final long maxFileSize;
+    private final int maxRotatedFiles;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile boolean running = false;
+
+    // These are only touched by the writer thread.
+    private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private final Map<String, Output> outputs = new LinkedHashMap<String, Output>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Output> eldest) {
+            if (size() > MAX_OPEN_FILES) {
+                close(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * @param capacity        the number of lines that may wait to be written
+     * @param maxFileSize     the size, in characters, at which a log file is rotated
+     * @param maxRotatedFiles the number of rotated files to keep for each log
+     */
+    AsyncLogWriter(int capacity, long maxFileSize, int maxRotatedFiles) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxFileSize = maxFileSize;
+        this.maxRotatedFiles = maxRotatedFiles;
+    }
+
+    /** Queues a line for the given file, without waiting. */
+    public void append(String filename, long time, String message) {
+        if (!queue.offer(new Line(filename, time, message))) {
+            droppedCount.incrementAndGet();
+        }
+        if (!running) {
+            startThread();
+        }
+    }
+
+    /** The number of lines dropped because the queue was full. */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private synchronized void startThread() {
+        if (running) return;
+        running = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override public void run() {
+                drainUntilIdle();
+            }
+        }, "buendia-request-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Marks the thread stopped if there is nothing to write; returns true if it should exit. */
+    private synchronized boolean stopIfIdle() {
+        running = false;
+        if (queue.isEmpty()) return true;
+        running = true;
+        return false;
+    }
+
+    private void drainUntilIdle() {
+        List<Line> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            while (true) {
+                Line first = queue.poll(IDLE_EXIT_SECONDS, TimeUnit.SECONDS);
+                if (first == null) {
+                    closeAll();
+                    if (stopIfIdle()) return;
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                write(batch);
+                batch.clear();
+                if (queue.isEmpty()) {
+                    flushAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            closeAll();
+            running = false;
+        }
+    }
+
+    /** Writes lines to their files.  Only the writer thread (or a test) may call this. */
+    void write(List<Line> lines) {
+        for (Line line : lines) {
+            String text = "\n\u001b[32m" + format.format(new Date(line.time))
+                + "\u001b[0m " + line.message + "\n";
+            try {
+                Output output = getOutput(line.filename);
+                if (output.size > 0 && output.size + text.length() > maxFileSize) {
+                    outputs.remove(line.filename);
+                    close(output);
+                    rotate(line.filename);
+                    output = getOutput(line.filename);
+                }
+                output.writer.write(text);
+                output.size += text.length();
+            } catch (IOException e) {
+                log.warn("Failed to write to " + line.filename, e);
+            }
+        }
+    }
+
+    /** Flushes all open files.  Only the writer thread (or a test) may call this. */
+    void flushAll() {
+        for (Map.Entry<String, Output> entry : outputs.entrySet()) {
+            try {
+                entry.getValue().writer.flush();
+            } catch (IOException e) {
+                log.warn("Failed to flush " + entry.getKey(), e);
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (Output output : outputs.values()) {
+            close(output);
+        }
+        outputs.clear();
+    }
+
+    private Output getOutput(String filename) throws IOException {
+        Output output = outputs.get(filename);
+        if (output == null) {
+            File file = new File(filename);
+            output = new Output(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true /* append */), UTF_8), BUFFER_SIZE),
+                file.length());
+            outputs.put(filename, output);
+        }
+        return output;
+    }
+
+    /** Shifts "name" to "name.1", "name.1" to "name.2", and so on, discarding the oldest. */
+    private void rotate(String filename) {
+        new File(filename + "." + maxRotatedFiles).delete();
+        for (int i = maxRotatedFiles - 1; i >= 1; i--) {
+            new File(filename + "." + i).renameTo(new File(filename + "." + (i + 1)));
+        }
+        if (maxRotatedFiles > 0) {
+            new File(filename).renameTo(new File(filename + ".1"));
+        } else {
+            new File(filename).delete();
+        }
+    }
+
+    private static void close(Output output) {
+        try {
+            output.writer.close();
+        } catch (IOException e) {
+            log.warn("Failed to close a request log", e);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openmrs.Order;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.module.webservices.rest.web.representation.Representation;
+import org.openmrs.projectbuendia.ProviderUserMap;
+import org.openmrs.projectbuendia.Utils;
+import org.openmrs.util.LocaleUtility;
+import org.openmrs.util.OpenmrsUtil;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.SyncToken;
+import org.projectbuendia.openmrs.api.db.SyncRowHandler;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
+import org.projectbuendia.openmrs.sync.SyncType;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Maintains a precomputed, gzipped JSON snapshot of everything a newly set up tablet needs:
+ * all patients, orders and observations, with the sync token to resume each from, plus the
+ * concepts, charts, locations and users. A tablet can download this in one request instead of
+ * paging through thousands of records.
+ * <p>
+ * Concept, chart and location names depend on the locale, so one bundle is generated for each
+ * of the server's allowed locales, just as the REST resources would render them for a user
+ * in that locale.
+ * <p>
+ * A background thread checks the high-water marks of the {@code buendia_*_sync_map} tables
+ * every {@link #CHECK_INTERVAL_SECONDS} seconds, and regenerates the bundle when any of them has
+ * moved, or when the metadata has changed: the {@link ContentVersion} (concepts and charts), the
+ * {@link LocationTree} generation or the {@link ProviderUserMap} version (users). A bundle that
+ * is slightly out of date is harmless: each section carries the sync token of its last record,
+ * so the tablet picks up any later changes with ordinary incremental sync.
+ */
+public class BootstrapBundle {
+    private static final Log log = LogFactory.getLog(BootstrapBundle.class);
+
+    static final long CHECK_INTERVAL_SECONDS = 60;
+    private static final String BUNDLE_PREFIX = "bootstrap-";
+    private static final String BUNDLE_SUFFIX = ".json.gz";
+    private static final JsonFactory JSON_FACTORY = new ObjectMapper().getJsonFactory();
+
+    private static BootstrapBundle instance;
+
+    private final File dir;
+    private ScheduledExecutorService executor;
+    /** The high-water marks at the time the current bundles were generated. */
+    private volatile Map<SyncType, SyncToken> bundleMarks = null;
+    /** The metadata versions at the time the current bundles were generated. */
+    private volatile String bundleMetadataVersion = null;
+
+    public static synchronized BootstrapBundle getInstance() {
+        if (instance == null) {
+            instance = new BootstrapBundle(
+                    new File(OpenmrsUtil.getApplicationDataDirectory(), "buendia/bootstrap"));
+        }
+        return instance;
+    }
+
+    BootstrapBundle(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * The gzipped bundle for a locale, or for the default locale if the given one isn't
+     * allowed. This may not exist yet if the bundle hasn't been generated.
+     */
+    public File getFile(Locale locale) {
+        if (!Context.getAdministrationService().getAllowedLocales().contains(locale)) {
+            locale = LocaleUtility.getDefaultLocale();
+        }
+        return getBundleFile(locale);
+    }
+
+    private File getBundleFile(Locale locale) {
+        return new File(dir, BUNDLE_PREFIX + locale + BUNDLE_SUFFIX);
+    }
+
+    /** Starts checking for changes periodically. Does nothing if already started. */
+    public synchronized void start() {
+        if (executor != null && !executor.isShutdown()) {
+            return;
+        }
+        executor = DaemonTasks.newScheduler("buendia-bootstrap-bundle");
+        executor.scheduleWithFixedDelay(
+            newRegenerationTask(), 0, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /** Asks for an immediate check, e.g. because a client wanted the bundle and it was missing. */
+    public synchronized void requestRegeneration() {
+        if (executor != null && !executor.isShutdown()) {
+            executor.execute(newRegenerationTask());
+        }
+    }
+
+    private Runnable newRegenerationTask() {
+        return new Runnable() {
+            @Override public void run() {
+                DaemonTasks.runAndWait("regenerate bootstrap bundle", new Runnable() {
+                    @Override public void run() {
+                        regenerateIfStale();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Regenerates the bundles if any sync map or metadata version has changed since they were
+     * last generated, or if the bundle for any allowed locale is missing.
+     */
+    void regenerateIfStale() {
+        ProjectBuendiaService service = Context.getService(ProjectBuendiaService.class);
+        // Read the marks and versions before generating, so that changes made during generation make the
+        // bundles stale and trigger another pass.
+        Map<SyncType, SyncToken> marks = new EnumMap<>(SyncType.class);
+        for (SyncType type : SyncType.values()) {
+            marks.put(type, service.getHighWaterMark(type));
+        }
+        String metadataVersion = ContentVersion.INSTANCE.get() + "|" + LocationTree.getGeneration()
+                + "|" + ProviderUserMap.INSTANCE.getVersion();
+        List<Locale> locales = Context.getAdministrationService().getAllowedLocales();
+        if (allExist(locales) && marks.equals(bundleMarks)
+                && metadataVersion.equals(bundleMetadataVersion)) {
+            return;
+        }
+        Locale originalLocale = Context.getLocale();
+        try {
+            for (Locale locale : locales) {
+                File bundleFile = getBundleFile(locale);
+                long start = System.currentTimeMillis();
+                Context.setLocale(locale);
+                try {
+                    generate(service, bundleFile);
+                } catch (IOException e) {
+                    log.error("Failed to write bootstrap bundle to " + bundleFile, e);
+                    return;
+                }
+                log.info("Generated bootstrap bundle for " + locale + " (" + bundleFile.length()
+                        + " bytes) in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        } finally {
+            Context.setLocale(originalLocale);
+        }
+        bundleMarks = marks;
+        bundleMetadataVersion = metadataVersion;
+        deleteBundlesExcept(locales);
+    }
+
+    private boolean allExist(List<Locale> locales) {
+        for (Locale locale : locales) {
+            if (!getBundleFile(locale).exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Deletes the bundles for locales that are no longer allowed. */
+    private void deleteBundlesExcept(List<Locale> locales) {
+        Set<String> keep = new HashSet<>();
+        for (Locale locale : locales) {
+            keep.add(getBundleFile(locale).getName());
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(BUNDLE_PREFIX) && name.endsWith(BUNDLE_SUFFIX)
+                    && !keep.contains(name) && !file.delete()) {
+                log.warn("Could not delete old bootstrap bundle " + file);
+            }
+        }
+    }
+
+    /** Writes a bundle in the current locale to bundleFile. */
+    private void generate(ProjectBuendiaService service, File bundleFile) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        Date generationTime = new Date();
+        File tempFile = new File(dir, bundleFile.getName() + ".tmp");
+        try (OutputStream out = new GZIPOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            JsonGenerator generator = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+            generator.writeStartObject();
+            generator.writeStringField("generated", Utils.toIso8601(generationTime));
+
+            // The sync sections match what the sync resources return for a request with no
+            // sync token: everything that isn't voided.
+            SectionWriter<Patient> patients = new SectionWriter<Patient>(generator) {
+                @Override SimpleObject toJson(Patient patient) {
+                    return PatientResource.patientToJson(patient);
+                }
+            };
+            patients.begin("patients");
+            service.streamPatientsModifiedAtOrAfter(null, false, 0, patients);
+            patients.end(generationTime);
+
+            SectionWriter<Order> orders = new SectionWriter<Order>(generator) {
+                @Override SimpleObject toJson(Order order) {
+                    return OrderResource.orderToJson(order);
+                }
+            };
+            orders.begin("orders");
+            service.streamOrdersModifiedAtOrAfter(
+                    null, false, 0, OrderResource.ALLOWABLE_ACTIONS, orders);
+            orders.end(generationTime);
+
+            SectionWriter<ObsSyncRow> observations = new SectionWriter<ObsSyncRow>(generator) {
+                @Override SimpleObject toJson(ObsSyncRow row) {
+                    return ObservationsHandler.obsRowToJson(row);
+                }
+            };
+            observations.begin("observations");
+            service.streamObservationRowsModifiedAtOrAfter(null, false, 0, observations);
+            observations.end(generationTime);
+
+            writeResults(generator, "concepts",
+                    new ConceptResource().getAll(newInternalContext(Representation.DEFAULT)));
+            writeResults(generator, "charts",
+                    new ChartResource().getAll(newInternalContext(Representation.FULL)));
+            writeResults(generator, "locations",
+                    new LocationResource().getAll(newInternalContext(Representation.DEFAULT)));
+            writeResults(generator, "users",
+                    new UserResource().getAll(newInternalContext(Representation.DEFAULT)));
+
+            generator.writeEndObject();
+            generator.flush();
+        }
+        Files.move(tempFile.toPath(), bundleFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeResults(JsonGenerator generator, String name, SimpleObject response)
+            throws IOException {
+        generator.writeFieldName(name);
+        generator.writeObject(response.get("results"));
+    }
+
+    /**
+     * Creates a {@link RequestContext} for calling REST resources outside of any HTTP request.
+     * The resources only read query parameters (of which there are none) from the request, and
+     * the {@link RequestLogger} reads the method, URI and remote address.
+     */
+    private static RequestContext newInternalContext(Representation representation) {
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+                BootstrapBundle.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class},
+                new InvocationHandler() {
+                    @Override public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "getMethod":
+                                return "GET";
+                            case "getRequestURI":
+                                return "(bootstrap bundle)";
+                            case "getRemoteAddr":
+                                return "bootstrap";
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "toString":
+                                return "internal request for bootstrap bundle";
+                            default:
+                                return null;
+                        }
+                    }
+                });
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        context.setRepresentation(representation);
+        return context;
+    }
+
+    /** Writes one sync section: {"results": [...], "syncToken": ...}. */
+    private abstract static class SectionWriter<T> implements SyncRowHandler<T> {
+        private final JsonGenerator generator;
+        @Nullable private SyncToken lastPosition = null;
+
+        SectionWriter(JsonGenerator generator) {
+            this.generator = generator;
+        }
+
+        abstract SimpleObject toJson(T item);
+
+        void begin(String name) throws IOException {
+            generator.writeObjectFieldStart(name);
+            generator.writeArrayFieldStart("results");
+        }
+
+        @Override public boolean handle(T item, SyncToken position) throws IOException {
+            generator.writeObject(toJson(item));
+            lastPosition = position;
+            return true;
+        }
+
+        void end(Date generationTime) throws IOException {
+            generator.writeEndArray();
+            SyncToken token = SyncTokenUtils.clampSyncTokenToBufferedRequestTime(
+                    lastPosition, generationTime);
+            generator.writeStringField("syncToken", SyncTokenUtils.syncTokenToJson(token));
+            generator.writeEndObject();
+        }
+    }
+}
@@ -169,6 +169,11 @@ public class ChartResource extends AbstractReadOnlyResource<Form> {
         return getCharts(formService);
     }
 
+    /** Charts only change with the profile, so responses are cached; see ContentVersion. */
+    @Override protected String getContentVersion() {
+        return ContentVersion.INSTANCE.get();
+    }
+
     public static List<Form> getCharts(FormService formService) {
         List<Form> charts = new ArrayList<>();
         String[] uuids = Context.getAdministrationService()
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A compact binary encoding of sync responses, requested with {@code Accept: }{@value
+ * #MEDIA_TYPE}. It carries exactly the same tree of values as the JSON encoding, but each
+ * response has a string dictionary: the first occurrence of a field name or of a reference to
+ * another record (the UUIDs of patients, encounters, concepts, providers, orders and coded
+ * values) is sent in full and numbered, and later occurrences are sent as that number. These
+ * make up most of a page of observations, and cost one to three bytes each after their first
+ * appearance. Other strings, such as timestamps and text values, are almost all unique, so they
+ * are always sent whole and the dictionary stays small however long the response is.
+ * <p>
+ * The response starts with the four bytes {@code "BSY1"}, followed by a single value. Each
+ * value starts with a one-byte tag:
+ * <ul>
+ * <li>{@link #NULL}, {@link #FALSE}, {@link #TRUE}: no further bytes.
+ * <li>{@link #INT}: a zigzag-encoded varint (as in Protocol Buffers' {@code sint64}).
+ * <li>{@link #DOUBLE}: eight bytes, IEEE 754, big-endian.
+ * <li>{@link #STRING}: a varint byte length, then UTF-8; not added to the dictionary.
+ * <li>{@link #STRING_NEW}: as {@link #STRING}, and the string gets the next dictionary index,
+ *     starting from 0.
+ * <li>{@link #STRING_REF}: a varint dictionary index.
+ * <li>{@link #ARRAY}: values up to an {@link #END} tag.
+ * <li>{@link #OBJECT}: pairs of (string value, value) up to an {@link #END} tag.
+ * </ul>
+ * Varints are unsigned LEB128. {@link Reader} is a reference decoder.
+ */
+public class CompactSyncOutput implements SyncOutput {
+    public static final String MEDIA_TYPE = "application/x-buendia-compact-sync";
+
+    static final byte[] MAGIC = {'B', 'S', 'Y', '1'};
+    static final int NULL = 0;
+    static final int FALSE = 1;
+    static final int TRUE = 2;
+    static final int INT = 3;
+    static final int DOUBLE = 4;
+    static final int STRING = 5;
+    static final int STRING_NEW = 6;
+    static final int STRING_REF = 7;
+    static final int ARRAY = 8;
+    static final int OBJECT = 9;
+    static final int END = 10;
+
+    /** Field names and UUIDs are short; anything longer is sent whole. */
+    static final int MAX_INTERNED_LENGTH = 64;
+    /**
+     * Bounds the memory used by the dictionary. The field names and the patients, concepts and
+     * providers of a ward come to a few thousand strings; beyond that, new strings are sent whole.
+     */
+    static final int MAX_DICTIONARY_SIZE = 4096;
+    /** The values of these fields refer to other records, so they repeat throughout a page. */
+    private static final Set<String> REFERENCE_FIELDS = new HashSet<>(Arrays.asList(
+            "patient_uuid", "encounter_uuid", "concept_uuid", "enterer_uuid", "orderer_uuid"));
+    /** The value of a coded observation (or an order execution) is the UUID of a concept. */
+    private static final String VALUE_FIELD = "value";
+    private static final Pattern UUID_PATTERN = Pattern.compile(
+            "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    private final OutputStream out;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+
+    public CompactSyncOutput(OutputStream out) throws IOException {
+        this.out = new BufferedOutputStream(out);
+        this.out.write(MAGIC);
+    }
+
+    @Override public void writeStartObject() throws IOException {
+        out.write(OBJECT);
+    }
+
+    @Override public void writeEndObject() throws IOException {
+        out.write(END);
+    }
+
+    @Override public void writeObjectFieldStart(String name) throws IOException {
+        writeString(name, true);
+        out.write(OBJECT);
+    }
+
+    @Override public void writeArrayFieldStart(String name) throws IOException {
+        writeString(name, true);
+        out.write(ARRAY);
+    }
+
+    @Override public void writeEndArray() throws IOException {
+        out.write(END);
+    }
+
+    @Override public void writeObject(Object value) throws IOException {
+        writeValue(value, false);
+    }
+
+    @Override public void writeStringField(String name, String value) throws IOException {
+        writeString(name, true);
+        writeValue(value, isReference(name, value));
+    }
+
+    @Override public void writeBooleanField(String name, boolean value) throws IOException {
+        writeString(name, true);
+        out.write(value ? TRUE : FALSE);
+    }
+
+    @Override public void close() throws IOException {
+        out.flush();
+    }
+
+    private void writeValue(Object value, boolean intern) throws IOException {
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            out.write(INT);
+            long n = ((Number) value).longValue();
+            writeVarint((n << 1) ^ (n >> 63));
+        } else if (value instanceof Number) {
+            out.write(DOUBLE);
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift));
+            }
+        } else if (value instanceof CharSequence) {
+            writeString(value.toString(), intern);
+        } else if (value instanceof Date) {
+            // Jackson writes dates as milliseconds since the epoch by default.
+            writeValue(((Date) value).getTime(), false);
+        } else if (value instanceof Map) {
+            out.write(OBJECT);
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                String key = String.valueOf(entry.getKey());
+                writeString(key, true);
+                writeValue(entry.getValue(), isReference(key, entry.getValue()));
+            }
+            out.write(END);
+        } else if (value instanceof Collection || value instanceof Object[]) {
+            out.write(ARRAY);
+            Iterable<?> items = value instanceof Collection
+                    ? (Collection<?>) value : Arrays.asList((Object[]) value);
+            for (Object item : items) {
+                writeValue(item, false);
+            }
+            out.write(END);
+        } else {
+            throw new IllegalArgumentException(
+                    "Cannot encode a " + value.getClass().getName() + " in a sync response");
+        }
+    }
+
+    /** Returns true if the given field value is likely to recur in the response. */
+    private static boolean isReference(String field, Object value) {
+        if (REFERENCE_FIELDS.contains(field)) return true;
+        return VALUE_FIELD.equals(field) && value instanceof CharSequence
+                && UUID_PATTERN.matcher((CharSequence) value).matches();
+    }
+
+    /** Returns the number of strings in the dictionary so far. */
+    int getDictionarySize() {
+        return dictionary.size();
+    }
+
+    private void writeString(String value, boolean intern) throws IOException {
+        Integer index = dictionary.get(value);
+        if (index != null) {
+            out.write(STRING_REF);
+            writeVarint(index);
+            return;
+        }
+        if (intern && value.length() <= MAX_INTERNED_LENGTH
+                && dictionary.size() < MAX_DICTIONARY_SIZE) {
+            dictionary.put(value, dictionary.size());
+            out.write(STRING_NEW);
+        } else {
+            out.write(STRING);
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Decodes the compact encoding into maps, lists, strings, longs, doubles, booleans and
+     * nulls. The server never reads this encoding; this is a reference for client implementers.
+     */
+    public static class Reader {
+        private final DataInputStream in;
+        private final List<String> dictionary = new ArrayList<>();
+
+        private Reader(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        /** Reads a complete response, including the header. */
+        public static Object read(InputStream in) throws IOException {
+            Reader reader = new Reader(in);
+            byte[] magic = new byte[MAGIC.length];
+            reader.in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a compact sync response");
+            }
+            return reader.readValue(reader.in.readUnsignedByte());
+        }
+
+        private Object readValue(int tag) throws IOException {
+            switch (tag) {
+                case NULL:
+                    return null;
+                case FALSE:
+                    return false;
+                case TRUE:
+                    return true;
+                case INT:
+                    long n = readVarint();
+                    return (n >>> 1) ^ -(n & 1);
+                case DOUBLE:
+                    return in.readDouble();
+                case STRING:
+                case STRING_NEW:
+                case STRING_REF:
+                    return readString(tag);
+                case ARRAY:
+                    List<Object> list = new ArrayList<>();
+                    for (int next; (next = in.readUnsignedByte()) != END; ) {
+                        list.add(readValue(next));
+                    }
+                    return list;
+                case OBJECT:
+                    Map<String, Object> map = new LinkedHashMap<>();
+                    for (int next; (next = in.readUnsignedByte()) != END; ) {
+                        String key = readString(next);
+                        map.put(key, readValue(in.readUnsignedByte()));
+                    }
+                    return map;
+                default:
+                    throw new IOException("Unknown tag " + tag);
+            }
+        }
+
+        private String readString(int tag) throws IOException {
+            if (tag == STRING_REF) {
+                long index = readVarint();
+                if (index >= dictionary.size()) {
+                    throw new IOException("Undefined string reference " + index);
+                }
+                return dictionary.get((int) index);
+            }
+            if (tag != STRING && tag != STRING_NEW) {
+                throw new IOException("Expected a string, found tag " + tag);
+            }
+            byte[] bytes = new byte[(int) readVarint()];
+            in.readFully(bytes);
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            if (tag == STRING_NEW) {
+                dictionary.add(value);
+            }
+            return value;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new EOFException("Malformed varint");
+        }
+    }
+}
@@ -117,6 +117,11 @@ public class ConceptResource extends AbstractReadOnlyResource<Concept> {
         return ret;
     }
 
+    /** Chart concepts only change with the profile, so responses are cached. */
+    @Override protected String getContentVersion() {
+        return ContentVersion.INSTANCE.get();
+    }
+
     /**
      * Buendia supports multiple concepts per field, but OpenMRS does not. To handle this, Buendia
      * packs additional concept IDs into the JSON field description that it generates in the
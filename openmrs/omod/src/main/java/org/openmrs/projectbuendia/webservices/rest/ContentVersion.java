@@ -0,0 +1,40 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A version identifier for the content that is defined by the profile: concepts, forms and the
+ * chart configuration. It changes whenever a profile is applied or a concept or form is saved,
+ * and is used to label cached payloads and to build ETags, so that clients can skip downloads
+ * of content they already have.
+ * <p>
+ * The version is not persistent; it starts afresh, with a distinct prefix, each time the server
+ * starts, so a version from before a restart never matches.
+ */
+public class ContentVersion {
+    public static final ContentVersion INSTANCE = new ContentVersion();
+
+    private final String prefix = Long.toString(System.currentTimeMillis(), 36) + ".";
+    private final AtomicLong counter = new AtomicLong();
+
+    /** The current version, an opaque string that is safe to put in an ETag. */
+    public String get() {
+        return prefix + counter.get();
+    }
+
+    /** Marks all profile-defined content as changed. */
+    public void bump() {
+        counter.incrementAndGet();
+    }
+}
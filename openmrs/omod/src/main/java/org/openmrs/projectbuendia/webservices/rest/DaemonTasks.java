@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.projectbuendia.openmrs.ProjectBuendiaActivator;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/** Helpers for the module's background work, which runs as the OpenMRS daemon user. */
+public class DaemonTasks {
+    private static final Log log = LogFactory.getLog(DaemonTasks.class);
+
+    /** Returns a single-threaded scheduler whose thread won't keep the JVM alive. */
+    public static ScheduledExecutorService newScheduler(final String threadName) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Runs a task with an OpenMRS session and daemon privileges, waiting for it to finish.
+     * Exceptions thrown by the task are logged. Does nothing if OpenMRS hasn't yet issued the
+     * module's daemon token.
+     * @param description what the task does, for the log, e.g. "regenerate bootstrap bundle".
+     */
+    public static void runAndWait(final String description, final Runnable task) {
+        DaemonToken token = ProjectBuendiaActivator.getDaemonToken();
+        if (token == null) {
+            log.debug("No daemon token yet; can't " + description);
+            return;
+        }
+        Thread thread = Daemon.runInDaemonThread(new Runnable() {
+            @Override public void run() {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("Failed to " + description, e);
+                }
+            }
+        }, token);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
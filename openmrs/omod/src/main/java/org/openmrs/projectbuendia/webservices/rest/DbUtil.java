@@ -30,7 +30,10 @@ import org.openmrs.api.context.Context;
 
 import java.util.Locale;
 
-/** Static helper methods for handling OpenMRS database entities and UUIDs. */
+/**
+ * Static helper methods for handling OpenMRS database entities and UUIDs. The metadata getters
+ * are served from {@link MetadataCache}, as they are called once per record during sync.
+ */
 public class DbUtil {
     // OpenMRS object names
     public static final String MSF_IDENTIFIER = "MSF";
@@ -39,12 +42,20 @@ public class DbUtil {
     // OpenMRS object UUIDs
     public static final String ASSIGNED_LOCATION_PERSON_ATTRIBUTE_TYPE_UUID =
         "0dd66a70-5d0a-4665-90be-67e2fe01b3fc";
+    // The OpenMRS "uuid" field is misnamed; OpenMRS uses the field for
+    // arbitrary string IDs unrelated to RFC 4122.  Therefore, to prevent
+    // collisions, UUIDs specific to this module are prefixed "buendia-".
+    public static final String ORDER_EXECUTED_CONCEPT_UUID = "buendia-concept-order_executed";
 
     /** Gets or creates the PatientIdentifierType for MSF patient IDs. */
-    public static PatientIdentifierType getIdentifierType(String name, String description) {
-        PatientService service = Context.getPatientService();
-        PatientIdentifierType identifierType =
-            service.getPatientIdentifierTypeByName(name);
+    public static PatientIdentifierType getIdentifierType(final String name, String description) {
+        final PatientService service = Context.getPatientService();
+        PatientIdentifierType identifierType = MetadataCache.INSTANCE.get(
+            "PatientIdentifierType:" + name, new MetadataCache.Loader<PatientIdentifierType>() {
+                @Override public PatientIdentifierType load() {
+                    return service.getPatientIdentifierTypeByName(name);
+                }
+            });
         if (identifierType == null) {
             identifierType = new PatientIdentifierType();
             identifierType.setName(name);
@@ -65,17 +76,7 @@ public class DbUtil {
     }
 
     public static OrderType getDrugOrderType() {
-        OrderService orderService = Context.getOrderService();
-        OrderType orderType = orderService.getOrderTypeByConceptClass(getConceptClass("Drug"));
-        if (orderType == null) {
-            orderType = new OrderType();
-            orderType.addConceptClass(getConceptClass("Drug"));
-            orderType.setName("Drug");
-            orderType.setDescription("Drug order");
-            orderType.setJavaClassName("org.openmrs.DrugOrder");
-            orderService.saveOrderType(orderType);
-        }
-        return orderType;
+        return getOrderType("Drug", "Drug", "Drug order", "org.openmrs.DrugOrder");
     }
 
     public static ConceptClass getConceptClass(String name) {
@@ -84,14 +85,30 @@ public class DbUtil {
     }
 
     public static OrderType getMiscOrderType() {
-        OrderService orderService = Context.getOrderService();
-        OrderType orderType = orderService.getOrderTypeByConceptClass(getConceptClass("Misc"));
+        return getOrderType("Misc", "Misc order", "Misc order", "org.openmrs.Order");
+    }
+
+    /** Gets or creates the OrderType for orders of concepts in a given concept class. */
+    private static OrderType getOrderType(
+        final String conceptClassName, String name, String description, String javaClassName) {
+        final OrderService orderService = Context.getOrderService();
+        OrderType orderType = MetadataCache.INSTANCE.get(
+            "OrderType:" + conceptClassName, new MetadataCache.Loader<OrderType>() {
+                @Override public OrderType load() {
+                    OrderType orderType =
+                        orderService.getOrderTypeByConceptClass(getConceptClass(conceptClassName));
+                    if (orderType != null) {
+                        orderType.getConceptClasses().size();  // read by OrderValidator
+                    }
+                    return orderType;
+                }
+            });
         if (orderType == null) {
             orderType = new OrderType();
-            orderType.addConceptClass(getConceptClass("Misc"));
-            orderType.setName("Misc order");
-            orderType.setDescription("Misc order");
-            orderType.setJavaClassName("org.openmrs.Order");
+            orderType.addConceptClass(getConceptClass(conceptClassName));
+            orderType.setName(name);
+            orderType.setDescription(description);
+            orderType.setJavaClassName(javaClassName);
             orderService.saveOrderType(orderType);
         }
         return orderType;
@@ -102,19 +119,30 @@ public class DbUtil {
     // which "order executed" is observed for the appropriate order.
     public static Concept getOrderExecutedConcept() {
         return DbUtil.getConcept(
-            "Order executed",
-            // The OpenMRS "uuid" field is misnamed; OpenMRS uses the field for
-            // arbitrary string IDs unrelated to RFC 4122.  Therefore, to prevent
-            // collisions, UUIDs specific to this module are prefixed "buendia-".
-            "buendia-concept-order_executed",
-            "N/A",
-            "Finding");
+            "Order executed", ORDER_EXECUTED_CONCEPT_UUID, "N/A", "Finding");
     }
 
     /** Gets or creates a Concept with a given UUID and name. */
-    public static Concept getConcept(String name, String uuid, String typeName, String className) {
-        ConceptService conceptService = Context.getConceptService();
-        Concept concept = conceptService.getConceptByUuid(uuid);
+    public static Concept getConcept(
+        String name, final String uuid, String typeName, String className) {
+        final ConceptService conceptService = Context.getConceptService();
+        Concept concept = MetadataCache.INSTANCE.get(
+            "Concept:" + uuid, new MetadataCache.Loader<Concept>() {
+                @Override public Concept load() {
+                    Concept concept = conceptService.getConceptByUuid(uuid);
+                    if (concept != null) {
+                        // Load what validators and callers read, as the cached copy is detached.
+                        concept.getNames().size();
+                        if (concept.getConceptClass() != null) {
+                            concept.getConceptClass().getName();
+                        }
+                        if (concept.getDatatype() != null) {
+                            concept.getDatatype().getName();
+                        }
+                    }
+                    return concept;
+                }
+            });
         if (concept == null) {
             concept = new Concept();
             concept.setUuid(uuid);
@@ -133,9 +161,14 @@ public class DbUtil {
     }
 
     /** Gets or creates a PersonAttributeType with a given UUID and name. */
-    private static PersonAttributeType getPersonAttributeType(String uuid, String name) {
-        PersonService personService = Context.getPersonService();
-        PersonAttributeType personAttributeType = personService.getPersonAttributeTypeByUuid(uuid);
+    private static PersonAttributeType getPersonAttributeType(final String uuid, String name) {
+        final PersonService personService = Context.getPersonService();
+        PersonAttributeType personAttributeType = MetadataCache.INSTANCE.get(
+            "PersonAttributeType:" + uuid, new MetadataCache.Loader<PersonAttributeType>() {
+                @Override public PersonAttributeType load() {
+                    return personService.getPersonAttributeTypeByUuid(uuid);
+                }
+            });
         if (personAttributeType == null) {
             personAttributeType = new PersonAttributeType();
             personAttributeType.setUuid(uuid);
@@ -0,0 +1,236 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterRole;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.Obs;
+import org.openmrs.Order;
+import org.openmrs.Patient;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.Utils;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Adds many encounters at once, for clients uploading a backlog collected while offline.  Each
+ * item has the same format as a POST to {@link EncounterResource}.
+ * <p>
+ * Adding encounters one at a time costs a request, a lookup for every concept and order, and a
+ * transaction for every observation.  Here, items are handled in chunks of CHUNK_SIZE: for each
+ * chunk, all the patients, concepts and orders are looked up with one query per type, and all
+ * the encounters are saved in one transaction with a single flush
+ * ({@link ProjectBuendiaService#saveEncounters}).
+ * <p>
+ * Each item succeeds or fails on its own.  Items that can't be built (e.g. because a patient
+ * doesn't exist) are rejected before saving; if saving a chunk fails anyway, its items are
+ * retried one at a time, so that one bad item doesn't take the rest of its chunk with it.
+ */
+public class EncounterBatch {
+    static final int CHUNK_SIZE = 100;
+
+    private static final Log log = LogFactory.getLog(EncounterBatch.class);
+
+    /** The outcome for one item: the UUID of the new encounter, or an error message. */
+    public static class Result {
+        public final int index;
+        public final @Nullable String encounterUuid;
+        public final @Nullable String error;
+
+        Result(int index, @Nullable String encounterUuid, @Nullable String error) {
+            this.index = index;
+            this.encounterUuid = encounterUuid;
+            this.error = error;
+        }
+
+        static Result failed(int index, Exception e) {
+            String message = e.getMessage();
+            return new Result(index, null, message != null ? message : e.getClass().getName());
+        }
+    }
+
+    /** An item of the batch, parsed but not yet resolved against the database. */
+    private static class Item {
+        final int index;
+        final String patientUuid;
+        final Date time;
+        final List<?> observations;
+        final List<?> orderUuids;
+        final @Nullable String entererUuid;
+
+        Item(int index, Object json) {
+            if (!(json instanceof Map)) {
+                throw new InvalidObjectDataException("Expected a JSON object");
+            }
+            Map<?, ?> map = (Map<?, ?>) json;
+            if (map.get("uuid") == null) {
+                throw new InvalidObjectDataException("Missing \"uuid\" key for patient");
+            }
+            this.index = index;
+            this.patientUuid = map.get("uuid").toString();
+            // OpenMRS will reject the encounter if the time is in the past, even if
+            // the client's clock is off by only one millisecond; work around this.
+            this.time = Utils.fixEncounterDateTime(
+                EncounterResource.parseTimestamp(map.get("timestamp")));
+            this.observations = listOrEmpty(map.get("observations"));
+            this.orderUuids = listOrEmpty(map.get("order_uuids"));
+            this.entererUuid = (String) map.get("enterer_uuid");
+        }
+
+        private static List<?> listOrEmpty(@Nullable Object value) {
+            return value != null ? (List<?>) value : Collections.emptyList();
+        }
+    }
+
+    /** Adds the encounters described by a list of JSON objects, returning a result for each. */
+    public static List<Result> add(List<?> jsonItems) {
+        Result[] results = new Result[jsonItems.size()];
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < jsonItems.size(); i++) {
+            try {
+                items.add(new Item(i, jsonItems.get(i)));
+            } catch (InvalidObjectDataException | ClassCastException e) {
+                results[i] = Result.failed(i, e);
+            }
+        }
+
+        boolean anySaved = false;
+        for (int start = 0; start < items.size(); start += CHUNK_SIZE) {
+            List<Item> chunk = items.subList(start, Math.min(start + CHUNK_SIZE, items.size()));
+            try {
+                anySaved |= addChunk(chunk, results);
+            } catch (RuntimeException e) {
+                log.warn("Saving a chunk of " + chunk.size() + " encounters failed; "
+                    + "retrying them one at a time", e);
+                for (Item item : chunk) {
+                    try {
+                        anySaved |= addChunk(Collections.singletonList(item), results);
+                    } catch (RuntimeException itemError) {
+                        results[item.index] = Result.failed(item.index, itemError);
+                    }
+                }
+            }
+        }
+        if (anySaved) {
+            SyncChangeNotifier.INSTANCE.notifyChanged();
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Builds and saves the encounters for a chunk of items, recording their results.  Items that
+     * can't be built get an error result; if saving fails, this throws without recording a
+     * result for any item that was going to be saved.
+     * @return true if any encounters were saved
+     */
+    private static boolean addChunk(List<Item> chunk, Result[] results) {
+        ProjectBuendiaService service = Context.getService(ProjectBuendiaService.class);
+        Set<String> patientUuids = new HashSet<>();
+        Set<String> conceptUuids = new HashSet<>();
+        Set<String> orderUuids = new HashSet<>();
+        for (Item item : chunk) {
+            patientUuids.add(item.patientUuid);
+            for (Object observation : item.observations) {
+                String questionUuid = ObservationsHandler.getQuestionUuid(observation);
+                if (questionUuid != null) {
+                    conceptUuids.add(questionUuid);
+                }
+            }
+            for (Object orderUuid : item.orderUuids) {
+                orderUuids.add((String) orderUuid);
+            }
+        }
+        Map<String, Patient> patients = service.getObjectsByUuid(Patient.class, patientUuids);
+        Map<String, Concept> concepts = service.getObjectsByUuid(Concept.class, conceptUuids);
+        Map<String, Order> orders = service.getObjectsByUuid(Order.class, orderUuids);
+
+        // TODO: Consider using patient's location instead of the root location.
+        Location location = Context.getLocationService().getLocationByUuid(
+            LocationResource.ROOT_UUID);
+        if (location == null) {
+            throw new InvalidObjectDataException(
+                "Location not found: " + LocationResource.ROOT_UUID);
+        }
+        EncounterType encounterType = Context.getEncounterService().getEncounterType(
+            EncounterResource.ENCOUNTER_TYPE_NAME);
+        if (encounterType == null) {
+            throw new InvalidObjectDataException(
+                "Encounter type not found: " + EncounterResource.ENCOUNTER_TYPE_NAME);
+        }
+        EncounterRole encounterRole = Context.getEncounterService().getEncounterRoleByUuid(
+            EncounterRole.UNKNOWN_ENCOUNTER_ROLE_UUID);
+
+        List<Item> built = new ArrayList<>();
+        List<Encounter> encounters = new ArrayList<>();
+        for (Item item : chunk) {
+            try {
+                encounters.add(buildEncounter(
+                    item, patients, concepts, orders, location, encounterType, encounterRole));
+                built.add(item);
+            } catch (RuntimeException e) {
+                results[item.index] = Result.failed(item.index, e);
+            }
+        }
+        if (encounters.isEmpty()) {
+            return false;
+        }
+
+        service.saveEncounters(encounters);
+        for (int i = 0; i < built.size(); i++) {
+            int index = built.get(i).index;
+            results[index] = new Result(index, encounters.get(i).getUuid(), null);
+        }
+        return true;
+    }
+
+    private static Encounter buildEncounter(
+        Item item, Map<String, Patient> patients, Map<String, Concept> concepts,
+        Map<String, Order> orders, Location location, EncounterType encounterType,
+        EncounterRole encounterRole) {
+        Patient patient = patients.get(item.patientUuid);
+        if (patient == null) {
+            throw new InvalidObjectDataException("Patient not found: " + item.patientUuid);
+        }
+        @Nullable User enterer = Utils.getUserFromProviderUuid(item.entererUuid);
+        Encounter encounter = ObservationsHandler.newEncounter(patient, item.time, location,
+            encounterType, Utils.getProviderFromUser(enterer), encounterRole);
+        for (Object observation : item.observations) {
+            Obs obs = ObservationsHandler.jsonObservationToObs(observation,
+                concepts.get(ObservationsHandler.getQuestionUuid(observation)),
+                patient, item.time, location);
+            obs.setCreator(enterer);
+            encounter.addObs(obs);
+        }
+        for (Object orderUuid : item.orderUuids) {
+            Obs obs = ObservationsHandler.orderToObs(orders.get((String) orderUuid),
+                (String) orderUuid, patient, item.time, location);
+            obs.setCreator(enterer);
+            encounter.addObs(obs);
+        }
+        return encounter;
+    }
+}
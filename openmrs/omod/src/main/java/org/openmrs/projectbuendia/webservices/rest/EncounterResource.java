@@ -27,6 +27,7 @@ import org.openmrs.module.webservices.rest.web.response.ResponseException;
 import org.openmrs.projectbuendia.Utils;
 import org.projectbuendia.openmrs.webservices.rest.RestController;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -40,6 +41,9 @@ import java.util.List;
 @Resource(name = RestController.REST_VERSION_1_AND_NAMESPACE + "/encounters",
     supportedClass = Encounter.class, supportedOpenmrsVersions = "1.10.*,1.11.*")
 public class EncounterResource implements Creatable {
+    /** The OpenMRS encounter type of all encounters posted by clients. */
+    static final String ENCOUNTER_TYPE_NAME = "ADULTRETURN";
+
     private final PatientService patientService;
     private RequestLogger logger = RequestLogger.LOGGER;
 
@@ -93,27 +97,30 @@ public class EncounterResource implements Creatable {
         if (patient == null) {
             throw new InvalidObjectDataException("Patient not found: " + post.get("uuid"));
         }
-        Date encounterTime;
-        Object timestamp = post.get("timestamp");
+        Date encounterTime = parseTimestamp(post.get("timestamp"));
+        Encounter encounter = ObservationsHandler.addEncounter(
+            (List) post.get("observations"), (List) post.get("order_uuids"),
+            patient, encounterTime, "new observation", ENCOUNTER_TYPE_NAME,
+            // TODO: Consider using patient's location instead of the root location.
+            LocationResource.ROOT_UUID, (String) post.get("enterer_uuid"));
+        SimpleObject simpleObject = new SimpleObject();
+        populateJsonProperties(encounter, simpleObject);
+        return simpleObject;
+    }
+
+    /** Parses the "timestamp" of a posted encounter, in seconds since the epoch. */
+    static Date parseTimestamp(@Nullable Object timestamp) {
         try {
             if (timestamp != null) {
-                encounterTime = new Date(Long.parseLong(timestamp.toString())*1000L);
+                return new Date(Long.parseLong(timestamp.toString())*1000L);
             } else {
                 // Allow clients to omit the timestamp to use the current server time.
-                encounterTime = new Date();
+                return new Date();
             }
         } catch (NumberFormatException ex) {
             throw new InvalidObjectDataException(
                 "Expected seconds since epoch for \"timestamp\" value: " + ex.getMessage());
         }
-        Encounter encounter = ObservationsHandler.addEncounter(
-            (List) post.get("observations"), (List) post.get("order_uuids"),
-            patient, encounterTime, "new observation", "ADULTRETURN",
-            // TODO: Consider using patient's location instead of the root location.
-            LocationResource.ROOT_UUID, (String) post.get("enterer_uuid"));
-        SimpleObject simpleObject = new SimpleObject();
-        populateJsonProperties(encounter, simpleObject);
-        return simpleObject;
     }
 
     /**
@@ -33,7 +33,7 @@ import org.openmrs.module.webservices.rest.web.resource.api.Updatable;
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
 import org.projectbuendia.openmrs.webservices.rest.RestController;
 
-import java.util.ArrayList;
+import javax.annotation.Nullable;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -108,6 +108,7 @@ public class LocationResource implements
         locationService = Context.getLocationService();
         Location root = getRootLocation(locationService);
         ensureZonesExist(locationService, root);
+        LocationTree.invalidate();
     }
 
     private static Location getRootLocation(LocationService service) {
@@ -169,7 +170,9 @@ public class LocationResource implements
         Location location = new Location();
         updateNames(request, location);
         location.setParentLocation(parent);
-        return locationService.saveLocation(location);
+        location = locationService.saveLocation(location);
+        LocationTree.invalidate();
+        return location;
     }
 
     private void updateNames(SimpleObject request, Location location) {
@@ -232,18 +235,25 @@ public class LocationResource implements
         return location == null ? null : locationToJson(location);
     }
 
-    private SimpleObject locationToJson(Location location) {
-        SimpleObject result = new SimpleObject();
+    static SimpleObject locationToJson(Location location) {
         if (location == null) {
             throw new NullPointerException();
         }
-        result.add("uuid", location.getUuid());
         Location parentLocation = location.getParentLocation();
-        if (parentLocation != null) {
-            result.add("parent_uuid", parentLocation.getUuid());
+        return locationToJson(location.getUuid(),
+            parentLocation != null ? parentLocation.getUuid() : null,
+            location.getDisplayString());
+    }
+
+    /** Builds the JSON for a location from its parts; each call returns a new object. */
+    static SimpleObject locationToJson(String uuid, @Nullable String parentUuid, String name) {
+        SimpleObject result = new SimpleObject();
+        result.add("uuid", uuid);
+        if (parentUuid != null) {
+            result.add("parent_uuid", parentUuid);
         }
         SimpleObject names = new SimpleObject();
-        names.add("en", location.getDisplayString());
+        names.add("en", name);
         result.add("names", names);
         return result;
     }
@@ -272,6 +282,7 @@ public class LocationResource implements
         }
         updateNames(request, existing);
         Location location = locationService.saveLocation(existing);
+        LocationTree.invalidate();
         return locationToJson(location);
     }
 
@@ -294,27 +305,16 @@ public class LocationResource implements
     }
 
     private SimpleObject getAllInner() throws ResponseException {
-        ArrayList<SimpleObject> jsonResults = new ArrayList<>();
-        // A new fetch is needed to sort out the hibernate cache.
-        Location root = locationService.getLocationByUuid(ROOT_UUID);
-        if (root == null) {
+        LocationTree tree = LocationTree.get();
+        if (!tree.hasRoot()) {
             throw new IllegalStateException(
                 "Top-level location not found, expected UUID: " + ROOT_UUID);
         }
-        addRecursively(root, jsonResults);
         SimpleObject list = new SimpleObject();
-        list.add("results", jsonResults);
+        list.add("results", tree.getTreeJson());
         return list;
     }
 
-    private void addRecursively(Location location, ArrayList<SimpleObject> results) {
-        if (location.isRetired()) return;
-        results.add(locationToJson(location));
-        for (Location child : location.getChildLocations()) {
-            addRecursively(child, results);
-        }
-    }
-
     private SimpleObject searchInner(RequestContext requestContext) throws ResponseException {
         return getAll(requestContext);
     }
@@ -335,6 +335,7 @@ public class LocationResource implements
         }
 
         deleteLocationRecursively(location);
+        LocationTree.invalidate();
     }
 
     private void deleteLocationRecursively(Location location) {
@@ -0,0 +1,173 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.openmrs.Location;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.webservices.rest.SimpleObject;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable snapshot of all the locations, for resolving patients' assigned locations and
+ * listing the tree without going to the database for every patient in a sync page.
+ * <p>
+ * {@link #get()} returns the current snapshot.  Changes to locations don't touch a snapshot in
+ * use; {@link #invalidate()} (called by {@link LocationResource} and, for changes made in any
+ * other way, by {@link org.openmrs.projectbuendia.LocationChangeAdvice}) makes the next caller
+ * build a new one from the database.  A snapshot is also rebuilt once it is MAX_AGE_MILLIS old,
+ * in case it was built from data that was not yet committed when it was invalidated.
+ */
+public class LocationTree {
+    static final long MAX_AGE_MILLIS = 5 * 60 * 1000;
+
+    /** A location, as much as clients need to know about it. */
+    public static class Node {
+        public final int id;
+        public final String uuid;
+        public final @Nullable String parentUuid;
+        public final String name;
+
+        Node(Location location) {
+            this.id = location.getLocationId();
+            this.uuid = location.getUuid();
+            Location parent = location.getParentLocation();
+            this.parentUuid = parent != null ? parent.getUuid() : null;
+            this.name = location.getDisplayString();
+        }
+
+        /** A new JSON object for this location, which the caller is free to modify. */
+        public SimpleObject toJson() {
+            return LocationResource.locationToJson(uuid, parentUuid, name);
+        }
+    }
+
+    private static volatile LocationTree current;
+    /** Incremented by every {@link #invalidate()}. */
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    private final long builtMillis = System.currentTimeMillis();
+    private final Map<Integer, Node> nodesById;
+    private final Map<String, Node> nodesByUuid;
+    /** Unretired locations under the root, parents before children. */
+    private final List<Node> tree;
+    private final boolean hasRoot;
+
+    /** Returns the current snapshot, building a new one if the locations have changed. */
+    public static LocationTree get() {
+        LocationTree tree = current;
+        if (tree == null || System.currentTimeMillis() - tree.builtMillis > MAX_AGE_MILLIS) {
+            synchronized (LocationTree.class) {
+                tree = current;
+                if (tree == null
+                    || System.currentTimeMillis() - tree.builtMillis > MAX_AGE_MILLIS) {
+                    int startGeneration = generation.get();
+                    tree = new LocationTree(Context.getLocationService());
+                    // If a location changed while we were reading them, this snapshot may be
+                    // out of date already; use it for this caller only.
+                    if (generation.get() == startGeneration) {
+                        current = tree;
+                    }
+                }
+            }
+        }
+        return tree;
+    }
+
+    /** A number that changes whenever {@link #invalidate()} is called. */
+    public static int getGeneration() {
+        return generation.get();
+    }
+
+    /** Discards the current snapshot; call this after any location is created or changed. */
+    public static void invalidate() {
+        generation.incrementAndGet();
+        current = null;
+    }
+
+    private LocationTree(LocationService service) {
+        Map<Integer, Node> byId = new HashMap<>();
+        Map<String, Node> byUuid = new HashMap<>();
+        for (Location location : service.getAllLocations(true /* includeRetired */)) {
+            Node node = new Node(location);
+            byId.put(node.id, node);
+            byUuid.put(node.uuid, node);
+        }
+        List<Node> nodes = new ArrayList<>();
+        Location root = service.getLocationByUuid(LocationResource.ROOT_UUID);
+        hasRoot = root != null;
+        if (root != null) {
+            addRecursively(root, byId, nodes);
+        }
+        nodesById = Collections.unmodifiableMap(byId);
+        nodesByUuid = Collections.unmodifiableMap(byUuid);
+        tree = Collections.unmodifiableList(nodes);
+    }
+
+    private static void addRecursively(
+        Location location, Map<Integer, Node> byId, List<Node> nodes) {
+        if (location.isRetired()) return;
+        Node node = byId.get(location.getLocationId());
+        nodes.add(node != null ? node : new Node(location));
+        for (Location child : location.getChildLocations()) {
+            addRecursively(child, byId, nodes);
+        }
+    }
+
+    /**
+     * Finds a location by ID.  A location created since the snapshot was built is looked up in
+     * the database, so callers never miss one.
+     */
+    public @Nullable Node getById(int id) {
+        Node node = nodesById.get(id);
+        if (node == null) {
+            Location location = Context.getLocationService().getLocation(id);
+            node = location != null ? new Node(location) : null;
+        }
+        return node;
+    }
+
+    /** Finds a location by UUID, falling back to the database like {@link #getById}. */
+    public @Nullable Node getByUuid(String uuid) {
+        Node node = nodesByUuid.get(uuid);
+        if (node == null) {
+            Location location = Context.getLocationService().getLocationByUuid(uuid);
+            node = location != null ? new Node(location) : null;
+        }
+        return node;
+    }
+
+    /** Whether the root location exists. */
+    public boolean hasRoot() {
+        return hasRoot;
+    }
+
+    /**
+     * The JSON for every unretired location under the root, parents before children.  The
+     * objects are built afresh on each call, so callers may modify them without affecting the
+     * shared snapshot.
+     */
+    public List<SimpleObject> getTreeJson() {
+        List<SimpleObject> results = new ArrayList<>(tree.size());
+        for (Node node : tree) {
+            results.add(node.toJson());
+        }
+        return results;
+    }
+}
@@ -11,19 +11,17 @@
 
 package org.openmrs.projectbuendia.webservices.rest;
 
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-/** Writes out timestamped HTTP request logs. */
+/**
+ * Writes out timestamped HTTP request logs.  Lines are handed to the {@link AsyncLogWriter},
+ * so logging doesn't wait for the disk, and a Logger may be shared across request threads.
+ */
 public class Logger {
-    private Map<String, Date> startTimes = new HashMap<String, Date>();
-    private String filename;
-    private SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private final Map<String, Long> startTimes = new ConcurrentHashMap<>();
+    private final String filename;
 
     public Logger(String filename) {
         this.filename = filename;
@@ -36,18 +34,13 @@ public class Logger {
 
     /** Emits a message to the log, timestamped with the specified time. */
     public void log(Date time, String message) {
-        try {
-            PrintWriter w = new PrintWriter(new FileWriter(filename, true /* append */));
-            w.println("\n\u001b[32m" + format.format(time) + "\u001b[0m " + message);
-            w.close();
-        } catch (IOException e) {
-        }
+        AsyncLogWriter.INSTANCE.append(filename, time.getTime(), message);
     }
 
     /** Emits a message to the log, marking the start of a time interval. */
     public void start(String key, String message) {
         Date now = new Date();
-        startTimes.put(key, now);
+        startTimes.put(key, now.getTime());
         message = "" + message;
         log(now, "-> " + key + (message.isEmpty() ? "" : ": " + message));
     }
@@ -55,10 +48,10 @@ public class Logger {
     /** Emits a message to the log, marking the end of a time interval. */
     public void end(String key, String message) {
         Date end = new Date();
-        Date start = startTimes.get(key);
+        Long start = startTimes.remove(key);
         if (start != null) {
             message = "" + message;
-            String elapsed = "" + (end.getTime() - start.getTime()) + " ms";
+            String elapsed = "" + (end.getTime() - start) + " ms";
             log(end, "<- " + key + " (\u001b[36m" + elapsed + "\u001b[0m)"
                 + (message.isEmpty() ? "" : ": " + message));
         }
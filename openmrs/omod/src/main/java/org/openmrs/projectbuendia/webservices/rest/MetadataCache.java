@@ -0,0 +1,107 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide cache of the metadata entities that {@link DbUtil} looks up (identifier types,
+ * order types, attribute types and the like). These are read once per observation or patient
+ * during sync but almost never change, so we look each one up once and keep it.
+ * <p>
+ * The cached entities are detached from the session that loaded them, so they are only good for
+ * use as references (e.g. {@code obs.setConcept(...)}) and for comparisons; loaders must
+ * initialize any lazy properties that callers need.
+ * <p>
+ * {@link #invalidate()} must be called whenever the metadata may have changed; the
+ * {@link org.openmrs.projectbuendia.ConceptChangeAdvice} and
+ * {@link org.openmrs.projectbuendia.MetadataChangeAdvice} do so after edits made through the
+ * services, and profiles do so when they are applied. Entries also expire after
+ * {@link #MAX_AGE_MILLIS}, as a backstop for changes made behind Hibernate's back.
+ */
+public class MetadataCache {
+    public static final MetadataCache INSTANCE = new MetadataCache();
+
+    static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+    private static final Log log = LogFactory.getLog(MetadataCache.class);
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Looks up a metadata entity in the database. */
+    public interface Loader<T> {
+        /** Returns the entity, or null if it doesn't exist (yet). */
+        @Nullable T load();
+    }
+
+    /**
+     * Returns the entity cached under {@code key}, or loads it with {@code loader} and caches it.
+     * Null results are not cached, so that a get-or-create caller can create the entity and have
+     * the next lookup load the committed copy; caching the newly created entity directly would
+     * leave a phantom in the cache if the creating transaction were rolled back.
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable <T> T get(String key, Loader<T> loader) {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.isExpired()) {
+            hits.incrementAndGet();
+            return (T) entry.value;
+        }
+        misses.incrementAndGet();
+        T value = loader.load();
+        if (value != null) {
+            entries.put(key, new Entry(value));
+        } else {
+            entries.remove(key);
+        }
+        return value;
+    }
+
+    /** Discards all cached entities. */
+    public void invalidate() {
+        entries.clear();
+        log.info("Metadata cache invalidated; " + getHitCount() + " hits and "
+            + getMissCount() + " misses so far");
+    }
+
+    /** The number of lookups served from memory since the server started. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** The number of lookups that went to the database since the server started. */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private static class Entry {
+        final Object value;
+        final long createdMillis;
+
+        Entry(Object value) {
+            this.value = value;
+            this.createdMillis = System.currentTimeMillis();
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - createdMillis > MAX_AGE_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts and times the requests to each REST endpoint, with histograms of latency, records
+ * returned and response size, and writes them out in the Prometheus text format so that the
+ * monitoring server can scrape them (and compute percentiles with histogram_quantile).
+ * Recording is lock-free, so it is cheap enough to do on every request.  The numbers are kept
+ * in memory only and start from zero when the server starts.
+ * <p>
+ * Endpoints are named after the class and method that handle them, e.g. "PatientResource.search".
+ * {@link RequestLogger} times every request it logs, so resources and controllers need only call
+ * {@link #recordRows} when the row count isn't visible in the result they log.
+ */
+public class Metrics {
+    public static final Metrics INSTANCE = new Metrics();
+
+    private static final long MS = 1000 * 1000;  // in nanoseconds
+    private static final long[] LATENCY_BOUNDS_NANOS = {
+        MS, 2 * MS + MS / 2, 5 * MS, 10 * MS, 25 * MS, 50 * MS, 100 * MS, 250 * MS, 500 * MS,
+        1000 * MS, 2500 * MS, 5000 * MS, 10000 * MS, 30000 * MS, 60000 * MS
+    };
+    private static final long[] ROW_BOUNDS = {0, 1, 10, 100, 1000, 10000, 100000};
+    private static final long[] BYTE_BOUNDS = {
+        1024, 10 * 1024, 100 * 1024, 1024 * 1024, 10 * 1024 * 1024, 100 * 1024 * 1024
+    };
+
+    private final HistogramFamily latencies = new HistogramFamily(
+        "buendia_request_duration_seconds", "Time taken to handle REST requests.",
+        LATENCY_BOUNDS_NANOS, 1000 * MS);
+    private final HistogramFamily rows = new HistogramFamily(
+        "buendia_response_rows", "Number of records returned by REST requests.",
+        ROW_BOUNDS, 1);
+    private final HistogramFamily sizes = new HistogramFamily(
+        "buendia_response_bytes", "Size of REST response bodies as sent, after compression.",
+        BYTE_BOUNDS, 1);
+
+    /** Start times of the requests in progress on each thread, by endpoint. */
+    private final ThreadLocal<Map<String, Long>> startTimes = new ThreadLocal<>();
+
+    /** The name under which requests handled by a given object and method are recorded. */
+    public static String getEndpointName(Object handler, String method) {
+        return handler.getClass().getSimpleName() + "." + method;
+    }
+
+    /** Notes that the current thread has started handling a request to an endpoint. */
+    public void start(String endpoint) {
+        Map<String, Long> times = startTimes.get();
+        if (times == null) {
+            times = new HashMap<>();
+            startTimes.set(times);
+        }
+        times.put(endpoint, System.nanoTime());
+    }
+
+    /**
+     * Records the latency of the request that the current thread started for an endpoint.
+     * @param outcome "ok" or "error"
+     */
+    public void finish(String endpoint, String outcome) {
+        Map<String, Long> times = startTimes.get();
+        Long start = times != null ? times.remove(endpoint) : null;
+        if (start == null) return;
+        if (times.isEmpty()) {
+            startTimes.remove();
+        }
+        latencies.get(label("endpoint", endpoint) + "," + label("outcome", outcome))
+            .record(System.nanoTime() - start);
+    }
+
+    /** Records the number of records returned by a request to an endpoint. */
+    public void recordRows(String endpoint, long count) {
+        rows.get(label("endpoint", endpoint)).record(count);
+    }
+
+    /** Records the size of a response body sent for a resource, e.g. "patients". */
+    public void recordResponseSize(String resource, long bytes) {
+        sizes.get(label("resource", resource)).record(bytes);
+    }
+
+    /** Writes all the metrics in the Prometheus text exposition format, version 0.0.4. */
+    public void writePrometheus(Writer out) throws IOException {
+        latencies.write(out);
+        rows.write(out);
+        sizes.write(out);
+        writeCounter(out, "buendia_metadata_cache_hits_total",
+            "Metadata lookups served from memory.", MetadataCache.INSTANCE.getHitCount());
+        writeCounter(out, "buendia_metadata_cache_misses_total",
+            "Metadata lookups that went to the database.", MetadataCache.INSTANCE.getMissCount());
+        writeCounter(out, "buendia_request_log_dropped_total",
+            "Request log lines dropped because the log writer fell behind.",
+            AsyncLogWriter.INSTANCE.getDroppedCount());
+    }
+
+    private static void writeCounter(Writer out, String name, String help, long value)
+        throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " counter\n");
+        out.write(name + " " + value + "\n");
+    }
+
+    /** Formats a Prometheus label, escaping the value. */
+    static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"")
+            .replace("\n", "\\n") + "\"";
+    }
+
+    /** Formats a number as Prometheus expects, without a needless ".0". */
+    static String formatNumber(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15
+            ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    /** A histogram with fixed bucket bounds, in the style of Prometheus and HdrHistogram. */
+    static class Histogram {
+        private final long[] bounds;
+        private final AtomicLongArray counts;  // the last bucket is for values above all bounds
+        private final AtomicLong sum = new AtomicLong();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void record(long value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            counts.incrementAndGet(i);
+            sum.addAndGet(value);
+        }
+
+        /** The number of recorded values less than or equal to each bound, then the total. */
+        long[] getCumulativeCounts() {
+            long[] cumulative = new long[counts.length()];
+            long total = 0;
+            for (int i = 0; i < cumulative.length; i++) {
+                total += counts.get(i);
+                cumulative[i] = total;
+            }
+            return cumulative;
+        }
+
+        long getSum() {
+            return sum.get();
+        }
+    }
+
+    /** A set of histograms with the same name and bounds, one for each set of labels. */
+    private static class HistogramFamily {
+        final String name;
+        final String help;
+        final long[] bounds;
+        final double divisor;  // divides recorded values to get the exported unit
+        final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+        HistogramFamily(String name, String help, long[] bounds, double divisor) {
+            this.name = name;
+            this.help = help;
+            this.bounds = bounds;
+            this.divisor = divisor;
+        }
+
+        Histogram get(String labels) {
+            Histogram histogram = histograms.get(labels);
+            if (histogram == null) {
+                histogram = new Histogram(bounds);
+                Histogram existing = histograms.putIfAbsent(labels, histogram);
+                if (existing != null) histogram = existing;
+            }
+            return histogram;
+        }
+
+        void write(Writer out) throws IOException {
+            out.write("# HELP " + name + " " + help + "\n");
+            out.write("# TYPE " + name + " histogram\n");
+            for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+                String labels = entry.getKey();
+                long[] cumulative = entry.getValue().getCumulativeCounts();
+                for (int i = 0; i < bounds.length; i++) {
+                    out.write(name + "_bucket{" + labels + ",le=\""
+                        + formatNumber(bounds[i] / divisor) + "\"} " + cumulative[i] + "\n");
+                }
+                long count = cumulative[bounds.length];
+                out.write(name + "_bucket{" + labels + ",le=\"+Inf\"} " + count + "\n");
+                out.write(name + "_sum{" + labels + "} "
+                    + formatNumber(entry.getValue().getSum() / divisor) + "\n");
+                out.write(name + "_count{" + labels + "} " + count + "\n");
+            }
+        }
+    }
+}
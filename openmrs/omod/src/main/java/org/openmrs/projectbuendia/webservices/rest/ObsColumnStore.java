@@ -0,0 +1,430 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.SyncToken;
+import org.projectbuendia.openmrs.api.db.SyncRowHandler;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory, column-oriented copy of the unvoided numeric and coded observations, for
+ * queries across patients (e.g. the trend of a vital sign across the ward) that would otherwise
+ * load and pivot {@link org.openmrs.Obs} entities through Hibernate.
+ * <p>
+ * Each question concept has a {@link Column} of parallel primitive arrays (obs ID, patient, time
+ * and value) sorted by time, so a time window is found by binary search and scanned without
+ * creating any objects.  The store is filled by one pass over the obs sync map, then follows the
+ * map from where it left off, removing voided observations: before a query, if anything has
+ * been saved through this module since the last pass ({@link SyncChangeNotifier}), or if the
+ * last pass is MAX_STALENESS_MILLIS old, since writes made elsewhere don't notify.  An index from
+ * obs ID to column lets a pass touch only the columns of the observations that changed.
+ */
+public class ObsColumnStore {
+    public static final ObsColumnStore INSTANCE = new ObsColumnStore();
+
+    static final long MAX_STALENESS_MILLIS = 60 * 1000;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final Log log = LogFactory.getLog(ObsColumnStore.class);
+
+    /** An observation returned by {@link #getPoints}. */
+    public static class Point {
+        public final String patientUuid;
+        public final Date time;
+        /** The numeric value, or null for a coded observation. */
+        public final @Nullable Double numericValue;
+        /** The UUID of the coded value, or null for a numeric observation. */
+        public final @Nullable String codedValueUuid;
+
+        Point(String patientUuid, Date time, @Nullable Double numericValue,
+              @Nullable String codedValueUuid) {
+            this.patientUuid = patientUuid;
+            this.time = time;
+            this.numericValue = numericValue;
+            this.codedValueUuid = codedValueUuid;
+        }
+    }
+
+    /** Summary statistics for the numeric observations in one interval of time. */
+    public static class Bucket {
+        public final Date start;
+        public int count;
+        public double min = Double.POSITIVE_INFINITY;
+        public double max = Double.NEGATIVE_INFINITY;
+        public double sum;
+
+        Bucket(Date start) {
+            this.start = start;
+        }
+
+        public double getMean() {
+            return sum / count;
+        }
+    }
+
+    /**
+     * The observations of one question concept, sorted by time once {@link #sort} has been
+     * called.  Patients and coded values are stored as indexes into the store's dictionaries.
+     */
+    static class Column {
+        final boolean coded;
+        int size;
+        int[] obsIds = new int[INITIAL_CAPACITY];
+        int[] patients = new int[INITIAL_CAPACITY];
+        long[] times = new long[INITIAL_CAPACITY];
+        /** The numeric values, or for a coded concept, the indexes of the coded values. */
+        double[] values = new double[INITIAL_CAPACITY];
+        boolean sorted = true;
+
+        Column(boolean coded) {
+            this.coded = coded;
+        }
+
+        void add(int obsId, int patient, long time, double value) {
+            if (size == times.length) {
+                int capacity = size * 2;
+                obsIds = Arrays.copyOf(obsIds, capacity);
+                patients = Arrays.copyOf(patients, capacity);
+                times = Arrays.copyOf(times, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            if (size > 0 && time < times[size - 1]) {
+                sorted = false;
+            }
+            obsIds[size] = obsId;
+            patients[size] = patient;
+            times[size] = time;
+            values[size] = value;
+            size++;
+        }
+
+        /** Removes the given observations, keeping the others in order. */
+        void removeAll(Set<Integer> removedObsIds) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!removedObsIds.contains(obsIds[i])) {
+                    obsIds[kept] = obsIds[i];
+                    patients[kept] = patients[i];
+                    times[kept] = times[i];
+                    values[kept] = values[i];
+                    kept++;
+                }
+            }
+            size = kept;
+        }
+
+        /** Sorts by time, if an observation was added out of order. */
+        void sort() {
+            if (sorted) return;
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            mergeSort(order, new int[size], 0, size);
+            int[] newObsIds = new int[times.length];
+            int[] newPatients = new int[times.length];
+            long[] newTimes = new long[times.length];
+            double[] newValues = new double[times.length];
+            for (int i = 0; i < size; i++) {
+                newObsIds[i] = obsIds[order[i]];
+                newPatients[i] = patients[order[i]];
+                newTimes[i] = times[order[i]];
+                newValues[i] = values[order[i]];
+            }
+            obsIds = newObsIds;
+            patients = newPatients;
+            times = newTimes;
+            values = newValues;
+            sorted = true;
+        }
+
+        /** Stably sorts {@code order[start:end]}, a list of indexes, by time. */
+        private void mergeSort(int[] order, int[] scratch, int start, int end) {
+            if (end - start < 2) return;
+            int middle = (start + end) >>> 1;
+            mergeSort(order, scratch, start, middle);
+            mergeSort(order, scratch, middle, end);
+            int left = start, right = middle, out = start;
+            while (left < middle && right < end) {
+                scratch[out++] = times[order[right]] < times[order[left]]
+                    ? order[right++] : order[left++];
+            }
+            while (left < middle) scratch[out++] = order[left++];
+            while (right < end) scratch[out++] = order[right++];
+            System.arraycopy(scratch, start, order, start, end - start);
+        }
+
+        /** The index of the first observation at or after {@code time}. */
+        int lowerBound(long time) {
+            int low = 0, high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (times[middle] < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // These fields are guarded by lock.
+    private final Map<String, Column> columnsByConceptUuid = new HashMap<>();
+    /** The column holding each stored observation. */
+    private final Map<Integer, Column> columnsByObsId = new HashMap<>();
+    private final Dictionary patientDictionary = new Dictionary();
+    private final Dictionary codedValueDictionary = new Dictionary();
+    /** The position in the obs sync map up to which the store is up to date. */
+    private @Nullable SyncToken mark = null;
+    private boolean loaded = false;
+
+    // These fields are guarded by this.
+    private long lastChangeVersion = -1;
+    private long lastRefreshMillis;
+
+    /** Assigns consecutive indexes to strings. */
+    private static class Dictionary {
+        final Map<String, Integer> indexes = new HashMap<>();
+        final List<String> strings = new ArrayList<>();
+
+        int getIndex(String string) {
+            Integer index = indexes.get(string);
+            if (index == null) {
+                index = strings.size();
+                indexes.put(string, index);
+                strings.add(string);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Returns the first {@code limit} observations of a concept between {@code start} (inclusive)
+     * and {@code end} (exclusive), in order of time, optionally only for the given patients.
+     */
+    public List<Point> getPoints(String conceptUuid, @Nullable Date start, @Nullable Date end,
+                                 @Nullable Collection<String> patientUuids, int limit)
+        throws IOException {
+        refreshIfStale();
+        lock.readLock().lock();
+        try {
+            List<Point> results = new ArrayList<>();
+            Column column = columnsByConceptUuid.get(conceptUuid);
+            if (column == null) return results;
+            Set<Integer> patients = getPatientIndexes(patientUuids);
+            int last = end == null ? column.size : column.lowerBound(end.getTime());
+            for (int i = start == null ? 0 : column.lowerBound(start.getTime());
+                 i < last && results.size() < limit; i++) {
+                if (patients != null && !patients.contains(column.patients[i])) continue;
+                results.add(new Point(
+                    patientDictionary.strings.get(column.patients[i]),
+                    new Date(column.times[i]),
+                    column.coded ? null : column.values[i],
+                    column.coded ? codedValueDictionary.strings.get((int) column.values[i]) : null));
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Summarizes the numeric observations of a concept in consecutive intervals of
+     * {@code intervalMillis}, starting at {@code start}, optionally only for the given patients.
+     * Intervals with no observations are omitted.
+     * @throws IllegalArgumentException if the concept is coded.
+     */
+    public List<Bucket> getBuckets(String conceptUuid, Date start, Date end, long intervalMillis,
+                                   @Nullable Collection<String> patientUuids) throws IOException {
+        refreshIfStale();
+        lock.readLock().lock();
+        try {
+            List<Bucket> results = new ArrayList<>();
+            Column column = columnsByConceptUuid.get(conceptUuid);
+            if (column == null) return results;
+            if (column.coded) {
+                throw new IllegalArgumentException("Concept " + conceptUuid + " is not numeric");
+            }
+            Set<Integer> patients = getPatientIndexes(patientUuids);
+            Bucket bucket = null;
+            int last = column.lowerBound(end.getTime());
+            for (int i = column.lowerBound(start.getTime()); i < last; i++) {
+                if (patients != null && !patients.contains(column.patients[i])) continue;
+                long time = column.times[i];
+                if (bucket == null || time >= bucket.start.getTime() + intervalMillis) {
+                    long offset = (time - start.getTime()) / intervalMillis * intervalMillis;
+                    bucket = new Bucket(new Date(start.getTime() + offset));
+                    results.add(bucket);
+                }
+                double value = column.values[i];
+                bucket.count++;
+                bucket.min = Math.min(bucket.min, value);
+                bucket.max = Math.max(bucket.max, value);
+                bucket.sum += value;
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Converts patient UUIDs to dictionary indexes, or returns null for all patients. */
+    private @Nullable Set<Integer> getPatientIndexes(@Nullable Collection<String> patientUuids) {
+        if (patientUuids == null) return null;
+        Set<Integer> indexes = new HashSet<>();
+        for (String uuid : patientUuids) {
+            Integer index = patientDictionary.indexes.get(uuid);
+            if (index != null) {
+                indexes.add(index);
+            }
+        }
+        return indexes;
+    }
+
+    /** Catches up with the obs sync map if it may have moved since the last time. */
+    synchronized void refreshIfStale() throws IOException {
+        long now = System.currentTimeMillis();
+        long changeVersion = SyncChangeNotifier.INSTANCE.getVersion();
+        if (changeVersion == lastChangeVersion && now - lastRefreshMillis < MAX_STALENESS_MILLIS) {
+            return;
+        }
+        lastChangeVersion = changeVersion;
+        lastRefreshMillis = now;
+        lock.writeLock().lock();
+        try {
+            catchUp(new Date(now));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Applies the rows of the obs sync map after {@link #mark}. */
+    private void catchUp(Date requestTime) throws IOException {
+        ProjectBuendiaService service = Context.getService(ProjectBuendiaService.class);
+        final boolean initialLoad = !loaded;
+        final List<ObsSyncRow> rows = new ArrayList<>();
+        final SyncToken[] position = {mark};
+        // On the first pass there is nothing to remove, so voided rows can be skipped.
+        service.streamObservationRowsModifiedAtOrAfter(
+            mark, !initialLoad, 0, new SyncRowHandler<ObsSyncRow>() {
+                @Override public boolean handle(ObsSyncRow row, SyncToken rowPosition) {
+                    if (initialLoad) {
+                        add(row);
+                    } else {
+                        rows.add(row);
+                    }
+                    position[0] = rowPosition;
+                    return true;
+                }
+            });
+
+        if (initialLoad) {
+            sortColumns();
+        } else if (!rows.isEmpty()) {
+            applyChanges(rows);
+        }
+        if (position[0] != null) {
+            // Rows committed out of order could appear just before the last row we saw, so
+            // start the next pass a little earlier, as the sync resources do.
+            mark = SyncTokenUtils.clampSyncTokenToBufferedRequestTime(position[0], requestTime);
+        }
+        loaded = true;
+        if (initialLoad) {
+            int count = 0;
+            for (Column column : columnsByConceptUuid.values()) {
+                count += column.size;
+            }
+            log.info("Loaded " + count + " observations of " + columnsByConceptUuid.size()
+                + " concepts into the column store");
+        }
+    }
+
+    /**
+     * Applies rows of the obs sync map that may change observations already in the store.  A
+     * changed or voided observation replaces any copy we already have; rows are also seen twice
+     * when they fall inside the clamping window of {@link #catchUp}.
+     */
+    void applyChanges(List<ObsSyncRow> rows) {
+        Map<Column, Set<Integer>> removedObsIdsByColumn = new HashMap<>();
+        for (ObsSyncRow row : rows) {
+            Column column = columnsByObsId.remove(row.obsId);
+            if (column != null) {
+                Set<Integer> removedObsIds = removedObsIdsByColumn.get(column);
+                if (removedObsIds == null) {
+                    removedObsIds = new HashSet<>();
+                    removedObsIdsByColumn.put(column, removedObsIds);
+                }
+                removedObsIds.add(row.obsId);
+            }
+        }
+        for (Map.Entry<Column, Set<Integer>> entry : removedObsIdsByColumn.entrySet()) {
+            entry.getKey().removeAll(entry.getValue());
+        }
+        for (ObsSyncRow row : rows) {
+            if (!row.voided) {
+                add(row);
+            }
+        }
+        sortColumns();
+    }
+
+    private void sortColumns() {
+        for (Column column : columnsByConceptUuid.values()) {
+            column.sort();
+        }
+    }
+
+    /** Appends an unvoided observation, if it has a numeric or coded value. */
+    private void add(ObsSyncRow row) {
+        boolean coded;
+        double value;
+        if (row.valueNumeric != null) {
+            coded = false;
+            value = row.valueNumeric;
+        } else if (row.valueCodedUuid != null) {
+            coded = true;
+            value = codedValueDictionary.getIndex(row.valueCodedUuid);
+        } else {
+            return;  // text, date or order execution; not stored
+        }
+        Column column = columnsByConceptUuid.get(row.conceptUuid);
+        if (column == null) {
+            column = new Column(coded);
+            columnsByConceptUuid.put(row.conceptUuid, column);
+        } else if (column.coded != coded) {
+            return;  // the concept's datatype has changed; keep the column consistent
+        }
+        column.add(row.obsId, patientDictionary.getIndex(row.patientUuid),
+            row.obsDatetime.getTime(), value);
+        columnsByObsId.put(row.obsId, column);
+    }
+}
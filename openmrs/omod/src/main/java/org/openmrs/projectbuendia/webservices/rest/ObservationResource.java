@@ -24,12 +24,11 @@ import org.openmrs.module.webservices.rest.web.resource.api.Searchable;
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 import org.projectbuendia.openmrs.api.SyncToken;
-import org.projectbuendia.openmrs.api.db.SyncPage;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
 import org.projectbuendia.openmrs.webservices.rest.RestController;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Date;
-import java.util.List;
 
 /**
  * A resource that allows observations to be incrementally synced.
@@ -41,7 +40,8 @@ import java.util.List;
     supportedOpenmrsVersions = "1.10.*,1.11.*")
 public class ObservationResource implements Listable, Searchable {
 
-    private static final int MAX_OBS_PER_PAGE = 500;
+    private static final int DEFAULT_OBS_PER_PAGE = 500;
+    private static final int MAX_OBS_PER_PAGE = 5000;
 
     private final ProjectBuendiaService buendiaService;
 
@@ -61,20 +61,25 @@ public class ObservationResource implements Listable, Searchable {
 
     private SimpleObject handleSync(RequestContext context) {
         SyncToken syncFrom = RequestUtil.mustParseSyncToken(context);
+        SyncPageBudget budget =
+                SyncPageBudget.fromRequest(context, DEFAULT_OBS_PER_PAGE, MAX_OBS_PER_PAGE);
         Date requestTime = new Date();
 
-        SyncPage<Obs> observations =
-                buendiaService.getObservationsModifiedAtOrAfter(
-                        syncFrom, syncFrom != null, MAX_OBS_PER_PAGE);
-        List<SimpleObject> jsonResults = new ArrayList<>(observations.results.size());
-        for (Obs obs : observations.results) {
-            jsonResults.add(ObservationsHandler.obsToJson(obs));
+        SyncPageCollector<ObsSyncRow> collector = new SyncPageCollector<ObsSyncRow>(budget) {
+            @Override protected SimpleObject toJson(ObsSyncRow row) {
+                return ObservationsHandler.obsRowToJson(row);
+            }
+        };
+        try {
+            // Fetch flattened rows rather than Obs entities; hydrating each Obs and lazily loading
+            // its person, encounter, concept and creator costs several queries per observation.
+            buendiaService.streamObservationRowsModifiedAtOrAfter(
+                    syncFrom, syncFrom != null, budget.maxResults, collector);
+        } catch (IOException e) {
+            // Can't happen; the collector only writes to memory.
+            throw new RuntimeException(e);
         }
-        SyncToken newToken = SyncTokenUtils.clampSyncTokenToBufferedRequestTime(
-                observations.syncToken, requestTime);
-        // If we fetched a full page, there's probably more data available.
-        boolean more = observations.results.size() == MAX_OBS_PER_PAGE;
-        return ResponseUtil.createIncrementalSyncResults(jsonResults, newToken, more);
+        return collector.toResponse(requestTime);
     }
 
     @Override
@@ -27,8 +27,11 @@ import org.openmrs.api.EncounterService;
 import org.openmrs.api.ObsService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.projectbuendia.ProviderUserMap;
 import org.openmrs.projectbuendia.Utils;
+import org.openmrs.projectbuendia.VisitObsRowValue;
 import org.openmrs.projectbuendia.VisitObsValue;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
 
 import javax.annotation.Nullable;
 import java.text.ParseException;
@@ -107,6 +110,28 @@ public class ObservationsHandler {
         }
 
         // Write the encounter and all the observations to the database.
+        Encounter encounter = newEncounter(patient, encounterTime, location, encounterType,
+            Utils.getProviderFromUser(enterer), null);
+        encounter = encounterService.saveEncounter(encounter);
+
+        ObsService obsService = Context.getObsService();
+        for (Obs obs : obsList) {
+            if (obs != null) {
+                encounter.addObs(obs);
+                obsService.saveObs(obs, changeMessage);
+            }
+        }
+        SyncChangeNotifier.INSTANCE.notifyChanged();
+        return encounter;
+    }
+
+    /**
+     * Creates an unsaved encounter.
+     * @param encounterRole the role to give the provider; if null, it is looked up.
+     */
+    static Encounter newEncounter(Patient patient, Date encounterTime, Location location,
+                                  EncounterType encounterType, @Nullable Provider provider,
+                                  @Nullable EncounterRole encounterRole) {
         Encounter encounter = new Encounter();
         encounter.setEncounterDatetime(encounterTime);
         encounter.setPatient(patient);
@@ -114,33 +139,39 @@ public class ObservationsHandler {
         encounter.setEncounterType(encounterType);
 
         // Maybe set provider
-        Provider provider = Utils.getProviderFromUser(enterer);
         if (provider != null) {
-            EncounterRole encounterRole = Context.getEncounterService()
+            if (encounterRole == null) {
+                encounterRole = Context.getEncounterService()
                     .getEncounterRoleByUuid(EncounterRole.UNKNOWN_ENCOUNTER_ROLE_UUID);
-            encounter.setProvider(encounterRole, provider);
-        }
-
-        encounter = encounterService.saveEncounter(encounter);
-
-        ObsService obsService = Context.getObsService();
-        for (Obs obs : obsList) {
-            if (obs != null) {
-                encounter.addObs(obs);
-                obsService.saveObs(obs, changeMessage);
             }
+            encounter.setProvider(encounterRole, provider);
         }
         return encounter;
     }
 
     public static Obs jsonObservationToObs(Object jsonObservation, Patient patient,
                                     Date encounterTime, Location location) {
-        Map observationObject = (Map) jsonObservation;
-        String questionUuid = (String) observationObject.get(KEY_QUESTION_UUID);
+        String questionUuid = getQuestionUuid(jsonObservation);
         ConceptService conceptService = Context.getConceptService();
-        Concept questionConcept = conceptService.getConceptByUuid(questionUuid);
+        return jsonObservationToObs(jsonObservation, conceptService.getConceptByUuid(questionUuid),
+            patient, encounterTime, location);
+    }
+
+    /** Gets the UUID of the question concept of an observation in JSON format. */
+    static String getQuestionUuid(Object jsonObservation) {
+        return (String) ((Map) jsonObservation).get(KEY_QUESTION_UUID);
+    }
+
+    /**
+     * Like {@link #jsonObservationToObs(Object, Patient, Date, Location)}, but with the question
+     * concept already looked up (null if it wasn't found).
+     */
+    static Obs jsonObservationToObs(Object jsonObservation, @Nullable Concept questionConcept,
+                                    Patient patient, Date encounterTime, Location location) {
+        Map observationObject = (Map) jsonObservation;
         if (questionConcept == null) {
-            throw new InvalidObjectDataException("Question concept not found: " + questionUuid);
+            throw new InvalidObjectDataException(
+                "Question concept not found: " + observationObject.get(KEY_QUESTION_UUID));
         }
         Obs obs = new Obs(patient, questionConcept, encounterTime, location);
         String answer = (String) observationObject.get(KEY_ANSWER);
@@ -166,6 +197,15 @@ public class ObservationsHandler {
     private static Obs orderUuidToObs(String orderUuid, Patient patient, Date encounterTime,
                                       Location location) {
         Order order = Context.getOrderService().getOrderByUuid(orderUuid);
+        return orderToObs(order, orderUuid, patient, encounterTime, location);
+    }
+
+    /**
+     * Creates an observation that the given order was executed.
+     * @param order     the order, or null if no order was found for orderUuid
+     */
+    static Obs orderToObs(@Nullable Order order, String orderUuid, Patient patient,
+                          Date encounterTime, Location location) {
         if (order == null) {
             throw new InvalidObjectDataException("Order not found: " + orderUuid);
         }
@@ -190,8 +230,7 @@ public class ObservationsHandler {
             .add("concept_uuid", obs.getConcept().getUuid())
             .add("timestamp", Utils.toIso8601(obs.getObsDatetime()));
 
-        Provider provider = Utils.getProviderFromUser(obs.getCreator());
-        object.add("enterer_uuid", provider != null ? provider.getUuid() : null);
+        object.add("enterer_uuid", ProviderUserMap.INSTANCE.getProviderUuid(obs.getCreator()));
 
         boolean isExecutedOrder =
                 DbUtil.getOrderExecutedConcept().equals(obs.getConcept()) && obs.getOrder() != null;
@@ -201,7 +240,7 @@ public class ObservationsHandler {
             // Normally, the client will only ever supply observations for the root order ID, but
             // in the event that an order is marked as executed on the server (for example) we don't
             // want that to mean that an order execution gets missed.
-            object.add("value", Utils.getRootOrder(obs.getOrder()).getUuid());
+            object.add("value", OrderChainIndex.INSTANCE.getRootUuid(obs.getOrder()));
         } else {
             object.add("value", ObservationsHandler.obsValueToString(obs));
         }
@@ -209,6 +248,72 @@ public class ObservationsHandler {
         return object;
     }
 
+    /**
+     * Produces the same JSON as {@link #obsToJson(Obs)}, but from a pre-fetched
+     * {@link ObsSyncRow}, so that no further database access is needed except
+     * to walk revised order chains.
+     */
+    public static SimpleObject obsRowToJson(ObsSyncRow row) {
+        SimpleObject object = new SimpleObject()
+            .add("uuid", row.uuid)
+            .add("voided", row.voided);
+
+        if (row.voided) {
+            return object;
+        }
+
+        object
+            .add("patient_uuid", row.patientUuid)
+            .add("encounter_uuid", row.encounterUuid)
+            .add("concept_uuid", row.conceptUuid)
+            .add("timestamp", Utils.toIso8601(row.obsDatetime))
+            .add("enterer_uuid", row.entererUuid);
+
+        boolean isExecutedOrder =
+                DbUtil.ORDER_EXECUTED_CONCEPT_UUID.equals(row.conceptUuid) && row.orderUuid != null;
+        if (isExecutedOrder) {
+            // See obsToJson(Obs). Most orders are never revised, in which case the obs's order is
+            // already the root and we can skip the index.
+            String rootUuid = row.orderUuid;
+            if (row.previousOrderId != null) {
+                rootUuid = OrderChainIndex.INSTANCE.getRootUuid(row.orderId);
+            }
+            object.add("value", rootUuid);
+        } else {
+            object.add("value", VisitObsRowValue.visit(row, ROW_VALUE_TO_STRING));
+        }
+
+        return object;
+    }
+
+    /** Formats the value of an {@link ObsSyncRow} the same way as {@link #obsValueToString}. */
+    private static final VisitObsRowValue.ObsRowValueVisitor<String> ROW_VALUE_TO_STRING =
+        new VisitObsRowValue.ObsRowValueVisitor<String>() {
+            @Override public String visitCoded(String valueUuid) {
+                return valueUuid;
+            }
+
+            @Override public String visitNumeric(Double value) {
+                return "" + value;
+            }
+
+            @Override public String visitBoolean(Boolean value) {
+                return "" + value;
+            }
+
+            @Override public String visitText(String value) {
+                return value;
+            }
+
+            @Override public String visitDate(Date value) {
+                return value == null ? null : Utils.YYYYMMDD_UTC_FORMAT.format(value);
+            }
+
+            @Override public String visitDateTime(Date value) {
+                return value == null ? null : Utils.toIso8601(value);
+            }
+        };
+
     public static String obsValueToString(Obs obs) {
         return VisitObsValue.visit(
                 obs, new VisitObsValue.ObsValueVisitor<String>() {
@@ -0,0 +1,147 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.openmrs.Order;
+import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.Utils;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers, for each order, the revision chain it belongs to: the root order, whose UUID is
+ * the one clients know the chain by, and the latest known revision (the head).  Without this,
+ * finding the root means loading the chain one previous order at a time, and finding the head
+ * means loading every order of the patient.
+ * <p>
+ * An order's root never changes, so roots are cached indefinitely.  The head does change as
+ * revisions are saved, by this module or by anyone else, so each head lookup checks for newer
+ * revisions with one indexed query ({@link ProjectBuendiaService#getRevisingOrderId}) and moves
+ * the head forward if there are any.  {@link OrderResource} calls {@link #addRevision} when it
+ * saves a revision, so the check almost always finds nothing.
+ */
+public class OrderChainIndex {
+    public static final OrderChainIndex INSTANCE = new OrderChainIndex();
+
+    /** When the index grows beyond this many orders, we start over. */
+    static final int MAX_ENTRIES = 100000;
+
+    private static class Chain {
+        final int rootId;
+        final String rootUuid;
+        int headId;  // guarded by this
+
+        Chain(int rootId, String rootUuid) {
+            this.rootId = rootId;
+            this.rootUuid = rootUuid;
+            this.headId = rootId;
+        }
+    }
+
+    private final ConcurrentMap<Integer, Chain> chainsByOrderId = new ConcurrentHashMap<>();
+
+    /** The UUID of the first order in the revision chain that contains the given order. */
+    public String getRootUuid(Order order) {
+        if (order.getOrderId() == null) {
+            return Utils.getRootOrder(order).getUuid();  // not saved yet
+        }
+        return getChain(order).rootUuid;
+    }
+
+    /**
+     * The UUID of the first order in the revision chain that contains the order with the given
+     * ID.  Only loads the order if the index doesn't know it yet.
+     */
+    public String getRootUuid(int orderId) {
+        Chain chain = chainsByOrderId.get(orderId);
+        if (chain != null) {
+            return chain.rootUuid;
+        }
+        return getChain(Context.getOrderService().getOrder(orderId)).rootUuid;
+    }
+
+    /** The first order in the revision chain that contains the given order. */
+    public Order getRoot(Order order) {
+        if (order.getOrderId() == null) {
+            return Utils.getRootOrder(order);
+        }
+        return Context.getOrderService().getOrder(getChain(order).rootId);
+    }
+
+    /** The last order in the revision chain that contains the given order. */
+    public Order getLatestVersion(Order order) {
+        if (order.getOrderId() == null) {
+            return order;  // nothing can revise an unsaved order
+        }
+        Chain chain = getChain(order);
+        ProjectBuendiaService service = Context.getService(ProjectBuendiaService.class);
+        int headId;
+        synchronized (chain) {
+            headId = chain.headId;
+        }
+        Integer nextId = service.getRevisingOrderId(headId);
+        while (nextId != null) {
+            headId = nextId;
+            chainsByOrderId.putIfAbsent(headId, chain);
+            nextId = service.getRevisingOrderId(headId);
+        }
+        synchronized (chain) {
+            // Order IDs increase along a chain; don't let a slower reader move the head back.
+            chain.headId = Math.max(chain.headId, headId);
+        }
+        Order head = Context.getOrderService().getOrder(headId);
+        if (head == null) {
+            invalidate();  // the head was purged; rebuild chains from the database next time
+            return order;
+        }
+        return head;
+    }
+
+    /** Records that a revision of an order in a known chain has been saved. */
+    public void addRevision(Order revision) {
+        Order previous = revision.getPreviousOrder();
+        if (revision.getOrderId() == null || previous == null) {
+            return;
+        }
+        Chain chain = getChain(previous);
+        chainsByOrderId.put(revision.getOrderId(), chain);
+        synchronized (chain) {
+            chain.headId = Math.max(chain.headId, revision.getOrderId());
+        }
+    }
+
+    /** Forgets everything. */
+    public void invalidate() {
+        chainsByOrderId.clear();
+    }
+
+    private Chain getChain(Order order) {
+        Chain chain = chainsByOrderId.get(order.getOrderId());
+        if (chain != null) {
+            return chain;
+        }
+        if (chainsByOrderId.size() >= MAX_ENTRIES) {
+            chainsByOrderId.clear();
+        }
+        Order root = Utils.getRootOrder(order);
+        chain = chainsByOrderId.get(root.getOrderId());
+        if (chain == null) {
+            chain = new Chain(root.getOrderId(), root.getUuid());
+            Chain existing = chainsByOrderId.putIfAbsent(root.getOrderId(), chain);
+            if (existing != null) chain = existing;
+        }
+        chainsByOrderId.putIfAbsent(order.getOrderId(), chain);
+        return chain;
+    }
+}
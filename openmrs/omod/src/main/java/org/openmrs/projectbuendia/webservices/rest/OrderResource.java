@@ -42,13 +42,11 @@ import org.openmrs.module.webservices.rest.web.response.ResponseException;
 import org.openmrs.projectbuendia.Utils;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 import org.projectbuendia.openmrs.api.SyncToken;
-import org.projectbuendia.openmrs.api.db.SyncPage;
 import org.projectbuendia.openmrs.webservices.rest.RestController;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -113,10 +111,11 @@ public class OrderResource implements
 
     private static final String FREE_TEXT_ORDER_UUID = "buendia-concept-free_text_order";
 
-    private static final int MAX_ORDERS_PER_PAGE = 500;
+    private static final int DEFAULT_ORDERS_PER_PAGE = 500;
+    private static final int MAX_ORDERS_PER_PAGE = 5000;
 
     // Allow all order actions except discontinues, because the client doesn't represent those.
-    private static final Order.Action[] ALLOWABLE_ACTIONS =
+    public static final Order.Action[] ALLOWABLE_ACTIONS =
             ArrayUtils.removeElement(Order.Action.values(), Order.Action.DISCONTINUE);
 
     private final PatientService patientService;
@@ -140,36 +139,40 @@ public class OrderResource implements
 
     private SimpleObject handleSync(RequestContext context) throws ResponseException {
         SyncToken syncToken = RequestUtil.mustParseSyncToken(context);
+        SyncPageBudget budget = SyncPageBudget.fromRequest(
+                context, DEFAULT_ORDERS_PER_PAGE, MAX_ORDERS_PER_PAGE);
         Date requestTime = new Date();
 
-        SyncPage<Order> orders = buendiaService.getOrdersModifiedAtOrAfter(
-                syncToken,
-                syncToken != null /* includeVoided */,
-                MAX_ORDERS_PER_PAGE /* maxResults */,
-                ALLOWABLE_ACTIONS);
-
-        List<SimpleObject> jsonResults = new ArrayList<>();
-        for (Order order : orders.results) {
-            jsonResults.add(orderToJson(order));
+        SyncPageCollector<Order> collector = new SyncPageCollector<Order>(budget) {
+            @Override protected SimpleObject toJson(Order order) {
+                return orderToJson(order);
+            }
+        };
+        try {
+            buendiaService.streamOrdersModifiedAtOrAfter(
+                    syncToken,
+                    syncToken != null /* includeVoided */,
+                    budget.maxResults,
+                    ALLOWABLE_ACTIONS,
+                    collector);
+        } catch (IOException e) {
+            // Can't happen; the collector only writes to memory.
+            throw new RuntimeException(e);
         }
-        SyncToken newToken =
-                SyncTokenUtils.clampSyncTokenToBufferedRequestTime(orders.syncToken, requestTime);
-        // If we fetched a full page, there's probably more data available.
-        boolean more = orders.results.size() == MAX_ORDERS_PER_PAGE;
-        return ResponseUtil.createIncrementalSyncResults(jsonResults, newToken, more);
+        return collector.toResponse(requestTime);
     }
 
     /** Serializes an order to JSON. */
-    private static SimpleObject orderToJson(Order order) {
+    public static SimpleObject orderToJson(Order order) {
         // The UUID we send to the client is actually the UUID of the order at the head of the
         // revision chain...
-        Order rootOrder = Utils.getRootOrder(order);
+        String rootUuid = OrderChainIndex.INSTANCE.getRootUuid(order);
         // but the data we supply comes from the latest revision in the chain.
-        order = getLatestVersion(rootOrder);
+        order = getLatestVersion(order);
 
         SimpleObject json = new SimpleObject();
         if (order != null) {
-            json.add(UUID, rootOrder.getUuid());
+            json.add(UUID, rootUuid);
             json.add(VOIDED, order.isVoided());
             if (order.isVoided()) {
                 return json;
@@ -218,6 +221,7 @@ public class OrderResource implements
     private Object createInner(SimpleObject json) throws ResponseException {
         Order order = jsonToOrder(json);
         orderService.saveOrder(order, null);
+        SyncChangeNotifier.INSTANCE.notifyChanged();
         return orderToJson(order);
     }
 
@@ -235,36 +239,15 @@ public class OrderResource implements
      * using {@link OrderService#getRevisionOrder(Order)} because {@code getRevisionOrder(Order)}
      * only gets orders that have an action of {@link org.openmrs.Order.Action#REVISE}. To use
      * {@code REVISE}, the previous order needs to have not expired, which we can't guarantee.
-     * </ul>
+     * The chain is looked up in the {@link OrderChainIndex}.
      */
     public static Order getLatestVersion(Order order) {
-        // Construct a map of forward pointers using the backward pointers from getPreviousOrder().
-        Map<String, String> nextOrderUuids = new HashMap<>();
-        for (Order o : Context.getOrderService().getAllOrdersByPatient(order.getPatient())) {
-            Order prev = o.getPreviousOrder();
-            if (prev != null) {
-                nextOrderUuids.put(prev.getUuid(), o.getUuid());
-            }
-        }
-
-        // Walk forward until the end of the chain.
-        String uuid = order.getUuid();
-        String nextUuid = nextOrderUuids.get(uuid);
-        while (nextUuid != null) {
-            uuid = nextUuid;
-            nextUuid = nextOrderUuids.get(uuid);
-        }
-        return Context.getOrderService().getOrderByUuid(uuid);
+        return OrderChainIndex.INSTANCE.getLatestVersion(order);
     }
 
+    /** Finds the first order in the chain containing the given order. */
     public static Order getEarliestVersion(Order order) {
-        while (true) {
-            Order prevOrder = order.getPreviousOrder();
-            if (prevOrder == null) {
-                return order;
-            }
-            order = prevOrder;
-        }
+        return OrderChainIndex.INSTANCE.getRoot(order);
     }
 
     /**
@@ -489,6 +472,8 @@ public class OrderResource implements
         }
 
         orderService.saveOrder(revisedOrder, null);
+        OrderChainIndex.INSTANCE.addRevision(revisedOrder);
+        SyncChangeNotifier.INSTANCE.notifyChanged();
         return orderToJson(revisedOrder);
     }
 
@@ -538,6 +523,7 @@ public class OrderResource implements
                     "Voided by Buendia Android client in delete request");
             orderToVoid = orderToVoid.getPreviousOrder();
         } while (orderToVoid != null);
+        SyncChangeNotifier.INSTANCE.notifyChanged();
     }
 
     private static boolean orderHasExpired(Order order) {
@@ -19,7 +19,6 @@ import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.PersonName;
 import org.openmrs.User;
-import org.openmrs.api.LocationService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.webservices.rest.SimpleObject;
@@ -37,9 +36,9 @@ import org.openmrs.module.webservices.rest.web.response.ResponseException;
 import org.openmrs.projectbuendia.Utils;
 import org.projectbuendia.openmrs.api.ProjectBuendiaService;
 import org.projectbuendia.openmrs.api.SyncToken;
-import org.projectbuendia.openmrs.api.db.SyncPage;
 import org.projectbuendia.openmrs.webservices.rest.RestController;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -103,7 +102,8 @@ public class PatientResource implements Listable, Searchable, Retrievable, Creat
         PATIENT_BIRTHDATE_FORMAT.setTimeZone(Utils.UTC);
     }
 
-    private static final int MAX_PATIENTS_PER_PAGE = 500;
+    private static final int DEFAULT_PATIENTS_PER_PAGE = 500;
+    private static final int MAX_PATIENTS_PER_PAGE = 5000;
 
     // Fake values
     private static final User CREATOR = new User(1);
@@ -138,22 +138,26 @@ public class PatientResource implements Listable, Searchable, Retrievable, Creat
 
     private SimpleObject handleSync(RequestContext context) throws ResponseException {
         SyncToken syncToken = RequestUtil.mustParseSyncToken(context);
+        SyncPageBudget budget = SyncPageBudget.fromRequest(
+                context, DEFAULT_PATIENTS_PER_PAGE, MAX_PATIENTS_PER_PAGE);
         Date requestTime = new Date();
 
-        SyncPage<Patient> patients = buendiaService.getPatientsModifiedAtOrAfter(
-                syncToken,
-                syncToken != null /* includeVoided */,
-                MAX_PATIENTS_PER_PAGE /* maxResults */);
-
-        List<SimpleObject> jsonResults = new ArrayList<>();
-        for (Patient patient : patients.results) {
-            jsonResults.add(patientToJson(patient));
+        SyncPageCollector<Patient> collector = new SyncPageCollector<Patient>(budget) {
+            @Override protected SimpleObject toJson(Patient patient) {
+                return patientToJson(patient);
+            }
+        };
+        try {
+            buendiaService.streamPatientsModifiedAtOrAfter(
+                    syncToken,
+                    syncToken != null /* includeVoided */,
+                    budget.maxResults,
+                    collector);
+        } catch (IOException e) {
+            // Can't happen; the collector only writes to memory.
+            throw new RuntimeException(e);
         }
-        SyncToken newToken =
-                SyncTokenUtils.clampSyncTokenToBufferedRequestTime(patients.syncToken, requestTime);
-        // If we fetched a full page, there's probably more data available.
-        boolean more = patients.results.size() == MAX_PATIENTS_PER_PAGE;
-        return ResponseUtil.createIncrementalSyncResults(jsonResults, newToken, more);
+        return collector.toResponse(requestTime);
     }
 
     // TODO: consolidate the incremental sync timestamping / wrapper logic for this and
@@ -168,7 +172,7 @@ public class PatientResource implements Listable, Searchable, Retrievable, Creat
         return wrapper;
     }
 
-    protected static SimpleObject patientToJson(Patient patient) {
+    public static SimpleObject patientToJson(Patient patient) {
         SimpleObject jsonForm = new SimpleObject();
 
         jsonForm.add(UUID, patient.getUuid());
@@ -202,14 +206,13 @@ public class PatientResource implements Listable, Searchable, Retrievable, Creat
         String assignedLocation = DbUtil.getPersonAttributeValue(
             patient, DbUtil.getAssignedLocationAttributeType());
         if (assignedLocation != null) {
-            LocationService locationService = Context.getLocationService();
-            Location location = locationService.getLocation(
+            LocationTree.Node location = LocationTree.get().getById(
                 Integer.valueOf(assignedLocation));
             if (location != null) {
                 SimpleObject locationJson = new SimpleObject();
-                locationJson.add(UUID, location.getUuid());
-                if (location.getParentLocation() != null) {
-                    locationJson.add(PARENT_UUID, location.getParentLocation().getUuid());
+                locationJson.add(UUID, location.uuid);
+                if (location.parentUuid != null) {
+                    locationJson.add(PARENT_UUID, location.parentUuid);
                 }
                 jsonForm.add(ASSIGNED_LOCATION, locationJson);
             }
@@ -272,6 +275,7 @@ public class PatientResource implements Listable, Searchable, Retrievable, Creat
             patient = jsonToPatient(json);
             patientService.savePatient(patient);
         }
+        SyncChangeNotifier.INSTANCE.notifyChanged();
         // Observation for first symptom date
         ObservationsHandler.addEncounter(
             (List) json.get("observations"), null,
@@ -471,6 +475,7 @@ public class PatientResource implements Listable, Searchable, Retrievable, Creat
         }
 
         applyEdits(patient, simpleObject);
+        SyncChangeNotifier.INSTANCE.notifyChanged();
         return patientToJson(patient);
     }
 
@@ -15,20 +15,34 @@ import org.apache.commons.lang.exception.ExceptionUtils;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 
 import java.io.File;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletRequest;
 
-/** Logs REST API requests in detail, with timings, to a directory of log files. */
+/**
+ * Logs REST API requests in detail, with timings, to a directory of log files, one per client
+ * address.  Inputs and results are logged as short summaries, so that logging a large sync
+ * response doesn't mean serializing it a second time.
+ */
 public class RequestLogger {
     public static final RequestLogger LOGGER = new RequestLogger("/var/log/large/requests");
 
+    /** The longest input or result summary that we log, in characters. */
+    static final int MAX_SUMMARY_LENGTH = 2000;
+    /** The number of elements of a collection that a summary shows. */
+    static final int MAX_SUMMARY_ITEMS = 10;
+    /** How deeply a summary descends into nested maps and collections. */
+    static final int MAX_SUMMARY_DEPTH = 3;
+
     /** The directory under which we write log files. */
     String dir;
 
     /** Map of log filenames to Logger objects. */
-    Map<String, Logger> loggers = new HashMap<>();
+    ConcurrentMap<String, Logger> loggers = new ConcurrentHashMap<>();
 
     public RequestLogger(String dir) {
         new File(dir).mkdirs();
@@ -39,10 +53,11 @@ public class RequestLogger {
         request(context, obj, method, null);
     }
 
-    /** Emits a "start" line for an incoming request. */
+    /** Emits a "start" line for an incoming request, and starts timing it for {@link Metrics}. */
     public void request(RequestContext context, Object obj, String method, Object input) {
+        Metrics.INSTANCE.start(Metrics.getEndpointName(obj, method));
         request(context, obj.getClass().getName() + "." + method,
-            input == null ? "" : "(" + input + ")");
+            input == null ? "" : "(" + summarize(input) + ")");
     }
 
     /** Emits a "start" line for an incoming request. */
@@ -63,16 +78,28 @@ public class RequestLogger {
 
     /** Gets or creates the Logger for a given filename. */
     protected Logger getLogger(String filename) {
-        if (!loggers.containsKey(filename)) {
-            loggers.put(filename, new Logger(dir + "/" + filename));
+        Logger logger = loggers.get(filename);
+        if (logger == null) {
+            logger = new Logger(dir + "/" + filename);
+            Logger existing = loggers.putIfAbsent(filename, logger);
+            if (existing != null) logger = existing;
         }
-        return loggers.get(filename);
+        return logger;
     }
 
-    /** Emits an "end" line for a successful reply. */
+    /**
+     * Emits an "end" line for a successful reply, and records its latency in {@link Metrics},
+     * along with the number of results if the result is a list of results.
+     */
     public void reply(RequestContext context, Object obj, String method, Object result) {
+        String endpoint = Metrics.getEndpointName(obj, method);
+        Metrics.INSTANCE.finish(endpoint, "ok");
+        Object results = result instanceof Map ? ((Map<?, ?>) result).get("results") : null;
+        if (results instanceof Collection) {
+            Metrics.INSTANCE.recordRows(endpoint, ((Collection<?>) results).size());
+        }
         reply(context, obj.getClass().getName() + "." + method,
-            result == null ? "" : "" + result);
+            result == null ? "" : summarize(result));
     }
 
     /** Emits an "end" line for a successful reply. */
@@ -93,8 +120,9 @@ public class RequestLogger {
         getLogger(filename).end(key, message);
     }
 
-    /** Emits an "end" line when an exception occurs. */
+    /** Emits an "end" line when an exception occurs, and records it in {@link Metrics}. */
     public void error(RequestContext context, Object obj, String method, Exception e) {
+        Metrics.INSTANCE.finish(Metrics.getEndpointName(obj, method), "error");
         error(context, obj.getClass().getName() + "." + method, e);
     }
 
@@ -108,4 +136,60 @@ public class RequestLogger {
         } catch (Exception e) {
         }
     }
+
+    /**
+     * Describes an input or result briefly.  Maps and collections are walked only as far as
+     * MAX_SUMMARY_DEPTH and MAX_SUMMARY_ITEMS, and the whole summary is cut off at
+     * MAX_SUMMARY_LENGTH, so the cost doesn't grow with the size of the object.
+     */
+    static String summarize(Object obj) {
+        StringBuilder sb = new StringBuilder();
+        appendSummary(sb, obj, 0);
+        if (sb.length() > MAX_SUMMARY_LENGTH) {
+            sb.setLength(MAX_SUMMARY_LENGTH);
+            sb.append("...");
+        }
+        return sb.toString();
+    }
+
+    private static void appendSummary(StringBuilder sb, Object obj, int depth) {
+        if (sb.length() > MAX_SUMMARY_LENGTH) return;
+        if (obj instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) obj;
+            if (depth >= MAX_SUMMARY_DEPTH) {
+                sb.append("{").append(map.size()).append(" entries}");
+                return;
+            }
+            sb.append("{");
+            String separator = "";
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (sb.length() > MAX_SUMMARY_LENGTH) return;
+                sb.append(separator).append(entry.getKey()).append("=");
+                appendSummary(sb, entry.getValue(), depth + 1);
+                separator = ", ";
+            }
+            sb.append("}");
+        } else if (obj instanceof Collection) {
+            Collection<?> collection = (Collection<?>) obj;
+            if (depth >= MAX_SUMMARY_DEPTH) {
+                sb.append("[").append(collection.size()).append(" items]");
+                return;
+            }
+            sb.append("[");
+            Iterator<?> items = collection.iterator();
+            for (int i = 0; i < MAX_SUMMARY_ITEMS && items.hasNext(); i++) {
+                if (sb.length() > MAX_SUMMARY_LENGTH) return;
+                sb.append(i > 0 ? ", " : "");
+                appendSummary(sb, items.next(), depth + 1);
+            }
+            if (items.hasNext()) {
+                sb.append(", ... (").append(collection.size()).append(" items)");
+            }
+            sb.append("]");
+        } else {
+            String text = String.valueOf(obj);
+            int room = Math.max(0, MAX_SUMMARY_LENGTH + 1 - sb.length());
+            sb.append(text.length() > room ? text.substring(0, room) : text);
+        }
+    }
 }
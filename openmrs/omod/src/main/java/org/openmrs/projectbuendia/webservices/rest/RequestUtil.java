@@ -17,10 +17,14 @@ import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.response.IllegalPropertyException;
 import org.openmrs.projectbuendia.Utils;
 import org.projectbuendia.openmrs.api.SyncToken;
+import org.projectbuendia.openmrs.sync.SyncType;
 
 import javax.annotation.Nullable;
 import java.text.ParseException;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -89,4 +93,36 @@ public class RequestUtil {
                     "ensure that the supplied sync token originated from the server");
         }
     }
+
+    /**
+     * The name of the HTTP parameter carrying the sync token for a given type in requests that
+     * cover several types, e.g. "observations" for {@link SyncType#OBSERVATIONS}.
+     */
+    public static String getSyncTypeParam(SyncType type) {
+        return type.name().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Obtains a {@link SyncToken} for each {@link SyncType} whose parameter (see
+     * {@link #getSyncTypeParam(SyncType)}) is present in a request. An empty parameter maps to
+     * {@code null}, i.e. sync from the beginning; types whose parameter is absent are omitted.
+     * @throws IllegalPropertyException if any of the sync tokens fails to parse.
+     */
+    public static Map<SyncType, SyncToken> mustParseSyncTokensByType(RequestContext context)
+            throws IllegalPropertyException {
+        Map<SyncType, SyncToken> tokens = new EnumMap<>(SyncType.class);
+        for (SyncType type : SyncType.values()) {
+            String param = context.getParameter(getSyncTypeParam(type));
+            if (param == null) {
+                continue;
+            }
+            try {
+                tokens.put(type, param.isEmpty() ? null : SyncTokenUtils.jsonToSyncToken(param));
+            } catch (JsonMappingException | JsonParseException | ParseException e) {
+                throw new IllegalPropertyException("Sync token for " + getSyncTypeParam(type)
+                        + " invalid, ensure that it originated from the server");
+            }
+        }
+        return tokens;
+    }
 }
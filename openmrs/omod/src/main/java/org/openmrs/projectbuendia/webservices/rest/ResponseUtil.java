@@ -40,4 +40,14 @@ public class ResponseUtil {
                 .add("syncToken", SyncTokenUtils.syncTokenToJson(syncToken))
                 .add("more", more);
     }
+
+    /**
+     * Like {@link #createIncrementalSyncResults(List, SyncToken, boolean)}, but also reports why
+     * the server stopped filling the page; see {@link SyncPageBudget}.
+     */
+    public static SimpleObject createIncrementalSyncResults(
+            List<SimpleObject> results, SyncToken syncToken, boolean more, String stopReason) {
+        return createIncrementalSyncResults(results, syncToken, more)
+                .add("stopReason", stopReason);
+    }
 }
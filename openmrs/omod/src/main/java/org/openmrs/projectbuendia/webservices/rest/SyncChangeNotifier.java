@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+/**
+ * An in-process signal that synced data may have changed, so that clients can wait for changes
+ * instead of polling for them. The write paths in this module call {@link #notifyChanged()}
+ * after saving; long-poll requests wait in {@link #awaitChange(long, long)} and then check the
+ * database to see whether anything they care about has actually changed.
+ * <p>
+ * This is only a hint: writes that don't go through this module (e.g. the OpenMRS web UI) don't
+ * notify, so waiters should also re-check the database periodically.
+ */
+public class SyncChangeNotifier {
+    public static final SyncChangeNotifier INSTANCE = new SyncChangeNotifier();
+
+    private final Object lock = new Object();
+    /** Incremented on every change. Guarded by {@link #lock}. */
+    private long version = 0;
+
+    /** Returns the current version, to be passed to {@link #awaitChange(long, long)}. */
+    public long getVersion() {
+        synchronized (lock) {
+            return version;
+        }
+    }
+
+    /** Wakes up every waiting request. */
+    public void notifyChanged() {
+        synchronized (lock) {
+            version++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until there has been a change since {@code sinceVersion}, or until the timeout.
+     * @return the current version, which equals {@code sinceVersion} if the wait timed out.
+     */
+    public long awaitChange(long sinceVersion, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (lock) {
+            while (version == sinceVersion) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                lock.wait(remaining);
+            }
+            return version;
+        }
+    }
+}
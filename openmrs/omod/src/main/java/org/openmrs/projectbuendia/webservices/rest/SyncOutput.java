@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+
+/**
+ * The streaming operations used to write a sync response, so that the same code can produce
+ * either JSON or the {@link CompactSyncOutput} binary encoding. The method names and semantics
+ * follow Jackson's {@link JsonGenerator}.
+ */
+public interface SyncOutput {
+    void writeStartObject() throws IOException;
+
+    void writeEndObject() throws IOException;
+
+    void writeObjectFieldStart(String name) throws IOException;
+
+    void writeArrayFieldStart(String name) throws IOException;
+
+    void writeEndArray() throws IOException;
+
+    /** Writes a tree of maps, collections, strings, numbers, booleans and nulls. */
+    void writeObject(Object value) throws IOException;
+
+    void writeStringField(String name, String value) throws IOException;
+
+    void writeBooleanField(String name, boolean value) throws IOException;
+
+    /** Finishes writing and flushes all output. */
+    void close() throws IOException;
+
+    /** Writes JSON using a {@link JsonGenerator}. */
+    class Json implements SyncOutput {
+        public static final String MEDIA_TYPE = "application/json";
+
+        private final JsonGenerator generator;
+
+        public Json(JsonGenerator generator) {
+            this.generator = generator;
+        }
+
+        @Override public void writeStartObject() throws IOException {
+            generator.writeStartObject();
+        }
+
+        @Override public void writeEndObject() throws IOException {
+            generator.writeEndObject();
+        }
+
+        @Override public void writeObjectFieldStart(String name) throws IOException {
+            generator.writeObjectFieldStart(name);
+        }
+
+        @Override public void writeArrayFieldStart(String name) throws IOException {
+            generator.writeArrayFieldStart(name);
+        }
+
+        @Override public void writeEndArray() throws IOException {
+            generator.writeEndArray();
+        }
+
+        @Override public void writeObject(Object value) throws IOException {
+            generator.writeObject(value);
+        }
+
+        @Override public void writeStringField(String name, String value) throws IOException {
+            generator.writeStringField(name, value);
+        }
+
+        @Override public void writeBooleanField(String name, boolean value) throws IOException {
+            generator.writeBooleanField(name, value);
+        }
+
+        @Override public void close() throws IOException {
+            generator.close();
+        }
+    }
+}
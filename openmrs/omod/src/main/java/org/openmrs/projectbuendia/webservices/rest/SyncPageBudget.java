@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.module.webservices.rest.web.response.IllegalPropertyException;
+import org.projectbuendia.openmrs.api.SyncToken;
+
+import javax.annotation.Nullable;
+
+/**
+ * Decides when to stop filling a page of incremental sync results, and records why.
+ * <p>
+ * A client may ask for up to {@code limit} records, to be produced within {@code budget_ms}
+ * milliseconds. The server keeps adding records to the page until it reaches either limit, or
+ * runs out of records. This lets a fresh device pull data as fast as the server can produce it,
+ * while a loaded server returns shorter pages rather than timing out.
+ */
+public class SyncPageBudget {
+    public static final String LIMIT_PARAM = "limit";
+    public static final String BUDGET_PARAM = "budget_ms";
+
+    /** The page was cut short because it reached the requested number of records. */
+    public static final String STOP_REASON_LIMIT = "limit";
+    /** The page was cut short because producing it took longer than the time budget. */
+    public static final String STOP_REASON_BUDGET = "budget";
+    /** The page contains every remaining record. */
+    public static final String STOP_REASON_END = "end";
+
+    static final long DEFAULT_BUDGET_MILLIS = 5000;
+    static final long MAX_BUDGET_MILLIS = 30000;
+
+    public final int maxResults;
+    public final long budgetMillis;
+    private final long startMillis;
+
+    private int count = 0;
+    @Nullable private SyncToken lastPosition = null;
+    private boolean budgetExhausted = false;
+
+    public SyncPageBudget(int maxResults, long budgetMillis) {
+        this.maxResults = maxResults;
+        this.budgetMillis = budgetMillis;
+        this.startMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Creates a budget from the "limit" and "budget_ms" request parameters, clamping each to a
+     * sensible range.
+     * @param defaultMaxResults the page size to use if the client doesn't ask for one.
+     * @param maxMaxResults     the largest page size a client may ask for.
+     */
+    public static SyncPageBudget fromRequest(
+            RequestContext context, int defaultMaxResults, int maxMaxResults)
+            throws IllegalPropertyException {
+        long limit = parseLongParam(context, LIMIT_PARAM, defaultMaxResults);
+        long budget = parseLongParam(context, BUDGET_PARAM, DEFAULT_BUDGET_MILLIS);
+        return new SyncPageBudget(
+                (int) Math.max(1, Math.min(limit, maxMaxResults)),
+                Math.max(1, Math.min(budget, MAX_BUDGET_MILLIS)));
+    }
+
+    private static long parseLongParam(RequestContext context, String name, long defaultValue)
+            throws IllegalPropertyException {
+        String param = context.getParameter(name);
+        if (param == null || param.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(param);
+        } catch (NumberFormatException e) {
+            throw new IllegalPropertyException(name + " must be an integer, not \"" + param + "\"");
+        }
+    }
+
+    /**
+     * Records that a record has been added to the page.
+     * @return {@code true} if there is room for another record within the budget.
+     */
+    public boolean recordRow(SyncToken position) {
+        count++;
+        lastPosition = position;
+        if (count >= maxResults) {
+            return false;
+        }
+        if (System.currentTimeMillis() - startMillis >= budgetMillis) {
+            budgetExhausted = true;
+            return false;
+        }
+        return true;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /** The position of the last record added, or {@code null} if the page is empty. */
+    @Nullable public SyncToken getLastPosition() {
+        return lastPosition;
+    }
+
+    /** Returns one of the {@code STOP_REASON_*} constants. */
+    public String getStopReason() {
+        if (count >= maxResults) {
+            return STOP_REASON_LIMIT;
+        }
+        return budgetExhausted ? STOP_REASON_BUDGET : STOP_REASON_END;
+    }
+
+    /** Whether the client should expect more records if it asks again immediately. */
+    public boolean hasMore() {
+        return !STOP_REASON_END.equals(getStopReason());
+    }
+}
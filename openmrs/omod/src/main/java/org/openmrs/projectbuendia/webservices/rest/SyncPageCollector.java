@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.projectbuendia.openmrs.api.SyncToken;
+import org.projectbuendia.openmrs.api.db.SyncRowHandler;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Converts streamed sync records to JSON and collects them into a page, stopping when the
+ * page's {@link SyncPageBudget} is used up.
+ */
+public abstract class SyncPageCollector<T> implements SyncRowHandler<T> {
+    private final SyncPageBudget budget;
+    private final List<SimpleObject> results = new ArrayList<>();
+
+    public SyncPageCollector(SyncPageBudget budget) {
+        this.budget = budget;
+    }
+
+    protected abstract SimpleObject toJson(T item);
+
+    @Override public boolean handle(T item, SyncToken position) {
+        results.add(toJson(item));
+        return budget.recordRow(position);
+    }
+
+    /** Builds the response for the collected page; see {@link ResponseUtil}. */
+    public SimpleObject toResponse(Date requestTime) {
+        SyncToken newToken = SyncTokenUtils.clampSyncTokenToBufferedRequestTime(
+                budget.getLastPosition(), requestTime);
+        return ResponseUtil.createIncrementalSyncResults(
+                results, newToken, budget.hasMore(), budget.getStopReason());
+    }
+}
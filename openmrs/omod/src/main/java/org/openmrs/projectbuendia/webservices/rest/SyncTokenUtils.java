@@ -70,6 +70,24 @@ public class SyncTokenUtils {
         }
     }
 
+    /**
+     * Returns true if the record at {@code position} comes after {@code token}, i.e. if a sync
+     * request starting from {@code token} would return it. A null token precedes everything.
+     */
+    public static boolean isAfter(SyncToken position, @Nullable SyncToken token) {
+        if (token == null) {
+            return true;
+        }
+        long positionTime = position.greaterThanOrEqualToTimestamp.getTime();
+        long tokenTime = token.greaterThanOrEqualToTimestamp.getTime();
+        if (positionTime != tokenTime) {
+            return positionTime > tokenTime;
+        }
+        String positionUuid = position.greaterThanUuid == null ? "" : position.greaterThanUuid;
+        String tokenUuid = token.greaterThanUuid == null ? "" : token.greaterThanUuid;
+        return positionUuid.compareTo(tokenUuid) > 0;
+    }
+
     private static final long REQUEST_BUFFER_WINDOW = 2000;
 
     /**
@@ -34,6 +34,7 @@ import org.openmrs.module.webservices.rest.web.resource.api.Retrievable;
 import org.openmrs.module.webservices.rest.web.resource.api.Searchable;
 import org.openmrs.module.webservices.rest.web.response.ObjectNotFoundException;
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
+import org.openmrs.projectbuendia.ProviderUserMap;
 import org.projectbuendia.openmrs.webservices.rest.RestController;
 
 import java.util.ArrayList;
@@ -215,6 +216,7 @@ public class UserResource implements Listable, Searchable, Retrievable, Creatabl
         provider.setPerson(person);
         provider.setName(fullName);
         providerService.saveProvider(provider);
+        ProviderUserMap.INSTANCE.add(user, provider);
 
         log.info("Created user " + fullName);
 
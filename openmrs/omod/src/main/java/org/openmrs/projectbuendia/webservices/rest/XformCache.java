@@ -0,0 +1,155 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Form;
+import org.openmrs.api.context.Context;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the ODK XML rendered for each form, as building it takes seconds of DOM work per form.
+ * An entry is reused while the {@link ContentVersion} is unchanged, which covers the forms, their
+ * fields and the concept names in the XML, and, for forms that list the providers, until
+ * {@link #invalidateProviders} is called.  Both are kept in memory, so a hit makes no queries.
+ * <p>
+ * The XML depends on the locale used to name concepts, so entries are per locale. A background
+ * task renders the published forms at startup and then re-renders any that have gone stale, in
+ * the default locale that the daemon user sees, which is the one clients normally ask for.
+ */
+public class XformCache {
+    private static final Log log = LogFactory.getLog(XformCache.class);
+    private static final int REFRESH_INTERVAL_SECONDS = 60;
+    private static final XformCache INSTANCE = new XformCache();
+
+    /** The rendered XML of a form, and whether it lists the providers. */
+    static class Rendering {
+        final String xml;
+        final boolean includesProviders;
+
+        Rendering(String xml, boolean includesProviders) {
+            this.xml = xml;
+            this.includesProviders = includesProviders;
+        }
+    }
+
+    /** Renders a form. */
+    interface Renderer {
+        Rendering render(Form form) throws Exception;
+    }
+
+    private static class Entry {
+        final String contentVersion;
+        final Long providerVersion;  // null if the form doesn't list providers
+        final Rendering rendering;
+
+        Entry(String contentVersion, Long providerVersion, Rendering rendering) {
+            this.contentVersion = contentVersion;
+            this.providerVersion = providerVersion;
+            this.rendering = rendering;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    /** Incremented whenever a provider is added or changed. */
+    private final AtomicLong providerVersion = new AtomicLong();
+    private ScheduledExecutorService executor;
+
+    public static XformCache getInstance() {
+        return INSTANCE;
+    }
+
+    /** Starts warming and refreshing the cache periodically. Does nothing if already started. */
+    public synchronized void start() {
+        if (executor != null && !executor.isShutdown()) {
+            return;
+        }
+        executor = DaemonTasks.newScheduler("buendia-xform-cache");
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                DaemonTasks.runAndWait("refresh xform cache", new Runnable() {
+                    @Override public void run() {
+                        refresh();
+                    }
+                });
+            }
+        }, 0, REFRESH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /** Marks the renderings that list the providers as stale; see ProviderChangeAdvice. */
+    public void invalidateProviders() {
+        providerVersion.incrementAndGet();
+    }
+
+    /** A number that changes whenever {@link #invalidateProviders} is called. */
+    public long getProviderVersion() {
+        return providerVersion.get();
+    }
+
+    /** Returns the rendering of a form in the current locale, rendering it only if stale. */
+    Rendering get(Form form, Renderer renderer) throws Exception {
+        String key = getKey(form);
+        // Read the versions before rendering, so that a change made during rendering makes
+        // the entry stale rather than being silently missed.
+        String contentVersion = ContentVersion.INSTANCE.get();
+        long providerVersion = this.providerVersion.get();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.contentVersion.equals(contentVersion)
+            && (entry.providerVersion == null || entry.providerVersion == providerVersion)) {
+            return entry.rendering;
+        }
+        Rendering rendering = renderer.render(form);
+        entries.put(key, new Entry(
+            contentVersion, rendering.includesProviders ? providerVersion : null, rendering));
+        return rendering;
+    }
+
+    /** Renders any stale published forms and drops the entries for forms no longer published. */
+    void refresh() {
+        Set<String> keys = new HashSet<>();
+        for (Form form : Context.getFormService().getAllForms()) {
+            if (form.getPublished()) {
+                keys.add(getKey(form));
+                try {
+                    get(form, XformResource.RENDERER);
+                } catch (Exception e) {
+                    log.error("Failed to render form " + form.getUuid(), e);
+                }
+            }
+        }
+        String suffix = "|" + Context.getLocale();
+        for (String key : entries.keySet()) {
+            if (key.endsWith(suffix) && !keys.contains(key)) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    private static String getKey(Form form) {
+        return form.getUuid() + "|" + Context.getLocale();
+    }
+}
@@ -132,6 +132,7 @@ public class XformInstanceResource implements Creatable {
             String xml = completeXform(convertUuidsToIds(post));
             File file = File.createTempFile("projectbuendia", null);
             processor.processXForm(xml, file.getAbsolutePath(), true, context.getRequest());
+            SyncChangeNotifier.INSTANCE.notifyChanged();
         } catch (IOException e) {
             throw new GenericRestException("Error storing xform data", e);
         } catch (ResponseException e) {
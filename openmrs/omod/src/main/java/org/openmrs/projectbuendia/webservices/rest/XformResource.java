@@ -57,6 +57,18 @@ public class XformResource extends AbstractReadOnlyResource<Form> {
     private static final String HTML_NAMESPACE = "http://www.w3.org/1999/xhtml";
     private static final String XFORMS_NAMESPACE = "http://www.w3.org/2002/xforms";
 
+    /** Builds the ODK XML for a form; {@link XformCache} calls this when its copy is stale. */
+    static final XformCache.Renderer RENDERER = new XformCache.Renderer() {
+        @Override public XformCache.Rendering render(Form form) throws Exception {
+            // TODO: Use description instead of name?
+            FormData formData = BuendiaXformBuilderEx.buildXform(
+                form, new BuendiaXformCustomizer());
+            String xml = convertToOdkCollect(formData.xml, form.getName());
+            xml = removeRelationshipNodes(xml);
+            return new XformCache.Rendering(xml, formData.includesProviders);
+        }
+    };
+
     @SuppressWarnings("unused")
     private final Log log = LogFactory.getLog(getClass());
 
@@ -81,7 +93,7 @@ public class XformResource extends AbstractReadOnlyResource<Form> {
      * </ul>
      * <p/>
      * If the query parameter "?v=full" is present, also adds the "xml" field
-     * containing the XML of the form model definition.
+     * containing the XML of the form model definition, served from {@link XformCache}.
      * @param context      the request context; specify "v=full" in the URL params
      *                     to include the XML for the form model in the response
      * @param snapshotTime ignored
@@ -97,13 +109,9 @@ public class XformResource extends AbstractReadOnlyResource<Form> {
         boolean includesProviders = false;
         if (context.getRepresentation() == Representation.FULL) {
             try {
-                // TODO: Use description instead of name?
-                FormData formData = BuendiaXformBuilderEx.buildXform(
-                    form, new BuendiaXformCustomizer());
-                String xml = convertToOdkCollect(formData.xml, form.getName());
-                includesProviders = formData.includesProviders;
-                xml = removeRelationshipNodes(xml);
-                json.add("xml", xml);
+                XformCache.Rendering rendering = XformCache.getInstance().get(form, RENDERER);
+                includesProviders = rendering.includesProviders;
+                json.add("xml", rendering.xml);
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
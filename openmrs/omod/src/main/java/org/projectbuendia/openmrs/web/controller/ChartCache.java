@@ -0,0 +1,591 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.web.controller;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.Form;
+import org.openmrs.FormField;
+import org.openmrs.Obs;
+import org.openmrs.Order;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.Person;
+import org.openmrs.api.PatientService;
+import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.ClientConceptNamer;
+import org.openmrs.projectbuendia.Utils;
+import org.openmrs.projectbuendia.VisitObsValue;
+import org.openmrs.projectbuendia.webservices.rest.ChartResource;
+import org.openmrs.projectbuendia.webservices.rest.ContentVersion;
+import org.openmrs.projectbuendia.webservices.rest.DaemonTasks;
+import org.openmrs.projectbuendia.webservices.rest.DbUtil;
+import org.openmrs.projectbuendia.webservices.rest.OrderResource;
+import org.openmrs.projectbuendia.webservices.rest.SyncChangeNotifier;
+import org.openmrs.projectbuendia.webservices.rest.SyncTokenUtils;
+import org.openmrs.util.FormUtil;
+import org.openmrs.util.OpenmrsUtil;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.SyncToken;
+import org.projectbuendia.openmrs.sync.SyncType;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the rendered printable section of every patient (see {@link ChartRenderer}) in a file on
+ * disk, so that printing the charts for the whole ward only has to concatenate them.  Only the
+ * MSF patient ID of each patient is kept in memory, to put the sections in order.
+ * <p>
+ * A patient's section is re-rendered when the obs, order or patient sync map shows that the
+ * patient's data has changed; all sections are re-rendered when the {@link ContentVersion}
+ * changes, as the chart layout and concept names come from the profile.  A background task keeps
+ * the sections up to date, but waits until no data has been saved through this module for
+ * QUIET_PERIOD_MILLIS, so that it doesn't compete with clinical work, unless it has already
+ * waited MAX_DEFERRAL_MILLIS.  Printing brings the sections up to date first, which normally
+ * means re-rendering only the few patients changed since the last background refresh.
+ * <p>
+ * The Hibernate session is cleared after each batch of patients is loaded, so that neither the
+ * session nor the cache grows with the number of patients.
+ */
+public class ChartCache {
+    private static final Log log = LogFactory.getLog(ChartCache.class);
+
+    static final long CHECK_INTERVAL_SECONDS = 60;
+    static final long QUIET_PERIOD_MILLIS = 2 * 60 * 1000;
+    static final long MAX_DEFERRAL_MILLIS = 30 * 60 * 1000;
+
+    /** Patients whose data is loaded together, with one query for each kind of data. */
+    static final int BATCH_SIZE = 50;
+    /** Sections being rendered, at most, before waiting for the oldest. */
+    static final int MAX_PENDING_SECTIONS = 2 * BATCH_SIZE;
+
+    private static final ChartCache INSTANCE = new ChartCache(
+            new File(OpenmrsUtil.getApplicationDataDirectory(), "buendia/charts"));
+    private static final String SECTION_FILE_SUFFIX = ".html";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String UTF_8 = "UTF-8";
+
+    /** Renders patients' sections; shared by all callers, so that the total is bounded. */
+    private static final ExecutorService RENDER_POOL = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(
+                            runnable, "buendia-chart-renderer-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Use the client (profile) strings if we can. */
+    private static final ClientConceptNamer NAMER =
+            new ClientConceptNamer(ClientConceptNamer.DEFAULT_CLIENT);
+
+    private static final VisitObsValue.ObsValueVisitor<String> STRING_VISITOR =
+        new VisitObsValue.ObsValueVisitor<String>() {
+            @Override public String visitCoded(Concept value) {
+                return NAMER.getClientName(value);
+            }
+
+            @Override public String visitNumeric(Double value) {
+                return Double.toString(value);
+            }
+
+            @Override public String visitBoolean(Boolean value) {
+                return Boolean.toString(value);
+            }
+
+            @Override public String visitText(String value) {
+                return value;
+            }
+
+            @Override public String visitDate(Date d) {
+                return Utils.YYYYMMDD_UTC_FORMAT.format(d);
+            }
+
+            @Override public String visitDateTime(Date d) {
+                return Utils.SPREADSHEET_FORMAT.format(d);
+            }
+        };
+
+    /** Thrown when no profile has been loaded, so there are no charts to render. */
+    static class NoProfileException extends Exception {
+    }
+
+    private final File dir;
+    private final Object lock = new Object();
+    // These fields are guarded by lock.
+    /** The patients that have a section file, and the MSF patient IDs (or null) they sort by. */
+    private final Map<Integer, String> msfIdsByPatientId = new HashMap<>();
+    /** The content version and sync map positions that the sections are up to date with. */
+    private String contentVersion;
+    private SyncToken obsMark;
+    private SyncToken orderMark;
+    private SyncToken patientMark;
+
+    private ScheduledExecutorService executor;
+    // These fields are only used by the executor's thread.
+    private long lastChangeVersion = -1;
+    private long lastChangeMillis;
+    private long lastRefreshMillis;
+
+    ChartCache(File dir) {
+        this.dir = dir;
+    }
+
+    public static ChartCache getInstance() {
+        return INSTANCE;
+    }
+
+    /** Starts refreshing the cache in the background. Does nothing if already started. */
+    public synchronized void start() {
+        if (executor != null && !executor.isShutdown()) {
+            return;
+        }
+        executor = DaemonTasks.newScheduler("buendia-chart-cache");
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                refreshIfQuiet();
+            }
+        }, 0, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Brings the sections up to date and returns their files in order of MSF patient ID.  Read
+     * them with {@link #writeSection}, as a file disappears if its patient is voided meanwhile.
+     */
+    List<File> getSectionFiles() throws NoProfileException, IOException {
+        final Map<Integer, String> msfIds;
+        synchronized (lock) {
+            update();
+            msfIds = new HashMap<>(msfIdsByPatientId);
+        }
+        List<Integer> patientIds = new ArrayList<>(msfIds.keySet());
+        Collections.sort(patientIds, new Comparator<Integer>() {
+            @Override public int compare(Integer a, Integer b) {
+                int result = Utils.alphanumericComparator.compare(msfIds.get(a), msfIds.get(b));
+                return result != 0 ? result : a.compareTo(b);
+            }
+        });
+        List<File> files = new ArrayList<>(patientIds.size());
+        for (int patientId : patientIds) {
+            files.add(getSectionFile(patientId));
+        }
+        return files;
+    }
+
+    /** Copies a section file to {@code out}, unless its patient has been voided since. */
+    static void writeSection(File file, Writer out) throws IOException {
+        char[] buffer = new char[8192];
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8)) {
+            int count;
+            while ((count = reader.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        } catch (FileNotFoundException e) {
+            // The patient's section was removed after the list of files was taken.
+        }
+    }
+
+    private void refreshIfQuiet() {
+        long now = System.currentTimeMillis();
+        long changeVersion = SyncChangeNotifier.INSTANCE.getVersion();
+        if (changeVersion != lastChangeVersion) {
+            lastChangeVersion = changeVersion;
+            lastChangeMillis = now;
+        }
+        if (now - lastChangeMillis < QUIET_PERIOD_MILLIS
+            && now - lastRefreshMillis < MAX_DEFERRAL_MILLIS) {
+            return;
+        }
+        lastRefreshMillis = now;
+        DaemonTasks.runAndWait("refresh printable charts", new Runnable() {
+            @Override public void run() {
+                try {
+                    synchronized (lock) {
+                        update();
+                    }
+                } catch (NoProfileException e) {
+                    log.debug("No profile loaded; no charts to render");
+                } catch (IOException e) {
+                    log.error("Failed to refresh the printable charts in " + dir, e);
+                }
+            }
+        });
+    }
+
+    /** Re-renders the sections of all patients, or of those changed since the last update. */
+    private void update() throws NoProfileException, IOException {
+        ProjectBuendiaService service = Context.getService(ProjectBuendiaService.class);
+        PatientService patientService = Context.getPatientService();
+        // Read the positions first, so that anything that changes while we render is caught by
+        // the next update.  Clamping makes up for transactions that commit out of order.
+        Date now = new Date();
+        SyncToken newObsMark = SyncTokenUtils.clampSyncTokenToBufferedRequestTime(
+                service.getHighWaterMark(SyncType.OBSERVATIONS), now);
+        SyncToken newOrderMark = SyncTokenUtils.clampSyncTokenToBufferedRequestTime(
+                service.getHighWaterMark(SyncType.ORDERS), now);
+        SyncToken newPatientMark = SyncTokenUtils.clampSyncTokenToBufferedRequestTime(
+                service.getHighWaterMark(SyncType.PATIENTS), now);
+        String newContentVersion = ContentVersion.INSTANCE.get();
+
+        boolean renderAll = !newContentVersion.equals(contentVersion);
+        List<Integer> patientIds;
+        if (renderAll) {
+            // The existing files are replaced one by one, and any left over are deleted below.
+            msfIdsByPatientId.clear();
+            // The keys are all the unvoided patients, without loading them.
+            patientIds = new ArrayList<>(service.getPatientIdentifiers(
+                    DbUtil.getMsfIdentifierType().getId()).keySet());
+        } else {
+            Set<Integer> changedIds = new HashSet<>(
+                    service.getPatientIdsChangedAfter(obsMark, patientMark));
+            changedIds.addAll(service.getPatientIdsWithOrdersChangedAfter(orderMark));
+            patientIds = new ArrayList<>();
+            for (Integer patientId : changedIds) {
+                Patient patient = patientService.getPatient(patientId);
+                if (patient == null || patient.isVoided()) {
+                    msfIdsByPatientId.remove(patientId);
+                    getSectionFile(patientId).delete();
+                } else {
+                    patientIds.add(patientId);
+                }
+            }
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        if (!patientIds.isEmpty()) {
+            long start = System.currentTimeMillis();
+            render(patientIds);
+            log.info("Rendered printable charts for " + patientIds.size() + " patients in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+        if (renderAll) {
+            deleteUnusedFiles();
+        }
+        contentVersion = newContentVersion;
+        obsMark = newObsMark;
+        orderMark = newOrderMark;
+        patientMark = newPatientMark;
+    }
+
+    /**
+     * Renders the given patients' sections into the cache.  The data for each batch of patients
+     * is loaded on this thread while the sections of the previous batches are rendered on the
+     * pool.
+     */
+    private void render(List<Integer> patientIds) throws NoProfileException, IOException {
+        PatientService patientService = Context.getPatientService();
+        LinkedHashMap<String, List<Concept>> charts = buildChartModel();
+        final List<ChartRenderer.Chart> chartLayout = new ArrayList<>();
+        Set<Integer> chartConceptIds = new HashSet<>();
+        for (Map.Entry<String, List<Concept>> chart : charts.entrySet()) {
+            List<ChartRenderer.Row> rows = new ArrayList<>();
+            for (Concept concept : chart.getValue()) {
+                rows.add(new ChartRenderer.Row(concept.getId(), NAMER.getClientName(concept)));
+                chartConceptIds.add(concept.getId());
+            }
+            chartLayout.add(new ChartRenderer.Chart(chart.getKey(), rows));
+        }
+        Concept orderExecutedConcept = DbUtil.getOrderExecutedConcept();
+
+        Deque<PendingSection> pending = new ArrayDeque<>();
+        try {
+            for (int start = 0; start < patientIds.size(); start += BATCH_SIZE) {
+                List<Patient> batch = new ArrayList<>();
+                for (Integer patientId : patientIds.subList(
+                        start, Math.min(start + BATCH_SIZE, patientIds.size()))) {
+                    Patient patient = patientService.getPatient(patientId);
+                    if (patient != null) {
+                        batch.add(patient);
+                    }
+                }
+                if (batch.isEmpty()) continue;
+                for (final ChartRenderer.PatientData data :
+                        loadBatch(batch, chartConceptIds, orderExecutedConcept)) {
+                    pending.add(new PendingSection(data, RENDER_POOL.submit(
+                            new Callable<String>() {
+                                @Override public String call() {
+                                    return ChartRenderer.render(chartLayout, data);
+                                }
+                            })));
+                }
+                // The snapshots hold everything needed to render the batch, so drop the
+                // entities it loaded rather than let the session grow with every patient.
+                Context.clearSession();
+                while (pending.size() > MAX_PENDING_SECTIONS) {
+                    pending.removeFirst().store();
+                }
+            }
+            while (!pending.isEmpty()) {
+                pending.removeFirst().store();
+            }
+        } finally {
+            for (PendingSection section : pending) {
+                section.html.cancel(true);
+            }
+        }
+    }
+
+    /** A section being rendered on the pool. */
+    private class PendingSection {
+        final ChartRenderer.PatientData data;
+        final Future<String> html;
+
+        PendingSection(ChartRenderer.PatientData data, Future<String> html) {
+            this.data = data;
+            this.html = html;
+        }
+
+        /** Waits for the section and writes it to the patient's file. */
+        void store() throws IOException {
+            String result;
+            try {
+                result = html.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                // Keep the other patients printable; this one is retried when its data changes.
+                log.error("Failed to render the chart for patient " + data.patientId,
+                        e.getCause());
+                result = "<h2>" + data.title + "</h2><hr/>"
+                        + "<b>The chart for this patient could not be rendered</b>";
+            }
+            File file = getSectionFile(data.patientId);
+            File temp = new File(dir, file.getName() + TEMP_FILE_SUFFIX);
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), UTF_8)) {
+                writer.write(result);
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+            msfIdsByPatientId.put(data.patientId, data.msfId);
+        }
+    }
+
+    private File getSectionFile(int patientId) {
+        return new File(dir, patientId + SECTION_FILE_SUFFIX);
+    }
+
+    /** Deletes the files of patients with no section, e.g. left over from before a restart. */
+    private void deleteUnusedFiles() {
+        String[] names = dir.list();
+        for (String name : names != null ? names : new String[0]) {
+            if (name.endsWith(SECTION_FILE_SUFFIX)) {
+                try {
+                    int patientId = Integer.parseInt(
+                            name.substring(0, name.length() - SECTION_FILE_SUFFIX.length()));
+                    if (msfIdsByPatientId.containsKey(patientId)) continue;
+                } catch (NumberFormatException e) {
+                    continue;  // not one of ours
+                }
+            } else if (!name.endsWith(SECTION_FILE_SUFFIX + TEMP_FILE_SUFFIX)) {
+                continue;
+            }
+            new File(dir, name).delete();
+        }
+    }
+
+    private static LinkedHashMap<String, List<Concept>> buildChartModel()
+            throws NoProfileException {
+        LinkedHashMap<String, List<Concept>> charts = new LinkedHashMap<>();
+        String chartName = null;
+        ArrayList<Concept> concepts = null;
+        // Get the first chart. Currently the "first chart" actually contains multiple charts, the
+        // rest of the logic in this method is parsing those.
+        Form form = ChartResource.getCharts(Context.getFormService()).get(0);
+        // Get the structure for that chart.
+        TreeMap<Integer, TreeSet<FormField>> formStructure = FormUtil.getFormStructure(form);
+        TreeSet<FormField> rootNode = formStructure.get(0);
+        for (FormField groupField : rootNode) {
+            if (groupField.getField().getName().equals("[chart_divider]")) {
+                // The first child of the [chart_divider] contains the chart name.
+                chartName = formStructure.get(groupField.getId()).first().getField().getName();
+                concepts = new ArrayList<>();
+                // Chart divider has a subfield "notes" (see profile_apply). We work around that
+                // here by skipping when we find a chart divider.
+                // Chart dividers are a hack anyway.
+                continue;
+            }
+            for (FormField fieldInGroup : formStructure.get(groupField.getId())) {
+                if (chartName == null) {
+                    throw new NoProfileException();
+                }
+                // TODO: if this is bottleneck, use a TreeSet. Suspect it won't be because it's only
+                // called once / export
+                Concept concept = fieldInGroup.getField().getConcept();
+                if (!concepts.contains(concept)) {
+                    concepts.add(concept);
+                }
+            }
+            charts.put(chartName, concepts);
+        }
+        return charts;
+    }
+
+    /**
+     * Takes snapshots of everything needed to render the given patients' sections, using one
+     * query for all their observations and one for all their orders.
+     */
+    private static List<ChartRenderer.PatientData> loadBatch(
+            List<Patient> patients, Set<Integer> chartConceptIds, Concept orderExecutedConcept) {
+        List<Integer> patientIds = new ArrayList<>();
+        for (Patient patient : patients) {
+            patientIds.add(patient.getPatientId());
+        }
+
+        // Observations come back newest first, so each patient's list is too.
+        Map<Integer, List<Obs>> obsByPatientId = new HashMap<>();
+        for (Obs obs : Context.getObsService().getObservations(
+                new ArrayList<Person>(patients), null, null,
+                null, null, null, null, null, null, null, null, false)) {
+            List<Obs> list = obsByPatientId.get(obs.getPersonId());
+            if (list == null) {
+                list = new ArrayList<>();
+                obsByPatientId.put(obs.getPersonId(), list);
+            }
+            list.add(obs);
+        }
+        Map<Integer, List<Order>> ordersByPatientId = new HashMap<>();
+        for (Order order : Context.getService(ProjectBuendiaService.class)
+                .getOrdersByPatientIds(patientIds)) {
+            Integer patientId = order.getPatient().getPatientId();
+            List<Order> list = ordersByPatientId.get(patientId);
+            if (list == null) {
+                list = new ArrayList<>();
+                ordersByPatientId.put(patientId, list);
+            }
+            list.add(order);
+        }
+
+        List<ChartRenderer.PatientData> results = new ArrayList<>();
+        for (Patient patient : patients) {
+            List<Obs> observations = obsByPatientId.get(patient.getPatientId());
+            List<Order> orders = ordersByPatientId.get(patient.getPatientId());
+            results.add(getPatientData(patient,
+                    observations != null ? observations : Collections.<Obs>emptyList(),
+                    orders != null ? orders : Collections.<Order>emptyList(),
+                    chartConceptIds, orderExecutedConcept));
+        }
+        return results;
+    }
+
+    private static ChartRenderer.PatientData getPatientData(
+            Patient patient, List<Obs> observations, List<Order> orders,
+            Set<Integer> chartConceptIds, Concept orderExecutedConcept) {
+        PatientIdentifier msfId = patient.getPatientIdentifier("MSF");
+        String title = msfId + ". " + patient.getGivenName() + " " + patient.getFamilyName();
+
+        List<ChartRenderer.ObsValue> values = new ArrayList<>(observations.size());
+        List<Date> executionTimes = new ArrayList<>();
+        Map<String, Map<Date, Integer>> executionCounts = new HashMap<>();
+        for (Obs obs : observations) {
+            int conceptId = obs.getConcept().getId();
+            values.add(new ChartRenderer.ObsValue(conceptId, obs.getObsDatetime(),
+                    chartConceptIds.contains(conceptId)
+                            ? VisitObsValue.visit(obs, STRING_VISITOR) : null));
+            if (conceptId == orderExecutedConcept.getId()) {
+                executionTimes.add(obs.getObsDatetime());
+                if (obs.getOrder() != null) {
+                    String orderUuid = obs.getOrder().getUuid();
+                    Map<Date, Integer> countsByDay = executionCounts.get(orderUuid);
+                    if (countsByDay == null) {
+                        countsByDay = new HashMap<>();
+                        executionCounts.put(orderUuid, countsByDay);
+                    }
+                    Date day = ChartRenderer.getStartOfDay(obs.getObsDatetime());
+                    Integer count = countsByDay.get(day);
+                    countsByDay.put(day, count == null ? 1 : count + 1);
+                }
+            }
+        }
+        return new ChartRenderer.PatientData(patient.getPatientId(),
+                msfId == null ? null : msfId.getIdentifier(), title,
+                values, obtainOrders(orders), executionTimes, executionCounts);
+    }
+
+    /**
+     * Because we abstract editable orders as chains of orders (see {@link OrderResource}), the
+     * printed patient charts will show all orders, and all edits, unless we do some filtering.
+     * This method returns the latest revision of each chain, with its root order's UUID, which
+     * is used as a stable identifier for the Order Execution concept.  Every order in a chain
+     * belongs to the same patient, so the chains are followed within the patient's orders
+     * instead of looking each one up in the database.
+     * @param orders all of the patient's orders, voided or not, in order of ID.
+     */
+    private static List<ChartRenderer.OrderRow> obtainOrders(List<Order> orders) {
+        // Revision chains shouldn't branch, but if one does, follow the newest branch.
+        Map<Integer, Order> revisionsByPreviousId = new HashMap<>();
+        for (Order order : orders) {
+            Order previous = order.getPreviousOrder();
+            if (previous != null) {
+                revisionsByPreviousId.put(previous.getOrderId(), order);
+            }
+        }
+        Map<Integer, ChartRenderer.OrderRow> rowsByLatestId = new LinkedHashMap<>();
+        for (Order order : orders) {
+            Order newest = order;
+            while (revisionsByPreviousId.containsKey(newest.getOrderId())) {
+                newest = revisionsByPreviousId.get(newest.getOrderId());
+            }
+            if (!rowsByLatestId.containsKey(newest.getOrderId())) {
+                rowsByLatestId.put(newest.getOrderId(), new ChartRenderer.OrderRow(
+                        newest.getInstructions(), newest.getScheduledDate(),
+                        newest.getAutoExpireDate(), Utils.getRootOrder(order).getUuid()));
+            }
+        }
+        return new ArrayList<>(rowsByLatestId.values());
+    }
+}
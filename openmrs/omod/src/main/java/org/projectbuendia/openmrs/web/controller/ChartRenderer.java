@@ -0,0 +1,390 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.web.controller;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+import javax.annotation.Nullable;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders the printable section for one patient: the observation charts, week by week, and the
+ * treatment chart.  It works from a {@link PatientData} snapshot of plain strings, dates and
+ * IDs, so it needs no database access and can run on any thread; {@link ChartCache} takes the
+ * snapshots and renders them on a pool of workers.
+ */
+class ChartRenderer {
+    /** One chart of the profile, with its rows in order. */
+    static class Chart {
+        final String name;
+        final List<Row> rows;
+
+        Chart(String name, List<Row> rows) {
+            this.name = name;
+            this.rows = rows;
+        }
+    }
+
+    /** A row of a chart: a question concept and its display name. */
+    static class Row {
+        final int conceptId;
+        final String name;
+
+        Row(int conceptId, String name) {
+            this.conceptId = conceptId;
+            this.name = name;
+        }
+    }
+
+    /** An observation, with its value already formatted if it appears in a chart. */
+    static class ObsValue {
+        final int conceptId;
+        final Date time;
+        final @Nullable String value;
+
+        ObsValue(int conceptId, Date time, @Nullable String value) {
+            this.conceptId = conceptId;
+            this.time = time;
+            this.value = value;
+        }
+    }
+
+    /** The latest version of an order, and the root UUID that its executions refer to. */
+    static class OrderRow {
+        final String instructions;
+        final Date scheduledDate;
+        final @Nullable Date autoExpireDate;
+        final String rootUuid;
+
+        OrderRow(String instructions, Date scheduledDate, @Nullable Date autoExpireDate,
+                 String rootUuid) {
+            this.instructions = instructions;
+            this.scheduledDate = scheduledDate;
+            this.autoExpireDate = autoExpireDate;
+            this.rootUuid = rootUuid;
+        }
+    }
+
+    /** Everything needed to render one patient's section. */
+    static class PatientData {
+        final int patientId;
+        final @Nullable String msfId;
+        final String title;
+        /** All the patient's observations, newest first. */
+        final List<ObsValue> observations;
+        final List<OrderRow> orders;
+        /** The times of all the patient's order executions. */
+        final List<Date> executionTimes;
+        /** Numbers of executions by order root UUID and start of day. */
+        final Map<String, Map<Date, Integer>> executionCounts;
+
+        PatientData(int patientId, @Nullable String msfId, String title,
+                    List<ObsValue> observations, List<OrderRow> orders,
+                    List<Date> executionTimes, Map<String, Map<Date, Integer>> executionCounts) {
+            this.patientId = patientId;
+            this.msfId = msfId;
+            this.title = title;
+            this.observations = observations;
+            this.orders = orders;
+            this.executionTimes = executionTimes;
+            this.executionCounts = executionCounts;
+        }
+    }
+
+    // DateFormats aren't thread-safe, so each renderer has its own.
+    private final DateFormat headerDateFormat = new SimpleDateFormat("d MMM");
+    private final DateFormat orderDateFormat = headerDateFormat;
+    private final List<Chart> charts;
+    private final PrintWriter w;
+
+    private ChartRenderer(List<Chart> charts, PrintWriter w) {
+        this.charts = charts;
+        this.w = w;
+    }
+
+    /** Renders the section for one patient as HTML. */
+    static String render(List<Chart> charts, PatientData patient) {
+        StringWriter buffer = new StringWriter();
+        PrintWriter writer = new PrintWriter(buffer);
+        new ChartRenderer(charts, writer).writePatient(patient);
+        writer.flush();
+        return buffer.toString();
+    }
+
+    private void writePatient(PatientData patient) {
+        w.write("<h2>" + patient.title + "</h2><hr/>");
+        if (patient.observations.size() == 0) {
+            w.write("<b>No encounters for this patient</b>");
+            return;
+        }
+        for (Chart chart : charts) {
+            printPatientChart(patient.observations, chart);
+        }
+        printOrdersChart(patient);
+    }
+
+    private void printOrdersChart(PatientData patient) {
+        Calendar calendar = Calendar.getInstance();
+        w.write("<h3>Treatment</h3>");
+
+        if (patient.orders.size() == 0) {
+            w.write("<h3>This patient has no treatments.</h3>");
+            return;
+        }
+
+        Pair<Date, Date> dates = getStartAndEndDateForOrders(
+                patient.orders, patient.executionTimes);
+        Date start = dates.getLeft();
+        Date stop = dates.getRight();
+
+        int day = 1;
+
+        calendar.setTime(start);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        Date today = calendar.getTime();
+        do {
+            w.write("<table cellpadding=\"2\" cellspacing=\"0\" border=\"1\" width=\"100%\">\n"
+                    + "\t<thead>\n"
+                    + "\t\t<th width=\"20%\">&nbsp;</th>\n");
+            calendar.setTime(today);
+            for (int i = day; i < (day + 7); i++) {
+                w.write("<th width=\"10%\">" + headerDateFormat.format(calendar.getTime()) + "</th>");
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+            }
+            w.write("\t</thead>\n"
+                    + "\t<tbody>\n");
+
+            for (OrderRow order : patient.orders) {
+                Map<Date, Integer> countsByDay = patient.executionCounts.get(order.rootUuid);
+                w.write("<tr><td>");
+                w.write(order.instructions);
+                w.write(" " + formatStartAndEndDatesForOrder(order));
+                w.write("</td>");
+
+                calendar.setTime(today);
+                for (int i = 1; i < 8; i++) {
+                    Date dayStart = calendar.getTime();
+                    Integer numGiven = countsByDay == null ? null : countsByDay.get(dayStart);
+                    String value = "&nbsp;";
+                    if (numGiven != null && numGiven > 0) {
+                        value = String.valueOf(numGiven);
+                    }
+                    w.write("<td>" + value + "</td>");
+                    calendar.add(Calendar.DAY_OF_MONTH, 1);
+                }
+                w.write("</tr>");
+            }
+
+            w.write("\t</tbody>\n"
+                    + "</table>\n");
+
+            day += 7;
+            calendar.setTime(today);
+            calendar.add(Calendar.DAY_OF_MONTH, 7);
+            today = calendar.getTime();
+        } while (today.before(stop) || today.equals(stop));
+    }
+
+    private String formatStartAndEndDatesForOrder(OrderRow order) {
+        if (order.scheduledDate == null) {
+            // Shouldn't occur, but fail safe.
+            return "";
+        }
+        String startDateString = orderDateFormat.format(order.scheduledDate);
+        String endDateString = order.autoExpireDate == null
+                        ? "*"
+                        : orderDateFormat.format(order.autoExpireDate);
+        return String.format("(%s - %s)", startDateString, endDateString);
+    }
+
+    private static Pair<Date, Date> getStartAndEndDateForOrders(
+            Iterable<OrderRow> orders,
+            Iterable<Date> executionTimes) {
+        Date start = null;
+        Date stop = null;
+        for (OrderRow order : orders) {
+            if (start == null || order.scheduledDate.before(start)) {
+                start = order.scheduledDate;
+            }
+            if (order.autoExpireDate != null) {
+                if (stop == null || order.autoExpireDate.after(stop)) {
+                    stop = order.autoExpireDate;
+                }
+            }
+        }
+
+        for (Date obsTime : executionTimes) {
+            if (start == null || obsTime.before(start)) {
+                start = obsTime;
+            }
+            if (stop == null || obsTime.after(stop)) {
+                stop = obsTime;
+            }
+        }
+
+        // This shouldn't ever occur, but fail gracefully.
+        if (start == null) {
+            start = new Date();
+        }
+        // If all orders are unlimited orders, this will print into forever. we fix that by ending
+        // printing at the start date.
+        if (stop == null) {
+            stop = start;
+        }
+        return Pair.of(start, stop);
+    }
+
+    private void printPatientChart(List<ObsValue> observations, Chart chart) {
+        w.write("<h3>" + chart.name + "</h3>");
+        // NOTE: this assumes that the list of observations will have a length of at least 1.
+        assert observations.size() > 0;
+        final Date earliest = observations.get(observations.size() - 1).time;
+        final Date latest = observations.get(0).time;
+        // We already know the earliest date and the latest date, so we can start splitting up into
+        // weeks.
+        final Date earliestDay = getStartOfDay(earliest);
+        HashMap<Integer, Map<Date, List<ObsValue>>> obsByConcept =
+                constructObsMap(observations, earliestDay);
+
+        // Each loop iteration is a week.
+        Date weekStart = earliestDay;
+        Calendar weekCal = Calendar.getInstance();
+        weekCal.setTime(earliestDay);
+        while (weekStart.before(latest)) {
+            writeWeek(weekStart, chart.rows, obsByConcept);
+            weekCal.add(Calendar.DATE, 7);
+            weekStart = weekCal.getTime();
+        }
+    }
+
+    static Date getStartOfDay(Date date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTime();
+    }
+
+    /**
+     * Construct a mapping of concept ID --> Dates --> List of observations.
+     * <p>
+     * This method capitalizes on the fact that observations come back from MySQL sorted to make
+     * processing much faster than calling into the DB multiple times.
+     * @param observations all observations for the patient, sorted by observation time DESC. This
+     *                     is the format that OpenMRS supplies by default.
+     * @param earliestDay can be determined from the last observation in the set, but provided here
+     *                    to avoid computing it multiple times.
+     */
+    private static HashMap<Integer, Map<Date, List<ObsValue>>> constructObsMap(
+            List<ObsValue> observations, Date earliestDay) {
+        // Map of a concept, to a list of days. Each day contains a list of obs.
+        HashMap<Integer, Map<Date, List<ObsValue>>> obsByConcept = new HashMap<>();
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(earliestDay);
+        Date start = earliestDay;
+        calendar.add(Calendar.DATE, 1);
+        Date end = calendar.getTime();
+        for (int i = observations.size() - 1; i >= 0; i--) {
+            ObsValue obs = observations.get(i);
+
+            // Try to retrieve, add if it doesn't exist yet.
+            Map<Date, List<ObsValue>> conceptObs = obsByConcept.get(obs.conceptId);
+            if (conceptObs == null) {
+                conceptObs = new HashMap<>();
+                obsByConcept.put(obs.conceptId, conceptObs);
+            }
+
+            // Use ! (obs before end) because this puts obs on the correct day if it occurred at
+            // midnight.
+            while (!obs.time.before(end)) {
+                // Move to the next day.
+                start = end;
+                calendar.add(Calendar.DATE, 1);
+                end = calendar.getTime();
+            }
+
+            // Try to retrieve, add if it doesn't exist yet.
+            List<ObsValue> obsSet = conceptObs.get(start);
+            if (obsSet == null) {
+                obsSet = new ArrayList<>();
+                conceptObs.put(start, obsSet);
+            }
+
+            obsSet.add(obs);
+        }
+        return obsByConcept;
+    }
+
+    private void writeWeek(Date startDate, List<Row> rows,
+                           HashMap<Integer, Map<Date, List<ObsValue>>> obsByConcept) {
+        // Write header row for this week.
+        w.write("<table cellpadding=\"2\" cellspacing=\"0\" border=\"1\" width=\"100%\">\n"
+                + "\t<thead>\n"
+                + "\t\t<th width=\"20%\">&nbsp;</th>\n");
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(startDate);
+        for (int i = 0; i < 7; i++) {
+            w.write("<th width=\"10%\">"
+                    + headerDateFormat.format(calendar.getTime()) + "</th>");
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        w.write("\t</thead>\n"
+                + "\t<tbody>\n");
+
+        for (Row row : rows) {
+            Map<Date, List<ObsValue>> datesForConcept = obsByConcept.get(row.conceptId);
+            if (datesForConcept == null) {
+                // this concept wasn't used, skip.
+                continue;
+            }
+
+            w.write("<tr><td>");
+            w.write(row.name);
+            w.write("</td>");
+
+            calendar.setTime(startDate);
+            Date today = startDate;
+            for (int i = 0; i < 7; i++) {
+                ArrayList<String> values = new ArrayList<>();
+                List<ObsValue> dayOfObservations = datesForConcept.get(today);
+                if (dayOfObservations != null) {
+                    for (ObsValue obs : dayOfObservations) {
+                        values.add(obs.value);
+                    }
+                }
+                w.write("<td>" + StringUtils.join(values, ", ") + "</td>");
+                calendar.add(Calendar.DATE, 1);
+                today = calendar.getTime();
+            }
+            w.write("</tr>");
+        }
+
+        w.write("\t</tbody>\n"
+                + "</table>\n");
+    }
+}
@@ -16,7 +16,11 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.ClientConceptNamer;
+import org.openmrs.projectbuendia.servlet.PrecompressedCache;
+import org.openmrs.projectbuendia.webservices.rest.ContentVersion;
 import org.openmrs.projectbuendia.webservices.rest.GlobalProperties;
+import org.openmrs.projectbuendia.webservices.rest.MetadataCache;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.ModelAttribute;
@@ -217,7 +221,13 @@ public class ProfileManager {
     /** Applies a profile to the OpenMRS database. */
     private void applyProfile(File file, ModelMap model) {
         List<String> lines = new ArrayList<>();
-        if (execute(APPLY_CMD, file, lines)) {
+        boolean success = execute(APPLY_CMD, file, lines);
+        // Even a failed attempt may have changed some of the concepts and forms.
+        PrecompressedCache.INSTANCE.invalidate();
+        MetadataCache.INSTANCE.invalidate();
+        ClientConceptNamer.invalidateCache();
+        ContentVersion.INSTANCE.bump();
+        if (success) {
             setCurrentProfile(file.getName());
             model.addAttribute("success", true);
             model.addAttribute("message", "Success applying profile: " + file.getName());
@@ -0,0 +1,172 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.webservices.rest;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.projectbuendia.Utils;
+import org.openmrs.projectbuendia.webservices.rest.ObsColumnStore;
+import org.openmrs.projectbuendia.webservices.rest.RequestLogger;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Answers questions about observations across patients from the {@link ObsColumnStore}, without
+ * loading any observations through Hibernate.
+ * <p>
+ * {@code GET /analytics/obs?concept=<uuid>} returns the numeric or coded observations of a
+ * concept, in order of time.  Optional parameters: {@code start} and {@code end} (ISO 8601;
+ * start is inclusive and end exclusive) limit the time window, and {@code patient} (repeatable)
+ * limits the patients.  With {@code interval_mins}, which needs {@code start} and {@code end},
+ * numeric observations are summarized in intervals instead, e.g. for a ward-wide trend:
+ * <pre>
+ * {"concept_uuid": "...", "buckets": [
+ *   {"start": "2015-09-19T00:00:00.000Z", "count": 12, "min": 36.5, "max": 39.1, "mean": 37.4},
+ *   ...]}
+ * </pre>
+ * Otherwise the response lists the first {@code limit} observations (at most and by default
+ * {@value #MAX_LIMIT}):
+ * <pre>
+ * {"concept_uuid": "...", "truncated": false, "observations": [
+ *   {"patient_uuid": "...", "timestamp": "2015-09-19T08:10:00.000Z", "value": 37.2}, ...]}
+ * </pre>
+ * where the value of a coded observation is the UUID of its coded value.  If "truncated" is
+ * true, there are more observations; ask again with a later {@code start} for the rest.
+ */
+@Controller
+@RequestMapping("/rest/" + RestController.REST_VERSION_1_AND_NAMESPACE + "/analytics")
+public class AnalyticsController {
+    private static final RequestLogger logger = RequestLogger.LOGGER;
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    static final int MAX_LIMIT = 10000;
+
+    @RequestMapping(value = "/obs", method = RequestMethod.GET)
+    public void getObs(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        context.setResponse(response);
+        try {
+            logger.request(context, this, "getObs");
+            if (!Context.isAuthenticated()) {
+                response.setHeader("WWW-Authenticate", "Basic realm=\"OpenMRS\"");
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+                logger.reply(context, this, "getObs", "unauthorized");
+                return;
+            }
+            String conceptUuid = request.getParameter("concept");
+            if (conceptUuid == null) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing concept");
+                logger.reply(context, this, "getObs", "no concept");
+                return;
+            }
+            Date start;
+            Date end;
+            Integer intervalMins = null;
+            int limit = MAX_LIMIT;
+            try {
+                start = parseTime(request.getParameter("start"));
+                end = parseTime(request.getParameter("end"));
+                String intervalParameter = request.getParameter("interval_mins");
+                if (intervalParameter != null) {
+                    intervalMins = Integer.valueOf(intervalParameter);
+                }
+                String limitParameter = request.getParameter("limit");
+                if (limitParameter != null) {
+                    limit = Integer.parseInt(limitParameter);
+                }
+            } catch (ParseException | NumberFormatException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "Invalid parameter: " + e.getMessage());
+                logger.error(context, this, "getObs", e);
+                return;
+            }
+            if (intervalMins != null && (intervalMins <= 0 || start == null || end == null)) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "interval_mins must be positive and needs start and end");
+                logger.reply(context, this, "getObs", "bad interval");
+                return;
+            }
+            if (limit <= 0 || limit > MAX_LIMIT) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "limit must be between 1 and " + MAX_LIMIT);
+                logger.reply(context, this, "getObs", "bad limit");
+                return;
+            }
+            String[] patientParameters = request.getParameterValues("patient");
+            List<String> patientUuids = patientParameters == null
+                    ? null : Arrays.asList(patientParameters);
+
+            SimpleObject reply = new SimpleObject().add("concept_uuid", conceptUuid);
+            ObsColumnStore store = ObsColumnStore.INSTANCE;
+            if (intervalMins != null) {
+                List<SimpleObject> buckets = new ArrayList<>();
+                try {
+                    for (ObsColumnStore.Bucket bucket : store.getBuckets(
+                            conceptUuid, start, end, intervalMins * 60000L, patientUuids)) {
+                        buckets.add(new SimpleObject()
+                                .add("start", Utils.toIso8601(bucket.start))
+                                .add("count", bucket.count)
+                                .add("min", bucket.min)
+                                .add("max", bucket.max)
+                                .add("mean", bucket.getMean()));
+                    }
+                } catch (IllegalArgumentException e) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                    logger.error(context, this, "getObs", e);
+                    return;
+                }
+                reply.add("buckets", buckets);
+            } else {
+                List<SimpleObject> observations = new ArrayList<>();
+                // Ask for one more than the limit to find out whether there are more.
+                List<ObsColumnStore.Point> points = store.getPoints(
+                        conceptUuid, start, end, patientUuids, limit + 1);
+                boolean truncated = points.size() > limit;
+                if (truncated) {
+                    points = points.subList(0, limit);
+                }
+                for (ObsColumnStore.Point point : points) {
+                    observations.add(new SimpleObject()
+                            .add("patient_uuid", point.patientUuid)
+                            .add("timestamp", Utils.toIso8601(point.time))
+                            .add("value", point.numericValue != null
+                                    ? point.numericValue : point.codedValueUuid));
+                }
+                reply.add("truncated", truncated).add("observations", observations);
+            }
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            OBJECT_MAPPER.writeValue(response.getOutputStream(), reply);
+            logger.reply(context, this, "getObs", "ok");
+        } catch (Exception e) {
+            logger.error(context, this, "getObs", e);
+            throw e;
+        }
+    }
+
+    private static Date parseTime(String value) throws ParseException {
+        return value == null ? null : Utils.fromIso8601(value);
+    }
+}
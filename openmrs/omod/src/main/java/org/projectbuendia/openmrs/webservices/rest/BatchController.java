@@ -0,0 +1,117 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.webservices.rest;
+
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.projectbuendia.webservices.rest.EncounterBatch;
+import org.openmrs.projectbuendia.webservices.rest.RequestLogger;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bulk versions of write endpoints, for clients that come back online with a backlog.
+ * <p>
+ * {@code POST /batch/encounters} takes {@code {"encounters": [...]}}, where each item has the
+ * same format as a POST to the encounters resource, and adds them all (see
+ * {@link EncounterBatch}). Items succeed or fail independently, so the response is 200 unless
+ * the request as a whole is malformed; it gives a result for each item, in order:
+ * <pre>
+ * {"results": [{"index": 0, "uuid": "encounter-uuid"},
+ *              {"index": 1, "error": "Patient not found: ..."}, ...],
+ *  "created": 1, "failed": 1}
+ * </pre>
+ * The client should resend only the failed items, once it has fixed whatever was wrong.
+ */
+@Controller
+@RequestMapping("/rest/" + RestController.REST_VERSION_1_AND_NAMESPACE + "/batch")
+public class BatchController {
+    /** Larger backlogs should be sent in several requests, to bound each response's time. */
+    public static final int MAX_ENCOUNTERS_PER_REQUEST = 5000;
+
+    private static final RequestLogger logger = RequestLogger.LOGGER;
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @RequestMapping(value = "/encounters", method = RequestMethod.POST)
+    public void addEncounters(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        context.setResponse(response);
+        try {
+            logger.request(context, this, "addEncounters");
+            if (!Context.isAuthenticated()) {
+                response.setHeader("WWW-Authenticate", "Basic realm=\"OpenMRS\"");
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+                logger.reply(context, this, "addEncounters", "unauthorized");
+                return;
+            }
+            List<?> items;
+            try {
+                Map<?, ?> body = OBJECT_MAPPER.readValue(request.getInputStream(), Map.class);
+                items = (List<?>) body.get("encounters");
+            } catch (JsonProcessingException | ClassCastException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "Expected a JSON object with an \"encounters\" list");
+                logger.error(context, this, "addEncounters", e);
+                return;
+            }
+            if (items == null) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "Missing \"encounters\" list");
+                logger.reply(context, this, "addEncounters", "no encounters");
+                return;
+            }
+            if (items.size() > MAX_ENCOUNTERS_PER_REQUEST) {
+                response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                        "Send at most " + MAX_ENCOUNTERS_PER_REQUEST + " encounters at a time");
+                logger.reply(context, this, "addEncounters", "too many encounters");
+                return;
+            }
+
+            List<SimpleObject> results = new ArrayList<>();
+            int created = 0;
+            for (EncounterBatch.Result result : EncounterBatch.add(items)) {
+                SimpleObject json = new SimpleObject().add("index", result.index);
+                if (result.error == null) {
+                    json.add("uuid", result.encounterUuid);
+                    created++;
+                } else {
+                    json.add("error", result.error);
+                }
+                results.add(json);
+            }
+            SimpleObject reply = new SimpleObject()
+                    .add("results", results)
+                    .add("created", created)
+                    .add("failed", results.size() - created);
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            OBJECT_MAPPER.writeValue(response.getOutputStream(), reply);
+            logger.reply(context, this, "addEncounters", reply);
+        } catch (Exception e) {
+            logger.error(context, this, "addEncounters", e);
+            throw e;
+        }
+    }
+}
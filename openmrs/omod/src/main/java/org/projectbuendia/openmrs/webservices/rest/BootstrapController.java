@@ -0,0 +1,100 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.webservices.rest;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.webservices.rest.BootstrapBundle;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Serves the {@link BootstrapBundle}, a single gzipped JSON document containing everything a new
+ * tablet needs to start syncing. The bundle is precomputed in the background, so serving it is
+ * a single file read; clients that accept gzip get the file's bytes unchanged.  Each user gets
+ * the bundle for their locale.
+ */
+@Controller
+@RequestMapping("/rest/" + RestController.REST_VERSION_1_AND_NAMESPACE + "/bootstrap")
+public class BootstrapController {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String RETRY_AFTER_SECONDS = "30";
+
+    @PostConstruct
+    public void startBundleGeneration() {
+        BootstrapBundle.getInstance().start();
+    }
+
+    @PreDestroy
+    public void stopBundleGeneration() {
+        BootstrapBundle.getInstance().stop();
+    }
+
+    @RequestMapping(method = RequestMethod.GET)
+    public void get(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!Context.isAuthenticated()) {
+            response.setHeader("WWW-Authenticate", "Basic realm=\"OpenMRS\"");
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+        BootstrapBundle bundle = BootstrapBundle.getInstance();
+        File file = bundle.getFile(Context.getLocale());
+        FileInputStream fileStream;
+        try {
+            // Once the file is open, we keep reading the same bundle even if a newer one
+            // replaces it while we're sending it.
+            fileStream = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            bundle.requestRegeneration();
+            response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "The bootstrap bundle is being generated");
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setDateHeader("Last-Modified", file.lastModified());
+        try (InputStream in = acceptsGzip(request) ? fileStream : new GZIPInputStream(fileStream)) {
+            if (in == fileStream) {
+                response.setHeader("Content-Encoding", "gzip");
+                response.setContentLength((int) fileStream.getChannel().size());
+            }
+            copy(in, response.getOutputStream());
+        }
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.webservices.rest;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.module.webservices.rest.web.response.IllegalPropertyException;
+import org.openmrs.projectbuendia.webservices.rest.RequestLogger;
+import org.openmrs.projectbuendia.webservices.rest.RequestUtil;
+import org.openmrs.projectbuendia.webservices.rest.SyncChangeNotifier;
+import org.openmrs.projectbuendia.webservices.rest.SyncTokenUtils;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.SyncToken;
+import org.projectbuendia.openmrs.sync.SyncType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-poll endpoint that tells sync clients when there is something new to fetch, so that
+ * they don't have to keep polling every sync endpoint.
+ * <p>
+ * The request gives the client's current sync token for each type it is interested in, as a
+ * parameter named after the type ({@code observations}, {@code patients} or {@code orders}); an
+ * empty value means the client has nothing yet. If any sync map already has a record after the
+ * corresponding token, the response is immediate. Otherwise the request is held until one of
+ * the write paths in this module signals a change through {@link SyncChangeNotifier}, or until
+ * {@code timeout_ms} milliseconds have passed. The database is also re-checked every
+ * {@link #RECHECK_INTERVAL_MILLIS} milliseconds, to catch changes made some other way.
+ * <p>
+ * The response is {@code {"changed": ["observations", ...], "timedOut": false}}; the client
+ * then runs an ordinary incremental sync for the types listed.
+ */
+@Controller
+@RequestMapping("/rest/" + RestController.REST_VERSION_1_AND_NAMESPACE + "/changes")
+public class ChangesController {
+    public static final String TIMEOUT_PARAM = "timeout_ms";
+    static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+    static final long MAX_TIMEOUT_MILLIS = 60000;
+    static final long RECHECK_INTERVAL_MILLIS = 10000;
+    /** Each waiting request holds a servlet thread, so we limit how many can wait at once. */
+    static final int MAX_WAITING_REQUESTS = 50;
+    private static final String RETRY_AFTER_SECONDS = "5";
+
+    private static final RequestLogger logger = RequestLogger.LOGGER;
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final AtomicInteger waitingRequests = new AtomicInteger();
+
+    @RequestMapping(method = RequestMethod.GET)
+    public void get(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        context.setResponse(response);
+        try {
+            logger.request(context, this, "get");
+            if (!Context.isAuthenticated()) {
+                response.setHeader("WWW-Authenticate", "Basic realm=\"OpenMRS\"");
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+                logger.reply(context, this, "get", "unauthorized");
+                return;
+            }
+            Map<SyncType, SyncToken> tokens;
+            long timeoutMillis;
+            try {
+                tokens = RequestUtil.mustParseSyncTokensByType(context);
+                timeoutMillis = parseTimeout(request.getParameter(TIMEOUT_PARAM));
+            } catch (IllegalPropertyException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                logger.error(context, this, "get", e);
+                return;
+            }
+            if (tokens.isEmpty()) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "Specify a sync token for at least one of observations, patients, orders");
+                logger.reply(context, this, "get", "no sync tokens");
+                return;
+            }
+
+            List<String> changed = waitForChanges(tokens, timeoutMillis);
+            if (changed == null) {
+                response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "Too many clients are waiting for changes");
+                logger.reply(context, this, "get", "too many waiting requests");
+                return;
+            }
+
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            OBJECT_MAPPER.writeValue(response.getOutputStream(), new SimpleObject()
+                    .add("changed", changed)
+                    .add("timedOut", changed.isEmpty()));
+            logger.reply(context, this, "get", changed.isEmpty() ? "timed out" : changed);
+        } catch (Exception e) {
+            logger.error(context, this, "get", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until at least one type has changed since its token, or until the timeout.
+     * @return the names of the types that changed (empty on timeout), or null if too many
+     *     requests are already waiting.
+     */
+    private List<String> waitForChanges(Map<SyncType, SyncToken> tokens, long timeoutMillis) {
+        ProjectBuendiaService service = Context.getService(ProjectBuendiaService.class);
+        SyncChangeNotifier notifier = SyncChangeNotifier.INSTANCE;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        // Read the version before checking, so that a change made between the check and the
+        // wait still wakes us up.
+        long version = notifier.getVersion();
+        List<String> changed = findChanged(service, tokens);
+        if (!changed.isEmpty() || timeoutMillis == 0) {
+            return changed;
+        }
+        if (waitingRequests.incrementAndGet() > MAX_WAITING_REQUESTS) {
+            waitingRequests.decrementAndGet();
+            return null;
+        }
+        try {
+            long remaining;
+            while (changed.isEmpty()
+                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                version = notifier.awaitChange(
+                        version, Math.min(remaining, RECHECK_INTERVAL_MILLIS));
+                changed = findChanged(service, tokens);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waitingRequests.decrementAndGet();
+        }
+        return changed;
+    }
+
+    private static List<String> findChanged(
+            ProjectBuendiaService service, Map<SyncType, SyncToken> tokens) {
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<SyncType, SyncToken> entry : tokens.entrySet()) {
+            SyncToken highWaterMark = service.getHighWaterMark(entry.getKey());
+            if (highWaterMark != null && SyncTokenUtils.isAfter(highWaterMark, entry.getValue())) {
+                changed.add(RequestUtil.getSyncTypeParam(entry.getKey()));
+            }
+        }
+        return changed;
+    }
+
+    private static long parseTimeout(String param) throws IllegalPropertyException {
+        if (param == null || param.isEmpty()) {
+            return DEFAULT_TIMEOUT_MILLIS;
+        }
+        long value;
+        try {
+            value = Long.parseLong(param);
+        } catch (NumberFormatException e) {
+            throw new IllegalPropertyException(TIMEOUT_PARAM + " must be an integer");
+        }
+        return Math.max(0, Math.min(value, MAX_TIMEOUT_MILLIS));
+    }
+}
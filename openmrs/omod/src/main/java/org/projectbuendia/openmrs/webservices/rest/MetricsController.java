@@ -0,0 +1,47 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.webservices.rest;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.webservices.rest.Metrics;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Serves the request {@link Metrics} in the Prometheus text format, for the monitoring server to
+ * scrape.  Like the rest of the API, this needs HTTP basic authentication.
+ */
+@Controller
+@RequestMapping("/rest/" + RestController.REST_VERSION_1_AND_NAMESPACE + "/metrics")
+public class MetricsController {
+    @RequestMapping(method = RequestMethod.GET)
+    public void get(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!Context.isAuthenticated()) {
+            response.setHeader("WWW-Authenticate", "Basic realm=\"OpenMRS\"");
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        Writer writer = new OutputStreamWriter(response.getOutputStream(), "UTF-8");
+        Metrics.INSTANCE.writePrometheus(writer);
+        writer.flush();
+    }
+}
@@ -15,9 +15,13 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.module.webservices.rest.web.RestConstants;
 import org.openmrs.module.webservices.rest.web.v1_0.controller.MainResourceController;
+import org.openmrs.projectbuendia.webservices.rest.XformCache;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
 /**
  * Controller for the REST resources in this module. This implicitly picks up
  * all the resources with the Resource annotation.
@@ -33,6 +37,16 @@ public class RestController extends MainResourceController {
         log.warn("Created ProjectBuendia RestController");
     }
 
+    @PostConstruct
+    public void startXformCache() {
+        XformCache.getInstance().start();
+    }
+
+    @PreDestroy
+    public void stopXformCache() {
+        XformCache.getInstance().stop();
+    }
+
     /**
      * @see org.openmrs.module.webservices.rest.web.v1_0.controller
      * .BaseRestController#getNamespace()
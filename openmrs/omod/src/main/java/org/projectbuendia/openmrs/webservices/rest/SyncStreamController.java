@@ -0,0 +1,336 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.openmrs.webservices.rest;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openmrs.Order;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.module.webservices.rest.web.response.IllegalPropertyException;
+import org.openmrs.projectbuendia.webservices.rest.CompactSyncOutput;
+import org.openmrs.projectbuendia.webservices.rest.Metrics;
+import org.openmrs.projectbuendia.webservices.rest.ObservationsHandler;
+import org.openmrs.projectbuendia.webservices.rest.OrderResource;
+import org.openmrs.projectbuendia.webservices.rest.PatientResource;
+import org.openmrs.projectbuendia.webservices.rest.RequestLogger;
+import org.openmrs.projectbuendia.webservices.rest.RequestUtil;
+import org.openmrs.projectbuendia.webservices.rest.SyncOutput;
+import org.openmrs.projectbuendia.webservices.rest.SyncPageBudget;
+import org.openmrs.projectbuendia.webservices.rest.SyncTokenUtils;
+import org.projectbuendia.openmrs.api.ProjectBuendiaService;
+import org.projectbuendia.openmrs.api.SyncToken;
+import org.projectbuendia.openmrs.api.db.SyncRowHandler;
+import org.projectbuendia.openmrs.api.db.SyncSnapshotTask;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
+import org.projectbuendia.openmrs.sync.SyncType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Streaming variants of the incremental sync endpoints for observations, patients and orders.
+ * <p>
+ * The responses have exactly the same shape as those of the corresponding REST resources
+ * ({@code results}, {@code syncToken}, {@code more} and {@code stopReason}), and the requests
+ * accept the same {@code limit} and {@code budget_ms} parameters (see {@link SyncPageBudget}).
+ * However, each record is written to the servlet output stream as soon as it has been read,
+ * instead of the whole page being assembled in memory first. Heap use per request is therefore
+ * constant, which allows much larger pages than the REST resources can afford.
+ * <p>
+ * Clients that send {@code Accept: }{@value CompactSyncOutput#MEDIA_TYPE} get the same responses
+ * in the much smaller binary encoding described in {@link CompactSyncOutput}.
+ * <p>
+ * {@link #streamAll} combines the three in a single request and a single database snapshot, to
+ * save round trips on slow networks.
+ * <p>
+ * Because records are written as they are read, an error partway through a page can't be
+ * reported with an HTTP status; the client sees a truncated body, fails to parse it, and retries
+ * from its previous sync token.
+ */
+@Controller
+@RequestMapping("/rest/" + RestController.REST_VERSION_1_AND_NAMESPACE + "/stream")
+public class SyncStreamController {
+    /** Only one record is held in memory at a time, so pages can be much larger than 500. */
+    public static final int DEFAULT_RECORDS_PER_PAGE = 20000;
+    public static final int MAX_RECORDS_PER_PAGE = 100000;
+
+    private static final RequestLogger logger = RequestLogger.LOGGER;
+    private static final JsonFactory JSON_FACTORY = new ObjectMapper().getJsonFactory();
+    /** The order of sections in {@link #streamAll}: referenced records come first. */
+    private static final SyncType[] ALL_TYPES_IN_ORDER =
+            {SyncType.PATIENTS, SyncType.ORDERS, SyncType.OBSERVATIONS};
+
+    @RequestMapping(value = "/observations", method = RequestMethod.GET)
+    public void streamObservations(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        stream(request, response, "streamObservations", SyncType.OBSERVATIONS);
+    }
+
+    @RequestMapping(value = "/patients", method = RequestMethod.GET)
+    public void streamPatients(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        stream(request, response, "streamPatients", SyncType.PATIENTS);
+    }
+
+    @RequestMapping(value = "/orders", method = RequestMethod.GET)
+    public void streamOrders(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        stream(request, response, "streamOrders", SyncType.ORDERS);
+    }
+
+    /**
+     * Streams several types in one response, read from a single database snapshot. The request
+     * gives a sync token for each wanted type as a parameter named after the type (see
+     * {@link RequestUtil#mustParseSyncTokensByType}); an empty value syncs that type from the
+     * beginning. The response has one section per requested type, each shaped like a response
+     * from the single-type endpoints:
+     * <pre>
+     * {"patients": {"results": [...], "syncToken": "...", "more": false, "stopReason": "end"},
+     *  "orders": {...}, "observations": {...}}
+     * </pre>
+     * {@code limit} applies to each type separately; {@code budget_ms} covers the whole request.
+     */
+    @RequestMapping(value = "/all", method = RequestMethod.GET)
+    public void streamAll(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        context.setResponse(response);
+        try {
+            logger.request(context, this, "streamAll");
+            if (!checkAuthenticated(context, response, "streamAll")) {
+                return;
+            }
+            final Map<SyncType, SyncToken> tokens;
+            final SyncPageBudget requestBudget;
+            try {
+                tokens = RequestUtil.mustParseSyncTokensByType(context);
+                requestBudget = SyncPageBudget.fromRequest(
+                        context, DEFAULT_RECORDS_PER_PAGE, MAX_RECORDS_PER_PAGE);
+            } catch (IllegalPropertyException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                logger.error(context, this, "streamAll", e);
+                return;
+            }
+            if (tokens.isEmpty()) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "Specify a sync token for at least one of observations, patients, orders");
+                logger.reply(context, this, "streamAll", "no sync tokens");
+                return;
+            }
+            final Date requestTime = new Date();
+            final long startMillis = System.currentTimeMillis();
+
+            final SyncOutput output = newOutput(request, response);
+            final StringBuilder summary = new StringBuilder();
+            final long[] totalCount = {0};
+            output.writeStartObject();
+            Context.getService(ProjectBuendiaService.class).runInSnapshot(
+                    new SyncSnapshotTask() {
+                        @Override public void run(ProjectBuendiaService service)
+                                throws IOException {
+                            for (SyncType type : ALL_TYPES_IN_ORDER) {
+                                if (!tokens.containsKey(type)) {
+                                    continue;
+                                }
+                                // Each type gets whatever is left of the request's time budget.
+                                long elapsed = System.currentTimeMillis() - startMillis;
+                                SyncPageBudget budget = new SyncPageBudget(
+                                        requestBudget.maxResults,
+                                        Math.max(1, requestBudget.budgetMillis - elapsed));
+                                output.writeObjectFieldStart(RequestUtil.getSyncTypeParam(type));
+                                writePage(output, service, newStream(type),
+                                        tokens.get(type), budget, requestTime);
+                                output.writeEndObject();
+                                totalCount[0] += budget.getCount();
+                                summary.append(summary.length() > 0 ? ", " : "")
+                                        .append(budget.getCount()).append(" ")
+                                        .append(RequestUtil.getSyncTypeParam(type));
+                            }
+                        }
+                    });
+            output.writeEndObject();
+            output.close();
+            Metrics.INSTANCE.recordRows(
+                    Metrics.getEndpointName(this, "streamAll"), totalCount[0]);
+            logger.reply(context, this, "streamAll", summary.toString());
+        } catch (Exception e) {
+            logger.error(context, this, "streamAll", e);
+            throw e;
+        }
+    }
+
+    private void stream(HttpServletRequest request, HttpServletResponse response,
+                        String method, SyncType type) throws IOException {
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        context.setResponse(response);
+        try {
+            logger.request(context, this, method);
+            if (!checkAuthenticated(context, response, method)) {
+                return;
+            }
+            SyncToken syncFrom;
+            SyncPageBudget budget;
+            try {
+                syncFrom = RequestUtil.mustParseSyncToken(context);
+                budget = SyncPageBudget.fromRequest(
+                        context, DEFAULT_RECORDS_PER_PAGE, MAX_RECORDS_PER_PAGE);
+            } catch (IllegalPropertyException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                logger.error(context, this, method, e);
+                return;
+            }
+            Date requestTime = new Date();
+
+            SyncOutput output = newOutput(request, response);
+            output.writeStartObject();
+            writePage(output, Context.getService(ProjectBuendiaService.class),
+                    newStream(type), syncFrom, budget, requestTime);
+            output.writeEndObject();
+            output.close();
+            Metrics.INSTANCE.recordRows(Metrics.getEndpointName(this, method), budget.getCount());
+            logger.reply(context, this, method,
+                    budget.getCount() + " records, stopped by " + budget.getStopReason());
+        } catch (Exception e) {
+            logger.error(context, this, method, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Chooses the response encoding: {@link CompactSyncOutput}'s binary encoding if the client
+     * lists its media type in the Accept header, otherwise JSON.
+     */
+    private static SyncOutput newOutput(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        response.setHeader("Vary", "Accept");
+        String accept = request.getHeader("Accept");
+        if (accept != null && accept.contains(CompactSyncOutput.MEDIA_TYPE)) {
+            response.setContentType(CompactSyncOutput.MEDIA_TYPE);
+            return new CompactSyncOutput(response.getOutputStream());
+        }
+        response.setContentType(SyncOutput.Json.MEDIA_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        return new SyncOutput.Json(
+                JSON_FACTORY.createJsonGenerator(response.getOutputStream(), JsonEncoding.UTF8));
+    }
+
+    private boolean checkAuthenticated(
+            RequestContext context, HttpServletResponse response, String method)
+            throws IOException {
+        if (Context.isAuthenticated()) {
+            return true;
+        }
+        response.setHeader("WWW-Authenticate", "Basic realm=\"OpenMRS\"");
+        response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+        logger.reply(context, this, method, "unauthorized");
+        return false;
+    }
+
+    /**
+     * Writes the fields of one page ({@code results}, {@code syncToken}, {@code more} and
+     * {@code stopReason}) into the object that the output is currently in.
+     */
+    private static void writePage(
+            SyncOutput output, ProjectBuendiaService service, SyncStream<?> stream,
+            @Nullable SyncToken syncFrom, SyncPageBudget budget, Date requestTime)
+            throws IOException {
+        output.writeArrayFieldStart("results");
+        stream.output = output;
+        stream.budget = budget;
+        stream.fetch(service, syncFrom, budget.maxResults);
+        output.writeEndArray();
+
+        SyncToken newToken = SyncTokenUtils.clampSyncTokenToBufferedRequestTime(
+                budget.getLastPosition(), requestTime);
+        output.writeStringField("syncToken", SyncTokenUtils.syncTokenToJson(newToken));
+        output.writeBooleanField("more", budget.hasMore());
+        output.writeStringField("stopReason", budget.getStopReason());
+    }
+
+    private static SyncStream<?> newStream(SyncType type) {
+        switch (type) {
+            case OBSERVATIONS:
+                return new SyncStream<ObsSyncRow>() {
+                    @Override void fetch(ProjectBuendiaService service,
+                                         @Nullable SyncToken syncFrom, int maxResults)
+                            throws IOException {
+                        service.streamObservationRowsModifiedAtOrAfter(
+                                syncFrom, syncFrom != null, maxResults, this);
+                    }
+
+                    @Override SimpleObject toJson(ObsSyncRow row) {
+                        return ObservationsHandler.obsRowToJson(row);
+                    }
+                };
+            case PATIENTS:
+                return new SyncStream<Patient>() {
+                    @Override void fetch(ProjectBuendiaService service,
+                                         @Nullable SyncToken syncFrom, int maxResults)
+                            throws IOException {
+                        service.streamPatientsModifiedAtOrAfter(
+                                syncFrom, syncFrom != null, maxResults, this);
+                    }
+
+                    @Override SimpleObject toJson(Patient patient) {
+                        return PatientResource.patientToJson(patient);
+                    }
+                };
+            case ORDERS:
+                return new SyncStream<Order>() {
+                    @Override void fetch(ProjectBuendiaService service,
+                                         @Nullable SyncToken syncFrom, int maxResults)
+                            throws IOException {
+                        service.streamOrdersModifiedAtOrAfter(
+                                syncFrom, syncFrom != null, maxResults,
+                                OrderResource.ALLOWABLE_ACTIONS, this);
+                    }
+
+                    @Override SimpleObject toJson(Order order) {
+                        return OrderResource.orderToJson(order);
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Unknown sync type " + type);
+        }
+    }
+
+    /** Writes each record it is handed straight to the response as a JSON array element. */
+    private abstract static class SyncStream<T> implements SyncRowHandler<T> {
+        SyncOutput output;
+        SyncPageBudget budget;
+
+        /** Fetches the records for this stream, passing each one to {@link #handle}. */
+        abstract void fetch(
+                ProjectBuendiaService service, @Nullable SyncToken syncFrom, int maxResults)
+                throws IOException;
+
+        abstract SimpleObject toJson(T item);
+
+        @Override public boolean handle(T item, SyncToken position) throws IOException {
+            output.writeObject(toJson(item));
+            return budget.recordRow(position);
+        }
+    }
+}
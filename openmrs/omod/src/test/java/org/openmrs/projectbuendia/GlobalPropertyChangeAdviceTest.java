@@ -0,0 +1,58 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia;
+
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.projectbuendia.webservices.rest.ContentVersion;
+import org.openmrs.projectbuendia.webservices.rest.GlobalProperties;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class GlobalPropertyChangeAdviceTest {
+
+    @Test
+    public void testBuendiaPropertyChangesBumpContentVersion() throws Exception {
+        GlobalProperty charts = new GlobalProperty(GlobalProperties.CHART_UUIDS, "a,b");
+        assertBumps(true, "saveGlobalProperty", GlobalProperty.class, charts);
+        assertBumps(true, "purgeGlobalProperty", GlobalProperty.class, charts);
+        assertBumps(true, "saveGlobalProperties", List.class, Arrays.asList(
+            new GlobalProperty("locale.allowed.list", "en"), charts));
+        Method set = AdministrationService.class.getMethod(
+            "setGlobalProperty", String.class, String.class);
+        String before = ContentVersion.INSTANCE.get();
+        new GlobalPropertyChangeAdvice().afterReturning(
+            null, set, new Object[] {GlobalProperties.CHART_UUIDS, "a,b"}, null);
+        assertNotEquals(before, ContentVersion.INSTANCE.get());
+    }
+
+    @Test
+    public void testOtherChangesKeepContentVersion() throws Exception {
+        assertBumps(false, "saveGlobalProperty", GlobalProperty.class,
+            new GlobalProperty("locale.allowed.list", "en"));
+        assertBumps(false, "getGlobalPropertyObject", String.class, GlobalProperties.CHART_UUIDS);
+    }
+
+    private static void assertBumps(boolean expected, String methodName, Class<?> argType,
+                                    Object arg) throws Exception {
+        Method method = AdministrationService.class.getMethod(methodName, argType);
+        String before = ContentVersion.INSTANCE.get();
+        new GlobalPropertyChangeAdvice().afterReturning(null, method, new Object[] {arg}, null);
+        assertEquals(methodName, expected, !before.equals(ContentVersion.INSTANCE.get()));
+    }
+}
@@ -0,0 +1,107 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Provider;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/** Tests for {@link ProviderUserMap}, through to the database. */
+public class ProviderUserMapTest extends BaseModuleWebContextSensitiveTest {
+
+    private static final String DATASET = "org/openmrs/projectbuendia/provider-user-data.xml";
+
+    private static final int RETIRED_USER_ID = 5001;
+    private static final int USER_ID = 5002;
+    private static final int USER_WITHOUT_PROVIDER_ID = 5003;
+    private static final String RETIRED_PROVIDER_UUID = "7a0fb9a5-2f52-4bdf-9e44-2d4bb6a30021";
+    private static final String PROVIDER_UUID = "7a0fb9a5-2f52-4bdf-9e44-2d4bb6a30022";
+
+    private ProviderUserMap map;
+
+    @Before
+    public void setUp() throws Exception {
+        executeDataSet(DATASET);
+        map = new ProviderUserMap();
+    }
+
+    @Test
+    public void testUserGetsFirstProviderEvenIfRetired() {
+        assertEquals(RETIRED_PROVIDER_UUID, map.getProviderUuid(getUser(USER_ID)));
+        assertEquals(RETIRED_PROVIDER_UUID, map.getProvider(getUser(USER_ID)).getUuid());
+    }
+
+    @Test
+    public void testProviderGetsFirstUnretiredUser() {
+        assertEquals(USER_ID, (int) map.getUser(PROVIDER_UUID).getUserId());
+        assertEquals(USER_ID, (int) map.getUser(RETIRED_PROVIDER_UUID).getUserId());
+    }
+
+    @Test
+    public void testRetiredUserFallsBackToItsPersonsProvider() {
+        // Retired users aren't loaded, but are still resolved on a miss.
+        assertNotNull(map.getProviderUuid(getUser(RETIRED_USER_ID)));
+    }
+
+    @Test
+    public void testMissingValuesGiveNull() {
+        assertNull(map.getProviderUuid(getUser(USER_WITHOUT_PROVIDER_ID)));
+        assertNull(map.getProviderUuid(null));
+        assertNull(map.getUser("no-such-provider"));
+        assertNull(map.getUser(null));
+    }
+
+    @Test
+    public void testProviderCreatedAfterLoadIsFoundOnMiss() {
+        User user = getUser(USER_WITHOUT_PROVIDER_ID);
+        assertNull(map.getProviderUuid(user));
+
+        Provider provider = createProvider(user);
+
+        assertEquals(provider.getUuid(), map.getProviderUuid(user));
+        assertEquals(USER_WITHOUT_PROVIDER_ID, (int) map.getUser(provider.getUuid()).getUserId());
+    }
+
+    @Test
+    public void testAddedPairIsKeptUntilInvalidated() {
+        User user = getUser(USER_WITHOUT_PROVIDER_ID);
+        map.getProviderUuid(user);
+        Provider provider = createProvider(user);
+        map.add(user, provider);
+        assertEquals(provider.getUuid(), map.getProviderUuid(user));
+
+        Context.getProviderService().purgeProvider(provider);
+        assertEquals(provider.getUuid(), map.getProviderUuid(user));
+
+        map.invalidate();
+        assertNull(map.getProviderUuid(user));
+        assertEquals(RETIRED_PROVIDER_UUID, map.getProviderUuid(getUser(USER_ID)));
+    }
+
+    private static User getUser(int userId) {
+        return Context.getUserService().getUser(userId);
+    }
+
+    private static Provider createProvider(User user) {
+        Provider provider = new Provider();
+        provider.setPerson(user.getPerson());
+        provider.setIdentifier("new-provider");
+        return Context.getProviderService().saveProvider(provider);
+    }
+}
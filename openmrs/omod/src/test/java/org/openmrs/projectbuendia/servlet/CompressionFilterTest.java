@@ -0,0 +1,147 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.servlet;
+
+import org.junit.Test;
+import org.openmrs.projectbuendia.webservices.rest.ContentVersion;
+import org.openmrs.projectbuendia.webservices.rest.XformCache;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionFilterTest {
+
+    private static final String BODY = "{\"results\": [\"a\", \"b\", \"c\"]}";
+
+    @Test
+    public void testChooseEncoding() {
+        assertNull(CompressionFilter.chooseEncoding(null));
+        assertNull(CompressionFilter.chooseEncoding("identity"));
+        assertEquals("gzip", CompressionFilter.chooseEncoding("gzip"));
+        assertEquals("gzip", CompressionFilter.chooseEncoding("deflate, gzip;q=0.5"));
+        assertEquals("deflate", CompressionFilter.chooseEncoding("deflate, gzip;q=0"));
+        assertEquals("gzip", CompressionFilter.chooseEncoding("x-gzip"));
+        assertNull(CompressionFilter.chooseEncoding("gzip;q=0, deflate;q=0.0"));
+    }
+
+    @Test
+    public void testETagChangesWithContentVersion() {
+        String key = "/ws/rest/v1/projectbuendia/charts?v=full|en|application/json";
+        String before = CompressionFilter.getETag(ContentVersion.INSTANCE.get(), key);
+        assertEquals(before, CompressionFilter.getETag(ContentVersion.INSTANCE.get(), key));
+        assertTrue(before.startsWith("W/\""));
+        ContentVersion.INSTANCE.bump();
+        assertNotEquals(before, CompressionFilter.getETag(ContentVersion.INSTANCE.get(), key));
+    }
+
+    @Test
+    public void testFormVersionChangesWithContentAndProviders() {
+        String before = CompressionFilter.getFormVersion();
+        assertEquals(before, CompressionFilter.getFormVersion());
+        ContentVersion.INSTANCE.bump();
+        String afterFormEdit = CompressionFilter.getFormVersion();
+        assertNotEquals(before, afterFormEdit);
+        XformCache.getInstance().invalidateProviders();
+        assertNotEquals(afterFormEdit, CompressionFilter.getFormVersion());
+    }
+
+    @Test
+    public void testETagMatches() {
+        String etag = CompressionFilter.getETag("v1", "key");
+        String opaqueTag = etag.substring(2);
+        assertFalse(CompressionFilter.etagMatches(null, etag));
+        assertTrue(CompressionFilter.etagMatches(etag, etag));
+        assertTrue(CompressionFilter.etagMatches(opaqueTag, etag));
+        assertTrue(CompressionFilter.etagMatches("\"other\", " + etag, etag));
+        assertTrue(CompressionFilter.etagMatches("*", etag));
+        assertFalse(CompressionFilter.etagMatches("\"other\"", etag));
+        assertFalse(CompressionFilter.etagMatches(
+            CompressionFilter.getETag("v2", "key"), etag));
+    }
+
+    @Test
+    public void testGzipsWriterOutput() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        CompressingResponseWrapper wrapper =
+                new CompressingResponseWrapper(response, "gzip", null);
+        wrapper.setContentLength(BODY.length());
+        PrintWriter writer = wrapper.getWriter();
+        writer.write(BODY);
+        wrapper.finish();
+
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertNull(response.getHeader("Content-Length"));
+        assertEquals(BODY, read(new GZIPInputStream(
+                new ByteArrayInputStream(response.getContentAsByteArray()))));
+    }
+
+    @Test
+    public void testDeflatesIntoCaptureBuffer() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ByteArrayOutputStream capture = new ByteArrayOutputStream();
+        CompressingResponseWrapper wrapper =
+                new CompressingResponseWrapper(response, "deflate", capture);
+        wrapper.getOutputStream().write(BODY.getBytes("UTF-8"));
+        wrapper.finish();
+
+        assertTrue(wrapper.isCompressing());
+        assertEquals(0, response.getContentAsByteArray().length);
+        assertEquals(BODY, read(new InflaterInputStream(
+                new ByteArrayInputStream(capture.toByteArray()))));
+    }
+
+    @Test
+    public void testPassesThroughAlreadyEncodedBody() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        CompressingResponseWrapper wrapper =
+                new CompressingResponseWrapper(response, "gzip", null);
+        wrapper.setHeader("Content-Encoding", "gzip");
+        wrapper.setContentLength(3);
+        wrapper.getOutputStream().write(new byte[] {1, 2, 3});
+        wrapper.finish();
+
+        assertFalse(wrapper.isCompressing());
+        assertEquals(3, response.getContentLength());
+        assertEquals(3, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    public void testRecordsErrorStatus() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        CompressingResponseWrapper wrapper =
+                new CompressingResponseWrapper(response, "gzip", null);
+        wrapper.sendError(404);
+        assertEquals(404, wrapper.getStatusCode());
+        assertFalse(wrapper.isCompressing());
+    }
+
+    private static String read(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,250 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.servlet;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptDatatype;
+import org.openmrs.ConceptName;
+import org.openmrs.hl7.HL7Constants;
+import org.openmrs.projectbuendia.ClientConceptNamer;
+import org.projectbuendia.openmrs.api.db.ObsExportRow;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class CsvExportWriterTest {
+
+    private static final long START_MILLIS = 1442650000000L;
+    private static final int FIXED = CsvExportWriter.FIXED_HEADERS.length;
+
+    private static final Concept WEIGHT = makeConcept(101, "Weight", HL7Constants.HL7_NUMERIC);
+    private static final Concept NOTES = makeConcept(102, "Notes", HL7Constants.HL7_TEXT);
+    private static final Concept SYMPTOM = makeConcept(
+            103, "Symptom", HL7Constants.HL7_CODED_WITH_EXCEPTIONS);
+    private static final Concept YES = makeConcept(201, "Yes", HL7Constants.HL7_CODED);
+
+    private static final ClientConceptNamer NAMER =
+            new ClientConceptNamer(ClientConceptNamer.DEFAULT);
+
+    /** Collects the output for each patient, in the order the patients were started. */
+    private static class StringOutput implements CsvExportWriter.Output {
+        final Map<Integer, StringWriter> outputs = new LinkedHashMap<>();
+        CSVPrinter printer;
+
+        @Override public CSVPrinter startPatient(int patientId) throws IOException {
+            StringWriter writer = new StringWriter();
+            outputs.put(patientId, writer);
+            printer = new CSVPrinter(writer, CsvExportWriter.FORMAT);
+            return printer;
+        }
+
+        @Override public void finishPatient(int patientId) throws IOException {
+            printer.flush();
+        }
+
+        /** Returns the patient's lines, skipping the blank lines the export has always had. */
+        List<CSVRecord> getLines(int patientId) throws IOException {
+            List<CSVRecord> lines = new ArrayList<>();
+            for (CSVRecord record : CSVParser.parse(
+                    outputs.get(patientId).toString(), CsvExportWriter.FORMAT).getRecords()) {
+                if (!record.get(0).isEmpty()) {
+                    lines.add(record);
+                }
+            }
+            return lines;
+        }
+    }
+
+    private StringOutput output;
+
+    @Before
+    public void setUp() {
+        ClientConceptNamer.invalidateCache();
+        output = new StringOutput();
+    }
+
+    @Test
+    public void testEncountersWithinIntervalAreMerged() throws Exception {
+        export(30, false,
+                row(1, 1, 0, WEIGHT, 50.0, null, null),
+                row(1, 2, 10, SYMPTOM, null, null, YES));
+
+        List<CSVRecord> lines = output.getLines(1);
+        assertEquals(1, lines.size());
+        assertEquals("encounter-1", lines.get(0).get(3));
+        assertEquals("50.0", lines.get(0).get(FIXED));
+        assertEquals("Yes", lines.get(0).get(FIXED + 2));
+    }
+
+    @Test
+    public void testEncountersOutsideIntervalAreNotMerged() throws Exception {
+        export(30, false,
+                row(1, 1, 0, WEIGHT, 50.0, null, null),
+                row(1, 2, 31, SYMPTOM, null, null, YES));
+
+        List<CSVRecord> lines = output.getLines(1);
+        assertEquals(2, lines.size());
+        assertEquals("50.0", lines.get(0).get(FIXED));
+        assertEquals("", lines.get(0).get(FIXED + 2));
+        assertEquals("", lines.get(1).get(FIXED));
+        assertEquals("Yes", lines.get(1).get(FIXED + 2));
+    }
+
+    @Test
+    public void testZeroIntervalNeverMerges() throws Exception {
+        export(0, false,
+                row(1, 1, 0, WEIGHT, 50.0, null, null),
+                row(1, 2, 0, SYMPTOM, null, null, YES));
+
+        assertEquals(2, output.getLines(1).size());
+    }
+
+    @Test
+    public void testConflictingValuesAreNotMerged() throws Exception {
+        export(30, false,
+                row(1, 1, 0, WEIGHT, 50.0, null, null),
+                row(1, 2, 10, WEIGHT, 55.0, null, null));
+
+        List<CSVRecord> lines = output.getLines(1);
+        assertEquals(2, lines.size());
+        assertEquals("encounter-1", lines.get(0).get(3));
+        assertEquals("50.0", lines.get(0).get(FIXED));
+        assertEquals("encounter-2", lines.get(1).get(3));
+        assertEquals("55.0", lines.get(1).get(FIXED));
+    }
+
+    @Test
+    public void testEqualValuesAreMerged() throws Exception {
+        export(30, false,
+                row(1, 1, 0, WEIGHT, 50.0, null, null),
+                row(1, 2, 10, WEIGHT, 50.0, null, null));
+
+        List<CSVRecord> lines = output.getLines(1);
+        assertEquals(1, lines.size());
+        assertEquals("50.0", lines.get(0).get(FIXED));
+    }
+
+    @Test
+    public void testTextValuesAreConcatenated() throws Exception {
+        export(30, false,
+                row(1, 1, 0, NOTES, null, "Vomiting", null),
+                row(1, 2, 10, NOTES, null, "Better after ORS", null));
+
+        List<CSVRecord> lines = output.getLines(1);
+        assertEquals(1, lines.size());
+        assertEquals("Vomiting\nBetter after ORS", lines.get(0).get(FIXED + 1));
+    }
+
+    @Test
+    public void testIdsAndUuids() throws Exception {
+        export(0, true,
+                row(1, 1, 0, WEIGHT, 50.0, null, null),
+                row(1, 1, 0, SYMPTOM, null, null, YES));
+
+        List<CSVRecord> lines = output.getLines(1);
+        assertEquals(1, lines.size());
+        CSVRecord line = lines.get(0);
+        int columns = CsvExportWriter.COLUMNS_PER_OBS;
+        assertEquals(FIXED + 3 * columns, line.size());
+        assertEquals("50.0", line.get(FIXED));
+        assertEquals("50.0", line.get(FIXED + 1));
+        assertEquals("50.0", line.get(FIXED + 2));
+        assertEquals("Yes", line.get(FIXED + 2 * columns));
+        assertEquals("201", line.get(FIXED + 2 * columns + 1));
+        assertEquals(YES.getUuid(), line.get(FIXED + 2 * columns + 2));
+    }
+
+    @Test
+    public void testHeadersWithIdsAndUuids() throws Exception {
+        StringWriter writer = new StringWriter();
+        CSVPrinter printer = new CSVPrinter(writer, CsvExportWriter.FORMAT);
+        new CsvExportWriter(output, NAMER, Arrays.asList(WEIGHT), getCodedValues(), true, 0)
+                .writeHeaders(printer);
+        printer.flush();
+
+        CSVRecord headers = CSVParser.parse(
+                writer.toString(), CsvExportWriter.FORMAT).getRecords().get(0);
+        assertEquals(FIXED + 3, headers.size());
+        assertEquals("Weight", headers.get(FIXED));
+        assertEquals("101", headers.get(FIXED + 1));
+        assertEquals(WEIGHT.getUuid(), headers.get(FIXED + 2));
+    }
+
+    @Test
+    public void testEachPatientGetsItsOwnOutput() throws Exception {
+        export(30, false,
+                row(7, 1, 0, WEIGHT, 50.0, null, null),
+                row(2, 2, 0, null, null, null, null));
+
+        assertEquals(Arrays.asList(7, 2), new ArrayList<>(output.outputs.keySet()));
+        List<CSVRecord> lines = output.getLines(2);
+        assertEquals(1, lines.size());
+        assertEquals("patient-2", lines.get(0).get(0));
+        assertEquals("MSF-2", lines.get(0).get(1));
+        assertEquals("encounter-2", lines.get(0).get(3));
+        assertEquals("", lines.get(0).get(FIXED));
+    }
+
+    private void export(int intervalMins, boolean idsAndUuids, ObsExportRow... rows)
+            throws IOException {
+        CsvExportWriter writer = new CsvExportWriter(output, NAMER,
+                Arrays.asList(WEIGHT, NOTES, SYMPTOM), getCodedValues(), idsAndUuids,
+                intervalMins);
+        for (ObsExportRow row : rows) {
+            writer.handle(row);
+        }
+        writer.finish();
+    }
+
+    private static Map<Integer, Concept> getCodedValues() {
+        Map<Integer, Concept> values = new HashMap<>();
+        values.put(YES.getId(), YES);
+        return values;
+    }
+
+    private static ObsExportRow row(int patientId, int encounterId, int minutes,
+            @Nullable Concept concept, @Nullable Double numeric, @Nullable String text,
+            @Nullable Concept coded) {
+        return new ObsExportRow(patientId, "patient-" + patientId, "MSF-" + patientId, null,
+                encounterId, "encounter-" + encounterId,
+                new Date(START_MILLIS + minutes * 60000L),
+                concept == null ? null : concept.getId(),
+                coded == null ? null : coded.getId(), numeric, text, null);
+    }
+
+    private static Concept makeConcept(int id, String name, String hl7Type) {
+        Concept concept = new Concept(id);
+        concept.setUuid("concept-uuid-" + id);
+        ConceptName conceptName = new ConceptName(name, ClientConceptNamer.DEFAULT);
+        conceptName.setLocalePreferred(true);
+        concept.setNames(Arrays.asList(conceptName));
+        ConceptDatatype datatype = new ConceptDatatype();
+        datatype.setHl7Abbreviation(hl7Type);
+        concept.setDatatype(datatype);
+        return concept;
+    }
+}
@@ -0,0 +1,213 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.servlet;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openmrs.Concept;
+import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.ClientConceptNamer;
+import org.openmrs.projectbuendia.Utils;
+import org.openmrs.projectbuendia.webservices.rest.MetadataCache;
+import org.openmrs.projectbuendia.webservices.rest.OrderChainIndex;
+import org.openmrs.test.SkipBaseSetup;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link ExportCache}, through to the database. */
+@SkipBaseSetup
+public class ExportCacheTest extends BaseModuleWebContextSensitiveTest {
+
+    private static final String BASE_DATASET =
+        "org/openmrs/projectbuendia/webservices/rest/baseMetaDataSet.xml";
+    private static final String PATIENT_DATASET =
+        "org/openmrs/projectbuendia/webservices/rest/order-test-base-data.xml";
+    private static final String EXPORT_DATASET =
+        "org/openmrs/projectbuendia/servlet/export-cache-data.xml";
+    /** Changes the weight of patient 7, as of 2015-02-01. */
+    private static final String CHANGE_DATASET =
+        "org/openmrs/projectbuendia/servlet/export-cache-change.xml";
+
+    private static final int WEIGHT_CONCEPT_ID = 5089;
+    private static final int FIXED = CsvExportWriter.FIXED_HEADERS.length;
+    /** A modification time that no file written by the tests can have. */
+    private static final long SENTINEL_MILLIS = 1000;
+
+    private static final ClientConceptNamer NAMER =
+        new ClientConceptNamer(ClientConceptNamer.DEFAULT);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File root;
+    private List<Concept> concepts;
+
+    /** See {@code OrderResourceTest} for why we do our own setup. */
+    @Before
+    public void setUp() throws Exception {
+        if (useInMemoryDatabase()) {
+            initializeInMemoryDatabase();
+            authenticate();
+        }
+        executeDataSet(BASE_DATASET);
+        executeDataSet(PATIENT_DATASET);
+        OrderChainIndex.INSTANCE.invalidate();
+        executeDataSet(EXPORT_DATASET);
+        // The MSF identifier type may be cached from another test's database.
+        MetadataCache.INSTANCE.invalidate();
+        ClientConceptNamer.invalidateCache();
+        root = folder.getRoot();
+        concepts = Arrays.asList(Context.getConceptService().getConcept(WEIGHT_CONCEPT_ID));
+    }
+
+    @Test
+    public void testWritesPatientsInOrderOfMsfId() throws Exception {
+        List<CSVRecord> lines = write(new ExportCache(root), null);
+
+        assertEquals(2, lines.size());
+        assertLine(lines.get(0), "A2", "50.0");
+        assertLine(lines.get(1), "B1", "60.0");
+    }
+
+    @Test
+    public void testChangedPatientIsRecomputed() throws Exception {
+        ExportCache cache = new ExportCache(root);
+        write(cache, null);
+        File unchangedFile = getPatientFile(2);
+        assertTrue(unchangedFile.setLastModified(SENTINEL_MILLIS));
+
+        executeDataSet(CHANGE_DATASET);
+        List<CSVRecord> lines = write(cache, null);
+
+        assertEquals(2, lines.size());
+        assertLine(lines.get(0), "A2", "51.0");
+        assertLine(lines.get(1), "B1", "60.0");
+        assertEquals(SENTINEL_MILLIS, unchangedFile.lastModified());
+    }
+
+    @Test
+    public void testStateIsReloadedFromDisk() throws Exception {
+        write(new ExportCache(root), null);
+        File unchangedFile = getPatientFile(2);
+        unchangedFile.setLastModified(SENTINEL_MILLIS);
+
+        // As after a restart: a new cache finds the files and their state on disk.
+        executeDataSet(CHANGE_DATASET);
+        List<CSVRecord> lines = write(new ExportCache(root), null);
+
+        assertLine(lines.get(0), "A2", "51.0");
+        assertLine(lines.get(1), "B1", "60.0");
+        assertEquals(SENTINEL_MILLIS, unchangedFile.lastModified());
+    }
+
+    @Test
+    public void testUnreadableStateRebuildsEverything() throws Exception {
+        write(new ExportCache(root), null);
+        File unchangedFile = getPatientFile(2);
+        unchangedFile.setLastModified(SENTINEL_MILLIS);
+        try (Writer writer = new FileWriter(new File(getDir(), "state.properties"))) {
+            writer.write("obsToken=garbage\n");
+        }
+
+        List<CSVRecord> lines = write(new ExportCache(root), null);
+
+        assertEquals(2, lines.size());
+        assertTrue(getPatientFile(2).lastModified() != SENTINEL_MILLIS);
+    }
+
+    @Test
+    public void testSinceWritesOnlyChangedPatients() throws Exception {
+        ExportCache cache = new ExportCache(root);
+        write(cache, null);
+        executeDataSet(CHANGE_DATASET);
+
+        List<CSVRecord> lines = write(cache, Utils.fromIso8601("2015-01-15T00:00:00.000Z"));
+
+        assertEquals(1, lines.size());
+        assertLine(lines.get(0), "A2", "51.0");
+    }
+
+    @Test
+    public void testUpToDateDownloadsDontWaitForEachOther() throws Exception {
+        final ExportCache cache = new ExportCache(root);
+        write(cache, null);
+        final List<List<CSVRecord>> nested = new ArrayList<>();
+
+        // A client that stalls while the first download is sending its files.  Any download
+        // that took the write lock here could never get it, as this thread holds the read lock.
+        Writer stalled = new StringWriter() {
+            @Override public void flush() {
+                if (nested.isEmpty()) {
+                    try {
+                        nested.add(write(cache, null));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        };
+        cache.write(stalled, NAMER, concepts, false, 0, null);
+
+        assertEquals(1, nested.size());
+        assertEquals(2, nested.get(0).size());
+        assertLine(nested.get(0).get(0), "A2", "50.0");
+    }
+
+    /** Writes the export and returns its lines, without the headers or the blank lines. */
+    private List<CSVRecord> write(ExportCache cache, @Nullable Date since) throws Exception {
+        StringWriter out = new StringWriter();
+        cache.write(out, NAMER, concepts, false, 0, since);
+        List<CSVRecord> records =
+            CSVParser.parse(out.toString(), CsvExportWriter.FORMAT).getRecords();
+        List<CSVRecord> lines = new ArrayList<>();
+        for (CSVRecord record : records.subList(1, records.size())) {
+            if (!record.get(0).isEmpty()) {
+                lines.add(record);
+            }
+        }
+        return lines;
+    }
+
+    /** The set of files for the options used by {@link #write}; there is only one. */
+    private File getDir() {
+        File[] dirs = root.listFiles();
+        assertEquals(1, dirs.length);
+        return dirs[0];
+    }
+
+    private File getPatientFile(int patientId) {
+        File file = new File(getDir(), patientId + ".csv");
+        assertTrue(file.exists());
+        return file;
+    }
+
+    private static void assertLine(CSVRecord line, String msfId, String weight) {
+        assertEquals(msfId, line.get(1));
+        assertEquals(weight, line.get(FIXED));
+    }
+}
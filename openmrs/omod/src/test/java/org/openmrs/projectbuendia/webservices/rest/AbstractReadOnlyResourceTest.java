@@ -0,0 +1,61 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+import org.openmrs.module.webservices.rest.SimpleObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class AbstractReadOnlyResourceTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCopyResponseCopiesMapsAndLists() {
+        Map<String, Object> names = new HashMap<>();
+        names.put("en", "Weight");
+        List<Object> results = new ArrayList<>();
+        results.add(new SimpleObject().add("uuid", "a").add("names", names));
+        SimpleObject response = new SimpleObject()
+            .add("results", results).add("snapshotTime", "2015-01-01T00:00:00.000Z");
+
+        SimpleObject copy = (SimpleObject) AbstractReadOnlyResource.copyResponse(response);
+        assertEquals(response, copy);
+
+        List<Object> copiedResults = (List<Object>) copy.get("results");
+        SimpleObject copiedItem = (SimpleObject) copiedResults.get(0);
+        assertNotSame(results, copiedResults);
+        assertNotSame(names, copiedItem.get("names"));
+        copiedItem.put("uuid", "changed");
+        ((Map<String, Object>) copiedItem.get("names")).put("en", "changed");
+        copiedResults.add("extra");
+
+        assertEquals(1, results.size());
+        assertEquals("a", ((SimpleObject) results.get(0)).get("uuid"));
+        assertEquals("Weight", names.get("en"));
+    }
+
+    @Test
+    public void testCopyResponseSharesValues() {
+        Object value = Arrays.asList("a");
+        assertTrue(AbstractReadOnlyResource.copyResponse("a") == "a");
+        assertEquals(value, AbstractReadOnlyResource.copyResponse(value));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncLogWriterTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("requests", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static AsyncLogWriter.Line line(File file, String message) {
+        return new AsyncLogWriter.Line(file.getPath(), 0, message);
+    }
+
+    @Test
+    public void testAppendsToExistingFile() throws IOException {
+        File file = new File(dir, "10.0.0.1");
+        FileUtils.writeStringToFile(file, "earlier\n");
+        AsyncLogWriter writer = new AsyncLogWriter(10, 1000, 2);
+        writer.write(Arrays.asList(line(file, "one"), line(file, "two")));
+        writer.flushAll();
+        String contents = FileUtils.readFileToString(file);
+        assertTrue(contents.startsWith("earlier\n"));
+        assertTrue(contents.indexOf("one") < contents.indexOf("two"));
+    }
+
+    @Test
+    public void testRotatesLargeFiles() throws IOException {
+        File file = new File(dir, "10.0.0.1");
+        // Each line is well over a third of the limit, so each file holds two lines.
+        AsyncLogWriter writer = new AsyncLogWriter(10, 100, 2);
+        writer.write(Arrays.asList(
+            line(file, "a0123456789"), line(file, "b0123456789"),
+            line(file, "c0123456789"), line(file, "d0123456789"),
+            line(file, "e0123456789"), line(file, "f0123456789"),
+            line(file, "g0123456789")));
+        writer.flushAll();
+        assertTrue(FileUtils.readFileToString(file).contains("g0123456789"));
+        assertTrue(FileUtils.readFileToString(new File(dir, "10.0.0.1.1")).contains("f0123456789"));
+        assertTrue(FileUtils.readFileToString(new File(dir, "10.0.0.1.2")).contains("c0123456789"));
+        assertFalse(new File(dir, "10.0.0.1.3").exists());
+    }
+}
@@ -11,10 +11,13 @@ package org.openmrs.projectbuendia.webservices.rest;
 // OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
 // specific language governing permissions and limitations under the License.
 
+import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.Concept;
 import org.openmrs.ConceptName;
+import org.openmrs.api.ConceptService;
 import org.openmrs.projectbuendia.ClientConceptNamer;
+import org.openmrs.projectbuendia.ConceptChangeAdvice;
 
 import java.util.Arrays;
 import java.util.Locale;
@@ -23,6 +26,11 @@ import static org.junit.Assert.assertEquals;
 
 /** Unit tests for ClientConceptNamer. */
 public class ClientConceptNamerTest {
+    @Before
+    public void setUp() {
+        ClientConceptNamer.invalidateCache();
+    }
+
     @Test
     public void testConceptNameFailoverToDefault() {
         Concept concept = new Concept();
@@ -89,4 +97,36 @@ public class ClientConceptNamerTest {
         String name = new ClientConceptNamer(new Locale("fr")).getClientName(concept);
         assertEquals("name fr", name);
     }
+
+    @Test
+    public void testSavedConceptNameIsCachedPerLocale() {
+        Concept concept = new Concept(1234);
+        concept.setNames(Arrays.asList(makePreferred("name en", ClientConceptNamer.DEFAULT)));
+        assertEquals("name en", new ClientConceptNamer(new Locale("fr")).getClientName(concept));
+
+        concept.setNames(Arrays.asList(
+            makePreferred("name en", ClientConceptNamer.DEFAULT),
+            makePreferred("name fr", new Locale("fr"))));
+        assertEquals("name en", new ClientConceptNamer(new Locale("fr")).getClientName(concept));
+        assertEquals("name en", new ClientConceptNamer(Locale.ENGLISH).getClientName(concept));
+
+        ClientConceptNamer.invalidateCache();
+        assertEquals("name fr", new ClientConceptNamer(new Locale("fr")).getClientName(concept));
+    }
+
+    @Test
+    public void testConceptServiceSaveClearsCache() throws Exception {
+        Concept concept = new Concept(1234);
+        concept.setNames(Arrays.asList(makePreferred("old", ClientConceptNamer.DEFAULT)));
+        ClientConceptNamer namer = new ClientConceptNamer(Locale.ENGLISH);
+        assertEquals("old", namer.getClientName(concept));
+
+        concept.setNames(Arrays.asList(makePreferred("new", ClientConceptNamer.DEFAULT)));
+        new ConceptChangeAdvice().afterReturning(null,
+            ConceptService.class.getMethod("getConcept", Integer.class), null, null);
+        assertEquals("old", namer.getClientName(concept));
+        new ConceptChangeAdvice().afterReturning(null,
+            ConceptService.class.getMethod("saveConcept", Concept.class), null, null);
+        assertEquals("new", namer.getClientName(concept));
+    }
 }
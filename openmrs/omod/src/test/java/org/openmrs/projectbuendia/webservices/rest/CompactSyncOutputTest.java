@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+import org.openmrs.module.webservices.rest.SimpleObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompactSyncOutputTest {
+
+    private static final String PATIENT_UUID = "5b3f1d0e-8c2a-4f6e-9d7b-1a2b3c4d5e6f";
+    private static final String CONCEPT_UUID = "a3c2e1f0-7b6d-4e5c-8f9a-0b1c2d3e4f5a";
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        SimpleObject record = new SimpleObject()
+                .add("uuid", "obs-1")
+                .add("patient_uuid", PATIENT_UUID)
+                .add("value", "text with ünïcödé")
+                .add("count", -300L)
+                .add("score", 2.5)
+                .add("voided", false)
+                .add("order_uuid", null)
+                .add("tags", Arrays.asList("a", "b", "a"));
+
+        Object decoded = decode(writePage(record));
+
+        Map<?, ?> page = (Map<?, ?>) decoded;
+        assertEquals("{\"t\":\"x\"}", page.get("syncToken"));
+        assertEquals(true, page.get("more"));
+        List<?> results = (List<?>) page.get("results");
+        assertEquals(1, results.size());
+        Map<?, ?> result = (Map<?, ?>) results.get(0);
+        assertEquals("obs-1", result.get("uuid"));
+        assertEquals(PATIENT_UUID, result.get("patient_uuid"));
+        assertEquals("text with ünïcödé", result.get("value"));
+        assertEquals(-300L, result.get("count"));
+        assertEquals(2.5, result.get("score"));
+        assertEquals(false, result.get("voided"));
+        assertTrue(result.containsKey("order_uuid"));
+        assertEquals(null, result.get("order_uuid"));
+        assertEquals(Arrays.asList("a", "b", "a"), result.get("tags"));
+    }
+
+    @Test
+    public void testRepeatedUuidsAreSentOnce() throws Exception {
+        SimpleObject[] records = new SimpleObject[100];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = new SimpleObject()
+                    .add("uuid", "obs-" + i)
+                    .add("patient_uuid", PATIENT_UUID)
+                    .add("concept_uuid", CONCEPT_UUID);
+        }
+        byte[] compact = writePage(records);
+        String json = new ObjectMapper().writeValueAsString(Arrays.asList(records));
+
+        // Each UUID appears in full only once.
+        String text = new String(compact, "ISO-8859-1");
+        assertEquals(text.indexOf(PATIENT_UUID), text.lastIndexOf(PATIENT_UUID));
+        assertTrue(compact.length * 4 < json.length());
+
+        List<?> results = (List<?>) ((Map<?, ?>) decode(compact)).get("results");
+        assertEquals(100, results.size());
+        assertEquals("obs-99", ((Map<?, ?>) results.get(99)).get("uuid"));
+        assertEquals(CONCEPT_UUID, ((Map<?, ?>) results.get(99)).get("concept_uuid"));
+    }
+
+    @Test
+    public void testUniqueValuesAreNotInterned() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompactSyncOutput output = new CompactSyncOutput(bytes);
+        output.writeStartObject();
+        output.writeArrayFieldStart("results");
+        for (int i = 0; i < 1000; i++) {
+            output.writeObject(new SimpleObject()
+                    .add("uuid", "obs-" + i)
+                    .add("patient_uuid", PATIENT_UUID)
+                    .add("concept_uuid", CONCEPT_UUID)
+                    .add("timestamp", "2015-09-19T08:" + i + ":00.000Z")
+                    .add("value", "" + (36.5 + i)));
+        }
+        output.writeEndArray();
+        output.writeEndObject();
+        output.close();
+
+        // The five field names, "results", and the two UUIDs.
+        assertEquals(8, output.getDictionarySize());
+        List<?> results = (List<?>) ((Map<?, ?>) decode(bytes.toByteArray())).get("results");
+        assertEquals("2015-09-19T08:999:00.000Z", ((Map<?, ?>) results.get(999)).get("timestamp"));
+    }
+
+    @Test
+    public void testCodedValuesAreInterned() throws Exception {
+        SimpleObject[] records = new SimpleObject[10];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = new SimpleObject().add("value", CONCEPT_UUID);
+        }
+        String text = new String(writePage(records), "ISO-8859-1");
+        assertEquals(text.indexOf(CONCEPT_UUID), text.lastIndexOf(CONCEPT_UUID));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReaderRejectsOtherData() throws Exception {
+        decode("{\"results\": []}".getBytes("UTF-8"));
+    }
+
+    private static byte[] writePage(SimpleObject... records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompactSyncOutput output = new CompactSyncOutput(bytes);
+        output.writeStartObject();
+        output.writeArrayFieldStart("results");
+        for (SimpleObject record : records) {
+            output.writeObject(record);
+        }
+        output.writeEndArray();
+        output.writeStringField("syncToken", "{\"t\":\"x\"}");
+        output.writeBooleanField("more", true);
+        output.writeEndObject();
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object decode(byte[] bytes) throws IOException {
+        return CompactSyncOutput.Reader.read(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,161 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.projectbuendia.LocationChangeAdvice;
+import org.openmrs.test.SkipBaseSetup;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link LocationTree}, through to the database. */
+@SkipBaseSetup
+public class LocationTreeTest extends BaseModuleWebContextSensitiveTest {
+
+    private static final String BASE_DATASET =
+        "org/openmrs/projectbuendia/webservices/rest/baseMetaDataSet.xml";
+    private static final String PATIENT_DATASET =
+        "org/openmrs/projectbuendia/webservices/rest/order-test-base-data.xml";
+    private static final String LOCATION_DATASET =
+        "org/openmrs/projectbuendia/webservices/rest/location-tree-data.xml";
+
+    private static final String ROOT_UUID = LocationResource.ROOT_UUID;
+    private static final String WARD_UUID = "0f1c3a4e-5b6d-4e7f-8a9b-0c1d2e3f4901";
+    private static final String BED_UUID = "0f1c3a4e-5b6d-4e7f-8a9b-0c1d2e3f4902";
+    private static final String CLOSED_WARD_UUID = "0f1c3a4e-5b6d-4e7f-8a9b-0c1d2e3f4903";
+    private static final int BED_ID = 902;
+    private static final int PATIENT_ID = 7;
+
+    /** See {@code OrderResourceTest} for why we do our own setup. */
+    @Before
+    public void setUp() throws Exception {
+        if (useInMemoryDatabase()) {
+            initializeInMemoryDatabase();
+            authenticate();
+        }
+        executeDataSet(BASE_DATASET);
+        executeDataSet(PATIENT_DATASET);
+        OrderChainIndex.INSTANCE.invalidate();
+        executeDataSet(LOCATION_DATASET);
+        // The snapshot and the attribute type may be left over from another test's database.
+        LocationTree.invalidate();
+        MetadataCache.INSTANCE.invalidate();
+    }
+
+    @Test
+    public void testTreeListsUnretiredLocationsUnderRootParentsFirst() {
+        LocationTree tree = LocationTree.get();
+
+        assertTrue(tree.hasRoot());
+        assertEquals(Arrays.asList(ROOT_UUID, WARD_UUID, BED_UUID), getTreeUuids(tree));
+        SimpleObject bed = tree.getTreeJson().get(2);
+        assertEquals(WARD_UUID, bed.get("parent_uuid"));
+        assertEquals("Bed", ((Map<?, ?>) bed.get("names")).get("en"));
+    }
+
+    @Test
+    public void testRetiredLocationsCanStillBeFound() {
+        LocationTree.Node node = LocationTree.get().getByUuid(CLOSED_WARD_UUID);
+        assertEquals(903, node.id);
+        assertEquals(ROOT_UUID, node.parentUuid);
+    }
+
+    @Test
+    public void testTreeJsonIsNotShared() {
+        LocationTree tree = LocationTree.get();
+        SimpleObject root = tree.getTreeJson().get(0);
+        root.put("uuid", "changed");
+        ((SimpleObject) root.get("names")).put("en", "changed");
+
+        SimpleObject fresh = tree.getTreeJson().get(0);
+        assertEquals(ROOT_UUID, fresh.get("uuid"));
+        assertEquals("Root Location", ((Map<?, ?>) fresh.get("names")).get("en"));
+    }
+
+    @Test
+    public void testSnapshotIsKeptUntilInvalidated() throws Exception {
+        LocationTree tree = LocationTree.get();
+        assertSame(tree, LocationTree.get());
+
+        Location room = createLocation("Room", WARD_UUID);
+        new LocationChangeAdvice().afterReturning(null,
+            LocationService.class.getMethod("getLocation", Integer.class), null, null);
+        assertSame(tree, LocationTree.get());
+
+        new LocationChangeAdvice().afterReturning(null,
+            LocationService.class.getMethod("saveLocation", Location.class), null, null);
+        LocationTree rebuilt = LocationTree.get();
+        assertNotSame(tree, rebuilt);
+        assertTrue(getTreeUuids(rebuilt).contains(room.getUuid()));
+    }
+
+    @Test
+    public void testNewLocationIsFoundBeforeInvalidation() {
+        LocationTree tree = LocationTree.get();
+        Location room = createLocation("Room", WARD_UUID);
+
+        assertFalse(getTreeUuids(tree).contains(room.getUuid()));
+        LocationTree.Node byId = tree.getById(room.getLocationId());
+        assertEquals(room.getUuid(), byId.uuid);
+        assertEquals(WARD_UUID, byId.parentUuid);
+        assertEquals(room.getLocationId().intValue(), tree.getByUuid(room.getUuid()).id);
+        assertNull(tree.getById(99999));
+        assertNull(tree.getByUuid("no-such-location"));
+    }
+
+    @Test
+    public void testPatientGetsAssignedLocationFromTree() {
+        Patient patient = Context.getPatientService().getPatient(PATIENT_ID);
+        DbUtil.setPersonAttributeValue(
+            patient, DbUtil.getAssignedLocationAttributeType(), "" + BED_ID);
+
+        SimpleObject json = PatientResource.patientToJson(patient);
+
+        Map<?, ?> location = (Map<?, ?>) json.get("assigned_location");
+        assertEquals(BED_UUID, location.get("uuid"));
+        assertEquals(WARD_UUID, location.get("parent_uuid"));
+    }
+
+    private static List<String> getTreeUuids(LocationTree tree) {
+        List<String> uuids = new ArrayList<>();
+        for (SimpleObject json : tree.getTreeJson()) {
+            uuids.add((String) json.get("uuid"));
+        }
+        return uuids;
+    }
+
+    private static Location createLocation(String name, String parentUuid) {
+        LocationService service = Context.getLocationService();
+        Location location = new Location();
+        location.setName(name);
+        // Also adds the location to the parent's children, which the session has cached.
+        service.getLocationByUuid(parentUuid).addChildLocation(location);
+        return service.saveLocation(location);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.PatientService;
+import org.openmrs.projectbuendia.ConceptChangeAdvice;
+import org.openmrs.projectbuendia.MetadataChangeAdvice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MetadataCacheTest {
+
+    /** Returns a fixed value and counts how often it is asked to. */
+    private static class CountingLoader implements MetadataCache.Loader<String> {
+        String value;
+        int loads = 0;
+
+        CountingLoader(String value) {
+            this.value = value;
+        }
+
+        @Override public String load() {
+            loads++;
+            return value;
+        }
+    }
+
+    @Test
+    public void testLoadsOnceAndCountsHits() {
+        MetadataCache cache = new MetadataCache();
+        CountingLoader loader = new CountingLoader("MSF");
+        assertEquals("MSF", cache.get("key", loader));
+        assertEquals("MSF", cache.get("key", loader));
+        assertEquals("MSF", cache.get("key", loader));
+        assertEquals(1, loader.loads);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void testDoesNotCacheMissingValues() {
+        MetadataCache cache = new MetadataCache();
+        CountingLoader loader = new CountingLoader(null);
+        assertNull(cache.get("key", loader));
+        loader.value = "created";
+        assertEquals("created", cache.get("key", loader));
+        assertEquals(2, loader.loads);
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidateForcesReload() {
+        MetadataCache cache = new MetadataCache();
+        CountingLoader loader = new CountingLoader("old");
+        cache.get("key", loader);
+        loader.value = "new";
+        assertEquals("old", cache.get("key", loader));
+        cache.invalidate();
+        assertEquals("new", cache.get("key", loader));
+        assertEquals(2, loader.loads);
+    }
+
+    @Test
+    public void testKeysAreIndependent() {
+        MetadataCache cache = new MetadataCache();
+        assertEquals("a", cache.get("a", new CountingLoader("a")));
+        assertEquals("b", cache.get("b", new CountingLoader("b")));
+        assertEquals("a", cache.get("a", new CountingLoader("other")));
+    }
+
+    @Test
+    public void testConceptChangeInvalidatesSharedInstance() throws Exception {
+        CountingLoader loader = new CountingLoader("concept");
+        MetadataCache.INSTANCE.get("advice-test-concept", loader);
+
+        new ConceptChangeAdvice().afterReturning(null,
+            ConceptService.class.getMethod("getConcept", Integer.class), null, null);
+        MetadataCache.INSTANCE.get("advice-test-concept", loader);
+        assertEquals(1, loader.loads);
+
+        new ConceptChangeAdvice().afterReturning(null,
+            ConceptService.class.getMethod("saveConcept", Concept.class), null, null);
+        MetadataCache.INSTANCE.get("advice-test-concept", loader);
+        assertEquals(2, loader.loads);
+    }
+
+    @Test
+    public void testOnlyMetadataTypeChangesInvalidateSharedInstance() throws Exception {
+        CountingLoader loader = new CountingLoader("identifier type");
+        MetadataCache.INSTANCE.get("advice-test-type", loader);
+
+        new MetadataChangeAdvice().afterReturning(null,
+            PatientService.class.getMethod("savePatient", Patient.class), null, null);
+        MetadataCache.INSTANCE.get("advice-test-type", loader);
+        assertEquals(1, loader.loads);
+
+        new MetadataChangeAdvice().afterReturning(null, PatientService.class.getMethod(
+            "savePatientIdentifierType", PatientIdentifierType.class), null, null);
+        MetadataCache.INSTANCE.get("advice-test-type", loader);
+        assertEquals(2, loader.loads);
+    }
+}
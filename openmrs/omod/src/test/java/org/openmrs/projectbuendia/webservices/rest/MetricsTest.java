@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void testHistogramCountsValuesAtOrBelowEachBound() {
+        Metrics.Histogram histogram = new Metrics.Histogram(new long[] {10, 100});
+        histogram.record(5);
+        histogram.record(10);
+        histogram.record(50);
+        histogram.record(1000);
+        assertArrayEquals(new long[] {2, 3, 4}, histogram.getCumulativeCounts());
+        assertEquals(1065, histogram.getSum());
+    }
+
+    @Test
+    public void testWritesPrometheusHistograms() throws IOException {
+        Metrics metrics = new Metrics();
+        metrics.recordRows("PatientResource.search", 0);
+        metrics.recordRows("PatientResource.search", 500);
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        String text = out.toString();
+        assertTrue(text.contains("# TYPE buendia_response_rows histogram\n"));
+        assertTrue(text.contains(
+            "buendia_response_rows_bucket{endpoint=\"PatientResource.search\",le=\"0\"} 1\n"));
+        assertTrue(text.contains(
+            "buendia_response_rows_bucket{endpoint=\"PatientResource.search\",le=\"1000\"} 2\n"));
+        assertTrue(text.contains(
+            "buendia_response_rows_bucket{endpoint=\"PatientResource.search\",le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains(
+            "buendia_response_rows_sum{endpoint=\"PatientResource.search\"} 500\n"));
+        assertTrue(text.contains(
+            "buendia_response_rows_count{endpoint=\"PatientResource.search\"} 2\n"));
+    }
+
+    @Test
+    public void testTimesOnlyStartedRequests() throws IOException {
+        Metrics metrics = new Metrics();
+        metrics.finish("UserResource.search", "ok");  // never started; ignored
+        metrics.start("UserResource.search");
+        metrics.finish("UserResource.search", "ok");
+        metrics.finish("UserResource.search", "ok");  // already finished; ignored
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        assertTrue(out.toString().contains("buendia_request_duration_seconds_count"
+            + "{endpoint=\"UserResource.search\",outcome=\"ok\"} 1\n"));
+    }
+
+    @Test
+    public void testFormatsBoundsInSeconds() {
+        assertEquals("0.0025", Metrics.formatNumber(2500000 / 1e9));
+        assertEquals("60", Metrics.formatNumber(60000000000L / 1e9));
+    }
+
+    @Test
+    public void testEscapesLabelValues() {
+        assertEquals("endpoint=\"a\\\"b\\\\c\"", Metrics.label("endpoint", "a\"b\\c"));
+    }
+}
@@ -0,0 +1,287 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.projectbuendia.openmrs.sync.ObsSyncRow;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ObsColumnStoreTest {
+
+    private static final String TEMPERATURE = "temperature-uuid";
+    private static final String PULSE = "pulse-uuid";
+    private static final String SYMPTOM = "symptom-uuid";
+    private static final String YES = "yes-uuid";
+    private static final String PATIENT_1 = "patient-1";
+    private static final String PATIENT_2 = "patient-2";
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    private ObsColumnStore store;
+
+    @Before
+    public void setUp() {
+        // A store that never consults the database.
+        store = new ObsColumnStore() {
+            @Override void refreshIfStale() { }
+        };
+    }
+
+    @Test
+    public void testLowerBound() {
+        ObsColumnStore.Column column = makeColumn(10, 20, 20, 30);
+
+        assertEquals(0, column.lowerBound(5));
+        assertEquals(0, column.lowerBound(10));
+        assertEquals(1, column.lowerBound(11));
+        assertEquals(1, column.lowerBound(20));
+        assertEquals(3, column.lowerBound(21));
+        assertEquals(4, column.lowerBound(31));
+    }
+
+    @Test
+    public void testLowerBoundOfEmptyColumn() {
+        assertEquals(0, makeColumn().lowerBound(10));
+    }
+
+    @Test
+    public void testSortIsStable() {
+        ObsColumnStore.Column column = makeColumn(20, 10, 20, 10, 30, 10);
+
+        column.sort();
+
+        assertArrayEquals(new int[] {2, 4, 6, 1, 3, 5}, Arrays.copyOf(column.obsIds, 6));
+        assertArrayEquals(new long[] {10, 10, 10, 20, 20, 30}, Arrays.copyOf(column.times, 6));
+        assertArrayEquals(new int[] {2, 4, 6, 1, 3, 5}, Arrays.copyOf(column.patients, 6));
+    }
+
+    @Test
+    public void testRemoveAllKeepsOrder() {
+        ObsColumnStore.Column column = makeColumn(10, 20, 30, 40, 50);
+
+        column.removeAll(new HashSet<>(Arrays.asList(2, 4, 99)));
+
+        assertEquals(3, column.size);
+        assertArrayEquals(new int[] {1, 3, 5}, Arrays.copyOf(column.obsIds, 3));
+        assertArrayEquals(new long[] {10, 30, 50}, Arrays.copyOf(column.times, 3));
+        assertEquals(30, column.values[1], 0);
+    }
+
+    @Test
+    public void testPointsAreInOrderOfTime() throws Exception {
+        store.applyChanges(Arrays.asList(
+            numeric(1, PATIENT_1, TEMPERATURE, 2 * HOUR, 38.0),
+            numeric(2, PATIENT_2, TEMPERATURE, HOUR, 37.0),
+            coded(3, PATIENT_1, SYMPTOM, HOUR, YES)));
+
+        List<ObsColumnStore.Point> points = getPoints(TEMPERATURE, null, null, NO_LIMIT);
+        assertEquals(2, points.size());
+        assertPoint(points.get(0), PATIENT_2, HOUR, 37.0);
+        assertPoint(points.get(1), PATIENT_1, 2 * HOUR, 38.0);
+
+        points = getPoints(SYMPTOM, null, null, NO_LIMIT);
+        assertEquals(1, points.size());
+        assertNull(points.get(0).numericValue);
+        assertEquals(YES, points.get(0).codedValueUuid);
+    }
+
+    @Test
+    public void testPointsWindowAndLimit() throws Exception {
+        store.applyChanges(Arrays.asList(
+            numeric(1, PATIENT_1, TEMPERATURE, HOUR, 37.0),
+            numeric(2, PATIENT_1, TEMPERATURE, 2 * HOUR, 38.0),
+            numeric(3, PATIENT_1, TEMPERATURE, 3 * HOUR, 39.0),
+            numeric(4, PATIENT_1, TEMPERATURE, 4 * HOUR, 40.0)));
+
+        // The start is inclusive and the end exclusive.
+        List<ObsColumnStore.Point> points = getPoints(TEMPERATURE, 2 * HOUR, 4 * HOUR, NO_LIMIT);
+        assertEquals(2, points.size());
+        assertEquals(38.0, points.get(0).numericValue, 0);
+        assertEquals(39.0, points.get(1).numericValue, 0);
+
+        points = getPoints(TEMPERATURE, null, null, 3);
+        assertEquals(3, points.size());
+        assertEquals(39.0, points.get(2).numericValue, 0);
+    }
+
+    @Test
+    public void testPointsForPatients() throws Exception {
+        store.applyChanges(Arrays.asList(
+            numeric(1, PATIENT_1, TEMPERATURE, HOUR, 37.0),
+            numeric(2, PATIENT_2, TEMPERATURE, HOUR, 38.0)));
+
+        List<ObsColumnStore.Point> points = store.getPoints(
+            TEMPERATURE, null, null, Arrays.asList(PATIENT_2, "unknown"), NO_LIMIT);
+        assertEquals(1, points.size());
+        assertPoint(points.get(0), PATIENT_2, HOUR, 38.0);
+    }
+
+    @Test
+    public void testVoidedObsIsRemoved() throws Exception {
+        store.applyChanges(Arrays.asList(
+            numeric(1, PATIENT_1, TEMPERATURE, HOUR, 37.0),
+            numeric(2, PATIENT_1, TEMPERATURE, 2 * HOUR, 38.0)));
+
+        store.applyChanges(Arrays.asList(voided(1, PATIENT_1, TEMPERATURE, HOUR)));
+
+        List<ObsColumnStore.Point> points = getPoints(TEMPERATURE, null, null, NO_LIMIT);
+        assertEquals(1, points.size());
+        assertEquals(38.0, points.get(0).numericValue, 0);
+    }
+
+    @Test
+    public void testUpdatedObsIsReplaced() throws Exception {
+        store.applyChanges(Arrays.asList(
+            numeric(1, PATIENT_1, TEMPERATURE, HOUR, 37.0),
+            numeric(2, PATIENT_1, TEMPERATURE, 2 * HOUR, 38.0)));
+
+        store.applyChanges(Arrays.asList(numeric(1, PATIENT_1, TEMPERATURE, 3 * HOUR, 39.0)));
+
+        List<ObsColumnStore.Point> points = getPoints(TEMPERATURE, null, null, NO_LIMIT);
+        assertEquals(2, points.size());
+        assertPoint(points.get(0), PATIENT_1, 2 * HOUR, 38.0);
+        assertPoint(points.get(1), PATIENT_1, 3 * HOUR, 39.0);
+    }
+
+    @Test
+    public void testRowSeenAgainIsNotDuplicated() throws Exception {
+        ObsSyncRow row = numeric(1, PATIENT_1, TEMPERATURE, HOUR, 37.0);
+        store.applyChanges(Arrays.asList(row));
+
+        store.applyChanges(Arrays.asList(row));
+
+        assertEquals(1, getPoints(TEMPERATURE, null, null, NO_LIMIT).size());
+    }
+
+    @Test
+    public void testObsMovedToAnotherConcept() throws Exception {
+        store.applyChanges(Arrays.asList(numeric(1, PATIENT_1, TEMPERATURE, HOUR, 37.0)));
+
+        store.applyChanges(Arrays.asList(numeric(1, PATIENT_1, PULSE, HOUR, 80.0)));
+
+        assertEquals(0, getPoints(TEMPERATURE, null, null, NO_LIMIT).size());
+        assertEquals(80.0, getPoints(PULSE, null, null, NO_LIMIT).get(0).numericValue, 0);
+    }
+
+    @Test
+    public void testBucketEdges() throws Exception {
+        long start = 10 * HOUR;
+        store.applyChanges(Arrays.asList(
+            numeric(1, PATIENT_1, TEMPERATURE, start - 1, 41.0),  // before the start
+            numeric(2, PATIENT_1, TEMPERATURE, start, 37.0),
+            numeric(3, PATIENT_2, TEMPERATURE, start + HOUR - 1, 39.0),
+            numeric(4, PATIENT_1, TEMPERATURE, start + HOUR, 38.0),
+            // Nothing in the third hour.
+            numeric(5, PATIENT_1, TEMPERATURE, start + 3 * HOUR + 1, 36.0),
+            numeric(6, PATIENT_1, TEMPERATURE, start + 4 * HOUR, 42.0)));  // at the end
+
+        List<ObsColumnStore.Bucket> buckets = store.getBuckets(TEMPERATURE,
+            new Date(start), new Date(start + 4 * HOUR), HOUR, null);
+
+        assertEquals(3, buckets.size());
+        assertBucket(buckets.get(0), start, 2, 37.0, 39.0);
+        assertEquals(38.0, buckets.get(0).getMean(), 0);
+        assertBucket(buckets.get(1), start + HOUR, 1, 38.0, 38.0);
+        assertBucket(buckets.get(2), start + 3 * HOUR, 1, 36.0, 36.0);
+    }
+
+    @Test
+    public void testBucketsForPatients() throws Exception {
+        store.applyChanges(Arrays.asList(
+            numeric(1, PATIENT_1, TEMPERATURE, 0, 37.0),
+            numeric(2, PATIENT_2, TEMPERATURE, 0, 39.0)));
+
+        List<ObsColumnStore.Bucket> buckets = store.getBuckets(TEMPERATURE,
+            new Date(0), new Date(HOUR), HOUR, Collections.singletonList(PATIENT_2));
+
+        assertEquals(1, buckets.size());
+        assertBucket(buckets.get(0), 0, 1, 39.0, 39.0);
+    }
+
+    @Test
+    public void testBucketsOfCodedConceptAreRejected() throws Exception {
+        store.applyChanges(Arrays.asList(coded(1, PATIENT_1, SYMPTOM, 0, YES)));
+
+        try {
+            store.getBuckets(SYMPTOM, new Date(0), new Date(HOUR), HOUR, null);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /** Makes a column of observations with IDs and patients 1, 2, ..., and values = times. */
+    private static ObsColumnStore.Column makeColumn(long... times) {
+        ObsColumnStore.Column column = new ObsColumnStore.Column(false);
+        for (int i = 0; i < times.length; i++) {
+            column.add(i + 1, i + 1, times[i], times[i]);
+        }
+        return column;
+    }
+
+    private List<ObsColumnStore.Point> getPoints(
+        String conceptUuid, @Nullable Long start, @Nullable Long end, int limit)
+        throws Exception {
+        return store.getPoints(conceptUuid, start == null ? null : new Date(start),
+            end == null ? null : new Date(end), null, limit);
+    }
+
+    private static ObsSyncRow numeric(
+        int obsId, String patientUuid, String conceptUuid, long time, double value) {
+        return row(obsId, false, patientUuid, conceptUuid, time, null, value);
+    }
+
+    private static ObsSyncRow coded(
+        int obsId, String patientUuid, String conceptUuid, long time, String valueUuid) {
+        return row(obsId, false, patientUuid, conceptUuid, time, valueUuid, null);
+    }
+
+    private static ObsSyncRow voided(
+        int obsId, String patientUuid, String conceptUuid, long time) {
+        return row(obsId, true, patientUuid, conceptUuid, time, null, null);
+    }
+
+    private static ObsSyncRow row(int obsId, boolean voided, String patientUuid,
+                                  String conceptUuid, long time, @Nullable String valueCodedUuid,
+                                  @Nullable Double valueNumeric) {
+        return new ObsSyncRow(new Date(), "obs-" + obsId, obsId, voided, patientUuid,
+            "encounter-" + obsId, conceptUuid, valueCodedUuid != null ? "CWE" : "NM",
+            new Date(time), null, valueCodedUuid, valueNumeric, null, null, null, null, null);
+    }
+
+    private static void assertPoint(
+        ObsColumnStore.Point point, String patientUuid, long time, double value) {
+        assertEquals(patientUuid, point.patientUuid);
+        assertEquals(time, point.time.getTime());
+        assertEquals(value, point.numericValue, 0);
+    }
+
+    private static void assertBucket(
+        ObsColumnStore.Bucket bucket, long start, int count, double min, double max) {
+        assertEquals(start, bucket.start.getTime());
+        assertEquals(count, bucket.count);
+        assertEquals(min, bucket.min, 0);
+        assertEquals(max, bucket.max, 0);
+    }
+}
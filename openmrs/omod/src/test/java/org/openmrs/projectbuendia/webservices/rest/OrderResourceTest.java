@@ -82,6 +82,8 @@ public class OrderResourceTest extends MainResourceControllerTest {
         }
         executeDataSet(BASE_DATASET);
         executeDataSet(BASE_ORDER_DATASET);
+        // Each test's data is rolled back, so order IDs from earlier tests may be reused.
+        OrderChainIndex.INSTANCE.invalidate();
         executeDataSet(TEST_DATASET);
     }
 
@@ -292,6 +294,26 @@ public class OrderResourceTest extends MainResourceControllerTest {
         assertTrue("Revision order is voided", revisionOrder.isVoided());
     }
 
+    @Test
+    public void testOrderChainIndexFollowsRevisions() throws Exception {
+        Order baseOrder = createOrderStartingNow();
+        String baseUuid = baseOrder.getUuid();
+        handle(newPostRequest(BASE_URL + "/" + baseUuid,
+                newOrderJson(null, "First revision", null, null)));
+        handle(newPostRequest(BASE_URL + "/" + baseUuid,
+                newOrderJson(null, "Second revision", null, null)));
+
+        Order latest = OrderResource.getLatestVersion(baseOrder);
+        assertEquals("Second revision", latest.getInstructions());
+        assertEquals(baseUuid, OrderChainIndex.INSTANCE.getRootUuid(latest));
+        assertEquals(baseUuid, OrderChainIndex.INSTANCE.getRootUuid(latest.getOrderId()));
+        assertEquals(baseUuid, OrderResource.getEarliestVersion(latest).getUuid());
+
+        // A fresh index has to find the chain in the database.
+        OrderChainIndex.INSTANCE.invalidate();
+        assertEquals(latest.getUuid(), OrderResource.getLatestVersion(baseOrder).getUuid());
+        assertEquals(baseUuid, OrderChainIndex.INSTANCE.getRootUuid(latest));
+    }
 
     private Order createExpiredOrderOlderThan24Hrs() throws Exception {
         SimpleObject input = newOrderJson(
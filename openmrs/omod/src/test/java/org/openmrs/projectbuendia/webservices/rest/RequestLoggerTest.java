@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestLoggerTest {
+
+    @Test
+    public void testSummarizesSmallObjectsInFull() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("uuid", "abc");
+        map.put("names", Arrays.asList("a", "b"));
+        assertEquals("{uuid=abc, names=[a, b]}", RequestLogger.summarize(map));
+    }
+
+    @Test
+    public void testSummarizesLargeCollectionsByCount() {
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            items.add(i);
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("results", items);
+        assertEquals("{results=[0, 1, 2, 3, 4, 5, 6, 7, 8, 9, ... (500 items)]}",
+            RequestLogger.summarize(map));
+    }
+
+    @Test
+    public void testStopsDescendingAtMaxDepth() {
+        Map<String, Object> inner = new LinkedHashMap<>();
+        inner.put("x", 1);
+        Object nested = inner;
+        for (int i = 0; i < RequestLogger.MAX_SUMMARY_DEPTH; i++) {
+            Map<String, Object> outer = new LinkedHashMap<>();
+            outer.put("child", nested);
+            nested = outer;
+        }
+        assertEquals("{child={child={child={1 entries}}}}", RequestLogger.summarize(nested));
+    }
+
+    @Test
+    public void testTruncatesLongText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            text.append('x');
+        }
+        String summary = RequestLogger.summarize(text.toString());
+        assertEquals(RequestLogger.MAX_SUMMARY_LENGTH + "...".length(), summary.length());
+        assertTrue(summary.endsWith("..."));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.junit.Test;
+import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.module.webservices.rest.web.response.IllegalPropertyException;
+import org.projectbuendia.openmrs.api.SyncToken;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SyncPageBudgetTest {
+
+    private static final SyncToken POSITION = new SyncToken(new Date(1448450728000L), "uuid");
+
+    @Test
+    public void testEmptyPageStopsAtEnd() {
+        SyncPageBudget budget = new SyncPageBudget(10, 60000);
+        assertEquals(SyncPageBudget.STOP_REASON_END, budget.getStopReason());
+        assertFalse(budget.hasMore());
+        assertNull(budget.getLastPosition());
+    }
+
+    @Test
+    public void testStopsAtLimit() {
+        SyncPageBudget budget = new SyncPageBudget(2, 60000);
+        assertTrue(budget.recordRow(POSITION));
+        assertFalse(budget.recordRow(POSITION));
+        assertEquals(2, budget.getCount());
+        assertEquals(SyncPageBudget.STOP_REASON_LIMIT, budget.getStopReason());
+        assertTrue(budget.hasMore());
+    }
+
+    @Test
+    public void testStopsWhenBudgetExhausted() throws Exception {
+        SyncPageBudget budget = new SyncPageBudget(10, 1);
+        Thread.sleep(5);
+        assertFalse(budget.recordRow(POSITION));
+        assertEquals(SyncPageBudget.STOP_REASON_BUDGET, budget.getStopReason());
+        assertTrue(budget.hasMore());
+        assertEquals(POSITION, budget.getLastPosition());
+    }
+
+    @Test
+    public void testFromRequestUsesDefaults() throws Exception {
+        SyncPageBudget budget = SyncPageBudget.fromRequest(newContext(null, null), 500, 5000);
+        assertEquals(500, budget.maxResults);
+        assertEquals(SyncPageBudget.DEFAULT_BUDGET_MILLIS, budget.budgetMillis);
+    }
+
+    @Test
+    public void testFromRequestClampsValues() throws Exception {
+        SyncPageBudget budget =
+                SyncPageBudget.fromRequest(newContext("1000000", "1000000"), 500, 5000);
+        assertEquals(5000, budget.maxResults);
+        assertEquals(SyncPageBudget.MAX_BUDGET_MILLIS, budget.budgetMillis);
+
+        budget = SyncPageBudget.fromRequest(newContext("-3", "0"), 500, 5000);
+        assertEquals(1, budget.maxResults);
+        assertEquals(1, budget.budgetMillis);
+    }
+
+    @Test(expected = IllegalPropertyException.class)
+    public void testFromRequestRejectsNonIntegerLimit() throws Exception {
+        SyncPageBudget.fromRequest(newContext("lots", null), 500, 5000);
+    }
+
+    private static RequestContext newContext(String limit, String budget) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        if (limit != null) {
+            request.addParameter(SyncPageBudget.LIMIT_PARAM, limit);
+        }
+        if (budget != null) {
+            request.addParameter(SyncPageBudget.BUDGET_PARAM, budget);
+        }
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        return context;
+    }
+}
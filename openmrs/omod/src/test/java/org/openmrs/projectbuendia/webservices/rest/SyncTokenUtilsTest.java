@@ -21,10 +21,13 @@ import java.text.ParseException;
 import java.util.Date;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.openmrs.projectbuendia.webservices.rest.SyncTokenUtils.clampSyncTokenToBufferedRequestTime;
+import static org.openmrs.projectbuendia.webservices.rest.SyncTokenUtils.isAfter;
 import static org.openmrs.projectbuendia.webservices.rest.SyncTokenUtils.jsonToSyncToken;
 import static org.openmrs.projectbuendia.webservices.rest.SyncTokenUtils.syncTokenToJson;
 
@@ -133,6 +136,24 @@ public class SyncTokenUtilsTest {
         assertNull(result.greaterThanUuid);
     }
 
+    @Test
+    public void testIsAfterComparesTimestampThenUuid() throws Exception {
+        SyncToken token = new SyncToken(requestTime, "m");
+        assertTrue(isAfter(new SyncToken(new Date(requestTimestamp + 1), "a"), token));
+        assertFalse(isAfter(new SyncToken(new Date(requestTimestamp - 1), "z"), token));
+        assertTrue(isAfter(new SyncToken(requestTime, "n"), token));
+        assertFalse(isAfter(new SyncToken(requestTime, "m"), token));
+        assertFalse(isAfter(new SyncToken(requestTime, "l"), token));
+    }
+
+    @Test
+    public void testIsAfterNullTokenOrUuid() throws Exception {
+        SyncToken position = new SyncToken(requestTime, uuid);
+        assertTrue(isAfter(position, null));
+        // A token with no UUID precedes every record with the same timestamp.
+        assertTrue(isAfter(position, new SyncToken(requestTime, null)));
+    }
+
     private void assertSyncTokensEqual(SyncToken expected, SyncToken actual) {
         assertEquals(expected.greaterThanOrEqualToTimestamp, actual.greaterThanOrEqualToTimestamp);
         assertEquals(expected.greaterThanUuid, actual.greaterThanUuid);
@@ -0,0 +1,126 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.openmrs.projectbuendia.webservices.rest;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Form;
+import org.openmrs.Provider;
+import org.openmrs.api.FormService;
+import org.openmrs.api.ProviderService;
+import org.openmrs.api.context.Context;
+import org.openmrs.projectbuendia.FormChangeAdvice;
+import org.openmrs.projectbuendia.ProviderChangeAdvice;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class XformCacheTest extends BaseModuleWebContextSensitiveTest {
+
+    /** "Basic Form" in the standard test dataset. */
+    private static final int FORM_ID = 1;
+
+    @Autowired
+    private SessionFactory sessionFactory;
+
+    private XformCache cache;
+    private Form form;
+
+    /** Counts the renderings, and makes each one distinct. */
+    private static class CountingRenderer implements XformCache.Renderer {
+        final boolean includesProviders;
+        int count;
+
+        CountingRenderer(boolean includesProviders) {
+            this.includesProviders = includesProviders;
+        }
+
+        @Override public XformCache.Rendering render(Form form) {
+            count++;
+            return new XformCache.Rendering("<h:html id=\"" + count + "\"/>", includesProviders);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        cache = new XformCache();
+        form = Context.getFormService().getForm(FORM_ID);
+    }
+
+    @Test
+    public void testHitMakesNoQueries() throws Exception {
+        CountingRenderer renderer = new CountingRenderer(true);
+        XformCache.Rendering first = cache.get(form, renderer);
+        // A form fresh from the database, whose fields haven't been loaded.
+        Context.flushSession();
+        Context.clearSession();
+        Form reloaded = Context.getFormService().getForm(FORM_ID);
+
+        Statistics statistics = sessionFactory.getStatistics();
+        statistics.setStatisticsEnabled(true);
+        statistics.clear();
+        try {
+            assertSame(first, cache.get(reloaded, renderer));
+            assertEquals(0, statistics.getPrepareStatementCount());
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+        assertEquals(1, renderer.count);
+    }
+
+    @Test
+    public void testFormEditReRenders() throws Exception {
+        CountingRenderer renderer = new CountingRenderer(false);
+        cache.get(form, renderer);
+
+        new FormChangeAdvice().afterReturning(null,
+            FormService.class.getMethod("getForm", Integer.class), null, null);
+        cache.get(form, renderer);
+        assertEquals(1, renderer.count);
+
+        new FormChangeAdvice().afterReturning(null,
+            FormService.class.getMethod("saveForm", Form.class), null, null);
+        XformCache.Rendering rendering = cache.get(form, renderer);
+        assertEquals(2, renderer.count);
+        assertEquals("<h:html id=\"2\"/>", rendering.xml);
+    }
+
+    @Test
+    public void testProviderSaveReRendersFormsListingProviders() throws Exception {
+        // The advice invalidates the shared instance.
+        XformCache shared = XformCache.getInstance();
+        CountingRenderer renderer = new CountingRenderer(true);
+        shared.get(form, renderer);
+        shared.get(form, renderer);
+        assertEquals(1, renderer.count);
+
+        new ProviderChangeAdvice().afterReturning(null,
+            ProviderService.class.getMethod("saveProvider", Provider.class), null, null);
+        shared.get(form, renderer);
+        assertEquals(2, renderer.count);
+    }
+
+    @Test
+    public void testProviderChangeKeepsFormsWithoutProviders() throws Exception {
+        CountingRenderer renderer = new CountingRenderer(false);
+        cache.get(form, renderer);
+
+        cache.invalidateProviders();
+        cache.get(form, renderer);
+
+        assertEquals(1, renderer.count);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.openmrs.web.controller;
+
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.ui.ModelMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+/** Tests for {@link PrintCharts}. */
+public class PrintChartsTest extends BaseModuleWebContextSensitiveTest {
+
+    private static final String URL = "/module/projectbuendia/openmrs/printable";
+
+    @Test
+    public void testUnauthenticatedRequestGetsNoCharts() throws Exception {
+        Context.logout();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        new PrintCharts().post(new MockHttpServletRequest("GET", URL), response, new ModelMap());
+
+        assertEquals(HttpServletResponse.SC_UNAUTHORIZED, response.getStatus());
+        assertFalse(response.getContentAsString().contains("<h2>"));
+    }
+
+    @Test
+    public void testAuthenticatedRequestIsServed() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        new PrintCharts().post(new MockHttpServletRequest("GET", URL), response, new ModelMap());
+
+        assertNotEquals(HttpServletResponse.SC_UNAUTHORIZED, response.getStatus());
+        assertNotEquals(HttpServletResponse.SC_FORBIDDEN, response.getStatus());
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.openmrs.webservices.rest;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.projectbuendia.webservices.rest.OrderChainIndex;
+import org.openmrs.test.SkipBaseSetup;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link BatchController}, through to the database. */
+@SkipBaseSetup
+public class BatchControllerTest extends BaseModuleWebContextSensitiveTest {
+
+    private static final String BASE_DATASET =
+            "org/openmrs/projectbuendia/webservices/rest/baseMetaDataSet.xml";
+    private static final String BASE_ORDER_DATASET =
+            "org/openmrs/projectbuendia/webservices/rest/order-test-base-data.xml";
+    private static final String ORDER_DATASET =
+            "org/openmrs/projectbuendia/webservices/rest/single-order.xml";
+
+    private static final String URL = "/rest/v1/projectbuendia/batch/encounters";
+    private static final String PATIENT_UUID = "5946f880-b197-400b-9caa-a3c661d23041";
+    private static final String OTHER_PATIENT_UUID = "da7f524f-27ce-4bb2-86d6-6d1d05312bd5";
+    /** "FAVORITE FOOD, NON-CODED", a text concept. */
+    private static final String TEXT_CONCEPT_UUID = "96408258-000b-424e-af1a-403919332938";
+    private static final String ORDER_UUID = "aaaaa";
+    private static final String UNKNOWN_UUID = "00000000-0000-0000-0000-000000000000";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final BatchController controller = new BatchController();
+
+    /** See {@code OrderResourceTest} for why we do our own setup. */
+    @Before
+    public void setUp() throws Exception {
+        if (useInMemoryDatabase()) {
+            initializeInMemoryDatabase();
+            authenticate();
+        }
+        executeDataSet(BASE_DATASET);
+        executeDataSet(BASE_ORDER_DATASET);
+        OrderChainIndex.INSTANCE.invalidate();
+        executeDataSet(ORDER_DATASET);
+    }
+
+    @Test
+    public void testGivesResultForEachItem() throws Exception {
+        int before = countEncounters(PATIENT_UUID);
+        Map<?, ?> reply = post(
+                textEncounter(PATIENT_UUID, "Rice"),
+                new SimpleObject().add("uuid", PATIENT_UUID)
+                        .add("order_uuids", Arrays.asList(ORDER_UUID)),
+                textEncounter(OTHER_PATIENT_UUID, "Beans"));
+
+        assertEquals(3, reply.get("created"));
+        assertEquals(0, reply.get("failed"));
+        List<?> results = (List<?>) reply.get("results");
+        assertEquals(3, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            Map<?, ?> result = (Map<?, ?>) results.get(i);
+            assertEquals(i, result.get("index"));
+            assertNull(result.get("error"));
+            assertNotNull(Context.getEncounterService().getEncounterByUuid(
+                    (String) result.get("uuid")));
+        }
+        assertEquals(before + 2, countEncounters(PATIENT_UUID));
+
+        Encounter first = Context.getEncounterService().getEncounterByUuid(
+                (String) ((Map<?, ?>) results.get(0)).get("uuid"));
+        assertEquals(PATIENT_UUID, first.getPatient().getUuid());
+        Obs obs = first.getAllObs().iterator().next();
+        assertEquals(TEXT_CONCEPT_UUID, obs.getConcept().getUuid());
+        assertEquals("Rice", obs.getValueText());
+    }
+
+    @Test
+    public void testUnknownReferencesFailOnlyTheirItems() throws Exception {
+        Map<?, ?> reply = post(
+                textEncounter(UNKNOWN_UUID, "Rice"),
+                new SimpleObject().add("uuid", PATIENT_UUID).add("observations",
+                        Arrays.asList(new SimpleObject()
+                                .add("question_uuid", UNKNOWN_UUID)
+                                .add("answer_value", "Rice"))),
+                new SimpleObject().add("uuid", PATIENT_UUID)
+                        .add("order_uuids", Arrays.asList(UNKNOWN_UUID)),
+                textEncounter(PATIENT_UUID, "Beans"));
+
+        assertEquals(1, reply.get("created"));
+        assertEquals(3, reply.get("failed"));
+        assertError(reply, 0, "Patient not found: " + UNKNOWN_UUID);
+        assertError(reply, 1, "Question concept not found: " + UNKNOWN_UUID);
+        assertError(reply, 2, "Order not found: " + UNKNOWN_UUID);
+        assertCreated(reply, 3);
+    }
+
+    @Test
+    public void testNonObjectItemFails() throws Exception {
+        Map<?, ?> reply = post("not an encounter", textEncounter(PATIENT_UUID, "Rice"));
+
+        assertEquals(1, reply.get("created"));
+        assertError(reply, 0, "Expected a JSON object");
+        assertCreated(reply, 1);
+    }
+
+    @Test
+    public void testFailedChunkIsRetriedOneItemAtATime() throws Exception {
+        int before = countEncounters(PATIENT_UUID);
+        // The malformed order UUID fails the whole chunk, before anything is saved.
+        Map<?, ?> reply = post(
+                textEncounter(PATIENT_UUID, "Rice"),
+                new SimpleObject().add("uuid", PATIENT_UUID)
+                        .add("order_uuids", Arrays.asList(42)),
+                textEncounter(PATIENT_UUID, "Beans"));
+
+        assertEquals(2, reply.get("created"));
+        assertEquals(1, reply.get("failed"));
+        assertCreated(reply, 0);
+        assertTrue(((Map<?, ?>) ((List<?>) reply.get("results")).get(1)).containsKey("error"));
+        assertCreated(reply, 2);
+        // Each good item is saved exactly once.
+        assertEquals(before + 2, countEncounters(PATIENT_UUID));
+    }
+
+    @Test
+    public void testTooManyItemsAreRejected() throws Exception {
+        Object[] items = new Object[BatchController.MAX_ENCOUNTERS_PER_REQUEST + 1];
+        Arrays.fill(items, Collections.emptyMap());
+        int before = countEncounters(PATIENT_UUID);
+
+        MockHttpServletResponse response = send(items);
+
+        assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, response.getStatus());
+        assertEquals(before, countEncounters(PATIENT_UUID));
+    }
+
+    @Test
+    public void testMissingListIsRejected() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", URL);
+        request.setContent("{}".getBytes("UTF-8"));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.addEncounters(request, response);
+
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+    }
+
+    private static SimpleObject textEncounter(String patientUuid, String text) {
+        return new SimpleObject().add("uuid", patientUuid).add("observations", Arrays.asList(
+                new SimpleObject()
+                        .add("question_uuid", TEXT_CONCEPT_UUID)
+                        .add("answer_value", text)));
+    }
+
+    private MockHttpServletResponse send(Object... items) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", URL);
+        request.setContentType("application/json");
+        request.setContent(OBJECT_MAPPER.writeValueAsBytes(
+                new SimpleObject().add("encounters", Arrays.asList(items))));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.addEncounters(request, response);
+        return response;
+    }
+
+    private Map<?, ?> post(Object... items) throws Exception {
+        MockHttpServletResponse response = send(items);
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        return OBJECT_MAPPER.readValue(response.getContentAsByteArray(), Map.class);
+    }
+
+    private static void assertError(Map<?, ?> reply, int index, String error) {
+        Map<?, ?> result = (Map<?, ?>) ((List<?>) reply.get("results")).get(index);
+        assertEquals(index, result.get("index"));
+        assertFalse(result.containsKey("uuid"));
+        assertEquals(error, result.get("error"));
+    }
+
+    private static void assertCreated(Map<?, ?> reply, int index) {
+        Map<?, ?> result = (Map<?, ?>) ((List<?>) reply.get("results")).get(index);
+        assertEquals(index, result.get("index"));
+        assertFalse(result.containsKey("error"));
+        assertNotNull(Context.getEncounterService().getEncounterByUuid(
+                (String) result.get("uuid")));
+    }
+
+    private static int countEncounters(String patientUuid) {
+        Patient patient = Context.getPatientService().getPatientByUuid(patientUuid);
+        return new ArrayList<>(
+                Context.getEncounterService().getEncountersByPatient(patient)).size();
+    }
+}